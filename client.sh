@@ -3,4 +3,4 @@
 CLASSES_DIR=$(pwd)/build/classes/java/main
 LIB_DIR=$(pwd)/lib
 
-java -cp $CLASSES_DIR:$LIB_DIR/* cs555.dfs.node.client.Client tokyo 50321
+java $JAVA_OPTS -cp $CLASSES_DIR:$LIB_DIR/* cs555.dfs.node.client.Client tokyo 50321
@@ -2,4 +2,4 @@
 #
 CLASSES_DIR=$(pwd)/build/classes/java/main
 
-java -cp $CLASSES_DIR cs555.dfs.node.controller.Controller 50321
+java $JAVA_OPTS -cp $CLASSES_DIR cs555.dfs.node.controller.Controller 50321
@@ -0,0 +1,198 @@
+package cs555.dfs.harness;
+
+import cs555.dfs.node.chunkserver.ChunkServer;
+import cs555.dfs.node.client.Client;
+import cs555.dfs.node.controller.Controller;
+import cs555.dfs.transport.MemoryTransport;
+import cs555.dfs.transport.MessageDispatcher;
+import cs555.dfs.transport.TransportConfig;
+import cs555.dfs.util.Futures;
+import cs555.dfs.util.Utils;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// a controller, chunk servers with their own storage directories and clients, all inside one jvm.
+// the transport is whatever cs555.dfs.transport selects, main() defaults it to the in-memory one
+public class LocalCluster {
+    private static final long REGISTRATION_TIMEOUT = 10 * 1000; // 10 seconds
+    private final Path rootDir;
+    private final Controller controller;
+    private final List<ChunkServer> chunkServers = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+
+    public LocalCluster(int numChunkServers, int numClients, Path rootDir) throws IOException, InterruptedException {
+        this.rootDir = rootDir;
+        controller = new Controller(0, rootDir.resolve("controller"));
+        controller.run();
+
+        String[] controllerAddress = Utils.splitServerAddress(controller.getServerAddress());
+        String controllerHost = controllerAddress[0];
+        int controllerPort = Integer.parseInt(controllerAddress[1]);
+
+        List<Thread> startThreads = new ArrayList<>();
+        for (int i = 1; i <= numChunkServers; i++) {
+            ChunkServer chunkServer = new ChunkServer(0, controllerHost, controllerPort, "s" + i, rootDir.resolve("storage"));
+            chunkServers.add(chunkServer);
+            Thread thread = new Thread(chunkServer::run);
+            thread.start();
+            startThreads.add(thread);
+        }
+        for (Thread thread : startThreads)
+            thread.join();
+        awaitRegistration(numChunkServers);
+
+        for (int i = 1; i <= numClients; i++) {
+            Client client = new Client(controllerHost, controllerPort);
+            Path downloadDirectory = rootDir.resolve("client" + i);
+            Files.createDirectories(downloadDirectory);
+            client.setDownloadDirectory(downloadDirectory);
+            client.start();
+            clients.add(client);
+        }
+    }
+
+    private void awaitRegistration(int numChunkServers) throws IOException {
+        long deadline = System.currentTimeMillis() + REGISTRATION_TIMEOUT;
+        while (controller.getNumberOfLiveChunkServers() < numChunkServers) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("only " + controller.getNumberOfLiveChunkServers() + " of " + numChunkServers + " chunk servers registered");
+            Utils.sleep(10);
+        }
+    }
+
+    public Controller getController() {
+        return controller;
+    }
+
+    public List<ChunkServer> getChunkServers() {
+        return chunkServers;
+    }
+
+    public List<Client> getClients() {
+        return clients;
+    }
+
+    public Path getRootDir() {
+        return rootDir;
+    }
+
+    public void close() {
+        for (Client client : clients)
+            client.close();
+        for (ChunkServer chunkServer : chunkServers)
+            chunkServer.close();
+        controller.close();
+    }
+
+    // stores a copy of the file from every client at once, waits for the chunk servers to report it, then reads every copy back
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3)
+            printHelpAndExit();
+
+        int numChunkServers = Integer.parseInt(args[0]);
+        int numClients = Integer.parseInt(args[1]);
+        Path file = Paths.get(args[2]);
+        if (System.getProperty("cs555.dfs.transport") == null)
+            System.setProperty("cs555.dfs.transport", TransportConfig.Mode.MEMORY.name().toLowerCase());
+        if (System.getProperty("cs555.dfs.heartbeat.interval") == null)
+            System.setProperty("cs555.dfs.heartbeat.interval", "1000");
+        long heartbeatInterval = Long.getLong("cs555.dfs.heartbeat.interval");
+
+        Path rootDir = Files.createTempDirectory("dfs-cluster");
+        byte[] expected = Files.readAllBytes(file);
+        boolean ok = true;
+
+        long startTime = System.nanoTime();
+        LocalCluster cluster = new LocalCluster(numChunkServers, numClients, rootDir);
+        Utils.info(String.format("started %d chunk servers and %d clients in %.1f ms", numChunkServers, numClients, millisSince(startTime)));
+
+        try {
+            List<Path> inputs = new ArrayList<>();
+            for (int i = 1; i <= numClients; i++) {
+                Path input = rootDir.resolve("input").resolve("client" + i).resolve(file.getFileName());
+                Files.createDirectories(input.getParent());
+                Files.write(input, expected);
+                inputs.add(input);
+            }
+
+            startTime = System.nanoTime();
+            List<CompletableFuture<Void>> stores = new ArrayList<>();
+            for (int i = 0; i < numClients; i++)
+                stores.add(cluster.getClients().get(i).storeFile(inputs.get(i)));
+            Futures.allOf(stores).join();
+            report("stored", numClients * (long) expected.length, startTime);
+
+            // chunk locations only reach the controller with the next heartbeat
+            Utils.sleep(2 * heartbeatInterval + 500);
+
+            startTime = System.nanoTime();
+            List<CompletableFuture<Path>> reads = new ArrayList<>();
+            for (int i = 0; i < numClients; i++)
+                reads.add(cluster.getClients().get(i).retrieveFile(inputs.get(i)));
+            List<Path> outputs = Futures.allOf(reads).join();
+            report("read", numClients * (long) expected.length, startTime);
+
+            for (Path output : outputs) {
+                if (!Arrays.equals(expected, Files.readAllBytes(output))) {
+                    Utils.error("contents differ: " + output);
+                    ok = false;
+                }
+            }
+        }
+        catch (CompletionException e) {
+            Utils.error("cluster run failed: " + Futures.unwrap(e).getMessage());
+            ok = false;
+        }
+        finally {
+            cluster.close();
+            deleteRecursively(rootDir);
+        }
+
+        Utils.info(MessageDispatcher.getInstance());
+        if (TransportConfig.getMode() == TransportConfig.Mode.MEMORY)
+            Utils.info(MemoryTransport.getInstance());
+        Utils.info(ok ? "all reads matched" : "the run failed");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static void report(String action, long numBytes, long startTime) {
+        double millis = millisSince(startTime);
+        Utils.info(String.format("%s %d bytes in %.1f ms (%.2f MB/s)", action, numBytes, millis, numBytes / 1024.0 / 1024.0 / (millis / 1000)));
+    }
+
+    private static double millisSince(long startTime) {
+        return (System.nanoTime() - startTime) / 1e6;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void printHelpAndExit() {
+        Utils.out("USAGE: java LocalCluster <number-of-chunk-servers> <number-of-clients> <file>\n");
+        System.exit(-1);
+    }
+}
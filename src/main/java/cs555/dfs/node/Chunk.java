@@ -5,6 +5,8 @@ import cs555.dfs.util.Utils;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.List;
 import java.util.Objects;
@@ -17,6 +19,7 @@ public class Chunk {
     private int size;
     private Instant timeStamp;
     private List<String> checksums;
+    private static final String CHECKSUM_SUFFIX = ".sha1";
 
     public Chunk(String fileName, int sequence, int size, Path path) {
         this.fileName = fileName;
@@ -41,6 +44,22 @@ public class Chunk {
             Utils.debug("writing " + this);
             Files.createDirectories(path.getParent());
             Files.write(path, bytes);
+            if (checksums != null)
+                Files.write(getChecksumPath(), checksums);
+            updateTimestamp();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // takes over a file the chunk data was already written to, e.g. while it was streamed in
+    public void moveChunk(Path source) {
+        try {
+            Utils.debug("moving " + source + " to " + this);
+            Files.move(source, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (checksums != null)
+                Files.write(getChecksumPath(), checksums);
             updateTimestamp();
         }
         catch (IOException e) {
@@ -118,9 +137,21 @@ public class Chunk {
     }
 
     public List<String> getChecksums() {
+        if (checksums == null && path != null && Files.exists(getChecksumPath())) {
+            try {
+                checksums = Files.readAllLines(getChecksumPath());
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         return checksums;
     }
 
+    public Path getChecksumPath() {
+        return Paths.get(path + CHECKSUM_SUFFIX);
+    }
+
     public void setVersion(int version) {
         this.version = version;
     }
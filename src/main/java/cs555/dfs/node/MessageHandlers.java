@@ -0,0 +1,53 @@
+package cs555.dfs.node;
+
+import cs555.dfs.transport.TcpConnection;
+import cs555.dfs.util.Utils;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.Protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// a node binds a handler to each protocol it serves once, handling a message is an array lookup.
+// a message no handler is bound for is counted and dropped instead of failing the dispatch thread
+public class MessageHandlers {
+    private final String nodeType;
+    private final Handler[] handlers = new Handler[Protocol.MAX_PROTOCOLS];
+    private final AtomicLong numUnhandledMessages = new AtomicLong();
+
+    public MessageHandlers(String nodeType) {
+        this.nodeType = nodeType;
+    }
+
+    public MessageHandlers register(int protocol, Handler handler) {
+        int index = Protocol.index(protocol);
+        if (index < 0 || handlers[index] != null)
+            throw new IllegalStateException("protocol " + protocol + " is out of range or registered twice");
+        handlers[index] = handler;
+        return this;
+    }
+
+    // for handlers that do not need the connection the message arrived on
+    public MessageHandlers register(int protocol, Consumer<Message> handler) {
+        return register(protocol, (message, tcpConnection) -> handler.accept(message));
+    }
+
+    public void handle(Message message, TcpConnection tcpConnection) {
+        int index = Protocol.index(message.getProtocol());
+        Handler handler = index < 0 ? null : handlers[index];
+        if (handler == null) {
+            numUnhandledMessages.incrementAndGet();
+            Utils.error(String.format("%s dropped a message with protocol %d", nodeType, message.getProtocol()));
+            return;
+        }
+        handler.handle(message, tcpConnection);
+    }
+
+    public long getNumberOfUnhandledMessages() {
+        return numUnhandledMessages.get();
+    }
+
+    public interface Handler {
+        void handle(Message message, TcpConnection tcpConnection);
+    }
+}
@@ -1,14 +1,30 @@
 package cs555.dfs.node;
 
+import cs555.dfs.transport.PayloadSink;
 import cs555.dfs.transport.TcpConnection;
 import cs555.dfs.wireformats.Message;
 
+import java.io.IOException;
+
 public interface Node {
     void onMessage(Message message);
 
+    // nodes that reply on the connection a request arrived on override this one
+    default void onMessage(Message message, TcpConnection tcpConnection) {
+        onMessage(message);
+    }
+
+    // nodes that take messages with a streamed payload return where to write it as it arrives, the message is handled
+    // once all of it has been written. null drops the message along with its payload
+    default PayloadSink openPayloadSink(Message message, long length) throws IOException {
+        return null;
+    }
+
     String getNodeTypeAsString();
 
     void registerNewTcpConnection(TcpConnection tcpConnection);
 
     String getServerAddress();
+
+    NodeDirectory getNodeDirectory();
 }
@@ -0,0 +1,84 @@
+package cs555.dfs.node;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ids of the registered chunk servers and the server address behind each. the controller assigns the ids and pushes
+// the whole directory to every node it is connected to whenever it changes, so messages can name a chunk server by a
+// four byte id instead of its host:port string. id 0 means none was assigned
+public class NodeDirectory {
+    // the ids the nodes in this jvm were assigned, keyed by their server address, so message headers can use them
+    private static final Map<String, Integer> localIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> addresses = new HashMap<>();
+    private int version;
+    private int nextId = 1;
+
+    public static int getLocalId(String serverAddress) {
+        if (serverAddress == null)
+            return 0;
+        return localIds.getOrDefault(serverAddress, 0);
+    }
+
+    public static void setLocalId(String serverAddress, int id) {
+        if (id == 0)
+            localIds.remove(serverAddress);
+        else
+            localIds.put(serverAddress, id);
+    }
+
+    // assigns the next id to a new server, a server that registers again keeps the id it has
+    public synchronized int register(String serverAddress) {
+        for (Map.Entry<Integer, String> entry : addresses.entrySet())
+            if (entry.getValue().equals(serverAddress))
+                return entry.getKey();
+        int id = nextId++;
+        addresses.put(id, serverAddress);
+        version++;
+        return id;
+    }
+
+    // the directory as the controller's metadata journal last recorded it, before any server registers
+    public synchronized void restore(int version, int nextId, Map<Integer, String> addresses) {
+        this.version = version;
+        this.nextId = nextId;
+        this.addresses.clear();
+        this.addresses.putAll(addresses);
+    }
+
+    // ids are never handed out again, so a late message from a removed server cannot be mistaken for a new one
+    public synchronized void remove(int id) {
+        if (addresses.remove(id) != null)
+            version++;
+    }
+
+    // replaces the directory with the controller's copy unless that copy is older than the one already held
+    public synchronized void update(int version, Map<Integer, String> addresses) {
+        if (version < this.version)
+            return;
+        this.version = version;
+        this.addresses.clear();
+        this.addresses.putAll(addresses);
+    }
+
+    public synchronized String getAddress(int id) {
+        return addresses.get(id);
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public synchronized Map<Integer, String> getAddresses() {
+        return new TreeMap<>(addresses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NodeDirectory{" +
+            "version=" + version +
+            ", addresses=" + addresses +
+            '}';
+    }
+}
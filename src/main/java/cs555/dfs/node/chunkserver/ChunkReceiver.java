@@ -0,0 +1,71 @@
+package cs555.dfs.node.chunkserver;
+
+import cs555.dfs.transport.PayloadSink;
+import cs555.dfs.util.FileChunkifier;
+import cs555.dfs.wireformats.StoreChunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+// writes a streamed chunk to a temporary file next to the chunk while it arrives and checksums its slices on the way.
+// the chunk itself is only replaced once the store is handled
+class ChunkReceiver implements PayloadSink {
+    private final StoreChunk storeChunk;
+    private final Map<StoreChunk, ChunkReceiver> receivedChunks;
+    private final Path partPath;
+    private final FileChannel fileChannel;
+    private final FileChunkifier.SliceChecksummer sliceChecksummer = new FileChunkifier.SliceChecksummer();
+    private long length;
+    private List<String> checksums;
+
+    ChunkReceiver(StoreChunk storeChunk, Path chunkPath, Map<StoreChunk, ChunkReceiver> receivedChunks) throws IOException {
+        this.storeChunk = storeChunk;
+        this.receivedChunks = receivedChunks;
+        Files.createDirectories(chunkPath.getParent());
+        partPath = Files.createTempFile(chunkPath.getParent(), chunkPath.getFileName() + ".", ".part");
+        fileChannel = FileChannel.open(partPath, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(ByteBuffer segment) throws IOException {
+        sliceChecksummer.update(segment.duplicate());
+        while (segment.hasRemaining())
+            length += fileChannel.write(segment);
+    }
+
+    @Override
+    public void complete() throws IOException {
+        fileChannel.close();
+        checksums = sliceChecksummer.finish();
+        receivedChunks.put(storeChunk, this);
+    }
+
+    @Override
+    public void abort() {
+        try {
+            fileChannel.close();
+            Files.deleteIfExists(partPath);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    Path getPartPath() {
+        return partPath;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    List<String> getChecksums() {
+        return checksums;
+    }
+}
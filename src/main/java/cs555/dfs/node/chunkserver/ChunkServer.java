@@ -1,6 +1,13 @@
 package cs555.dfs.node.chunkserver;
 
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.MessageHandlers;
 import cs555.dfs.node.Node;
+import cs555.dfs.node.NodeDirectory;
+import cs555.dfs.transport.CompressionStats;
+import cs555.dfs.transport.ConnectionPool;
+import cs555.dfs.transport.MessageDispatcher;
+import cs555.dfs.transport.PayloadSink;
 import cs555.dfs.transport.TcpConnection;
 import cs555.dfs.transport.TcpServer;
 import cs555.dfs.util.Utils;
@@ -9,50 +16,150 @@ import cs555.dfs.wireformats.erasure.RetrieveShardRequest;
 import cs555.dfs.wireformats.erasure.StoreShard;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChunkServer implements Node {
-    private static final long MINOR_HEARTBEAT_DELAY = 30 * 1000; // 30 seconds
+    private static final long MINOR_HEARTBEAT_DELAY = Long.getLong("cs555.dfs.heartbeat.interval", 30 * 1000); // 30 seconds
+    // new chunks are reported this long after the first of them is stored instead of waiting for the next heartbeat
+    private static final long REPORT_DELAY = Long.getLong("cs555.dfs.heartbeat.reportDelay", 1000); // 1 second
+    private static final Path DEFAULT_STORAGE_ROOT = Paths.get("/tmp", System.getProperty("user.name"));
     private final ChunkStorage chunkStorage;
     private final TcpServer tcpServer;
     private final Map<String, TcpConnection> connections = new ConcurrentHashMap<>(); // key = remote socket address
-    private TcpConnection controllerTcpConnection;
+    private final ConnectionPool connectionPool = new ConnectionPool(this);
+    private final Timer heartbeatTimer = new Timer(true);
+    private final AtomicBoolean reportScheduled = new AtomicBoolean();
+    private final NodeDirectory nodeDirectory = new NodeDirectory();
+    private final MessageHandlers handlers = new MessageHandlers(getNodeTypeAsString())
+        .register(Protocol.STORE_CHUNK, this::handleStoreChunk)
+        .register(Protocol.STORE_SLICE, this::handleStoreSlice)
+        .register(Protocol.RETRIEVE_CHUNK_REQUEST, this::handleRetrieveChunkRequest)
+        .register(Protocol.REPLICATE_CHUNK, this::handleReplicateChunk)
+        .register(Protocol.ALIVE_HEARTBEAT, this::handleAliveHeartbeat)
+        .register(Protocol.REGISTER_RESPONSE, this::handleRegisterResponse)
+        .register(Protocol.NODE_DIRECTORY, this::handleNodeDirectoryUpdate)
+        .register(Protocol.STORE_SHARD, this::handleStoreShard)
+        .register(Protocol.RETRIEVE_SHARD_REQUEST, this::handleRetrieveShardRequest);
+    private final String controllerIp;
+    private final int controllerPort;
+    private volatile TcpConnection controllerTcpConnection;
 
-    private ChunkServer(int port, String controllerIp, int controllerPort, String serverName) {
-        chunkStorage = new ChunkStorage(this, serverName);
+    public ChunkServer(int port, String controllerIp, int controllerPort, String serverName, Path storageRoot) {
+        this.controllerIp = controllerIp;
+        this.controllerPort = controllerPort;
+        chunkStorage = new ChunkStorage(this, storageRoot, serverName);
         tcpServer = new TcpServer(port, this);
 
-        registerWithController(controllerIp, controllerPort);
+        registerWithController();
     }
 
-    void run() {
+    public void run() {
         new Thread(tcpServer).start();
         Utils.sleep(500);
 
         initMinorHeartbeatTimer();
     }
 
-    private void registerWithController(String controllerIp, int controllerPort) {
+    public void close() {
+        heartbeatTimer.cancel();
+        NodeDirectory.setLocalId(getServerAddress(), 0);
+        tcpServer.close();
+        if (controllerTcpConnection != null)
+            controllerTcpConnection.close();
+        connectionPool.close();
+        for (TcpConnection tcpConnection : connections.values())
+            tcpConnection.close();
+    }
+
+    private void registerWithController() {
         try {
-            Socket socket = new Socket(controllerIp, controllerPort);
-            controllerTcpConnection = new TcpConnection(socket, this);
-            RegisterRequest request = new RegisterRequest(getServerAddress(), controllerTcpConnection.getLocalSocketAddress());
-            controllerTcpConnection.send(request.getBytes());
+            // registration always names the server by address, an id from an earlier controller means nothing to this one
+            NodeDirectory.setLocalId(getServerAddress(), 0);
+            // assigned before the request goes out, the response schedules a major heartbeat on this connection
+            TcpConnection tcpConnection = TcpConnection.connect(controllerIp, controllerPort, this);
+            controllerTcpConnection = tcpConnection;
+            RegisterRequest request = new RegisterRequest(getServerAddress(), tcpConnection.getLocalSocketAddress());
+            tcpConnection.send(request.getBytes());
         }
         catch (IOException e) {
-            e.printStackTrace();
+            Utils.error("failed to register with the controller at " + controllerIp + ":" + controllerPort + ": " + e.getMessage());
         }
     }
 
+    // a restarted controller knows this server from its journal, registering again hands it the connection back and
+    // the major heartbeat that follows the response brings its view of the chunks up to date
+    private boolean isConnectedToController() {
+        TcpConnection tcpConnection = controllerTcpConnection;
+        if (tcpConnection != null && tcpConnection.isOpen())
+            return true;
+        if (tcpConnection != null)
+            tcpConnection.close();
+        Utils.info("Registering with the controller at " + controllerIp + ":" + controllerPort + " again");
+        registerWithController();
+        return false;
+    }
+
     private void initMinorHeartbeatTimer() {
         HeartbeatTimerTask heartbeatTimerTask = new HeartbeatTimerTask();
-        Timer timer = new Timer(true);
-        timer.schedule(heartbeatTimerTask, MINOR_HEARTBEAT_DELAY, MINOR_HEARTBEAT_DELAY);
+        heartbeatTimer.schedule(heartbeatTimerTask, MINOR_HEARTBEAT_DELAY, MINOR_HEARTBEAT_DELAY);
+    }
+
+    // called when a chunk is added to the new chunks, the controller learns of it within REPORT_DELAY so placement
+    // reservations and repairs waiting on it finish without waiting for the next heartbeat
+    void reportNewChunks() {
+        if (REPORT_DELAY <= 0 || REPORT_DELAY >= MINOR_HEARTBEAT_DELAY || !reportScheduled.compareAndSet(false, true))
+            return;
+        scheduleOnce(() -> {
+            reportScheduled.set(false);
+            sendMinorHeartbeat();
+        }, REPORT_DELAY);
+    }
+
+    // an exception escaping a timer task cancels the timer and every heartbeat with it, so it is logged instead
+    private void scheduleOnce(Runnable task, long delay) {
+        try {
+            heartbeatTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    Utils.runLogged("heartbeat task", task);
+                }
+            }, delay);
+        }
+        catch (IllegalStateException e) {
+            // the server is closing
+        }
+    }
+
+    // runs on the heartbeat timer only, so the new chunks are never reported twice
+    private void sendMinorHeartbeat() {
+        if (!isConnectedToController())
+            return;
+        TcpConnection tcpConnection = controllerTcpConnection;
+        if (tcpConnection == null)
+            return;
+        List<Chunk> newChunks = chunkStorage.getNewChunks();
+        List<Chunk> reported;
+        synchronized (newChunks) {
+            reported = new ArrayList<>(newChunks);
+            newChunks.clear();
+        }
+        Heartbeat heartbeat = new Heartbeat(Protocol.MINOR_HEARTBEAT,
+            getServerAddress(),
+            tcpConnection.getLocalSocketAddress(),
+            chunkStorage.getUsableSpace(),
+            chunkStorage.getTotalNumberOfChunks(),
+            getReadLoad(),
+            reported);
+        tcpConnection.send(heartbeat.getBytes());
     }
 
     public static void main(String[] args) {
@@ -64,7 +171,7 @@ public class ChunkServer implements Node {
         int controllerPort = Integer.parseInt(args[2]);
         String serverName = args.length == 4 ? args[3] : "";
 
-        new ChunkServer(port, controllerIp, controllerPort, serverName).run();
+        new ChunkServer(port, controllerIp, controllerPort, serverName, DEFAULT_STORAGE_ROOT).run();
     }
 
     private static void printHelpAndExit() {
@@ -74,40 +181,55 @@ public class ChunkServer implements Node {
 
     @Override
     public void onMessage(Message message) {
-        int protocol = message.getProtocol();
-        switch (protocol) {
-            case Protocol.STORE_CHUNK:
-                handleStoreChunk(message);
-                break;
-            case Protocol.STORE_SLICE:
-                handleStoreSlice(message);
-                break;
-            case Protocol.RETRIEVE_CHUNK_REQUEST:
-                handleRetrieveChunkRequest(message);
-                break;
-            case Protocol.REPLICATE_CHUNK:
-                handleReplicateChunk(message);
-                break;
-            case Protocol.ALIVE_HEARTBEAT:
-                handleAliveHeartbeat(message);
-                break;
-
-
-            case Protocol.STORE_SHARD:
-                handleStoreShard(message);
-                break;
-            case Protocol.RETRIEVE_SHARD_REQUEST:
-                handleRetrieveShardRequest(message);
-                break;
-            default:
-                throw new RuntimeException(String.format("received an unknown message with protocol %d", protocol));
-        }
+        onMessage(message, null);
+    }
+
+    @Override
+    public void onMessage(Message message, TcpConnection tcpConnection) {
+        handlers.handle(message, tcpConnection);
+    }
+
+    // only chunk stores are streamed to a chunk server
+    @Override
+    public PayloadSink openPayloadSink(Message message, long length) throws IOException {
+        if (message.getProtocol() != Protocol.STORE_CHUNK)
+            return null;
+        return chunkStorage.receiveChunk((StoreChunk) message);
     }
 
     private void handleAliveHeartbeat(Message message) {
         AliveHeartbeat heartbeat = (AliveHeartbeat) message;
     }
 
+    // from now on the headers of this server's messages carry the id instead of the server address
+    private void handleRegisterResponse(Message message) {
+        RegisterResponse response = (RegisterResponse) message;
+        Utils.debug("received: " + response);
+        NodeDirectory.setLocalId(getServerAddress(), response.getNodeId());
+        scheduleOnce(this::sendMajorHeartbeat, 0);
+    }
+
+    // every chunk the server holds, the controller drops the ones it has listed for the server and no longer sees
+    private void sendMajorHeartbeat() {
+        TcpConnection tcpConnection = controllerTcpConnection;
+        if (tcpConnection == null)
+            return;
+        Heartbeat heartbeat = new Heartbeat(Protocol.MAJOR_HEARTBEAT,
+            getServerAddress(),
+            tcpConnection.getLocalSocketAddress(),
+            chunkStorage.getUsableSpace(),
+            chunkStorage.getTotalNumberOfChunks(),
+            getReadLoad(),
+            chunkStorage.getChunks());
+        tcpConnection.send(heartbeat.getBytes());
+    }
+
+    private void handleNodeDirectoryUpdate(Message message) {
+        NodeDirectoryUpdate update = (NodeDirectoryUpdate) message;
+        Utils.debug("received: " + update);
+        nodeDirectory.update(update.getVersion(), update.getAddresses());
+    }
+
     private void handleReplicateChunk(Message message) {
         ReplicateChunk replicateChunk = (ReplicateChunk) message;
         Utils.debug("received: " + replicateChunk);
@@ -132,16 +254,22 @@ public class ChunkServer implements Node {
         chunkStorage.handleStoreSlice(storeSlice);
     }
 
-    private void handleRetrieveChunkRequest(Message message) {
+    private void handleRetrieveChunkRequest(Message message, TcpConnection tcpConnection) {
         RetrieveChunkRequest request = (RetrieveChunkRequest) message;
         Utils.debug("received: " + request);
-        chunkStorage.handleRetrieveChunkRequest(request);
+        chunkStorage.handleRetrieveChunkRequest(request, tcpConnection);
     }
 
-    private void handleRetrieveShardRequest(Message message) {
+    private void handleRetrieveShardRequest(Message message, TcpConnection tcpConnection) {
         RetrieveShardRequest request = (RetrieveShardRequest) message;
         Utils.debug("received: " + request);
-        chunkStorage.handleRetrieveShardRequest(request);
+        chunkStorage.handleRetrieveShardRequest(request, tcpConnection);
+    }
+
+    // the load hint the controller hands to readers: the reads this server is serving. the bulk lane is shared by every
+    // node in the jvm, so its depth says nothing about this one
+    int getReadLoad() {
+        return chunkStorage.getActiveReads();
     }
 
     @Override
@@ -151,6 +279,7 @@ public class ChunkServer implements Node {
 
     @Override
     public void registerNewTcpConnection(TcpConnection tcpConnection) {
+        connections.values().removeIf(c -> !c.isOpen());
         connections.put(tcpConnection.getRemoteSocketAddress(), tcpConnection);
     }
 
@@ -159,8 +288,22 @@ public class ChunkServer implements Node {
         return Utils.getServerAddress(tcpServer);
     }
 
+    @Override
+    public NodeDirectory getNodeDirectory() {
+        return nodeDirectory;
+    }
+
     public void sendMessageToController(Message message) {
-        controllerTcpConnection.send(message.getBytes());
+        TcpConnection tcpConnection = controllerTcpConnection;
+        if (tcpConnection == null) {
+            Utils.error("not registered with the controller, dropping " + message.getClass().getSimpleName());
+            return;
+        }
+        tcpConnection.send(message.getBytes());
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
     }
 
     public TcpConnection getControllerTcpConnection() {
@@ -173,25 +316,20 @@ public class ChunkServer implements Node {
 
         @Override
         public void run() {
+            Utils.runLogged("heartbeat task", this::sendHeartbeat);
+        }
+
+        private void sendHeartbeat() {
+            Utils.debug(MessageDispatcher.getInstance());
+            Utils.debug(CompressionStats.getInstance());
+            if (!isConnectedToController())
+                return;
             if (counter.incrementAndGet() == MAJOR_HEARTBEAT_INTERVAL) {
-                Heartbeat heartbeat = new Heartbeat(Protocol.MAJOR_HEARTBEAT,
-                    getServerAddress(),
-                    controllerTcpConnection.getLocalSocketAddress(),
-                    chunkStorage.getUsableSpace(),
-                    chunkStorage.getTotalNumberOfChunks(),
-                    chunkStorage.getChunks());
-                sendMessageToController(heartbeat);
+                sendMajorHeartbeat();
                 counter.set(0);
             }
             else {
-                Heartbeat heartbeat = new Heartbeat(Protocol.MINOR_HEARTBEAT,
-                    getServerAddress(),
-                    controllerTcpConnection.getLocalSocketAddress(),
-                    chunkStorage.getUsableSpace(),
-                    chunkStorage.getTotalNumberOfChunks(),
-                    chunkStorage.getNewChunks());
-                sendMessageToController(heartbeat);
-                chunkStorage.getNewChunks().clear();
+                sendMinorHeartbeat();
             }
         }
     }
@@ -2,7 +2,10 @@ package cs555.dfs.node.chunkserver;
 
 import cs555.dfs.node.Chunk;
 import cs555.dfs.node.Shard;
-import cs555.dfs.transport.TcpSender;
+import cs555.dfs.transport.ConnectionPool;
+import cs555.dfs.transport.PayloadSink;
+import cs555.dfs.transport.TcpConnection;
+import cs555.dfs.transport.TransportConfig;
 import cs555.dfs.util.FileChunkifier;
 import cs555.dfs.util.Utils;
 import cs555.dfs.wireformats.*;
@@ -12,24 +15,29 @@ import cs555.dfs.wireformats.erasure.ShardHeartbeat;
 import cs555.dfs.wireformats.erasure.StoreShard;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 class ChunkStorage {
-    private static final String TMP_DIR = "/tmp";
-    private static final String USER_NAME = System.getProperty("user.name");
     private final ChunkServer server;
     private final Path storageDir;
     private final List<Chunk> newChunks = new ArrayList<>();
     private final Map<String, List<Chunk>> filesToChunks = new ConcurrentHashMap<>();
     private final Map<String, List<Shard>> filesToShards = new ConcurrentHashMap<>();
+    private final AtomicInteger activeReads = new AtomicInteger(); // chunk and shard reads being served from this storage
+    private final Map<StoreChunk, ChunkReceiver> receivedChunks = Collections.synchronizedMap(new IdentityHashMap<>());
 
-    ChunkStorage(ChunkServer server, String serverName) {
+    ChunkStorage(ChunkServer server, Path storageRoot, String serverName) {
         this.server = server;
-        storageDir = Paths.get(TMP_DIR, USER_NAME, "chunkserver" + serverName);
+        storageDir = storageRoot.resolve("chunkserver" + serverName);
     }
 
     synchronized int getTotalNumberOfChunks() {
@@ -39,6 +47,11 @@ class ChunkStorage {
         return numChunks;
     }
 
+    // a streamed chunk is written to disk while it arrives, handling the store then only moves it into place
+    PayloadSink receiveChunk(StoreChunk storeChunk) throws IOException {
+        return new ChunkReceiver(storeChunk, generateWritePath(storeChunk.getFileName(), storeChunk.getSequence()), receivedChunks);
+    }
+
     public void handleStoreChunk(StoreChunk storeChunk) {
         String fileName = storeChunk.getFileName();
         int sequence = storeChunk.getSequence();
@@ -47,53 +60,82 @@ class ChunkStorage {
         Path path = generateWritePath(fileName, sequence);
 
         Chunk chunk = new Chunk(fileName, sequence, size, path);
+        boolean isNewChunk = false;
 
         synchronized (filesToChunks) {
             filesToChunks.computeIfAbsent(fileName, fn -> new ArrayList<>());
 
             List<Chunk> chunks = filesToChunks.get(fileName);
             if (!chunks.contains(chunk)) {
-                synchronized (newChunks) {
-                    Utils.debug("adding new chunk");
-                    newChunks.add(chunk);
-                }
                 chunks.add(chunk);
+                isNewChunk = true;
             }
             int idx = chunks.indexOf(chunk);
             chunk = chunks.get(idx);
         }
 
+        ChunkReceiver chunkReceiver = receivedChunks.remove(storeChunk);
         byte[] chunkData = storeChunk.getFileData();
 
-        List<String> checksums = FileChunkifier.createSliceChecksums(chunkData);
+        List<String> checksums = chunkReceiver != null ? chunkReceiver.getChecksums() : FileChunkifier.createSliceChecksums(chunkData);
         chunk.setChecksum(checksums);
 
         if (version == -1) // regular store chunk flow
             version = chunk.getVersion() + 1;
 
         chunk.setVersion(version);
-        chunk.writeChunk(chunkData);
+        if (chunkReceiver != null)
+            chunk.moveChunk(chunkReceiver.getPartPath());
+        else
+            chunk.writeChunk(chunkData);
 
         Utils.info("Stored chunk " + chunk.getFileName() + " " + chunk.getSequence());
 
+        // only reported once written, a heartbeat needs the chunk's version and timestamp
+        if (isNewChunk) {
+            synchronized (newChunks) {
+                Utils.debug("adding new chunk");
+                newChunks.add(chunk);
+            }
+            server.reportNewChunks();
+        }
+
         List<String> nextServers = storeChunk.getNextServers();
         if (nextServers.isEmpty())
             return;
 
-        TcpSender tcpSender = TcpSender.of(nextServers.get(0));
-        if (tcpSender == null) {
-            Utils.error("tcpServer is null");
+        String nextServer = nextServers.get(0);
+        ConnectionPool connectionPool = server.getConnectionPool();
+        TcpConnection tcpConnection = connectionPool.get(nextServer);
+        if (tcpConnection == null) {
+            Utils.error("tcpConnection is null");
             return;
         }
 
-        List<String> nextNextServers = nextServers.stream()
-            .skip(1).collect(Collectors.toList());
+        if (chunkReceiver != null) {
+            forwardStream(storeChunk, chunk, chunkReceiver.getLength(), nextServer, tcpConnection, version);
+            return;
+        }
+
+        // only the header and server list are re-encoded, the chunk data goes out from the array it arrived in.
+        // blocks while the next server is saturated, which slows the upstream writer down through this connection
+        ByteBuffer[] forwardingFrame = storeChunk.getForwardingFrame(server.getServerAddress(), tcpConnection.getLocalSocketAddress(), version);
+        if (!connectionPool.send(nextServer, tcpConnection, forwardingFrame))
+            Utils.error("failed to forward chunk " + fileName + " " + sequence + " to " + nextServer);
+    }
 
-        StoreChunk forwardStoreChunk = new StoreChunk(server.getServerAddress(),
-            tcpSender.getLocalSocketAddress(),
-            new cs555.dfs.wireformats.Chunk(fileName, sequence, version, size),
-            chunkData, nextNextServers);
-        tcpSender.send(forwardStoreChunk.getBytes());
+    // a streamed chunk is passed on as a stream straight from the file it was stored in
+    private void forwardStream(StoreChunk storeChunk, Chunk chunk, long length, String nextServer, TcpConnection tcpConnection, int version) {
+        byte[] header = storeChunk.getStreamForwardingHeader(server.getServerAddress(), tcpConnection.getLocalSocketAddress(), version);
+        boolean sent;
+        try (FileChannel fileChannel = FileChannel.open(chunk.getPath(), StandardOpenOption.READ)) {
+            sent = server.getConnectionPool().sendStream(nextServer, tcpConnection, header, fileChannel, length);
+        }
+        catch (IOException e) {
+            sent = false;
+        }
+        if (!sent)
+            Utils.error("failed to forward chunk " + chunk.getFileName() + " " + chunk.getSequence() + " to " + nextServer);
     }
 
     private Path generateWritePath(String fileName, int chunkSequence) {
@@ -129,10 +171,38 @@ class ChunkStorage {
     }
 
     synchronized long getUsableSpace() {
-        return new File(TMP_DIR).getUsableSpace();
+        // the storage directory only appears with the first chunk
+        File dir = storageDir.toFile();
+        while (dir != null && !dir.exists())
+            dir = dir.getParentFile();
+        return dir == null ? 0 : dir.getUsableSpace();
+    }
+
+    void handleRetrieveChunkRequest(RetrieveChunkRequest request, TcpConnection requestConnection) {
+        activeReads.incrementAndGet();
+        try {
+            retrieveChunk(request, requestConnection);
+        }
+        finally {
+            activeReads.decrementAndGet();
+        }
+    }
+
+    void handleRetrieveShardRequest(RetrieveShardRequest request, TcpConnection requestConnection) {
+        activeReads.incrementAndGet();
+        try {
+            retrieveShard(request, requestConnection);
+        }
+        finally {
+            activeReads.decrementAndGet();
+        }
     }
 
-    void handleRetrieveChunkRequest(RetrieveChunkRequest request) {
+    int getActiveReads() {
+        return activeReads.get();
+    }
+
+    private void retrieveChunk(RetrieveChunkRequest request, TcpConnection requestConnection) {
         String fileName = request.getFileName();
         int sequence = request.getSequence();
         Chunk chunk = getChunk(fileName, sequence);
@@ -141,42 +211,75 @@ class ChunkStorage {
             return;
         }
 
-        TcpSender tcpSender = TcpSender.of(request.getServerAddress());
-        if (tcpSender == null) {
-            Utils.error("tcpServer is null");
+        String clientAddress = request.getServerAddress();
+        TcpConnection tcpConnection = getReplyConnection(request, requestConnection);
+        if (tcpConnection == null) {
+            Utils.error("tcpConnection is null");
             return;
         }
 
         List<Integer> corruptSlices = new ArrayList<>();
+        cs555.dfs.wireformats.Chunk wireChunk = new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), -1);
 
         Path path = chunk.getPath();
         if (!path.toFile().exists()) {
             for (int i = 0; i < 8; i++)
                 corruptSlices.add(i);
-            sendCorruptChunkMessage(new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), -1), corruptSlices, tcpSender);
+            sendCorruptChunkMessage(request, wireChunk, corruptSlices, clientAddress, tcpConnection);
+            return;
         }
 
-        byte[] bytes = chunk.readChunk();
-        List<String> sliceChecksums = FileChunkifier.createSliceChecksums(bytes);
+        // checksums are computed straight off the file so the chunk never has to be loaded onto the heap
+        List<String> sliceChecksums = FileChunkifier.createSliceChecksums(path);
         Utils.compareChecksums(chunk.getChecksums(), sliceChecksums, corruptSlices);
 
-        if (corruptSlices.isEmpty()) {
+        if (!corruptSlices.isEmpty()) {
+            sendCorruptChunkMessage(request, wireChunk, corruptSlices, clientAddress, tcpConnection);
+            return;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
             RetrieveChunkResponse response = new RetrieveChunkResponse(server.getServerAddress(),
-                tcpSender.getLocalSocketAddress(),
-                new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), -1), bytes);
-            tcpSender.send(response.getBytes());
+                tcpConnection.getLocalSocketAddress(), wireChunk, new byte[0]);
+            response.getMessageHeader().setResponseTo(request.getMessageHeader());
+            byte[] prefix = response.getBytesWithoutFileData((int) size);
+            if (response.getMessageHeader().isResponse())
+                tcpConnection.sendFileNoCatch(prefix, fileChannel, size);
+            else
+                server.getConnectionPool().sendFile(clientAddress, tcpConnection, prefix, fileChannel, size);
+        }
+        catch (IOException e) {
+            Utils.error("failed to send chunk " + fileName + " " + sequence + " to " + clientAddress + ": " + e.getMessage());
         }
+    }
+
+    // correlated requests are answered on the connection they arrived on, older requests on a pooled connection
+    // to the requester's server address
+    private TcpConnection getReplyConnection(Message request, TcpConnection requestConnection) {
+        if (request.getMessageHeader().getRequestId() != 0 && requestConnection != null)
+            return requestConnection;
+        return server.getConnectionPool().get(request.getMessageHeader().getServerAddress());
+    }
+
+    private void sendReply(Message request, String clientAddress, TcpConnection tcpConnection, Message response) {
+        response.getMessageHeader().setResponseTo(request.getMessageHeader());
+        if (response.getMessageHeader().isResponse())
+            tcpConnection.send(response.getBytes());
         else
-            sendCorruptChunkMessage(new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), -1), corruptSlices, tcpSender);
+            server.getConnectionPool().send(clientAddress, tcpConnection, response.getBytes());
     }
 
-    private void sendCorruptChunkMessage(cs555.dfs.wireformats.Chunk chunk, List<Integer> corruptSlices, TcpSender tcpSender) {
+    private void sendCorruptChunkMessage(Message request, cs555.dfs.wireformats.Chunk chunk, List<Integer> corruptSlices, String clientAddress, TcpConnection tcpConnection) {
         CorruptChunk corruptChunk = new CorruptChunk(server.getServerAddress(),
-            tcpSender.getLocalSocketAddress(),
+            tcpConnection.getLocalSocketAddress(),
             chunk, corruptSlices);
-        tcpSender.send(corruptChunk.getBytes());
+        sendReply(request, clientAddress, tcpConnection, corruptChunk);
 
-        server.sendMessageToController(corruptChunk);
+        // a separate copy so the controller's message does not carry the client's request id
+        server.sendMessageToController(new CorruptChunk(server.getServerAddress(),
+            tcpConnection.getLocalSocketAddress(),
+            chunk, corruptSlices));
     }
 
     private Chunk getChunk(String fileName, int sequence) {
@@ -193,7 +296,7 @@ class ChunkStorage {
             .collect(Collectors.toList());
     }
 
-    void handleRetrieveShardRequest(RetrieveShardRequest request) {
+    private void retrieveShard(RetrieveShardRequest request, TcpConnection requestConnection) {
         String fileName = request.getFileName();
         int sequence = request.getSequence();
         int fragment = request.getFragment();
@@ -203,17 +306,18 @@ class ChunkStorage {
             return;
         }
 
-        TcpSender tcpSender = TcpSender.of(request.getServerAddress());
-        if (tcpSender == null) {
-            Utils.error("tcpServer is null");
+        String clientAddress = request.getServerAddress();
+        TcpConnection tcpConnection = getReplyConnection(request, requestConnection);
+        if (tcpConnection == null) {
+            Utils.error("tcpConnection is null");
             return;
         }
 
         byte[] bytes = shard.readShard();
         RetrieveShardResponse response = new RetrieveShardResponse(server.getServerAddress(),
-            tcpSender.getLocalSocketAddress(),
+            tcpConnection.getLocalSocketAddress(),
             new cs555.dfs.wireformats.erasure.Shard(fileName, sequence, fragment), bytes);
-        tcpSender.send(response.getBytes());
+        sendReply(request, clientAddress, tcpConnection, response);
     }
 
     private Shard getShard(String fileName, int sequence, int fragment) {
@@ -244,36 +348,65 @@ class ChunkStorage {
             return;
         }
 
-        byte[] bytes = chunk.readChunk();
-        List<String> sliceChecksums = FileChunkifier.createSliceChecksums(bytes);
+        // the checksums are taken slice by slice from the file, the chunk is only read into memory when it is small
+        // enough to go inline or when single slices are replaced
+        List<String> sliceChecksums = FileChunkifier.createSliceChecksums(chunk.getPath());
         Utils.compareChecksums(chunk.getChecksums(), sliceChecksums, new ArrayList<>());
         // todo send corrupt chunk message if any corrupt on this server too
 
-        TcpSender tcpSender = TcpSender.of(corruptChunkServerAddress);
+        ConnectionPool connectionPool = server.getConnectionPool();
+        TcpConnection tcpConnection = connectionPool.get(corruptChunkServerAddress);
+        if (tcpConnection == null) {
+            Utils.error("tcpConnection is null");
+            return;
+        }
 
         if (corruptSlices.isEmpty()) {
-            // the entire chunk needs to be replaced
+            // the entire chunk needs to be replaced, a large one is streamed from its file behind an empty store
+            long length = chunk.getPath().toFile().length();
+            if (length >= TransportConfig.getStreamThreshold()) {
+                replicateStream(chunk, length, corruptChunkServerAddress, tcpConnection);
+                return;
+            }
+            byte[] bytes = chunk.readChunk();
             StoreChunk storeChunk = new StoreChunk(server.getServerAddress(),
-                tcpSender.getLocalSocketAddress(),
+                tcpConnection.getLocalSocketAddress(),
                 new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), bytes.length),
                 bytes, Collections.emptyList());
             Utils.debug("sending: " + storeChunk);
-            tcpSender.send(storeChunk.getBytes());
+            connectionPool.send(corruptChunkServerAddress, tcpConnection, storeChunk.getBytes());
         }
         else {
-            List<byte[]> slicedBytes = FileChunkifier.sliceData(bytes);
+            List<byte[]> slicedBytes = FileChunkifier.sliceData(chunk.readChunk());
             for (Integer corruptSlice : corruptSlices) {
                 StoreSlice storeSlice = new StoreSlice(server.getServerAddress(),
-                    tcpSender.getLocalSocketAddress(),
+                    tcpConnection.getLocalSocketAddress(),
                     new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), chunk.getSize()),
                     corruptSlice,
                     (corruptSlice > slicedBytes.size() - 1) ? new byte[0] : slicedBytes.get(corruptSlice));
                 Utils.debug("sending: " + storeSlice);
-                tcpSender.send(storeSlice.getBytes());
+                connectionPool.send(corruptChunkServerAddress, tcpConnection, storeSlice.getBytes());
             }
         }
     }
 
+    private void replicateStream(Chunk chunk, long length, String targetAddress, TcpConnection tcpConnection) {
+        StoreChunk storeChunk = new StoreChunk(server.getServerAddress(),
+            tcpConnection.getLocalSocketAddress(),
+            new cs555.dfs.wireformats.Chunk(chunk.getFileName(), chunk.getSequence(), chunk.getVersion(), (int) length),
+            new byte[0], Collections.emptyList());
+        Utils.debug("sending: " + storeChunk);
+        boolean sent;
+        try (FileChannel fileChannel = FileChannel.open(chunk.getPath(), StandardOpenOption.READ)) {
+            sent = server.getConnectionPool().sendStream(targetAddress, tcpConnection, storeChunk.getBytes(), fileChannel, length);
+        }
+        catch (IOException e) {
+            sent = false;
+        }
+        if (!sent)
+            Utils.error("failed to replicate chunk " + chunk.getFileName() + " " + chunk.getSequence() + " to " + targetAddress);
+    }
+
     public void handleStoreSlice(StoreSlice storeSlice) {
         String fileName = storeSlice.getFileName();
         int sequence = storeSlice.getSequence();
@@ -1,17 +1,28 @@
 package cs555.dfs.node.client;
 
+import cs555.dfs.node.MessageHandlers;
 import cs555.dfs.node.Node;
+import cs555.dfs.node.NodeDirectory;
+import cs555.dfs.transport.CompressionStats;
+import cs555.dfs.transport.ConnectionPool;
 import cs555.dfs.transport.TcpConnection;
 import cs555.dfs.transport.TcpServer;
+import cs555.dfs.transport.TransportConfig;
+import cs555.dfs.util.Futures;
 import cs555.dfs.util.Utils;
-import cs555.dfs.wireformats.*;
-import cs555.dfs.wireformats.erasure.*;
+import cs555.dfs.wireformats.FileMetadata;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.NodeDirectoryUpdate;
+import cs555.dfs.wireformats.Protocol;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 public class Client implements Node {
@@ -19,7 +30,12 @@ public class Client implements Node {
     private final FileStorer fileStorer;
     private final FileLister fileLister;
     private final TcpServer tcpServer;
+    private final ConnectionPool connectionPool = new ConnectionPool(this);
+    private final NodeDirectory nodeDirectory = new NodeDirectory();
+    private final MessageHandlers handlers = new MessageHandlers(getNodeTypeAsString())
+        .register(Protocol.NODE_DIRECTORY, this::handleNodeDirectoryUpdate);
     private TcpConnection controllerTcpConnection;
+    private volatile Path downloadDirectory = Paths.get(".");
 
     public Client(String controllerIp, int controllerPort) {
         fileReader = new FileReader(this);
@@ -28,8 +44,7 @@ public class Client implements Node {
         tcpServer = new TcpServer(0, this);
 
         try {
-            Socket socket = new Socket(controllerIp, controllerPort);
-            controllerTcpConnection = new TcpConnection(socket, this);
+            controllerTcpConnection = TcpConnection.connect(controllerIp, controllerPort, this);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -47,10 +62,22 @@ public class Client implements Node {
     }
 
     void run() {
-        new Thread(tcpServer).start();
+        start();
         handleCmdLineInput();
     }
 
+    // serves the client without reading commands from stdin
+    public void start() {
+        new Thread(tcpServer).start();
+    }
+
+    public void close() {
+        tcpServer.close();
+        if (controllerTcpConnection != null)
+            controllerTcpConnection.close();
+        connectionPool.close();
+    }
+
     private void handleCmdLineInput() {
         printMenu();
 
@@ -70,19 +97,21 @@ public class Client implements Node {
                     Utils.error("file does not exist: " + path);
                     continue;
                 }
-                storeFileErasure(path);
-                printProgressBar();
-                Utils.info("Stored (erasure) " + path);
+                Utils.info("Storing (erasure) " + path + " ...", false);
+                if (awaitWithProgress(storeFileErasure(path), "store (erasure) " + path))
+                    Utils.info("Stored (erasure) " + path);
             }
             else if (input.startsWith("rfe")) {
                 Utils.out("file:\n");
                 String fileName = scanner.next();
                 Path path = Paths.get(fileName);
-                retrieveFileErasure(path);
-                printProgressBar();
+                Utils.info("Retrieving (erasure) " + path + " ...", false);
+                CompletableFuture<Path> future = retrieveFileErasure(path);
+                if (awaitWithProgress(future, "retrieve (erasure) " + path))
+                    Utils.info("File written to " + future.join().toAbsolutePath());
             }
             else if (input.startsWith("lfe")) {
-                listFilesErasure();
+                listFiles(input, FileMetadata.Mode.ERASURE);
             }
             else if (input.startsWith("sf")) {
                 Utils.out("file:\n");
@@ -92,53 +121,70 @@ public class Client implements Node {
                     Utils.error("file does not exist: " + path);
                     continue;
                 }
-                storeFile(path);
-                printProgressBar();
-                Utils.info("Stored " + path);
+                Utils.info("Storing " + path + " ...", false);
+                if (awaitWithProgress(storeFile(path), "store " + path))
+                    Utils.info("Stored " + path);
             }
             else if (input.startsWith("rf")) {
                 Utils.out("file:\n");
                 String fileName = scanner.next();
                 Path path = Paths.get(fileName);
-                retrieveFile(path);
-                printProgressBar();
+                Utils.info("Retrieving " + path + " ...", false);
+                CompletableFuture<Path> future = retrieveFile(path);
+                if (awaitWithProgress(future, "retrieve " + path))
+                    Utils.info("File written to " + future.join().toAbsolutePath());
             }
             else if (input.startsWith("lf")) {
-                listFiles();
+                listFiles(input, null);
             }
             else if (input.startsWith("h")) {
                 printMenu();
             }
             else if (input.startsWith("e")) {
+                if (TransportConfig.isCompressionEnabled())
+                    Utils.info(CompressionStats.getInstance());
                 Utils.info("Auf Wiedersehen");
                 System.exit(0);
             }
         }
     }
 
-    private void listFiles() {
-        fileLister.setIsRunning(true);
-        FileListRequest request = new FileListRequest(getServerAddress(), controllerTcpConnection.getLocalSocketAddress());
-        controllerTcpConnection.send(request.getBytes());
+    // the command may name a directory, "/" by default, and a prefix the listed names start with
+    private void listFiles(String input, FileMetadata.Mode mode) {
+        String[] arguments = input.trim().split("\\s+");
+        String directory = arguments.length > 1 ? arguments[1] : "/";
+        String prefix = arguments.length > 2 ? arguments[2] : "";
+        fileLister.listFiles(directory, prefix, mode).whenComplete(this::logFailure);
     }
 
-    private void listFilesErasure() {
-        fileLister.setIsRunning(true);
-        FileListRequestErasure request = new FileListRequestErasure(getServerAddress(), controllerTcpConnection.getLocalSocketAddress());
-        controllerTcpConnection.send(request.getBytes());
+    private void logFailure(Object result, Throwable throwable) {
+        if (throwable != null)
+            Utils.error("failed to list files: " + Futures.unwrap(throwable).getMessage());
     }
 
-    private void printProgressBar() {
+    // prints a dot every half second until the flow is done, returns false when it failed
+    private static boolean awaitWithProgress(CompletableFuture<?> future, String description) {
         try {
-            while (fileReader.isRunning() || fileLister.isRunning() || fileStorer.isRunning()) {
-                Thread.sleep(500);
-                Utils.out(".");
+            while (true) {
+                try {
+                    future.get(500, TimeUnit.MILLISECONDS);
+                    Utils.out("\n");
+                    return true;
+                }
+                catch (TimeoutException e) {
+                    Utils.out(".");
+                }
             }
-            Utils.out("\n");
         }
         catch (InterruptedException e) {
             e.printStackTrace();
+            future.cancel(true);
+        }
+        catch (ExecutionException e) {
+            Utils.out("\n");
+            Utils.error("failed to " + description + ": " + Futures.unwrap(e).getMessage());
         }
+        return false;
     }
 
     private static void printMenu() {
@@ -146,38 +192,37 @@ public class Client implements Node {
         Utils.out("h   -- print this menu\n");
         Utils.out("sf  -- store file\n");
         Utils.out("sfe -- store file (erasure)\n");
-        Utils.out("lf  -- list files\n");
-        Utils.out("lfe -- list files (erasure)\n");
+        Utils.out("lf  -- list files, lf <directory> <prefix> lists part of the tree\n");
+        Utils.out("lfe -- list files (erasure), takes the same arguments\n");
         Utils.out("rf  -- read file\n");
         Utils.out("rfe -- read file (erasure)\n");
         Utils.out("e   -- exit\n");
         Utils.out("***************************\n");
     }
 
-    private void storeFile(Path path) {
-        Utils.info("Storing " + path + " ...", false);
-        fileStorer.storeFile(path);
+    public CompletableFuture<Void> storeFile(Path path) {
+        return fileStorer.storeFile(path);
+    }
+
+    public CompletableFuture<Void> storeFileErasure(Path path) {
+        return fileStorer.storeFileErasure(path);
+    }
+
+    // the file is written to the download directory under its own name
+    public CompletableFuture<Path> retrieveFile(Path path) {
+        return fileReader.readFile(path);
     }
 
-    private void storeFileErasure(Path path) {
-        Utils.info("Storing (erasure) " + path + " ...", false);
-        fileStorer.storeFileErasure(path);
+    public CompletableFuture<Path> retrieveFileErasure(Path path) {
+        return fileReader.readFileErasure(path);
     }
 
-    private void retrieveFile(Path path) {
-        Utils.info("Retrieving " + path + " ...", false);
-        fileReader.setIsRunning(true);
-        fileReader.setFileName(path.getFileName().toString());
-        RetrieveFileRequest request = new RetrieveFileRequest(getServerAddress(), controllerTcpConnection.getLocalSocketAddress(), Utils.getCanonicalPath(path));
-        controllerTcpConnection.send(request.getBytes());
+    public Path getDownloadDirectory() {
+        return downloadDirectory;
     }
 
-    private void retrieveFileErasure(Path path) {
-        Utils.info("Retrieving (erasure) " + path + " ...", false);
-        fileReader.setIsRunning(true);
-        fileReader.setFileName(path.getFileName().toString());
-        RetrieveFileRequestErasure request = new RetrieveFileRequestErasure(getServerAddress(), controllerTcpConnection.getLocalSocketAddress(), Utils.getCanonicalPath(path));
-        controllerTcpConnection.send(request.getBytes());
+    public void setDownloadDirectory(Path downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
     }
 
     private static void printHelpAndExit() {
@@ -185,100 +230,25 @@ public class Client implements Node {
         System.exit(-1);
     }
 
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
     public TcpConnection getControllerTcpConnection() {
         return controllerTcpConnection;
     }
 
+    // apart from the controller's directory updates every message the client expects answers one of its requests,
+    // so it completes that request's future instead
     @Override
     public void onMessage(Message message) {
-        int protocol = message.getProtocol();
-        switch (protocol) {
-            case Protocol.STORE_CHUNK_RESPONSE:
-                handleStoreChunkResponse(message);
-                break;
-            case Protocol.RETRIEVE_FILE_RESPONSE:
-                handleRetrieveFileResponse(message);
-                break;
-            case Protocol.RETRIEVE_CHUNK_RESPONSE:
-                handleRetrieveChunkResponse(message);
-                break;
-            case Protocol.CORRUPT_CHUNK:
-                handleChunkCorruption(message);
-                break;
-            case Protocol.FILE_LIST_RESPONSE:
-                handleFileListResponse(message);
-                break;
-
-
-            case Protocol.STORE_SHARD_RESPONSE:
-                handleStoreShardResponse(message);
-                break;
-            case Protocol.FILE_LIST_RESPONSE_ERASURE:
-                handleFileListResponseErasure(message);
-                break;
-            case Protocol.RETRIEVE_FILE_RESPONSE_ERASURE:
-                handleRetrieveFileResponseErasure(message);
-                break;
-            case Protocol.RETRIEVE_SHARD_RESPONSE:
-                handleRetrieveShardResponse(message);
-                break;
-            default:
-                throw new RuntimeException(String.format("received an unknown message with protocol %d", protocol));
-        }
-    }
-
-    private void handleFileListResponse(Message message) {
-        FileListResponse response = (FileListResponse) message;
-        Utils.debug("received: " + response);
-        fileLister.handleFileListResponse(response);
+        handlers.handle(message, null);
     }
 
-    private void handleFileListResponseErasure(Message message) {
-        FileListResponseErasure response = (FileListResponseErasure) message;
-        Utils.debug("received: " + response);
-        fileLister.handleFileListResponseErasure(response);
-    }
-
-    private void handleStoreChunkResponse(Message message) {
-        StoreChunkResponse response = (StoreChunkResponse) message;
-        Utils.debug("received: " + response);
-        fileStorer.handleStoreChunkResponse(response);
-    }
-
-    private void handleStoreShardResponse(Message message) {
-        StoreShardResponse response = (StoreShardResponse) message;
-        Utils.debug("received: " + response);
-        fileStorer.handleStoreShardResponse(response);
-    }
-
-    private void handleRetrieveFileResponse(Message message) {
-        RetrieveFileResponse response = (RetrieveFileResponse) message;
-        Utils.debug("received: " + response);
-        fileReader.handleRetrieveFileResponse(response);
-    }
-
-    private void handleRetrieveFileResponseErasure(Message message) {
-        RetrieveFileResponseErasure response = (RetrieveFileResponseErasure) message;
-        Utils.debug("received: " + response);
-        fileReader.handleRetrieveFileResponseErasure(response);
-    }
-
-    private void handleRetrieveChunkResponse(Message message) {
-        RetrieveChunkResponse response = (RetrieveChunkResponse) message;
-        Utils.debug("received: " + response);
-        fileReader.handleRetrieveChunkResponse(response);
-    }
-
-    private void handleRetrieveShardResponse(Message message) {
-        RetrieveShardResponse response = (RetrieveShardResponse) message;
-        Utils.debug("received: " + response);
-        fileReader.handleRetrieveShardResponse(response);
-    }
-
-    private void handleChunkCorruption(Message message) {
-        CorruptChunk corruptChunk = (CorruptChunk) message;
-        Utils.debug("received: " + corruptChunk);
-        fileReader.handleCorruptChunk(corruptChunk);
+    private void handleNodeDirectoryUpdate(Message message) {
+        NodeDirectoryUpdate update = (NodeDirectoryUpdate) message;
+        Utils.debug("received: " + update);
+        nodeDirectory.update(update.getVersion(), update.getAddresses());
     }
 
     @Override
@@ -294,4 +264,17 @@ public class Client implements Node {
     public String getServerAddress() {
         return Utils.getServerAddress(tcpServer);
     }
+
+    @Override
+    public NodeDirectory getNodeDirectory() {
+        return nodeDirectory;
+    }
+
+    // the server address of a chunk server the controller named by id
+    String getChunkServerAddress(int nodeId) {
+        String serverAddress = nodeDirectory.getAddress(nodeId);
+        if (serverAddress == null)
+            throw new IllegalStateException("unknown chunk server id " + nodeId);
+        return serverAddress;
+    }
 }
@@ -1,63 +1,70 @@
 package cs555.dfs.node.client;
 
+import cs555.dfs.transport.TcpConnection;
 import cs555.dfs.util.Utils;
+import cs555.dfs.wireformats.FileListRequest;
 import cs555.dfs.wireformats.FileListResponse;
-import cs555.dfs.wireformats.erasure.FileListResponseErasure;
+import cs555.dfs.wireformats.FileMetadata;
 
-import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// lists a directory of the controller's namespace a page at a time, each page is printed as it arrives and the next
+// one asked for with its continuation token. -Dcs555.dfs.list.pageSize sets the entries per page
 public class FileLister {
+    private static final String ROW = "\t%d.\t%-10s %14s %11s   %s%n";
+    private static final int PAGE_SIZE = Integer.getInteger("cs555.dfs.list.pageSize", 1000);
     private final Client client;
-    private AtomicBoolean isRunning = new AtomicBoolean();
 
     public FileLister(Client client) {
         this.client = client;
     }
 
-    public boolean isRunning() {
-        return isRunning.get();
+    // mode null lists files stored either way
+    public CompletableFuture<Void> listFiles(String directory, String prefix, FileMetadata.Mode mode) {
+        String title = "Files in " + directory + (prefix.isEmpty() ? "" : " starting with " + prefix)
+            + (mode == FileMetadata.Mode.ERASURE ? " (erasure)" : "") + ":\n";
+        return listPage(directory, prefix, "", mode, title, new AtomicInteger());
     }
 
-    public void setIsRunning(boolean isRunning) {
-        this.isRunning.set(isRunning);
+    public CompletableFuture<FileListResponse> requestPage(String directory, String prefix, String startAfter, int pageSize,
+                                                           FileMetadata.Mode mode) {
+        TcpConnection controllerTcpConnection = client.getControllerTcpConnection();
+        FileListRequest request = new FileListRequest(client.getServerAddress(), controllerTcpConnection.getLocalSocketAddress(),
+            directory, prefix, startAfter, pageSize, mode);
+        return controllerTcpConnection.request(request).thenApply(message -> {
+            FileListResponse response = (FileListResponse) message;
+            Utils.debug("received: " + response);
+            return response;
+        });
     }
 
-    public void handleFileListResponse(FileListResponse response) {
-        setIsRunning(false);
-        List<String> fileNames = response.getFileNames();
-        if (fileNames.isEmpty())
-            Utils.info("No files currently available for download\n");
-        else {
-            StringBuilder stringBuilder = new StringBuilder("Files available for download:\n");
-            int i = 0;
-            for (String fileName : fileNames) {
-                stringBuilder.append("\t");
-                stringBuilder.append(++i);
-                stringBuilder.append(".\t");
-                stringBuilder.append(fileName);
-                stringBuilder.append("\n");
-            }
-            Utils.info(stringBuilder.toString());
-        }
+    private CompletableFuture<Void> listPage(String directory, String prefix, String startAfter, FileMetadata.Mode mode,
+                                             String title, AtomicInteger numListed) {
+        return requestPage(directory, prefix, startAfter, PAGE_SIZE, mode).thenCompose(response -> {
+            printEntries(numListed.get() == 0 ? title : "", response, numListed);
+            if (!response.isLastPage())
+                return listPage(directory, prefix, response.getContinuationToken(), mode, title, numListed);
+            if (numListed.get() == 0)
+                Utils.info("No files currently available for download\n");
+            return CompletableFuture.completedFuture(null);
+        });
     }
 
-    public void handleFileListResponseErasure(FileListResponseErasure response) {
-        setIsRunning(false);
-        List<String> fileNames = response.getFileNames();
-        if (fileNames.isEmpty())
-            Utils.info("No files currently available for download\n");
-        else {
-            StringBuilder stringBuilder = new StringBuilder("Files available for download (erasure):\n");
-            int i = 0;
-            for (String fileName : fileNames) {
-                stringBuilder.append("\t");
-                stringBuilder.append(++i);
-                stringBuilder.append(".\t");
-                stringBuilder.append(fileName);
-                stringBuilder.append("\n");
-            }
-            Utils.info(stringBuilder.toString());
+    private static void printEntries(String title, FileListResponse response, AtomicInteger numListed) {
+        if (response.getEntries().isEmpty())
+            return;
+        StringBuilder stringBuilder = new StringBuilder(title);
+        for (FileMetadata entry : response.getEntries()) {
+            if (entry.getMode() == FileMetadata.Mode.DIRECTORY)
+                stringBuilder.append(String.format(ROW, numListed.incrementAndGet(), "dir", "", "",
+                    entry.getName()));
+            else
+                stringBuilder.append(String.format(ROW, numListed.incrementAndGet(),
+                    entry.getMode() == FileMetadata.Mode.ERASURE ? "erasure" : "replicated",
+                    entry.getSize() < 0 ? "? bytes" : entry.getSize() + " bytes", entry.getNumberOfChunks() + " chunks",
+                    entry.getName()));
         }
+        Utils.info(stringBuilder.toString(), false);
     }
 }
@@ -1,279 +1,168 @@
 package cs555.dfs.node.client;
 
-import cs555.dfs.transport.TcpSender;
+import cs555.dfs.transport.RetryPolicy;
+import cs555.dfs.transport.TcpConnection;
 import cs555.dfs.util.*;
 import cs555.dfs.wireformats.*;
 import cs555.dfs.wireformats.erasure.*;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 class FileReader {
+    private static final int MAX_OUTSTANDING_REQUESTS = 16;
     private final Client client;
-    private final List<ChunkData> chunkDataList = new ArrayList<>();
-    private final List<ShardData> shardDataList = new ArrayList<>();
-    private final List<ChunkLocation> chunkLocations = new ArrayList<>();
-    private final List<ShardLocation> shardLocations = new ArrayList<>();
-    private final AtomicInteger numReceivedChunks = new AtomicInteger();
-    private final AtomicInteger numReceivedShards = new AtomicInteger();
-    private final AtomicInteger numExpectedChunks = new AtomicInteger();
-    private final AtomicInteger numExpectedShards = new AtomicInteger();
-    private final AtomicBoolean isRunning = new AtomicBoolean();
-    private String fileName;
+    private final RetryPolicy retryPolicy = RetryPolicy.getDefault();
+    private final ReplicaSelector replicaSelector = new ReplicaSelector();
 
     FileReader(Client client) {
         this.client = client;
     }
 
-    public void setIsRunning(boolean isRunning) {
-        this.isRunning.set(isRunning);
+    // asks the controller where the chunks are, fetches them and writes the file once all of them arrived
+    CompletableFuture<Path> readFile(Path path) {
+        String fileName = path.getFileName().toString();
+        TcpConnection controllerTcpConnection = client.getControllerTcpConnection();
+        RetrieveFileRequest request = new RetrieveFileRequest(client.getServerAddress(),
+            controllerTcpConnection.getLocalSocketAddress(), Utils.getCanonicalPath(path));
+
+        return controllerTcpConnection.request(request)
+            .thenCompose(response -> {
+                Utils.debug("received: " + response);
+                RetrieveFileResponse retrieveFileResponse = (RetrieveFileResponse) response;
+                List<ChunkLocation> chunkLocations = retrieveFileResponse.getChunkLocations();
+                if (chunkLocations.isEmpty())
+                    throw new IllegalStateException("no chunks of " + path + " are known to the controller");
+                replicaSelector.updateLoads(retrieveFileResponse.getServerLoads());
+                return Futures.windowed(chunkLocations, MAX_OUTSTANDING_REQUESTS, chunkLocation -> retrieveChunk(chunkLocation, new HashSet<>()));
+            })
+            .thenApply(chunkDatas -> {
+                Utils.debug(replicaSelector);
+                return writeFile(fileName, chunkDatas);
+            });
     }
 
-    public void setFileName(String fileName) {
-        this.fileName = fileName;
+    CompletableFuture<Path> readFileErasure(Path path) {
+        String fileName = path.getFileName().toString();
+        TcpConnection controllerTcpConnection = client.getControllerTcpConnection();
+        RetrieveFileRequestErasure request = new RetrieveFileRequestErasure(client.getServerAddress(),
+            controllerTcpConnection.getLocalSocketAddress(), Utils.getCanonicalPath(path));
+
+        return controllerTcpConnection.request(request)
+            .thenCompose(response -> {
+                Utils.debug("received: " + response);
+                List<ShardLocation> shardLocations = ((RetrieveFileResponseErasure) response).getShardLocations();
+                if (shardLocations.isEmpty())
+                    throw new IllegalStateException("no shards of " + path + " are known to the controller");
+                return Futures.windowed(shardLocations, MAX_OUTSTANDING_REQUESTS, this::retrieveShard);
+            })
+            .thenApply(shardDatas -> writeFileErasure(fileName, shardDatas));
     }
 
-    void handleRetrieveChunkResponse(RetrieveChunkResponse response) {
-        String fileName = response.getFileName();
-        int sequence = response.getSequence();
-        byte[] fileData = response.getFileData();
-        ChunkData chunkData = new ChunkData(fileName, sequence, fileData);
-
-        synchronized (chunkDataList) {
-            chunkDataList.add(chunkData);
-            if (numReceivedChunks.incrementAndGet() == numExpectedChunks.get()) {
-                Utils.debug("got all " + numReceivedChunks.get() + " expected chunks");
-                numReceivedChunks.set(0);
-                writeFile();
-                return;
-            }
-        }
-
-        sendNextRetrieveChunkRequest();
-    }
-
-    void handleRetrieveShardResponse(RetrieveShardResponse response) {
-        String fileName = response.getFileName();
-        int sequence = response.getSequence();
-        int fragment = response.getFragment();
-        byte[] fileData = response.getFileData();
-        ShardData shardData = new ShardData(fileName, sequence, fragment, fileData);
-
-        synchronized (shardDataList) {
-            shardDataList.add(shardData);
-            if (numReceivedShards.incrementAndGet() == numExpectedShards.get()) {
-                Utils.debug("got all " + numReceivedShards.get() + " expected shards");
-                numReceivedShards.set(0);
-                writeFileErasure();
-                return;
-            }
-        }
-
-        sendNextRetrieveShardRequest();
-    }
-
-    private void writeFile() {
-        synchronized (chunkDataList) {
-            if (chunkDataList.isEmpty())
-                return;
-            List<byte[]> list = chunkDataList.stream()
-                .sorted(Comparator.comparingInt(ChunkData::getSequence))
-                .map(ChunkData::getData)
-                .collect(Collectors.toList());
-
-            byte[] bytes = FileChunkifier.convertByteArrayListToByteArray(list);
-            Path path = Paths.get(String.format("./%s", fileName));
-            try {
-                setIsRunning(false);
-                Files.createDirectories(path.getParent());
-                Files.write(path, bytes);
-                Utils.sleep(1500);
-                Utils.info("File written to " + path.toAbsolutePath());
-                setFileName("");
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            chunkDataList.clear();
-            numExpectedChunks.set(0);
-            numReceivedChunks.set(0);
-        }
-    }
-
-    private void writeFileErasure() {
-        Map<Integer, List<ShardData>> sequenceToShardData = new HashMap<>();
-        List<ChunkData> chunkDatas = new ArrayList<>();
-
-        synchronized (shardDataList) {
-            if (shardDataList.isEmpty())
-                return;
-
-            for (ShardData shardData : shardDataList)
-                sequenceToShardData.computeIfAbsent(shardData.getSequence(), l -> new ArrayList<>()).add(shardData);
-
-            for (Map.Entry<Integer, List<ShardData>> entry : sequenceToShardData.entrySet()) {
-                Integer sequence = entry.getKey();
-                List<ShardData> shardDatas = entry.getValue();
-
-                byte[][] encoded = new byte[ErasureEncoderDecoder.TOTAL_SHARDS][];
-                for (ShardData shardData : shardDatas)
-                    encoded[shardData.fragment] = shardData.getData();
-
-                byte[] decoded = ErasureEncoderDecoder.decode(encoded);
-                ChunkData chunkData = new ChunkData(fileName, sequence, decoded);
-                chunkDatas.add(chunkData);
-            }
-
-            List<byte[]> byteList = chunkDatas.stream()
-                .sorted(Comparator.comparingInt(ChunkData::getSequence))
-                .map(ChunkData::getData)
-                .collect(Collectors.toList());
-
-            byte[] bytes = FileChunkifier.convertByteArrayListToByteArray(byteList);
-            Path path = Paths.get(String.format("./%s", fileName));
-            try {
-                setIsRunning(false);
-                Files.createDirectories(path.getParent());
-                Files.write(path, bytes);
-                Utils.sleep(1500);
-                Utils.info("File written to " + path.toAbsolutePath());
-                setFileName("");
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            shardDataList.clear();
-            numExpectedShards.set(0);
-            numReceivedShards.set(0);
-        }
-    }
-
-    private void sendNextRetrieveChunkRequest() {
-        synchronized (chunkLocations) {
-            if (!chunkLocations.isEmpty()) {
-                ChunkLocation chunkLocation = chunkLocations.get(0);
-                String serverAddress = chunkLocation.getServerAddress();
-
-                TcpSender tcpSender = TcpSender.of(serverAddress);
-                if (tcpSender == null) {
-                    Utils.error("tcpServer is null");
-                    return;
+    // reads from the least loaded replica, and from the next one when a replica cannot be reached or is corrupt
+    private CompletableFuture<ChunkData> retrieveChunk(ChunkLocation chunkLocation, Set<Integer> tried) {
+        // the chunk server answers on the connection the request went out on, so the source address is not needed
+        RetrieveChunkRequest request = new RetrieveChunkRequest(client.getServerAddress(), client.getServerAddress(),
+            new Chunk(chunkLocation.getFileName(), chunkLocation.getSequence(), -1, -1));
+
+        int serverId = replicaSelector.acquire(chunkLocation.getServerIds(), tried);
+        if (serverId == 0)
+            return Futures.failed(new IllegalStateException("no replica of chunk " + chunkLocation.getSequence() + " of "
+                + chunkLocation.getFileName() + " is known to the controller"));
+        tried.add(serverId);
+
+        String serverAddress = client.getNodeDirectory().getAddress(serverId);
+        CompletableFuture<Message> reply = serverAddress == null
+            ? Futures.failed(new IllegalStateException("unknown chunk server id " + serverId))
+            : client.getConnectionPool().request(serverAddress, request, retryPolicy);
+
+        return reply
+            .whenComplete((message, throwable) -> replicaSelector.finished(serverId))
+            .thenApply(message -> {
+                Utils.debug("received: " + message);
+                if (message.getProtocol() == Protocol.CORRUPT_CHUNK) {
+                    CorruptChunk corruptChunk = (CorruptChunk) message;
+                    throw new IllegalStateException("Chunk " + corruptChunk.getSequence() + " of " + corruptChunk.getFileName()
+                        + " was corrupt. Please request the file again.");
                 }
-
-                RetrieveChunkRequest request = new RetrieveChunkRequest(client.getServerAddress(),
-                    tcpSender.getLocalSocketAddress(),
-                    new cs555.dfs.wireformats.Chunk(chunkLocation.getFileName(),
-                        chunkLocation.getSequence(), -1, -1));
-                tcpSender.send(request.getBytes());
-
-                chunkLocations.remove(chunkLocation);
-            }
-        }
+                RetrieveChunkResponse response = (RetrieveChunkResponse) message;
+                return new ChunkData(response.getFileName(), response.getSequence(), response.getFileData());
+            })
+            .handle((chunkData, throwable) -> {
+                if (throwable == null)
+                    return CompletableFuture.completedFuture(chunkData);
+                if (tried.size() >= chunkLocation.getServerIds().length)
+                    return Futures.<ChunkData>failed(Futures.unwrap(throwable));
+                Utils.error("failed to retrieve chunk " + chunkLocation.getSequence() + " from " + serverAddress + ": "
+                    + Futures.unwrap(throwable).getMessage() + ", trying another replica");
+                return retrieveChunk(chunkLocation, tried);
+            })
+            .thenCompose(future -> future);
     }
 
-    private void sendNextRetrieveShardRequest() {
-        synchronized (shardLocations) {
-            if (!shardLocations.isEmpty()) {
-                ShardLocation shardLocation = shardLocations.get(0);
-                String serverAddress = shardLocation.getServerAddress();
-
-                TcpSender tcpSender = TcpSender.of(serverAddress);
-                if (tcpSender == null) {
-                    Utils.error("tcpServer is null");
-                    return;
+    // a missing shard does not fail the read, the chunk can be rebuilt from any DATA_SHARDS of its shards
+    private CompletableFuture<ShardData> retrieveShard(ShardLocation shardLocation) {
+        RetrieveShardRequest request = new RetrieveShardRequest(client.getServerAddress(), client.getServerAddress(),
+            new Shard(shardLocation.getFileName(), shardLocation.getSequence(), shardLocation.getFragment()));
+
+        String serverAddress = client.getNodeDirectory().getAddress(shardLocation.getServerId());
+        CompletableFuture<Message> reply = serverAddress == null
+            ? Futures.failed(new IllegalStateException("unknown chunk server id " + shardLocation.getServerId()))
+            : client.getConnectionPool().request(serverAddress, request, retryPolicy);
+
+        return reply
+            .handle((message, throwable) -> {
+                if (throwable != null) {
+                    Utils.error("failed to retrieve shard " + shardLocation.getSequence() + " " + shardLocation.getFragment()
+                        + " from " + serverAddress + ": " + Futures.unwrap(throwable).getMessage());
+                    return new ShardData(shardLocation.getFileName(), shardLocation.getSequence(), shardLocation.getFragment());
                 }
+                Utils.debug("received: " + message);
+                RetrieveShardResponse response = (RetrieveShardResponse) message;
+                return new ShardData(response.getFileName(), response.getSequence(), response.getFragment(), response.getFileData());
+            });
+    }
 
-                RetrieveShardRequest request = new RetrieveShardRequest(client.getServerAddress(),
-                    tcpSender.getLocalSocketAddress(),
-                    new cs555.dfs.wireformats.erasure.Shard(shardLocation.getFileName(),
-                        shardLocation.getSequence(),
-                        shardLocation.getFragment()));
-                tcpSender.send(request.getBytes());
+    private Path writeFile(String fileName, List<ChunkData> chunkDatas) {
+        List<byte[]> list = chunkDatas.stream()
+            .sorted(Comparator.comparingInt(ChunkData::getSequence))
+            .map(ChunkData::getData)
+            .collect(Collectors.toList());
 
-                shardLocations.remove(shardLocation);
-            }
-        }
+        return write(fileName, FileChunkifier.convertByteArrayListToByteArray(list));
     }
 
-    public void handleCorruptChunk(CorruptChunk corruptChunk) {
-        synchronized (chunkLocations) {
-            chunkLocations.clear();
-        }
-        synchronized (chunkDataList) {
-            chunkDataList.clear();
+    private Path writeFileErasure(String fileName, List<ShardData> shardDatas) {
+        Map<Integer, byte[][]> sequenceToEncoded = new TreeMap<>();
+        for (ShardData shardData : shardDatas)
+            sequenceToEncoded.computeIfAbsent(shardData.getSequence(), s -> new byte[ErasureEncoderDecoder.TOTAL_SHARDS][])
+                [shardData.getFragment()] = shardData.getData();
+
+        List<byte[]> byteList = new ArrayList<>();
+        for (Map.Entry<Integer, byte[][]> entry : sequenceToEncoded.entrySet()) {
+            byte[] decoded = ErasureEncoderDecoder.decode(entry.getValue());
+            if (decoded == null)
+                throw new IllegalStateException("too few shards of chunk " + entry.getKey() + " of " + fileName + " to rebuild it");
+            byteList.add(decoded);
         }
-        numReceivedChunks.set(0);
-        numExpectedChunks.set(0);
-        Utils.info("Chunk " + corruptChunk.getSequence() + " of " + corruptChunk.getFileName() + " was corrupt. Please request the file again.");
-        setIsRunning(false);
-    }
-
-    public void handleRetrieveFileResponse(RetrieveFileResponse response) {
-        synchronized (chunkLocations) {
-            chunkLocations.addAll(response.getChunkLocations());
-            if (chunkLocations.isEmpty())
-                return;
-
-            numExpectedChunks.set(chunkLocations.size());
 
-            ChunkLocation chunkLocation = chunkLocations.get(0);
-            String fileName = chunkLocation.getFileName();
-            int sequence = chunkLocation.getSequence();
-            String serverAddress = chunkLocation.getServerAddress();
-
-            TcpSender tcpSender = TcpSender.of(serverAddress);
-            if (tcpSender == null) {
-                Utils.error("tcpServer is null");
-                return;
-            }
-
-            RetrieveChunkRequest request = new RetrieveChunkRequest(client.getServerAddress(),
-                tcpSender.getLocalSocketAddress(),
-                new Chunk(fileName, sequence, -1, -1));
-            tcpSender.send(request.getBytes());
-
-            chunkLocations.remove(chunkLocation);
-        }
+        return write(fileName, FileChunkifier.convertByteArrayListToByteArray(byteList));
     }
 
-    public void handleRetrieveFileResponseErasure(RetrieveFileResponseErasure response) {
-        synchronized (shardLocations) {
-            shardLocations.addAll(response.getShardLocations());
-            if (shardLocations.isEmpty())
-                return;
-
-            numExpectedShards.set(shardLocations.size());
-
-            ShardLocation shardLocation = shardLocations.get(0);
-            String fileName = shardLocation.getFileName();
-            int sequence = shardLocation.getSequence();
-            int fragment = shardLocation.getFragment();
-            String serverAddress = shardLocation.getServerAddress();
-
-            TcpSender tcpSender = TcpSender.of(serverAddress);
-            if (tcpSender == null) {
-                Utils.error("tcpServer is null");
-                return;
-            }
-
-            RetrieveShardRequest request = new RetrieveShardRequest(client.getServerAddress(),
-                tcpSender.getLocalSocketAddress(),
-                new Shard(fileName, sequence, fragment));
-            tcpSender.send(request.getBytes());
-
-            shardLocations.remove(shardLocation);
+    private Path write(String fileName, byte[] bytes) {
+        Path path = client.getDownloadDirectory().resolve(fileName);
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(path, bytes);
         }
-    }
-
-    public boolean isRunning() {
-        return isRunning.get();
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return path;
     }
 }
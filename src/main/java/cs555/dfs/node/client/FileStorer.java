@@ -1,160 +1,135 @@
 package cs555.dfs.node.client;
 
-import cs555.dfs.transport.TcpSender;
+import cs555.dfs.transport.ConnectionPool;
+import cs555.dfs.transport.TcpConnection;
+import cs555.dfs.transport.TransportConfig;
 import cs555.dfs.util.*;
+import cs555.dfs.wireformats.AllocateFileRequest;
+import cs555.dfs.wireformats.AllocateFileResponse;
 import cs555.dfs.wireformats.Chunk;
 import cs555.dfs.wireformats.StoreChunk;
-import cs555.dfs.wireformats.StoreChunkRequest;
-import cs555.dfs.wireformats.StoreChunkResponse;
 import cs555.dfs.wireformats.erasure.Shard;
 import cs555.dfs.wireformats.erasure.StoreShard;
-import cs555.dfs.wireformats.erasure.StoreShardRequest;
-import cs555.dfs.wireformats.erasure.StoreShardResponse;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 class FileStorer {
+    // chunks are stored one after another, so a large file never has more than one chunk in flight
+    private static final int MAX_OUTSTANDING_STORES = 1;
+    // chunks placed per round trip to the controller, 64 MB of 64 KB chunks
+    private static final int ALLOCATION_WINDOW = 1024;
     private final Client client;
-    private final List<ChunkData> chunkDataList = new ArrayList<>();
-    private final List<ShardData> shardDataList = new ArrayList<>();
-    private AtomicBoolean isRunning = new AtomicBoolean();
 
     FileStorer(Client client) {
         this.client = client;
     }
 
-    public void handleStoreChunkResponse(StoreChunkResponse response) {
-        String fileName = response.getFileName();
-        int sequence = response.getChunkSequence();
-        int version = response.getVersion();
-
-        ChunkData chunkData;
-
-        synchronized (chunkDataList) {
-            ChunkData finderChunk = new ChunkData(fileName, sequence);
-            int idx = chunkDataList.indexOf(finderChunk);
-            if (idx == -1) {
-                Utils.error("chunkDataList not found");
-                return;
-            }
-            chunkData = chunkDataList.get(idx);
-            chunkDataList.remove(chunkData);
-        }
-        List<String> chunkServerAddresses = response.getChunkServerAddresses();
-        if (chunkServerAddresses.isEmpty())
-            return;
-
-        String firstChunkServerAddress = chunkServerAddresses.get(0);
-
-        TcpSender tcpSender = TcpSender.of(firstChunkServerAddress);
-        if (tcpSender == null) {
-            Utils.error("tcpServer is null");
-            return;
-        }
-
-        List<String> nextServers = chunkServerAddresses.stream()
-            .skip(1).collect(Collectors.toList());
-
-        StoreChunk storeChunk = new StoreChunk(client.getServerAddress(), tcpSender.getLocalSocketAddress(),
-            new Chunk(fileName, chunkData.sequence, version, chunkData.data.length), chunkData.data, nextServers);
-        tcpSender.send(storeChunk.getBytes());
-
-        sendNextStoreChunkRequest();
+    // places the chunks a window at a time, one controller round trip per window, then stores the window's chunks
+    CompletableFuture<Void> storeFile(Path path) {
+        List<ChunkData> chunkDatas = FileChunkifier.chunkifyFileToDataChunks(path);
+        return Futures.windowed(windows(chunkDatas), 1, window -> allocate(window, false).thenCompose(table ->
+            Futures.windowed(indices(window), MAX_OUTSTANDING_STORES, i -> storeChunk(window.get(i), table, i))))
+            .thenApply(results -> null);
     }
 
-    public void handleStoreShardResponse(StoreShardResponse response) {
-        String fileName = response.getFileName();
-        int sequence = response.getChunkSequence();
-        int fragment = response.getFragment();
-        String shardServerAddress = response.getShardServerAddress();
-        ShardData shardData;
-
-        synchronized (shardDataList) {
-            ShardData finderShard = new ShardData(fileName, sequence, fragment);
-            int idx = shardDataList.indexOf(finderShard);
-            if (idx == -1) {
-                Utils.error("ShardData not found");
-                return;
+    CompletableFuture<Void> storeFileErasure(Path path) {
+        List<ChunkData> chunkDatas = FileChunkifier.chunkifyFileToDataChunks(path);
+        return Futures.windowed(windows(chunkDatas), 1, window -> allocate(window, true).thenCompose(table -> {
+            List<ShardData> shardDatas = new ArrayList<>();
+            for (ChunkData chunk : window) {
+                byte[][] encoded = ErasureEncoderDecoder.encode(chunk.getData());
+                int i = 0;
+                for (byte[] e : encoded)
+                    shardDatas.add(new ShardData(chunk.getFileName(), chunk.getSequence(), i++, e));
             }
-            shardData = shardDataList.get(idx);
-            shardDataList.remove(shardData);
-        }
-
-        TcpSender tcpSender = TcpSender.of(shardServerAddress);
-        if (tcpSender == null) {
-            Utils.error("tcpServer is null");
-            return;
-        }
-
-        StoreShard storeShard = new StoreShard(client.getServerAddress(), tcpSender.getLocalSocketAddress(),
-            new Shard(fileName, shardData.sequence, shardData.fragment), shardData.data);
-        tcpSender.send(storeShard.getBytes());
+            int firstSequence = window.get(0).sequence;
+            return Futures.windowed(shardDatas, MAX_OUTSTANDING_STORES, shardData -> storeShard(shardData, table, shardData.sequence - firstSequence));
+        })).thenApply(results -> null);
+    }
 
-        sendNextStoreShardRequest();
+    private static List<List<ChunkData>> windows(List<ChunkData> chunkDatas) {
+        List<List<ChunkData>> windows = new ArrayList<>();
+        for (int i = 0; i < chunkDatas.size(); i += ALLOCATION_WINDOW)
+            windows.add(chunkDatas.subList(i, Math.min(i + ALLOCATION_WINDOW, chunkDatas.size())));
+        return windows;
     }
 
-    private void sendNextStoreChunkRequest() {
-        synchronized (chunkDataList) {
-            if (!chunkDataList.isEmpty()) {
-                ChunkData chunkData = chunkDataList.get(0);
-                StoreChunkRequest request = new StoreChunkRequest(client.getServerAddress(),
-                    client.getControllerTcpConnection().getLocalSocketAddress(),
-                    new Chunk(chunkData.fileName, chunkData.sequence, -1, chunkData.data.length));
-                client.getControllerTcpConnection().send(request.getBytes());
-            }
-            else
-                setIsRunning(false);
-        }
+    private static List<Integer> indices(List<?> items) {
+        List<Integer> indices = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++)
+            indices.add(i);
+        return indices;
     }
 
-    private void sendNextStoreShardRequest() {
-        synchronized (shardDataList) {
-            if (!shardDataList.isEmpty()) {
-                ShardData shardData = shardDataList.get(0);
-                StoreShardRequest request = new StoreShardRequest(client.getServerAddress(),
-                    client.getControllerTcpConnection().getLocalSocketAddress(),
-                    new Shard(shardData.fileName, shardData.sequence, shardData.fragment));
-                client.getControllerTcpConnection().send(request.getBytes());
-            }
-            else
-                setIsRunning(false);
-        }
+    // the placement of every chunk of the window, or of every shard of its stripes, in one request.
+    // a window's chunks have consecutive sequences
+    private CompletableFuture<AllocateFileResponse> allocate(List<ChunkData> window, boolean erasure) {
+        TcpConnection controllerTcpConnection = client.getControllerTcpConnection();
+        int[] sizes = new int[window.size()];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = window.get(i).data.length;
+        AllocateFileRequest request = new AllocateFileRequest(client.getServerAddress(),
+            controllerTcpConnection.getLocalSocketAddress(), window.get(0).fileName, erasure, window.get(0).sequence, sizes);
+
+        return controllerTcpConnection.request(request).thenApply(message -> {
+            AllocateFileResponse response = (AllocateFileResponse) message;
+            Utils.debug("received: " + response);
+            if (response.getNumberOfChunks() != window.size())
+                throw new IllegalStateException("controller placed " + response.getNumberOfChunks() + " of " + window.size() + " chunks of " + request.getFileName());
+            return response;
+        });
     }
 
-    public void setIsRunning(boolean isRunning) {
-        this.isRunning.set(isRunning);
+    // hands the chunk to the head of its row in the table, which forwards it down the pipeline
+    private CompletableFuture<Void> storeChunk(ChunkData chunkData, AllocateFileResponse table, int index) {
+        if (!table.isPlaced(index))
+            return Futures.failed(new IllegalStateException("no chunk servers available for chunk " + chunkData.sequence + " of " + chunkData.fileName));
+
+        // the pipeline is forwarded by address, the chunk servers may not have the newest directory yet
+        List<String> chunkServerAddresses = new ArrayList<>(table.getWidth());
+        for (int slot = 0; slot < table.getWidth(); slot++)
+            chunkServerAddresses.add(client.getChunkServerAddress(table.getServerId(index, slot)));
+        String firstChunkServerAddress = chunkServerAddresses.get(0);
+        List<String> nextServers = chunkServerAddresses.subList(1, chunkServerAddresses.size());
+        if (chunkData.data.length >= TransportConfig.getStreamThreshold())
+            return sendStream(firstChunkServerAddress, tcpConnection -> new StoreChunk(client.getServerAddress(), tcpConnection.getLocalSocketAddress(),
+                new Chunk(table.getFileName(), chunkData.sequence, -1, chunkData.data.length), new byte[0], nextServers).getBytes(),
+                chunkData.data);
+        return send(firstChunkServerAddress, tcpConnection -> new StoreChunk(client.getServerAddress(), tcpConnection.getLocalSocketAddress(),
+            new Chunk(table.getFileName(), chunkData.sequence, -1, chunkData.data.length), chunkData.data, nextServers).getBytes());
     }
 
-    public void storeFile(Path path) {
-        setIsRunning(true);
-        synchronized (chunkDataList) {
-            chunkDataList.addAll(FileChunkifier.chunkifyFileToDataChunks(path));
-            if (!chunkDataList.isEmpty()) {
-                sendNextStoreChunkRequest();
-            }
-        }
+    private CompletableFuture<Void> storeShard(ShardData shardData, AllocateFileResponse table, int index) {
+        if (!table.isPlaced(index))
+            return Futures.failed(new IllegalStateException("no chunk servers available for stripe " + shardData.sequence + " of " + shardData.fileName));
+        return send(client.getChunkServerAddress(table.getServerId(index, shardData.fragment)), tcpConnection -> new StoreShard(client.getServerAddress(), tcpConnection.getLocalSocketAddress(),
+            new Shard(table.getFileName(), shardData.sequence, shardData.fragment), shardData.data).getBytes());
     }
 
-    public void storeFileErasure(Path path) {
-        setIsRunning(true);
-        synchronized (shardDataList) {
-            List<ChunkData> chunks = FileChunkifier.chunkifyFileToDataChunks(path);
-            for (ChunkData chunk : chunks) {
-                byte[][] encoded = ErasureEncoderDecoder.encode(chunk.getData());
-                int i = 0;
-                for (byte[] e : encoded)
-                    shardDataList.add(new ShardData(chunk.getFileName(), chunk.getSequence(), i++, e));
-            }
-            if (!shardDataList.isEmpty())
-                sendNextStoreShardRequest();
-        }
+    // completes once the data is written to the socket, the chunk servers do not acknowledge stores
+    private CompletableFuture<Void> send(String serverAddress, Function<TcpConnection, byte[]> encoder) {
+        ConnectionPool connectionPool = client.getConnectionPool();
+        TcpConnection tcpConnection = connectionPool.get(serverAddress);
+        if (tcpConnection == null)
+            return Futures.failed(new IOException("failed to connect to " + serverAddress));
+        return connectionPool.sendAsync(serverAddress, tcpConnection, encoder.apply(tcpConnection));
     }
 
-    public boolean isRunning() {
-        return isRunning.get();
+    // a large chunk follows an empty store as a streamed payload, which the chunk server writes to disk as it arrives.
+    // blocks until the payload is written to the socket
+    private CompletableFuture<Void> sendStream(String serverAddress, Function<TcpConnection, byte[]> encoder, byte[] payload) {
+        ConnectionPool connectionPool = client.getConnectionPool();
+        TcpConnection tcpConnection = connectionPool.get(serverAddress);
+        if (tcpConnection == null)
+            return Futures.failed(new IOException("failed to connect to " + serverAddress));
+        if (!connectionPool.sendStream(serverAddress, tcpConnection, encoder.apply(tcpConnection), ByteBuffer.wrap(payload)))
+            return Futures.failed(new IOException("failed to stream chunk to " + serverAddress));
+        return CompletableFuture.completedFuture(null);
     }
 }
@@ -0,0 +1,134 @@
+package cs555.dfs.node.client;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// picks the replica a chunk is read from. a server's load is the reads this client has outstanding on it plus the
+// reads it reported to the controller in its last heartbeat. selected with
+// -Dcs555.dfs.read.replicaPolicy=leastOutstanding|powerOfTwo|first, least outstanding by default
+public class ReplicaSelector {
+    private final Policy policy;
+    private final Map<Integer, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> numReads = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> serverLoads = new ConcurrentHashMap<>();
+
+    public enum Policy {
+        LEAST_OUTSTANDING, POWER_OF_TWO, FIRST;
+
+        public static Policy forName(String name) {
+            switch (name) {
+                case "leastOutstanding":
+                    return LEAST_OUTSTANDING;
+                case "powerOfTwo":
+                    return POWER_OF_TWO;
+                case "first":
+                    return FIRST;
+                default:
+                    throw new IllegalArgumentException("unknown replica policy: " + name);
+            }
+        }
+    }
+
+    public ReplicaSelector() {
+        this(Policy.forName(System.getProperty("cs555.dfs.read.replicaPolicy", "leastOutstanding")));
+    }
+
+    public ReplicaSelector(Policy policy) {
+        this.policy = policy;
+    }
+
+    // the load hints of a file's replicas as the controller handed them out, they replace older hints
+    public void updateLoads(Map<Integer, Integer> loads) {
+        serverLoads.putAll(loads);
+    }
+
+    // returns the server to read from among those not tried yet and counts the read against it, or 0 when every
+    // replica was tried. finished has to be called once the read completes either way
+    public int acquire(int[] serverIds, Set<Integer> tried) {
+        int serverId = choose(serverIds, tried);
+        if (serverId != 0) {
+            outstanding.computeIfAbsent(serverId, id -> new AtomicInteger()).incrementAndGet();
+            numReads.computeIfAbsent(serverId, id -> new AtomicInteger()).incrementAndGet();
+        }
+        return serverId;
+    }
+
+    public void finished(int serverId) {
+        AtomicInteger count = outstanding.get(serverId);
+        if (count != null)
+            count.decrementAndGet();
+    }
+
+    public int getLoad(int serverId) {
+        AtomicInteger count = outstanding.get(serverId);
+        return (count == null ? 0 : count.get()) + serverLoads.getOrDefault(serverId, 0);
+    }
+
+    private int choose(int[] serverIds, Set<Integer> tried) {
+        switch (policy) {
+            case FIRST:
+                for (int serverId : serverIds)
+                    if (!tried.contains(serverId))
+                        return serverId;
+                return 0;
+            case POWER_OF_TWO:
+                return powerOfTwo(serverIds, tried);
+            default:
+                return leastLoaded(serverIds, tried);
+        }
+    }
+
+    // ties are broken at random, otherwise every client would start on the same server while nothing is outstanding
+    private int leastLoaded(int[] serverIds, Set<Integer> tried) {
+        int chosen = 0;
+        int minLoad = Integer.MAX_VALUE;
+        int numTies = 0;
+        for (int serverId : serverIds) {
+            if (tried.contains(serverId))
+                continue;
+            int load = getLoad(serverId);
+            if (load < minLoad) {
+                chosen = serverId;
+                minLoad = load;
+                numTies = 1;
+            }
+            else if (load == minLoad && ThreadLocalRandom.current().nextInt(++numTies) == 0) {
+                chosen = serverId;
+            }
+        }
+        return chosen;
+    }
+
+    // the less loaded of two random replicas, which needs no view of every replica's load to avoid herding
+    private int powerOfTwo(int[] serverIds, Set<Integer> tried) {
+        int[] untried = new int[serverIds.length];
+        int numUntried = 0;
+        for (int serverId : serverIds)
+            if (!tried.contains(serverId))
+                untried[numUntried++] = serverId;
+        if (numUntried <= 1)
+            return numUntried == 0 ? 0 : untried[0];
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(numUntried);
+        int second = random.nextInt(numUntried - 1);
+        if (second >= first)
+            second++;
+        return getLoad(untried[first]) <= getLoad(untried[second]) ? untried[first] : untried[second];
+    }
+
+    // reads per server id since the client started
+    @Override
+    public String toString() {
+        Map<Integer, Integer> reads = new TreeMap<>();
+        numReads.forEach((serverId, count) -> reads.put(serverId, count.get()));
+        return "ReplicaSelector{" +
+            "policy=" + policy +
+            ", readsByServer=" + reads +
+            '}';
+    }
+}
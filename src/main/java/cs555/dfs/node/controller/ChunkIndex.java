@@ -0,0 +1,168 @@
+package cs555.dfs.node.controller;
+
+import cs555.dfs.node.Chunk;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// every replica the controller knows of: file name -> sequence -> the servers holding the chunk, in the order they
+// reported it. heartbeats keep it up to date, so finding the replicas of a chunk or the chunks of a file never scans
+// the servers or their chunk lists.
+// each file is locked on its own, so a heartbeat only holds up readers of the file it is updating at that moment.
+// a file whose last replica goes is retired under its lock, writers that raced for it start over with a new one
+public class ChunkIndex {
+    private final Map<String, FileReplicas> files = new ConcurrentHashMap<>();
+
+    // returns false when the server was already known to hold the chunk
+    public boolean add(LiveChunkServer server, Chunk chunk) {
+        while (true) {
+            FileReplicas fileReplicas = files.computeIfAbsent(chunk.getFileName(), f -> new FileReplicas());
+            synchronized (fileReplicas) {
+                if (!fileReplicas.retired)
+                    return fileReplicas.getOrCreate(chunk.getSequence()).putIfAbsent(server, chunk) == null;
+            }
+        }
+    }
+
+    // a major heartbeat: chunks the server still holds keep their place, only the ones it no longer reports are removed
+    public void replace(LiveChunkServer server, Map<String, List<Chunk>> oldChunksByFile, Map<String, List<Chunk>> newChunksByFile) {
+        for (Map.Entry<String, List<Chunk>> entry : newChunksByFile.entrySet()) {
+            while (true) {
+                FileReplicas fileReplicas = files.computeIfAbsent(entry.getKey(), f -> new FileReplicas());
+                synchronized (fileReplicas) {
+                    if (fileReplicas.retired)
+                        continue;
+                    for (Chunk chunk : entry.getValue())
+                        fileReplicas.getOrCreate(chunk.getSequence()).put(server, chunk);
+                    break;
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<Chunk>> entry : oldChunksByFile.entrySet()) {
+            BitSet kept = new BitSet();
+            for (Chunk chunk : newChunksByFile.getOrDefault(entry.getKey(), Collections.emptyList()))
+                kept.set(chunk.getSequence());
+            FileReplicas fileReplicas = files.get(entry.getKey());
+            if (fileReplicas == null)
+                continue;
+            synchronized (fileReplicas) {
+                for (Chunk chunk : entry.getValue())
+                    if (!kept.get(chunk.getSequence()))
+                        fileReplicas.remove(chunk.getSequence(), server);
+                retireIfEmpty(entry.getKey(), fileReplicas);
+            }
+        }
+    }
+
+    public void removeAll(LiveChunkServer server, Map<String, List<Chunk>> chunksByFile) {
+        for (Map.Entry<String, List<Chunk>> entry : chunksByFile.entrySet()) {
+            FileReplicas fileReplicas = files.get(entry.getKey());
+            if (fileReplicas == null)
+                continue;
+            synchronized (fileReplicas) {
+                for (Chunk chunk : entry.getValue())
+                    fileReplicas.remove(chunk.getSequence(), server);
+                retireIfEmpty(entry.getKey(), fileReplicas);
+            }
+        }
+    }
+
+    public boolean contains(LiveChunkServer server, String fileName, int sequence) {
+        return getChunk(server, fileName, sequence) != null;
+    }
+
+    public Chunk getChunk(LiveChunkServer server, String fileName, int sequence) {
+        FileReplicas fileReplicas = files.get(fileName);
+        if (fileReplicas == null)
+            return null;
+        synchronized (fileReplicas) {
+            Map<LiveChunkServer, Chunk> replicas = fileReplicas.get(sequence);
+            return replicas == null ? null : replicas.get(server);
+        }
+    }
+
+    public List<LiveChunkServer> getReplicas(String fileName, int sequence) {
+        FileReplicas fileReplicas = files.get(fileName);
+        if (fileReplicas == null)
+            return new ArrayList<>();
+        synchronized (fileReplicas) {
+            Map<LiveChunkServer, Chunk> replicas = fileReplicas.get(sequence);
+            return replicas == null ? new ArrayList<>() : new ArrayList<>(replicas.keySet());
+        }
+    }
+
+    public int getNumberOfReplicas(String fileName, int sequence) {
+        FileReplicas fileReplicas = files.get(fileName);
+        if (fileReplicas == null)
+            return 0;
+        synchronized (fileReplicas) {
+            Map<LiveChunkServer, Chunk> replicas = fileReplicas.get(sequence);
+            return replicas == null ? 0 : replicas.size();
+        }
+    }
+
+    // hands the servers holding each chunk of the file to the consumer, in sequence order and in the order they
+    // reported the chunk. the consumer runs under the file's lock, must not keep the collection and must not call
+    // back into the index
+    public void forEachChunk(String fileName, BiConsumer<Integer, Collection<LiveChunkServer>> consumer) {
+        FileReplicas fileReplicas = files.get(fileName);
+        if (fileReplicas == null)
+            return;
+        synchronized (fileReplicas) {
+            for (int sequence = 0; sequence < fileReplicas.bySequence.size(); sequence++) {
+                Map<LiveChunkServer, Chunk> replicas = fileReplicas.bySequence.get(sequence);
+                if (replicas != null)
+                    consumer.accept(sequence, replicas.keySet());
+            }
+        }
+    }
+
+    public Set<String> getFileNames() {
+        return new HashSet<>(files.keySet());
+    }
+
+    // callers hold the file's lock
+    private void retireIfEmpty(String fileName, FileReplicas fileReplicas) {
+        if (!fileReplicas.isEmpty())
+            return;
+        fileReplicas.retired = true;
+        files.remove(fileName, fileReplicas);
+    }
+
+    // sequences are dense from 0, so the replicas of a file are kept in a list indexed by sequence
+    private static class FileReplicas {
+        private final ArrayList<Map<LiveChunkServer, Chunk>> bySequence = new ArrayList<>();
+        private int numChunks;
+        private boolean retired;
+
+        private Map<LiveChunkServer, Chunk> get(int sequence) {
+            return sequence >= 0 && sequence < bySequence.size() ? bySequence.get(sequence) : null;
+        }
+
+        private Map<LiveChunkServer, Chunk> getOrCreate(int sequence) {
+            while (bySequence.size() <= sequence)
+                bySequence.add(null);
+            Map<LiveChunkServer, Chunk> replicas = bySequence.get(sequence);
+            if (replicas == null) {
+                replicas = new LinkedHashMap<>(4);
+                bySequence.set(sequence, replicas);
+                numChunks++;
+            }
+            return replicas;
+        }
+
+        private void remove(int sequence, LiveChunkServer server) {
+            Map<LiveChunkServer, Chunk> replicas = get(sequence);
+            if (replicas == null || replicas.remove(server) == null || !replicas.isEmpty())
+                return;
+            bySequence.set(sequence, null);
+            numChunks--;
+        }
+
+        private boolean isEmpty() {
+            return numChunks == 0;
+        }
+    }
+}
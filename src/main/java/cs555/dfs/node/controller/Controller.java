@@ -1,32 +1,76 @@
 package cs555.dfs.node.controller;
 
 import cs555.dfs.node.Chunk;
+import cs555.dfs.node.MessageHandlers;
 import cs555.dfs.node.Node;
+import cs555.dfs.node.NodeDirectory;
 import cs555.dfs.node.Shard;
 import cs555.dfs.transport.TcpConnection;
-import cs555.dfs.transport.TcpSender;
+import cs555.dfs.transport.ConnectionPool;
 import cs555.dfs.transport.TcpServer;
+import cs555.dfs.util.ErasureEncoderDecoder;
 import cs555.dfs.util.Utils;
 import cs555.dfs.wireformats.*;
 import cs555.dfs.wireformats.erasure.*;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
 public class Controller implements Node {
     private static final int ALIVE_HEARTBEAT_INTERVAL = 3 * 1000;
     private static final int REPLICATION_LEVEL = 3;
+    private static final int MAX_LIST_PAGE_SIZE = Integer.getInteger("cs555.dfs.list.maxPageSize", 1000);
+    // how long a server recovered from the journal has to register again before its chunks are re-replicated
+    private static final long RECOVERY_TIMEOUT = Long.getLong("cs555.dfs.journal.recoveryTimeout",
+        2 * Long.getLong("cs555.dfs.heartbeat.interval", 30 * 1000));
     private final TcpServer tcpServer;
     private final Map<String, TcpConnection> connections = new ConcurrentHashMap<>(); // key = remote socket address
-    private final List<LiveChunkServer> liveChunkServers = Collections.synchronizedList(new ArrayList<>());
+    private final ConnectionPool connectionPool = new ConnectionPool(this);
+    private final Map<String, LiveChunkServer> liveChunkServers = new ConcurrentHashMap<>(); // key = server address
+    private final NodeDirectory nodeDirectory = new NodeDirectory();
+    private final ChunkIndex chunkIndex = new ChunkIndex();
+    private final Namespace namespace = new Namespace();
+    private final PlacementEngine placementEngine = new PlacementEngine();
+    private final RepairScheduler repairScheduler = new RepairScheduler(REPLICATION_LEVEL, chunkIndex, placementEngine, this::sendReplicateChunk);
+    private final MessageHandlers handlers = new MessageHandlers(getNodeTypeAsString())
+        .register(Protocol.REGISTER_REQUEST, this::handleRegisterRequest)
+        .register(Protocol.MINOR_HEARTBEAT, this::handleMinorHeartbeat)
+        .register(Protocol.MAJOR_HEARTBEAT, this::handleMajorHeartbeat)
+        .register(Protocol.STORE_CHUNK_REQUEST, this::handleStoreChunkRequest)
+        .register(Protocol.ALLOCATE_FILE_REQUEST, this::handleAllocateFileRequest)
+        .register(Protocol.RETRIEVE_FILE_REQUEST, this::handleRetrieveFileRequest)
+        .register(Protocol.CORRUPT_CHUNK, this::handleCorruptChunk)
+        .register(Protocol.FILE_LIST_REQUEST, this::handleFileListRequest)
+        .register(Protocol.STORE_SHARD_REQUEST, this::handleStoreShardRequest)
+        .register(Protocol.SHARD_HEARTBEAT, this::handleShardHeartbeat)
+        .register(Protocol.RETRIEVE_FILE_REQUEST_ERASURE, this::handleRetrieveFileRequestErasure);
+    private final Timer aliveHeartbeatTimer = new Timer(true);
+    private final MetadataJournal journal;
+    private final long recoveryDeadline;
 
     public Controller(int port) {
+        this(port, getDefaultJournalDirectory());
+    }
+
+    // no journal is kept when the directory is null
+    public Controller(int port, Path journalDirectory) {
+        journal = new MetadataJournal(journalDirectory);
+        recover();
+        recoveryDeadline = System.currentTimeMillis() + RECOVERY_TIMEOUT;
         tcpServer = new TcpServer(port, this);
     }
 
+    // -Dcs555.dfs.journal.dir= turns the journal off
+    private static Path getDefaultJournalDirectory() {
+        String directory = System.getProperty("cs555.dfs.journal.dir",
+            Paths.get("/tmp", System.getProperty("user.name"), "controller").toString());
+        return directory.isEmpty() ? null : Paths.get(directory);
+    }
+
     public static void main(String[] args) {
         if (args.length != 1)
             printHelpAndExit();
@@ -36,13 +80,57 @@ public class Controller implements Node {
         new Controller(port).run();
     }
 
-    void run() {
+    public void run() {
         new Thread(tcpServer).start();
         Utils.sleep(500);
 
         AliveHeartBeatTimerTask aliveHeartBeatTimerTask = new AliveHeartBeatTimerTask();
-        Timer timer = new Timer(true);
-        timer.schedule(aliveHeartBeatTimerTask, ALIVE_HEARTBEAT_INTERVAL, ALIVE_HEARTBEAT_INTERVAL);
+        aliveHeartbeatTimer.schedule(aliveHeartBeatTimerTask, ALIVE_HEARTBEAT_INTERVAL, ALIVE_HEARTBEAT_INTERVAL);
+        repairScheduler.start();
+        journal.start();
+    }
+
+    public void close() {
+        aliveHeartbeatTimer.cancel();
+        repairScheduler.close();
+        journal.close();
+        tcpServer.close();
+        connectionPool.close();
+        for (TcpConnection tcpConnection : connections.values())
+            tcpConnection.close();
+    }
+
+    public int getNumberOfLiveChunkServers() {
+        return liveChunkServers.size();
+    }
+
+    public RepairScheduler getRepairScheduler() {
+        return repairScheduler;
+    }
+
+    public MetadataJournal getJournal() {
+        return journal;
+    }
+
+    public Namespace getNamespace() {
+        return namespace;
+    }
+
+    // the servers the journal knew of are listed with their chunks before anything connects, so files can be resolved
+    // right away. each joins the placement engine once it registers again, and is treated as dead if it has not
+    // within RECOVERY_TIMEOUT
+    private void recover() {
+        journal.forEachFile((fileName, erasure, sizes) -> namespace.fileAllocated(fileName, erasure, 0, sizes));
+        Map<Integer, String> addresses = journal.getAddresses();
+        nodeDirectory.restore(journal.getDirectoryVersion(), journal.getNextNodeId(), addresses);
+        for (Map.Entry<Integer, String> entry : addresses.entrySet()) {
+            LiveChunkServer lcs = new LiveChunkServer(null, entry.getKey(), entry.getValue(), chunkIndex);
+            lcs.recover(journal.getChunks(entry.getKey()), journal.getShards(entry.getKey()));
+            liveChunkServers.put(entry.getValue(), lcs);
+        }
+        if (!addresses.isEmpty())
+            Utils.info("Recovered " + addresses.size() + " chunk servers holding " + chunkIndex.getFileNames().size()
+                + " files from the metadata journal");
     }
 
     private static void printHelpAndExit() {
@@ -52,46 +140,12 @@ public class Controller implements Node {
 
     @Override
     public void onMessage(Message message) {
-        int protocol = message.getProtocol();
-        switch (protocol) {
-            case Protocol.REGISTER_REQUEST:
-                handleRegisterRequest(message);
-                break;
-            case Protocol.MINOR_HEARTBEAT:
-                handleMinorHeartbeat(message);
-                break;
-            case Protocol.MAJOR_HEARTBEAT:
-                handleMajorHeartbeat(message);
-                break;
-            case Protocol.STORE_CHUNK_REQUEST:
-                handleStoreChunkRequest(message);
-                break;
-            case Protocol.RETRIEVE_FILE_REQUEST:
-                handleRetrieveFileRequest(message);
-                break;
-            case Protocol.CORRUPT_CHUNK:
-                handleCorruptChunk(message);
-                break;
-            case Protocol.FILE_LIST_REQUEST:
-                handleFileListRequest(message);
-                break;
-
+        onMessage(message, null);
+    }
 
-            case Protocol.STORE_SHARD_REQUEST:
-                handleStoreShardRequest(message);
-                break;
-            case Protocol.FILE_LIST_REQUEST_ERASURE:
-                handleFileListRequestErasure(message);
-                break;
-            case Protocol.SHARD_HEARTBEAT:
-                handleShardHeartbeat(message);
-                break;
-            case Protocol.RETRIEVE_FILE_REQUEST_ERASURE:
-                handleRetrieveFileRequestErasure(message);
-                break;
-            default:
-                throw new RuntimeException(String.format("received an unknown message with protocol %d", protocol));
-        }
+    @Override
+    public void onMessage(Message message, TcpConnection tcpConnection) {
+        handlers.handle(message, tcpConnection);
     }
 
     private void handleStoreShardRequest(Message message) {
@@ -101,13 +155,11 @@ public class Controller implements Node {
         int sequence = request.getSequence();
         int fragment = request.getFragment();
 
-        List<LiveChunkServer> serversWithoutShard = findServersWithoutShard(new Shard(fileName, sequence, fragment));
-
-        List<String> validServerAddresses = serversWithoutShard.stream()
-            .map(LiveChunkServer::getServerAddress)
-            .collect(Collectors.toList());
-
-        if (validServerAddresses.isEmpty()) {
+        // shard sizes are not known up front, so only the pending write is counted against the server
+        LiveChunkServer shardServer = placementEngine.placeShard(fileName, sequence, 0,
+            lcs -> !lcs.containsShardOfChunk(fileName, sequence),
+            lcs -> !lcs.containsShard(fileName, sequence, fragment));
+        if (shardServer == null) {
             Utils.error("failed to find live chunk server for shard");
             return;
         }
@@ -122,35 +174,20 @@ public class Controller implements Node {
         StoreShardResponse response = new StoreShardResponse(getServerAddress(),
             tcpConnection.getLocalSocketAddress(),
             new cs555.dfs.wireformats.erasure.Shard(fileName, sequence, fragment),
-            validServerAddresses.get(ThreadLocalRandom.current().nextInt(validServerAddresses.size())));
+            shardServer.getNodeId());
 
+        response.getMessageHeader().setResponseTo(request.getMessageHeader());
         tcpConnection.send(response.getBytes());
     }
 
-    private List<LiveChunkServer> findServersWithoutShard(Shard shard) {
-        List<LiveChunkServer> servers;
-
-        synchronized (liveChunkServers) {
-            servers = liveChunkServers.stream()
-                .filter(lcs -> !lcs.containsShardOfChunk(shard.getFileName(), shard.getSequence()))
-                .sorted(Comparator.comparingLong(LiveChunkServer::getUsableSpace).reversed())
-                .collect(Collectors.toList());
-        }
-
-        return servers;
-    }
-
+    // one page of a directory straight from the namespace, the client asks for the next one with the token
     private void handleFileListRequest(Message message) {
         FileListRequest request = (FileListRequest) message;
         Utils.debug("received: " + request);
 
-        Set<String> fileNames;
-        synchronized (liveChunkServers) {
-            fileNames = liveChunkServers.stream()
-                .filter(lcs -> !lcs.getChunks().isEmpty())
-                .flatMap(lcs -> lcs.getFileNames().stream())
-                .collect(Collectors.toSet());
-        }
+        int pageSize = Math.min(request.getPageSize(), MAX_LIST_PAGE_SIZE);
+        Namespace.Page page = namespace.list(request.getDirectory(), request.getPrefix(), request.getStartAfter(),
+            pageSize, request.getMode());
 
         String sourceAddress = request.getSourceAddress();
         TcpConnection tcpConnection = connections.get(sourceAddress);
@@ -159,22 +196,16 @@ public class Controller implements Node {
             return;
         }
 
-        FileListResponse response = new FileListResponse(getServerAddress(), tcpConnection.getLocalSocketAddress(), new ArrayList<>(fileNames));
+        FileListResponse response = new FileListResponse(getServerAddress(), tcpConnection.getLocalSocketAddress(),
+            page.getEntries(), page.getContinuationToken());
+        response.getMessageHeader().setResponseTo(request.getMessageHeader());
         tcpConnection.send(response.getBytes());
     }
 
-    private void handleFileListRequestErasure(Message message) {
-        FileListRequestErasure request = (FileListRequestErasure) message;
+    private void handleRegisterRequest(Message message) {
+        RegisterRequest request = (RegisterRequest) message;
         Utils.debug("received: " + request);
-
-        Set<String> fileNames;
-        synchronized (liveChunkServers) {
-            fileNames = liveChunkServers.stream()
-                .flatMap(lcs -> lcs.getShards().stream())
-                .map(Shard::getFileName)
-                .collect(Collectors.toSet());
-        }
-
+        String serverAddress = request.getServerAddress();
         String sourceAddress = request.getSourceAddress();
         TcpConnection tcpConnection = connections.get(sourceAddress);
         if (tcpConnection == null) {
@@ -182,70 +213,124 @@ public class Controller implements Node {
             return;
         }
 
-        FileListResponseErasure response = new FileListResponseErasure(getServerAddress(), tcpConnection.getLocalSocketAddress(), new ArrayList<>(fileNames));
-        tcpConnection.send(response.getBytes());
+        // the directory goes out before the server is handed to the placement engine, so every node knows the new id
+        // before any response can name it. responses travel on the same connections and are handled in order
+        int nodeId = nodeDirectory.register(serverAddress);
+        journal.serverRegistered(nodeId, serverAddress);
+        tcpConnection.send(new RegisterResponse(getServerAddress(), tcpConnection.getLocalSocketAddress(), nodeId).getBytes());
+        sendNodeDirectory(connections.values());
+        LiveChunkServer liveChunkServer = new LiveChunkServer(tcpConnection, nodeId, serverAddress, chunkIndex);
+        LiveChunkServer existing = liveChunkServers.putIfAbsent(serverAddress, liveChunkServer);
+        if (existing == null) {
+            placementEngine.addServer(liveChunkServer);
+            Utils.info("Registered chunk server @ " + serverAddress + " as node " + nodeId);
+        }
+        else {
+            TcpConnection previous = existing.getTcpConnection();
+            if (!existing.attach(tcpConnection))
+                return;
+            // the server stays in placement, a server recovered from the journal is only added now
+            placementEngine.addServer(existing);
+            if (previous == null) {
+                Utils.info("Recovered chunk server @ " + serverAddress + " registered again as node " + nodeId);
+            }
+            else {
+                connections.remove(previous.getRemoteSocketAddress(), previous);
+                Utils.info("Chunk server @ " + serverAddress + " reconnected as node " + nodeId);
+            }
+        }
     }
 
-    private void handleRegisterRequest(Message message) {
-        RegisterRequest request = (RegisterRequest) message;
-        Utils.debug("received: " + request);
-        String serverAddress = request.getServerAddress();
-        String sourceAddress = request.getSourceAddress();
-        synchronized (liveChunkServers) {
-            boolean noneMatch = liveChunkServers.stream()
-                .noneMatch(lcs -> lcs.getServerAddress().equals(serverAddress));
-            if (noneMatch) {
-                liveChunkServers.add(new LiveChunkServer(connections.get(sourceAddress), serverAddress));
-                Utils.info("Registered chunk server @ " + serverAddress);
-            }
+    // directories sent from different threads can arrive out of order, nodes keep the newest version they have seen
+    private void sendNodeDirectory(Collection<TcpConnection> tcpConnections) {
+        int version;
+        Map<Integer, String> addresses;
+        synchronized (nodeDirectory) {
+            version = nodeDirectory.getVersion();
+            addresses = nodeDirectory.getAddresses();
+        }
+        for (TcpConnection tcpConnection : tcpConnections) {
+            if (!tcpConnection.isOpen())
+                continue;
+            NodeDirectoryUpdate update = new NodeDirectoryUpdate(getServerAddress(), tcpConnection.getLocalSocketAddress(), version, addresses);
+            tcpConnection.send(update.getBytes());
         }
     }
 
-    private void handleMinorHeartbeat(Message message) {
+    // a heartbeat whose sender id is not in the directory, one this controller did not hand out when it restarted
+    // without a journal, cannot be matched to a server. closing the connection it came on makes the server register
+    // again, it sends its heartbeats on its controller connection only
+    private boolean isKnownSender(Message heartbeat, TcpConnection tcpConnection) {
+        if (heartbeat.getMessageHeader().getServerAddress() != null)
+            return true;
+        Utils.error("dropped a heartbeat from unknown sender id " + heartbeat.getMessageHeader().getSenderId()
+            + (tcpConnection == null ? "" : ", closing " + tcpConnection.getRemoteSocketAddress() + " so the server registers again"));
+        if (tcpConnection != null)
+            tcpConnection.close();
+        return false;
+    }
+
+    private void handleMinorHeartbeat(Message message, TcpConnection tcpConnection) {
         Heartbeat heartbeat = (Heartbeat) message;
-        synchronized (liveChunkServers) {
-            liveChunkServers.stream()
-                .filter(lcs -> lcs.getServerAddress().equals(heartbeat.getServerAddress()))
-                .findFirst()
-                .ifPresent(lcs -> lcs.minorHeartbeatUpdate(heartbeat));
+        if (!isKnownSender(heartbeat, tcpConnection))
+            return;
+        LiveChunkServer lcs = liveChunkServers.get(heartbeat.getServerAddress());
+        if (lcs != null) {
+            lcs.minorHeartbeatUpdate(heartbeat);
+            journal.chunksAdded(lcs.getNodeId(), heartbeat.getChunksByFile());
+            namespace.chunksReported(heartbeat.getChunksByFile());
+            updatePlacement(lcs, heartbeat);
         }
-        if (!heartbeat.getChunks().isEmpty())
+        if (!heartbeat.getChunksByFile().isEmpty())
             printState();
     }
 
+    // the reported chunks are stored, so their reservations are no longer needed and repairs copying them are done
+    private void updatePlacement(LiveChunkServer lcs, Heartbeat heartbeat) {
+        placementEngine.updateServer(lcs);
+        for (Map.Entry<String, List<Chunk>> entry : heartbeat.getChunksByFile().entrySet())
+            for (Chunk chunk : entry.getValue())
+                placementEngine.releaseChunk(lcs, entry.getKey(), chunk.getSequence());
+        repairScheduler.chunksReported(lcs, heartbeat.getChunksByFile());
+    }
+
     private void printState() {
         StringBuilder stringBuilder = new StringBuilder("Current State\n");
         stringBuilder.append("===================\n");
-        synchronized (liveChunkServers) {
-            for (LiveChunkServer server : liveChunkServers) {
-                stringBuilder.append(server.getServerAddress());
-                stringBuilder.append(":\n");
-                Set<String> fileNames = server.getFileNames();
-                for (String fileName : fileNames) {
-                    stringBuilder.append("  ");
-                    stringBuilder.append(fileName);
-                    stringBuilder.append(": ");
-                    List<Chunk> sortedChunks = new ArrayList<>(server.getChunks(fileName));
-                    Collections.sort(sortedChunks, Comparator.comparingInt(Chunk::getSequence));
-                    for (int i = 0; i < sortedChunks.size(); i++) {
-                        stringBuilder.append(sortedChunks.get(i).getSequence());
-                        if (i != sortedChunks.size() - 1)
-                            stringBuilder.append(", ");
-                    }
-                    stringBuilder.append("\n");
+        for (LiveChunkServer server : getLiveChunkServers()) {
+            stringBuilder.append(server.getServerAddress());
+            stringBuilder.append(":\n");
+            Set<String> fileNames = server.getFileNames();
+            for (String fileName : fileNames) {
+                List<Chunk> sortedChunks = server.getChunks(fileName);
+                if (sortedChunks == null)
+                    continue;
+                stringBuilder.append("  ");
+                stringBuilder.append(fileName);
+                stringBuilder.append(": ");
+                Collections.sort(sortedChunks, Comparator.comparingInt(Chunk::getSequence));
+                for (int i = 0; i < sortedChunks.size(); i++) {
+                    stringBuilder.append(sortedChunks.get(i).getSequence());
+                    if (i != sortedChunks.size() - 1)
+                        stringBuilder.append(", ");
                 }
+                stringBuilder.append("\n");
             }
         }
         Utils.info(stringBuilder.toString());
     }
 
-    private void handleShardHeartbeat(Message message) {
+    private void handleShardHeartbeat(Message message, TcpConnection tcpConnection) {
         ShardHeartbeat heartbeat = (ShardHeartbeat) message;
-        synchronized (liveChunkServers) {
-            liveChunkServers.stream()
-                .filter(lcs -> lcs.getServerAddress().equals(heartbeat.getServerAddress()))
-                .findFirst()
-                .ifPresent(lcs -> lcs.shardHeartbeatUpdate(heartbeat));
+        if (!isKnownSender(heartbeat, tcpConnection))
+            return;
+        LiveChunkServer lcs = liveChunkServers.get(heartbeat.getServerAddress());
+        if (lcs != null) {
+            lcs.shardHeartbeatUpdate(heartbeat);
+            journal.shardsAdded(lcs.getNodeId(), heartbeat.getShards());
+            namespace.shardsReported(heartbeat.getShards());
+            for (Shard shard : heartbeat.getShards())
+                placementEngine.releaseShard(lcs, shard.getFileName(), shard.getSequence());
         }
         printShardState();
     }
@@ -253,41 +338,42 @@ public class Controller implements Node {
     private void printShardState() {
         StringBuilder stringBuilder = new StringBuilder("Current State (erasure)\n");
         stringBuilder.append("=============\n");
-        synchronized (liveChunkServers) {
-            for (LiveChunkServer server : liveChunkServers) {
-                stringBuilder.append(server.getServerAddress());
-                stringBuilder.append(":\n");
-                Set<String> fileNames = server.getShardFileNames();
-                for (String fileName : fileNames) {
-                    stringBuilder.append("  ");
-                    stringBuilder.append(fileName);
-                    stringBuilder.append(": ");
-                    List<Shard> sortedShards = new ArrayList<>(server.getShards(fileName));
-                    Collections.sort(sortedShards, Comparator.comparingInt(Shard::getSequence).thenComparing(Shard::getFragment));
-                    if (!sortedShards.isEmpty()) {
-                        for (int i = 0; i < sortedShards.size(); i++) {
-                            stringBuilder.append(sortedShards.get(i).getSequence());
-                            stringBuilder.append("(");
-                            stringBuilder.append(sortedShards.get(i).getFragment());
-                            stringBuilder.append(")");
-                            if (i != sortedShards.size() - 1)
-                                stringBuilder.append(", ");
-                        }
-                    }
-                    stringBuilder.append("\n");
+        for (LiveChunkServer server : getLiveChunkServers()) {
+            stringBuilder.append(server.getServerAddress());
+            stringBuilder.append(":\n");
+            Set<String> fileNames = server.getShardFileNames();
+            for (String fileName : fileNames) {
+                List<Shard> sortedShards = server.getShards(fileName);
+                if (sortedShards == null)
+                    continue;
+                stringBuilder.append("  ");
+                stringBuilder.append(fileName);
+                stringBuilder.append(": ");
+                Collections.sort(sortedShards, Comparator.comparingInt(Shard::getSequence).thenComparing(Shard::getFragment));
+                for (int i = 0; i < sortedShards.size(); i++) {
+                    stringBuilder.append(sortedShards.get(i).getSequence());
+                    stringBuilder.append("(");
+                    stringBuilder.append(sortedShards.get(i).getFragment());
+                    stringBuilder.append(")");
+                    if (i != sortedShards.size() - 1)
+                        stringBuilder.append(", ");
                 }
+                stringBuilder.append("\n");
             }
         }
         Utils.info(stringBuilder.toString());
     }
 
-    private void handleMajorHeartbeat(Message message) {
+    private void handleMajorHeartbeat(Message message, TcpConnection tcpConnection) {
         Heartbeat heartbeat = (Heartbeat) message;
-        synchronized (liveChunkServers) {
-            liveChunkServers.stream()
-                .filter(lcs -> lcs.getServerAddress().equals(heartbeat.getServerAddress()))
-                .findFirst()
-                .ifPresent(lcs -> lcs.majorHeartbeatUpdate(heartbeat));
+        if (!isKnownSender(heartbeat, tcpConnection))
+            return;
+        LiveChunkServer lcs = liveChunkServers.get(heartbeat.getServerAddress());
+        if (lcs != null) {
+            lcs.majorHeartbeatUpdate(heartbeat);
+            journal.chunksReplaced(lcs.getNodeId(), heartbeat.getChunksByFile());
+            namespace.chunksReported(heartbeat.getChunksByFile());
+            updatePlacement(lcs, heartbeat);
         }
         printState();
     }
@@ -299,16 +385,20 @@ public class Controller implements Node {
         int sequence = request.getSequence();
         int size = request.getSize();
 
-        List<LiveChunkServer> serversWithoutChunk = findServersWithoutChunk(fileName, sequence);
+        List<LiveChunkServer> serversWithoutChunk = placementEngine.placeChunk(fileName, sequence, size, REPLICATION_LEVEL,
+            lcs -> !lcs.containsChunk(fileName, sequence));
 
-        List<String> validServerAddresses = serversWithoutChunk.stream()
-            .map(LiveChunkServer::getServerAddress)
+        List<Integer> validServerIds = serversWithoutChunk.stream()
+            .map(LiveChunkServer::getNodeId)
             .collect(Collectors.toList());
 
-        if (validServerAddresses.size() != REPLICATION_LEVEL) {
-            Utils.error("failed to find " + REPLICATION_LEVEL + " live chunk servers, found " + validServerAddresses.size());
+        if (validServerIds.size() != REPLICATION_LEVEL) {
+            Utils.error("failed to find " + REPLICATION_LEVEL + " live chunk servers, found " + validServerIds.size());
+            releaseChunk(serversWithoutChunk, fileName, sequence);
             return;
         }
+        journal.fileAllocated(fileName, false, sequence, new int[]{size});
+        namespace.fileAllocated(fileName, false, sequence, new int[]{size});
 
         String sourceAddress = request.getSourceAddress();
         TcpConnection tcpConnection = connections.get(sourceAddress);
@@ -318,21 +408,93 @@ public class Controller implements Node {
         }
 
         StoreChunkResponse response = new StoreChunkResponse(getServerAddress(), tcpConnection.getLocalSocketAddress(),
-            new cs555.dfs.wireformats.Chunk(fileName, sequence, -1, size), validServerAddresses);
+            new cs555.dfs.wireformats.Chunk(fileName, sequence, -1, size), validServerIds);
+        response.getMessageHeader().setResponseTo(request.getMessageHeader());
         tcpConnection.send(response.getBytes());
     }
 
-    private List<LiveChunkServer> findServersWithoutChunk(String fileName, int sequence) {
-        List<LiveChunkServer> servers;
+    // places a whole window of chunks, or of stripes, and answers with one table. a chunk that cannot be fully placed
+    // keeps none of its reservations and gets a row of zeros, the client fails the store when it reaches it
+    private void handleAllocateFileRequest(Message message) {
+        AllocateFileRequest request = (AllocateFileRequest) message;
+        Utils.debug("received: " + request);
+        String fileName = request.getFileName();
+        int firstSequence = request.getFirstSequence();
+        int width = request.isErasure() ? ErasureEncoderDecoder.TOTAL_SHARDS : REPLICATION_LEVEL;
+
+        int[] sizes = new int[request.getNumberOfChunks()];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = request.getSize(i);
+
+        boolean[] placed = new boolean[sizes.length];
+        int[] serverIds = new int[request.getNumberOfChunks() * width];
+        int numUnplaced = 0;
+        for (int i = 0; i < request.getNumberOfChunks(); i++) {
+            int sequence = firstSequence + i;
+            List<LiveChunkServer> servers = request.isErasure() ? placeStripe(fileName, sequence)
+                : placementEngine.placeChunk(fileName, sequence, request.getSize(i), REPLICATION_LEVEL,
+                    lcs -> !lcs.containsChunk(fileName, sequence));
+            if (servers.size() != width) {
+                if (!request.isErasure())
+                    releaseChunk(servers, fileName, sequence);
+                numUnplaced++;
+                continue;
+            }
+            for (int slot = 0; slot < width; slot++)
+                serverIds[i * width + slot] = servers.get(slot).getNodeId();
+            placed[i] = true;
+        }
+        recordAllocation(fileName, request.isErasure(), firstSequence, sizes, placed);
+        if (numUnplaced > 0)
+            Utils.error("failed to place " + numUnplaced + " of " + request.getNumberOfChunks() + " chunks of " + fileName);
 
-        synchronized (liveChunkServers) {
-            servers = liveChunkServers.stream()
-                .filter(lcs -> !lcs.containsChunk(fileName, sequence))
-                .sorted(Comparator.comparingLong(LiveChunkServer::getUsableSpace).reversed())
-                .limit(REPLICATION_LEVEL)
-                .collect(Collectors.toList());
+        String sourceAddress = request.getSourceAddress();
+        TcpConnection tcpConnection = connections.get(sourceAddress);
+        if (tcpConnection == null) {
+            Utils.error("failed to find connection for: " + sourceAddress);
+            return;
         }
 
+        AllocateFileResponse response = new AllocateFileResponse(getServerAddress(), tcpConnection.getLocalSocketAddress(),
+            fileName, request.isErasure(), firstSequence, width, serverIds);
+        response.getMessageHeader().setResponseTo(request.getMessageHeader());
+        tcpConnection.send(response.getBytes());
+    }
+
+    // only chunks that were placed are journaled and listed, each run of them as one allocation so a file that could
+    // not be placed at all leaves nothing behind
+    private void recordAllocation(String fileName, boolean erasure, int firstSequence, int[] sizes, boolean[] placed) {
+        int start = 0;
+        while (start < sizes.length) {
+            if (!placed[start]) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while (end < sizes.length && placed[end])
+                end++;
+            int[] run = Arrays.copyOfRange(sizes, start, end);
+            journal.fileAllocated(fileName, erasure, firstSequence + start, run);
+            namespace.fileAllocated(fileName, erasure, firstSequence + start, run);
+            start = end;
+        }
+    }
+
+    // a server for every fragment of the stripe, or an empty list with the stripe's reservations released
+    private List<LiveChunkServer> placeStripe(String fileName, int sequence) {
+        List<LiveChunkServer> servers = new ArrayList<>();
+        for (int fragment = 0; fragment < ErasureEncoderDecoder.TOTAL_SHARDS; fragment++) {
+            int f = fragment;
+            LiveChunkServer shardServer = placementEngine.placeShard(fileName, sequence, 0,
+                lcs -> !lcs.containsShardOfChunk(fileName, sequence),
+                lcs -> !lcs.containsShard(fileName, sequence, f));
+            if (shardServer == null) {
+                for (LiveChunkServer lcs : servers)
+                    placementEngine.releaseShard(lcs, fileName, sequence);
+                return Collections.emptyList();
+            }
+            servers.add(shardServer);
+        }
         return servers;
     }
 
@@ -341,23 +503,20 @@ public class Controller implements Node {
         Utils.debug("received: " + request);
 
         String fileName = request.getFileName();
+        // every replica goes back with the read load its server last reported, the client spreads its reads over them
         List<ChunkLocation> chunkLocations = new ArrayList<>();
-        synchronized (liveChunkServers) {
-            for (LiveChunkServer lcs : liveChunkServers) {
-                List<Chunk> chunks = lcs.getChunks(fileName);
-                if (chunks == null)
-                    continue;
-                for (Chunk c : chunks) {
-                    ChunkLocation chunkLocation = new ChunkLocation(new cs555.dfs.wireformats.Chunk(fileName, c.getSequence(), -1, -1), lcs.getServerAddress());
-                    if (!chunkLocations.contains(chunkLocation))
-                        chunkLocations.add(chunkLocation);
-                }
+        Map<Integer, Integer> serverLoads = new LinkedHashMap<>();
+        chunkIndex.forEachChunk(fileName, (sequence, replicas) -> {
+            int[] serverIds = new int[replicas.size()];
+            int i = 0;
+            for (LiveChunkServer lcs : replicas) {
+                serverIds[i++] = lcs.getNodeId();
+                serverLoads.putIfAbsent(lcs.getNodeId(), lcs.getReadLoad());
             }
-        }
-
-        if (chunkLocations.isEmpty())
-            return;
+            chunkLocations.add(new ChunkLocation(new cs555.dfs.wireformats.Chunk(fileName, sequence, -1, -1), serverIds));
+        });
 
+        // an empty list still goes back, so the client's request fails fast instead of timing out
         Utils.debug("sending " + chunkLocations.size() + " chunks");
 
         String sourceAddress = request.getSourceAddress();
@@ -367,7 +526,8 @@ public class Controller implements Node {
             return;
         }
 
-        RetrieveFileResponse response = new RetrieveFileResponse(getServerAddress(), tcpConnection.getLocalSocketAddress(), fileName, chunkLocations);
+        RetrieveFileResponse response = new RetrieveFileResponse(getServerAddress(), tcpConnection.getLocalSocketAddress(), fileName, chunkLocations, serverLoads);
+        response.getMessageHeader().setResponseTo(request.getMessageHeader());
         tcpConnection.send(response.getBytes());
     }
 
@@ -377,22 +537,17 @@ public class Controller implements Node {
 
         String fileName = request.getFileName();
         List<ShardLocation> shardLocations = new ArrayList<>();
-        synchronized (liveChunkServers) {
-            for (LiveChunkServer lcs : liveChunkServers) {
-                List<Shard> shards = lcs.getShards(fileName);
-                if (shards == null)
-                    continue;
-                for (Shard s : shards) {
-                    ShardLocation shardLocation = new ShardLocation(new cs555.dfs.wireformats.erasure.Shard(fileName, s.getSequence(), s.getFragment()), lcs.getServerAddress());
-                    if (!shardLocations.contains(shardLocation))
-                        shardLocations.add(shardLocation);
-                }
+        for (LiveChunkServer lcs : liveChunkServers.values()) {
+            List<Shard> shards = lcs.getShards(fileName);
+            if (shards == null)
+                continue;
+            for (Shard s : shards) {
+                ShardLocation shardLocation = new ShardLocation(new cs555.dfs.wireformats.erasure.Shard(fileName, s.getSequence(), s.getFragment()), lcs.getNodeId());
+                if (!shardLocations.contains(shardLocation))
+                    shardLocations.add(shardLocation);
             }
         }
 
-        if (shardLocations.isEmpty())
-            return;
-
         String sourceAddress = request.getSourceAddress();
         TcpConnection tcpConnection = connections.get(sourceAddress);
         if (tcpConnection == null) {
@@ -401,6 +556,7 @@ public class Controller implements Node {
         }
 
         RetrieveFileResponseErasure response = new RetrieveFileResponseErasure(getServerAddress(), tcpConnection.getLocalSocketAddress(), fileName, shardLocations);
+        response.getMessageHeader().setResponseTo(request.getMessageHeader());
         tcpConnection.send(response.getBytes());
     }
 
@@ -413,22 +569,22 @@ public class Controller implements Node {
         List<Integer> corruptSlices = corruptChunk.getCorruptSlices();
         String corruptChunkServerAddress = corruptChunk.getServerAddress();
 
-        synchronized (liveChunkServers) {
-            for (LiveChunkServer lcs : liveChunkServers) {
-                if (lcs.getServerAddress().equals(corruptChunkServerAddress))
+        for (LiveChunkServer lcs : chunkIndex.getReplicas(fileName, sequence)) {
+            if (lcs.getServerAddress().equals(corruptChunkServerAddress))
+                continue;
+            Chunk chunk = lcs.getChunk(fileName, sequence);
+            if (chunk != null) {
+                Utils.debug("sending replicate chunk to " + lcs.getServerAddress());
+                TcpConnection tcpConnection = connectionPool.get(lcs.getServerAddress());
+                if (tcpConnection == null)
                     continue;
-                Chunk chunk = lcs.getChunk(fileName, sequence);
-                if (chunk != null) {
-                    Utils.debug("sending replicate chunk to " + lcs.getServerAddress());
-                    TcpSender tcpSender = TcpSender.of(lcs.getServerAddress());
-                    ReplicateChunk replicateChunk = new ReplicateChunk(getServerAddress(),
-                        tcpSender.getLocalSocketAddress(),
-                        new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), chunk.getSize()),
-                        corruptSlices, corruptChunkServerAddress);
-                    Utils.debug("sending: " + replicateChunk);
-                    tcpSender.send(replicateChunk.getBytes());
-                    break;
-                }
+                ReplicateChunk replicateChunk = new ReplicateChunk(getServerAddress(),
+                    tcpConnection.getLocalSocketAddress(),
+                    new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), chunk.getSize()),
+                    corruptSlices, corruptChunkServerAddress);
+                Utils.debug("sending: " + replicateChunk);
+                connectionPool.send(lcs.getServerAddress(), tcpConnection, replicateChunk.getBytes());
+                break;
             }
         }
     }
@@ -440,8 +596,10 @@ public class Controller implements Node {
 
     @Override
     public void registerNewTcpConnection(TcpConnection tcpConnection) {
+        connections.values().removeIf(c -> !c.isOpen());
         connections.put(tcpConnection.getRemoteSocketAddress(), tcpConnection);
         Utils.debug("registering tcp connection: " + tcpConnection.getRemoteSocketAddress());
+        sendNodeDirectory(Collections.singletonList(tcpConnection));
     }
 
     @Override
@@ -449,94 +607,78 @@ public class Controller implements Node {
         return Utils.getServerAddress(tcpServer);
     }
 
-    private void processDeadChunkServer(LiveChunkServer deadServer) {
-        List<Chunk> chunks = deadServer.getChunks();
-        for (Chunk chunk : chunks) {
-            String fileName = chunk.getFileName();
-            int sequence = chunk.getSequence();
-            int numberOfReplications = getNumberOfReplications(fileName, sequence);
-            int requiredReplcations = REPLICATION_LEVEL - numberOfReplications;
-            if (requiredReplcations == 0)
-                continue;
-            List<LiveChunkServer> serversWithoutChunk = findServersWithoutChunk(fileName, sequence);
-            if (serversWithoutChunk.size() < requiredReplcations) {
-                Utils.error("failed to find required number of servers without chunk for replication");
-                return;
-            }
-            List<LiveChunkServer> replicationServers = serversWithoutChunk.subList(0, requiredReplcations);
-
-            List<LiveChunkServer> serversWithChunk = findServersWithChunk(fileName, sequence);
-            if (serversWithChunk.isEmpty()) {
-                Utils.error("failed to find server with chunk for replication");
-                return;
-            }
-
-            for (LiveChunkServer replicationServer : replicationServers) {
-                Utils.debug("sending replicate chunk to " + serversWithChunk.get(0).getServerAddress() + " for " + replicationServer.getServerAddress());
-
-                TcpSender tcpSender = TcpSender.of(serversWithChunk.get(0).getServerAddress());
-                if (tcpSender != null) {
-                    ReplicateChunk replicateChunk = new ReplicateChunk(getServerAddress(),
-                        tcpSender.getLocalSocketAddress(),
-                        new cs555.dfs.wireformats.Chunk(fileName, sequence, chunk.getVersion(), chunk.getSize()),
-                        Collections.emptyList(),
-                        replicationServer.getServerAddress());
-
-                    tcpSender.send(replicateChunk.getBytes());
-                }
-            }
-        }
+    @Override
+    public NodeDirectory getNodeDirectory() {
+        return nodeDirectory;
     }
 
-    private List<LiveChunkServer> findServersWithChunk(String fileName, int sequence) {
-        List<LiveChunkServer> servers;
-
-        synchronized (liveChunkServers) {
-            servers = liveChunkServers.stream()
-                .filter(lcs -> lcs.containsChunk(fileName, sequence))
-                .sorted(Comparator.comparingLong(LiveChunkServer::getUsableSpace).reversed())
-                .limit(REPLICATION_LEVEL)
-                .collect(Collectors.toList());
-        }
+    // asks the source to copy its replica of the chunk to the target
+    private boolean sendReplicateChunk(LiveChunkServer source, LiveChunkServer target, cs555.dfs.wireformats.Chunk chunk) {
+        Utils.debug("sending replicate chunk to " + source.getServerAddress() + " for " + target.getServerAddress());
+        TcpConnection tcpConnection = connectionPool.get(source.getServerAddress());
+        if (tcpConnection == null)
+            return false;
+        ReplicateChunk replicateChunk = new ReplicateChunk(getServerAddress(), tcpConnection.getLocalSocketAddress(),
+            chunk, Collections.emptyList(), target.getServerAddress());
+        return connectionPool.send(source.getServerAddress(), tcpConnection, replicateChunk.getBytes());
+    }
 
-        return servers;
+    private void releaseChunk(List<LiveChunkServer> servers, String fileName, int sequence) {
+        for (LiveChunkServer lcs : servers)
+            placementEngine.releaseChunk(lcs, fileName, sequence);
     }
 
-    private int getNumberOfReplications(String fileName, int sequence) {
-        int numReplications = 0;
-        synchronized (liveChunkServers) {
-            for (LiveChunkServer lcs : liveChunkServers) {
-                if (lcs.containsChunk(fileName, sequence))
-                    numReplications++;
-            }
-        }
-        return numReplications;
+    // in registration order, for printing
+    private List<LiveChunkServer> getLiveChunkServers() {
+        List<LiveChunkServer> servers = new ArrayList<>(liveChunkServers.values());
+        servers.sort(Comparator.comparingInt(LiveChunkServer::getNodeId));
+        return servers;
     }
 
+    // the probes go out without holding anything the handlers need, a dead server's chunks go to the repair scheduler
     private class AliveHeartBeatTimerTask extends TimerTask {
         @Override
         public void run() {
+            Utils.runLogged("failure detection", this::probe);
+        }
+
+        private void probe() {
             List<LiveChunkServer> deadServers = new ArrayList<>();
 
-            synchronized (liveChunkServers) {
-                for (LiveChunkServer lcs : liveChunkServers) {
-                    TcpConnection tcpConnection = lcs.getTcpConnection();
-                    AliveHeartbeat aliveHeartbeat = new AliveHeartbeat(getServerAddress(), tcpConnection.getLocalSocketAddress());
-                    try {
-                        tcpConnection.sendNoCatch(aliveHeartbeat.getBytes());
-                    }
-                    catch (IOException e) {
+            for (LiveChunkServer lcs : liveChunkServers.values()) {
+                TcpConnection tcpConnection = lcs.getTcpConnection();
+                if (tcpConnection == null) { // recovered from the journal, not registered again yet
+                    if (System.currentTimeMillis() > recoveryDeadline)
                         deadServers.add(lcs);
-                    }
+                    continue;
                 }
+                AliveHeartbeat aliveHeartbeat = new AliveHeartbeat(getServerAddress(), tcpConnection.getLocalSocketAddress());
+                try {
+                    tcpConnection.sendNoCatch(aliveHeartbeat.getBytes());
+                }
+                catch (IOException e) {
+                    deadServers.add(lcs);
+                }
+            }
 
-                for (LiveChunkServer deadServer : deadServers) {
-                    Utils.info("Chunk server @ " + deadServer.getServerAddress() + " died");
-                    liveChunkServers.remove(deadServer);
-                    connections.remove(deadServer.getTcpConnection().getRemoteSocketAddress());
-                    processDeadChunkServer(deadServer);
+            for (LiveChunkServer deadServer : deadServers) {
+                if (!liveChunkServers.remove(deadServer.getServerAddress(), deadServer))
+                    continue;
+                Utils.info("Chunk server @ " + deadServer.getServerAddress() + " died");
+                placementEngine.removeServer(deadServer);
+                deadServer.removeFromIndex();
+                nodeDirectory.remove(deadServer.getNodeId());
+                journal.serverRemoved(deadServer.getNodeId());
+                TcpConnection tcpConnection = deadServer.getTcpConnection();
+                if (tcpConnection != null) {
+                    connections.remove(tcpConnection.getRemoteSocketAddress());
+                    tcpConnection.close();
                 }
+                repairScheduler.serverRemoved(deadServer);
+                repairScheduler.enqueue(deadServer.getChunks());
             }
+            if (!deadServers.isEmpty())
+                sendNodeDirectory(connections.values());
         }
     }
 }
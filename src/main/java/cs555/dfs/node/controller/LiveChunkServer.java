@@ -9,42 +9,85 @@ import cs555.dfs.wireformats.Message;
 import cs555.dfs.wireformats.erasure.ShardHeartbeat;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
+// a server's own chunk and shard lists are guarded by the server, so heartbeats from different servers never wait on
+// each other. once the server is removed its heartbeats are ignored and no longer touch the chunk index.
+// a server recovered from the metadata journal has no connection until it registers again
 public class LiveChunkServer {
-    private final TcpConnection tcpConnection;
+    private volatile TcpConnection tcpConnection;
+    private final int nodeId;
     private final String serverAddress;
-    private Map<String, List<Chunk>> filesToChunks = new ConcurrentHashMap<>();
-    private Map<String, List<Shard>> filesToShards = new ConcurrentHashMap<>();
-    private long usableSpace;
-    private int totalNumberOfChunks;
-
-    public LiveChunkServer(TcpConnection tcpConnection, String serverAddress) {
+    private final ChunkIndex chunkIndex;
+    private final Map<String, List<Chunk>> filesToChunks = new HashMap<>();
+    private final Map<String, List<Shard>> filesToShards = new HashMap<>();
+    private volatile long usableSpace;
+    private volatile int totalNumberOfChunks;
+    private volatile int readLoad;
+    private boolean removed;
+
+    public LiveChunkServer(TcpConnection tcpConnection, int nodeId, String serverAddress, ChunkIndex chunkIndex) {
         this.tcpConnection = tcpConnection;
+        this.nodeId = nodeId;
         this.serverAddress = serverAddress;
+        this.chunkIndex = chunkIndex;
     }
 
-    public void minorHeartbeatUpdate(Heartbeat heartbeat) {
+    public synchronized void minorHeartbeatUpdate(Heartbeat heartbeat) {
+        if (removed)
+            return;
         usableSpace = heartbeat.getUsableSpace();
         totalNumberOfChunks = heartbeat.getNumberOfChunks();
-        List<Chunk> chunks = heartbeat.getChunks();
-        for (Chunk chunk : chunks) {
-            List<Chunk> computeIfAbsent = filesToChunks.computeIfAbsent(chunk.getFileName(), c -> new ArrayList<>());
-            if (!computeIfAbsent.contains(chunk))
-                computeIfAbsent.add(chunk);
+        readLoad = heartbeat.getReadLoad();
+        for (Map.Entry<String, List<Chunk>> entry : heartbeat.getChunksByFile().entrySet()) {
+            List<Chunk> chunks = filesToChunks.computeIfAbsent(entry.getKey(), c -> new ArrayList<>());
+            for (Chunk chunk : entry.getValue())
+                if (chunkIndex.add(this, chunk))
+                    chunks.add(chunk);
         }
     }
 
-    public void majorHeartbeatUpdate(Heartbeat heartbeat) {
+    // the heartbeat's per file lists become this server's lists, nothing is regrouped or copied
+    public synchronized void majorHeartbeatUpdate(Heartbeat heartbeat) {
+        if (removed)
+            return;
         usableSpace = heartbeat.getUsableSpace();
         totalNumberOfChunks = heartbeat.getNumberOfChunks();
+        readLoad = heartbeat.getReadLoad();
+        chunkIndex.replace(this, filesToChunks, heartbeat.getChunksByFile());
+        filesToChunks.clear();
+        filesToChunks.putAll(heartbeat.getChunksByFile());
+    }
+
+    // the chunks and shards the metadata journal last knew of, the server's next major heartbeat corrects them
+    public synchronized void recover(Map<String, List<Chunk>> chunksByFile, List<Shard> shards) {
+        if (removed)
+            return;
+        chunkIndex.replace(this, filesToChunks, chunksByFile);
         filesToChunks.clear();
-        List<Chunk> chunks = heartbeat.getChunks();
-        for (Chunk chunk : chunks)
-            filesToChunks.computeIfAbsent(chunk.getFileName(), c -> new ArrayList<>()).add(chunk);
+        filesToChunks.putAll(chunksByFile);
+        filesToShards.clear();
+        for (Shard shard : shards)
+            filesToShards.computeIfAbsent(shard.getFileName(), s -> new ArrayList<>()).add(shard);
+    }
+
+    // a server recovered from the journal, or one whose connection dropped, that registered again. the new connection
+    // replaces a closed one under the same node id, returns false when the server is still connected or is gone
+    public synchronized boolean attach(TcpConnection tcpConnection) {
+        if (removed || (this.tcpConnection != null && this.tcpConnection.isOpen()))
+            return false;
+        this.tcpConnection = tcpConnection;
+        return true;
     }
 
-    public void shardHeartbeatUpdate(ShardHeartbeat heartbeat) {
+    // the server is gone, its chunks stay listed here so they can be replicated elsewhere
+    public synchronized void removeFromIndex() {
+        removed = true;
+        chunkIndex.removeAll(this, filesToChunks);
+    }
+
+    public synchronized void shardHeartbeatUpdate(ShardHeartbeat heartbeat) {
+        if (removed)
+            return;
         List<cs555.dfs.node.Shard> shards = heartbeat.getShards();
         for (cs555.dfs.node.Shard shard : shards)
             filesToShards.computeIfAbsent(shard.getFileName(), s -> new ArrayList<>()).add(shard);
@@ -54,6 +97,11 @@ public class LiveChunkServer {
         return usableSpace;
     }
 
+    // reads in flight or queued on the server as of its last heartbeat
+    public int getReadLoad() {
+        return readLoad;
+    }
+
     public void sendMessage(Message message) {
         tcpConnection.send(message.getBytes());
     }
@@ -72,7 +120,7 @@ public class LiveChunkServer {
     }
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
         return "LiveChunkServer{" +
             "tcpConnection=" + tcpConnection +
             ", filesToChunks=" + filesToChunks +
@@ -82,30 +130,14 @@ public class LiveChunkServer {
     }
 
     public boolean containsChunk(String fileName, int chunkSequence) {
-        List<Chunk> chunks = filesToChunks.get(fileName);
-        if (chunks == null)
-            return false;
-
-        for (Chunk chunk : chunks)
-            if (chunk.getSequence() == chunkSequence)
-                return true;
-
-        return false;
+        return chunkIndex.contains(this, fileName, chunkSequence);
     }
 
     public Chunk getChunk(String fileName, int sequence) {
-        List<Chunk> chunks = filesToChunks.get(fileName);
-        if (chunks == null)
-            return null;
-
-        for (Chunk chunk : chunks)
-            if (chunk.getSequence() == sequence)
-                return chunk;
-
-        return null;
+        return chunkIndex.getChunk(this, fileName, sequence);
     }
 
-    public List<Chunk> getChunks() {
+    public synchronized List<Chunk> getChunks() {
         List<Chunk> chunks = new ArrayList<>();
 
         filesToChunks.values().stream()
@@ -115,7 +147,7 @@ public class LiveChunkServer {
         return chunks;
     }
 
-    public List<Shard> getShards() {
+    public synchronized List<Shard> getShards() {
         List<Shard> shards = new ArrayList<>();
 
         filesToShards.values().stream()
@@ -125,27 +157,33 @@ public class LiveChunkServer {
         return shards;
     }
 
+    public int getNodeId() {
+        return nodeId;
+    }
+
     public String getServerAddress() {
         return serverAddress;
     }
 
-    public List<Chunk> getChunks(String fileName) {
-        return filesToChunks.get(fileName);
+    // copies, the lists change with every heartbeat
+    public synchronized List<Chunk> getChunks(String fileName) {
+        List<Chunk> chunks = filesToChunks.get(fileName);
+        return chunks == null ? null : new ArrayList<>(chunks);
     }
 
     public TcpConnection getTcpConnection() {
         return tcpConnection;
     }
 
-    public Set<String> getFileNames() {
-        return filesToChunks.keySet();
+    public synchronized Set<String> getFileNames() {
+        return new HashSet<>(filesToChunks.keySet());
     }
 
-    public Set<String> getShardFileNames() {
-        return filesToShards.keySet();
+    public synchronized Set<String> getShardFileNames() {
+        return new HashSet<>(filesToShards.keySet());
     }
 
-    public boolean containsShard(String fileName, int sequence, int fragment) {
+    public synchronized boolean containsShard(String fileName, int sequence, int fragment) {
         List<Shard> shards = filesToShards.get(fileName);
         if (shards == null)
             return false;
@@ -157,11 +195,12 @@ public class LiveChunkServer {
         return false;
     }
 
-    public List<Shard> getShards(String fileName) {
-        return filesToShards.get(fileName);
+    public synchronized List<Shard> getShards(String fileName) {
+        List<Shard> shards = filesToShards.get(fileName);
+        return shards == null ? null : new ArrayList<>(shards);
     }
 
-    public boolean containsShardOfChunk(String fileName, int sequence) {
+    public synchronized boolean containsShardOfChunk(String fileName, int sequence) {
         List<Shard> shards = filesToShards.get(fileName);
         if (shards == null)
             return false;
@@ -0,0 +1,768 @@
+package cs555.dfs.node.controller;
+
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.Shard;
+import cs555.dfs.util.Utils;
+import cs555.dfs.wireformats.WireformatUtils;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// the controller's metadata on disk: the id every chunk server registered under, the chunks and shards each one
+// reported and the chunk sizes of every file allocated. every change is appended to a write-ahead log, wal.<generation>,
+// which is written out and forced every SYNC_INTERVAL milliseconds, so a crash loses at most the changes of that
+// interval, and heartbeats bring those back. once SNAPSHOT_RECORDS records are logged the whole state is written to a
+// snapshot and the next generation of the log starts. at startup the snapshot and the log of its generation are
+// replayed, a torn record at the end of the log is cut off.
+// the journal keeps its own copy of the state, so a snapshot never locks the controller's structures, and a heartbeat
+// that changes nothing logs nothing. without a directory every call is a no-op.
+// the state and the record buffer are guarded by the journal itself, the log and snapshot files by ioLock. a sync
+// swaps the buffer out and a snapshot copies the state under the journal's lock, the writes, forces and the snapshot
+// serialization happen under ioLock alone, so a slow disk never holds up the heartbeats being journaled. ioLock is
+// always taken first
+public class MetadataJournal {
+    private static final long SYNC_INTERVAL = Long.getLong("cs555.dfs.journal.syncInterval", 200);
+    private static final long SNAPSHOT_RECORDS = Long.getLong("cs555.dfs.journal.snapshotRecords", 100000);
+    private static final int SNAPSHOT_MAGIC = 0x44465331; // "DFS1"
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES; // [int length][int crc32 of the payload]
+    private static final byte REGISTER = 1;
+    private static final byte REMOVE_SERVER = 2;
+    private static final byte ADD_CHUNK = 3;
+    private static final byte REMOVE_CHUNK = 4;
+    private static final byte ADD_SHARD = 5;
+    private static final byte ALLOCATE = 6;
+    private final Path directory;
+    private final Map<Integer, ServerState> servers = new TreeMap<>();
+    private final Map<String, FileLayout> files = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final Timer timer = new Timer(true);
+    private final Object ioLock = new Object();
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private FileChannel wal; // guarded by ioLock
+    private volatile long generation; // written under ioLock
+    private int directoryVersion;
+    private int nextNodeId = 1;
+    private long numRecords; // since the last snapshot
+    private long numRecordsReplayed;
+
+    public MetadataJournal(Path directory) {
+        Path opened = directory;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                long startTime = System.currentTimeMillis();
+                recover(directory);
+                Utils.info("Replayed the metadata journal in " + (System.currentTimeMillis() - startTime) + " ms: "
+                    + servers.size() + " chunk servers, " + files.size() + " allocated files, " + numRecordsReplayed + " log records");
+            }
+            catch (IOException e) {
+                Utils.error("failed to open the metadata journal in " + directory + ", running without it: " + e.getMessage());
+                servers.clear();
+                files.clear();
+                opened = null;
+            }
+        }
+        this.directory = opened;
+    }
+
+    public void start() {
+        if (directory == null)
+            return;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                Utils.runLogged("journal sync", MetadataJournal.this::syncAndSnapshot);
+            }
+        }, SYNC_INTERVAL, SYNC_INTERVAL);
+    }
+
+    private void syncAndSnapshot() {
+        synchronized (ioLock) {
+            try {
+                sync();
+                if (isSnapshotDue())
+                    snapshot();
+            }
+            catch (IOException e) {
+                Utils.error("failed to write the metadata journal: " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        timer.cancel();
+        if (directory == null)
+            return;
+        synchronized (ioLock) {
+            if (!wal.isOpen())
+                return;
+            try {
+                sync();
+                wal.close();
+            }
+            catch (IOException e) {
+                Utils.error("failed to close the metadata journal: " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    public synchronized void serverRegistered(int nodeId, String serverAddress) {
+        if (directory == null || !applyRegister(nodeId, serverAddress))
+            return;
+        int start = beginRecord(REGISTER, WireformatUtils.sizeOfVarint(nodeId) + WireformatUtils.sizeOfString(serverAddress));
+        WireformatUtils.serializeVarint(buffer, nodeId);
+        WireformatUtils.serializeString(buffer, serverAddress);
+        endRecord(start);
+    }
+
+    public synchronized void serverRemoved(int nodeId) {
+        if (directory == null || !applyRemoveServer(nodeId))
+            return;
+        int start = beginRecord(REMOVE_SERVER, WireformatUtils.sizeOfVarint(nodeId));
+        WireformatUtils.serializeVarint(buffer, nodeId);
+        endRecord(start);
+    }
+
+    // a minor heartbeat, only chunks that are new or have a new version are logged
+    public synchronized void chunksAdded(int nodeId, Map<String, List<Chunk>> chunksByFile) {
+        if (directory == null)
+            return;
+        for (Map.Entry<String, List<Chunk>> entry : chunksByFile.entrySet())
+            for (Chunk chunk : entry.getValue())
+                addChunk(nodeId, entry.getKey(), chunk.getSequence(), chunk.getVersion());
+    }
+
+    // a major heartbeat, logged as the chunks added and removed since the server's last report
+    public synchronized void chunksReplaced(int nodeId, Map<String, List<Chunk>> chunksByFile) {
+        ServerState server = servers.get(nodeId);
+        if (directory == null || server == null)
+            return;
+        chunksAdded(nodeId, chunksByFile);
+        for (String fileName : new ArrayList<>(server.chunks.keySet())) {
+            BitSet kept = new BitSet();
+            for (Chunk chunk : chunksByFile.getOrDefault(fileName, Collections.emptyList()))
+                kept.set(chunk.getSequence());
+            for (int sequence : new ArrayList<>(server.chunks.get(fileName).keySet()))
+                if (!kept.get(sequence))
+                    removeChunk(nodeId, fileName, sequence);
+        }
+    }
+
+    public synchronized void shardsAdded(int nodeId, List<Shard> shards) {
+        if (directory == null)
+            return;
+        for (Shard shard : shards) {
+            if (!applyAddShard(nodeId, shard.getFileName(), shard.getSequence(), shard.getFragment()))
+                continue;
+            int start = beginRecord(ADD_SHARD, WireformatUtils.sizeOfVarint(nodeId) + WireformatUtils.sizeOfString(shard.getFileName())
+                + WireformatUtils.sizeOfVarint(shard.getSequence()) + WireformatUtils.sizeOfVarint(shard.getFragment()));
+            WireformatUtils.serializeVarint(buffer, nodeId);
+            WireformatUtils.serializeString(buffer, shard.getFileName());
+            WireformatUtils.serializeVarint(buffer, shard.getSequence());
+            WireformatUtils.serializeVarint(buffer, shard.getFragment());
+            endRecord(start);
+        }
+    }
+
+    // the sizes of chunks firstSequence onwards, as the client asked for them to be placed
+    public synchronized void fileAllocated(String fileName, boolean erasure, int firstSequence, int[] sizes) {
+        if (directory == null || !applyAllocate(fileName, erasure, firstSequence, sizes))
+            return;
+        int size = WireformatUtils.sizeOfString(fileName) + 1 + WireformatUtils.sizeOfVarint(firstSequence)
+            + WireformatUtils.sizeOfVarint(sizes.length);
+        for (int s : sizes)
+            size += WireformatUtils.sizeOfVarint(s);
+        int start = beginRecord(ALLOCATE, size);
+        WireformatUtils.serializeString(buffer, fileName);
+        WireformatUtils.serializeBoolean(buffer, erasure);
+        WireformatUtils.serializeVarint(buffer, firstSequence);
+        WireformatUtils.serializeVarint(buffer, sizes.length);
+        for (int s : sizes)
+            WireformatUtils.serializeVarint(buffer, s);
+        endRecord(start);
+    }
+
+    public synchronized int getDirectoryVersion() {
+        return directoryVersion;
+    }
+
+    public synchronized int getNextNodeId() {
+        return nextNodeId;
+    }
+
+    public synchronized Map<Integer, String> getAddresses() {
+        Map<Integer, String> addresses = new TreeMap<>();
+        servers.forEach((nodeId, server) -> addresses.put(nodeId, server.address));
+        return addresses;
+    }
+
+    // the server's chunks by file in sequence order. the journal keeps no timestamps, they read as the epoch
+    public synchronized Map<String, List<Chunk>> getChunks(int nodeId) {
+        Map<String, List<Chunk>> chunksByFile = new HashMap<>();
+        ServerState server = servers.get(nodeId);
+        if (server == null)
+            return chunksByFile;
+        server.chunks.forEach((fileName, versions) -> {
+            List<Chunk> chunks = new ArrayList<>(versions.size());
+            for (int sequence : new TreeSet<>(versions.keySet()))
+                chunks.add(new Chunk(fileName, versions.get(sequence), sequence, Instant.EPOCH));
+            chunksByFile.put(fileName, chunks);
+        });
+        return chunksByFile;
+    }
+
+    public synchronized List<Shard> getShards(int nodeId) {
+        List<Shard> shards = new ArrayList<>();
+        ServerState server = servers.get(nodeId);
+        if (server == null)
+            return shards;
+        server.shards.forEach((fileName, keys) -> {
+            for (long key : keys)
+                shards.add(new Shard(fileName, (int) (key >>> 32), (int) key));
+        });
+        return shards;
+    }
+
+    public synchronized int getNumberOfFiles() {
+        return files.size();
+    }
+
+    // every allocated file with the size of each chunk, -1 where the allocation was not journaled
+    public synchronized void forEachFile(FileVisitor visitor) {
+        files.forEach((fileName, layout) -> {
+            int[] sizes = new int[layout.sizes.size()];
+            for (int i = 0; i < sizes.length; i++)
+                sizes[i] = layout.sizes.get(i);
+            visitor.visit(fileName, layout.erasure, sizes);
+        });
+    }
+
+    public interface FileVisitor {
+        void visit(String fileName, boolean erasure, int[] sizes);
+    }
+
+    // writes the whole state to a new snapshot and moves on to the next generation of the log. the new log exists
+    // before the snapshot naming it is moved into place, and the old log is only deleted afterwards, so a crash at any
+    // point leaves a snapshot and the log that goes with it. the records buffered up to the copy of the state go to the
+    // old log, those after it stay in the buffer and go to the new one
+    public void snapshot() throws IOException {
+        if (directory == null)
+            return;
+        synchronized (ioLock) {
+            long startTime = System.currentTimeMillis();
+            long nextGeneration = generation + 1;
+            FileChannel nextWal = FileChannel.open(walPath(nextGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            ByteBuffer pending;
+            StateCopy state;
+            synchronized (this) {
+                pending = swapBuffer();
+                state = copyState();
+            }
+            Path tmp = directory.resolve("snapshot.tmp");
+            long size;
+            try {
+                writePending(pending);
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                    writeSnapshot(channel, nextGeneration, state);
+                    channel.force(true);
+                    size = channel.size();
+                }
+            }
+            catch (IOException e) {
+                nextWal.close();
+                throw e;
+            }
+            Files.move(tmp, directory.resolve("snapshot"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            wal.close();
+            Files.deleteIfExists(walPath(generation));
+            wal = nextWal;
+            generation = nextGeneration;
+            snapshotWritten(state.numRecords);
+            Utils.info("Wrote a metadata snapshot of " + size + " bytes after " + state.numRecords + " log records in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    private synchronized boolean isSnapshotDue() {
+        return numRecords >= SNAPSHOT_RECORDS;
+    }
+
+    private synchronized void snapshotWritten(long numRecordsSnapshotted) {
+        numRecords -= numRecordsSnapshotted;
+    }
+
+    private synchronized StateCopy copyState() {
+        StateCopy state = new StateCopy(directoryVersion, nextNodeId, numRecords);
+        servers.forEach((nodeId, server) -> state.servers.put(nodeId, server.copy()));
+        files.forEach((fileName, layout) -> state.files.put(fileName, layout.copy()));
+        return state;
+    }
+
+    private void addChunk(int nodeId, String fileName, int sequence, int version) {
+        if (!applyAddChunk(nodeId, fileName, sequence, version))
+            return;
+        int start = beginRecord(ADD_CHUNK, WireformatUtils.sizeOfVarint(nodeId) + WireformatUtils.sizeOfString(fileName)
+            + WireformatUtils.sizeOfVarint(sequence) + WireformatUtils.sizeOfSignedVarlong(version));
+        WireformatUtils.serializeVarint(buffer, nodeId);
+        WireformatUtils.serializeString(buffer, fileName);
+        WireformatUtils.serializeVarint(buffer, sequence);
+        WireformatUtils.serializeSignedVarlong(buffer, version);
+        endRecord(start);
+    }
+
+    private void removeChunk(int nodeId, String fileName, int sequence) {
+        if (!applyRemoveChunk(nodeId, fileName, sequence))
+            return;
+        int start = beginRecord(REMOVE_CHUNK, WireformatUtils.sizeOfVarint(nodeId) + WireformatUtils.sizeOfString(fileName)
+            + WireformatUtils.sizeOfVarint(sequence));
+        WireformatUtils.serializeVarint(buffer, nodeId);
+        WireformatUtils.serializeString(buffer, fileName);
+        WireformatUtils.serializeVarint(buffer, sequence);
+        endRecord(start);
+    }
+
+    // the apply methods change the state and return whether anything changed. replaying a record twice is harmless
+
+    private boolean applyRegister(int nodeId, String serverAddress) {
+        if (servers.containsKey(nodeId))
+            return false;
+        servers.put(nodeId, new ServerState(serverAddress));
+        directoryVersion++;
+        nextNodeId = Math.max(nextNodeId, nodeId + 1);
+        return true;
+    }
+
+    private boolean applyRemoveServer(int nodeId) {
+        if (servers.remove(nodeId) == null)
+            return false;
+        directoryVersion++;
+        return true;
+    }
+
+    // chunks of a server that was removed in the meantime are dropped, as the controller drops its heartbeats
+    private boolean applyAddChunk(int nodeId, String fileName, int sequence, int version) {
+        ServerState server = servers.get(nodeId);
+        if (server == null)
+            return false;
+        Integer previous = server.chunks.computeIfAbsent(fileName, f -> new HashMap<>()).put(sequence, version);
+        return previous == null || previous != version;
+    }
+
+    private boolean applyRemoveChunk(int nodeId, String fileName, int sequence) {
+        ServerState server = servers.get(nodeId);
+        Map<Integer, Integer> versions = server == null ? null : server.chunks.get(fileName);
+        if (versions == null || versions.remove(sequence) == null)
+            return false;
+        if (versions.isEmpty())
+            server.chunks.remove(fileName);
+        return true;
+    }
+
+    private boolean applyAddShard(int nodeId, String fileName, int sequence, int fragment) {
+        ServerState server = servers.get(nodeId);
+        return server != null && server.shards.computeIfAbsent(fileName, f -> new HashSet<>()).add((long) sequence << 32 | fragment);
+    }
+
+    private boolean applyAllocate(String fileName, boolean erasure, int firstSequence, int[] sizes) {
+        FileLayout layout = files.computeIfAbsent(fileName, f -> new FileLayout());
+        boolean changed = layout.erasure != erasure;
+        layout.erasure = erasure;
+        for (int i = 0; i < sizes.length; i++)
+            changed |= layout.setSize(firstSequence + i, sizes[i]);
+        return changed;
+    }
+
+    // reserves room for a record of the given payload size after the type and writes the type. returns where the
+    // record starts, endRecord fills in its length and checksum. the buffer grows until the next sync takes it, and
+    // while the log cannot be written, so no record is lost if the disk comes back
+    private int beginRecord(byte type, int payloadSize) {
+        int recordSize = RECORD_HEADER_SIZE + 1 + payloadSize;
+        if (buffer.remaining() < recordSize) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + recordSize));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        int start = buffer.position();
+        buffer.position(start + RECORD_HEADER_SIZE);
+        buffer.put(type);
+        return start;
+    }
+
+    private void endRecord(int start) {
+        int payloadStart = start + RECORD_HEADER_SIZE;
+        int length = buffer.position() - payloadStart;
+        crc.reset();
+        crc.update(buffer.array(), payloadStart, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+        numRecords++;
+    }
+
+    // called with ioLock held
+    private void sync() throws IOException {
+        writePending(swapBuffer());
+    }
+
+    // the records buffered so far, null if there are none. records logged from now on go to a new buffer
+    private synchronized ByteBuffer swapBuffer() {
+        if (buffer.position() == 0)
+            return null;
+        ByteBuffer pending = buffer;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        pending.flip();
+        return pending;
+    }
+
+    // a failed write puts what was not written back in front of the buffer, the next sync tries again
+    private void writePending(ByteBuffer pending) throws IOException {
+        if (pending == null)
+            return;
+        try {
+            while (pending.hasRemaining())
+                wal.write(pending);
+        }
+        catch (IOException e) {
+            requeue(pending);
+            throw e;
+        }
+        wal.force(false);
+    }
+
+    private synchronized void requeue(ByteBuffer pending) {
+        ByteBuffer merged = ByteBuffer.allocate(Math.max(BUFFER_SIZE, pending.remaining() + buffer.position()));
+        merged.put(pending);
+        buffer.flip();
+        merged.put(buffer);
+        buffer = merged;
+    }
+
+    private void recover(Path directory) throws IOException {
+        Path snapshot = directory.resolve("snapshot");
+        if (Files.exists(snapshot))
+            readSnapshot(snapshot);
+        Path log = walPath(directory, generation);
+        long validLength = Files.exists(log) ? replay(log) : 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "wal.*")) {
+            for (Path path : stream)
+                if (!path.equals(log))
+                    Files.delete(path);
+        }
+        wal = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (wal.size() > validLength) {
+            Utils.error("cut off " + (wal.size() - validLength) + " bytes of a torn record at the end of " + log);
+            wal.truncate(validLength);
+        }
+        wal.position(validLength);
+    }
+
+    // returns the length of the log up to the end of its last intact record
+    private long replay(Path log) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(log));
+        while (bytes.remaining() >= RECORD_HEADER_SIZE) {
+            int start = bytes.position();
+            int length = bytes.getInt();
+            int checksum = bytes.getInt();
+            if (length <= 0 || length > bytes.remaining())
+                return start;
+            crc.reset();
+            crc.update(bytes.array(), bytes.position(), length);
+            if ((int) crc.getValue() != checksum)
+                return start;
+            ByteBuffer record = bytes.slice();
+            record.limit(length);
+            bytes.position(bytes.position() + length);
+            try {
+                applyRecord(record);
+            }
+            catch (BufferUnderflowException | IllegalArgumentException e) {
+                return start;
+            }
+            numRecords++;
+            numRecordsReplayed++;
+        }
+        return bytes.position();
+    }
+
+    private void applyRecord(ByteBuffer record) {
+        byte type = record.get();
+        switch (type) {
+            case REGISTER:
+                applyRegister(WireformatUtils.deserializeVarint(record), WireformatUtils.deserializeString(record));
+                break;
+            case REMOVE_SERVER:
+                applyRemoveServer(WireformatUtils.deserializeVarint(record));
+                break;
+            case ADD_CHUNK:
+                applyAddChunk(WireformatUtils.deserializeVarint(record), WireformatUtils.deserializeString(record),
+                    WireformatUtils.deserializeVarint(record), (int) WireformatUtils.deserializeSignedVarlong(record));
+                break;
+            case REMOVE_CHUNK:
+                applyRemoveChunk(WireformatUtils.deserializeVarint(record), WireformatUtils.deserializeString(record),
+                    WireformatUtils.deserializeVarint(record));
+                break;
+            case ADD_SHARD:
+                applyAddShard(WireformatUtils.deserializeVarint(record), WireformatUtils.deserializeString(record),
+                    WireformatUtils.deserializeVarint(record), WireformatUtils.deserializeVarint(record));
+                break;
+            case ALLOCATE:
+                String fileName = WireformatUtils.deserializeString(record);
+                boolean erasure = WireformatUtils.deserializeBoolean(record);
+                int firstSequence = WireformatUtils.deserializeVarint(record);
+                int[] sizes = new int[checkCount(record, WireformatUtils.deserializeVarint(record))];
+                for (int i = 0; i < sizes.length; i++)
+                    sizes[i] = WireformatUtils.deserializeVarint(record);
+                applyAllocate(fileName, erasure, firstSequence, sizes);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown journal record type " + type);
+        }
+    }
+
+    // [int magic][varlong generation][varint directory version][varint next node id][varint servers] and per server
+    // [varint id][address][varint files] per file [name][varint chunks] per chunk [varint sequence - previous sequence]
+    // [signed varint version], then [varint shard files] per file [name][varint shards] per shard [varint sequence]
+    // [varint fragment]. then [varint files] per file [name][bool erasure][varint chunks][signed varint size...], and
+    // last [int crc32 of everything before]
+    private static void writeSnapshot(FileChannel channel, long snapshotGeneration, StateCopy state) throws IOException {
+        SnapshotWriter out = new SnapshotWriter(channel);
+        out.ensure(Integer.BYTES + 3 * 10);
+        out.buffer.putInt(SNAPSHOT_MAGIC);
+        WireformatUtils.serializeSignedVarlong(out.buffer, snapshotGeneration);
+        WireformatUtils.serializeVarint(out.buffer, state.directoryVersion);
+        WireformatUtils.serializeVarint(out.buffer, state.nextNodeId);
+        WireformatUtils.serializeVarint(out.buffer, state.servers.size());
+        for (Map.Entry<Integer, ServerState> entry : state.servers.entrySet()) {
+            ServerState server = entry.getValue();
+            out.ensure(10 + WireformatUtils.sizeOfString(server.address));
+            WireformatUtils.serializeVarint(out.buffer, entry.getKey());
+            WireformatUtils.serializeString(out.buffer, server.address);
+            WireformatUtils.serializeVarint(out.buffer, server.chunks.size());
+            for (Map.Entry<String, Map<Integer, Integer>> file : server.chunks.entrySet()) {
+                out.ensure(WireformatUtils.sizeOfString(file.getKey()) + 5);
+                WireformatUtils.serializeString(out.buffer, file.getKey());
+                WireformatUtils.serializeVarint(out.buffer, file.getValue().size());
+                int previousSequence = 0;
+                for (int sequence : new TreeSet<>(file.getValue().keySet())) {
+                    out.ensure(15);
+                    WireformatUtils.serializeVarint(out.buffer, sequence - previousSequence);
+                    WireformatUtils.serializeSignedVarlong(out.buffer, file.getValue().get(sequence));
+                    previousSequence = sequence;
+                }
+            }
+            out.ensure(5);
+            WireformatUtils.serializeVarint(out.buffer, server.shards.size());
+            for (Map.Entry<String, Set<Long>> file : server.shards.entrySet()) {
+                out.ensure(WireformatUtils.sizeOfString(file.getKey()) + 5);
+                WireformatUtils.serializeString(out.buffer, file.getKey());
+                WireformatUtils.serializeVarint(out.buffer, file.getValue().size());
+                for (long key : file.getValue()) {
+                    out.ensure(10);
+                    WireformatUtils.serializeVarint(out.buffer, (int) (key >>> 32));
+                    WireformatUtils.serializeVarint(out.buffer, (int) key);
+                }
+            }
+        }
+        out.ensure(5);
+        WireformatUtils.serializeVarint(out.buffer, state.files.size());
+        for (Map.Entry<String, FileLayout> file : state.files.entrySet()) {
+            List<Integer> sizes = file.getValue().sizes;
+            out.ensure(WireformatUtils.sizeOfString(file.getKey()) + 6);
+            WireformatUtils.serializeString(out.buffer, file.getKey());
+            WireformatUtils.serializeBoolean(out.buffer, file.getValue().erasure);
+            WireformatUtils.serializeVarint(out.buffer, sizes.size());
+            for (int size : sizes) {
+                out.ensure(10);
+                WireformatUtils.serializeSignedVarlong(out.buffer, size);
+            }
+        }
+        out.finish();
+    }
+
+    private void readSnapshot(Path snapshot) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+        if (bytes.remaining() < 2 * Integer.BYTES || bytes.getInt(0) != SNAPSHOT_MAGIC)
+            throw new IOException(snapshot + " is not a metadata snapshot");
+        int checksumOffset = bytes.limit() - Integer.BYTES;
+        crc.reset();
+        crc.update(bytes.array(), 0, checksumOffset);
+        if ((int) crc.getValue() != bytes.getInt(checksumOffset))
+            throw new IOException(snapshot + " is corrupt");
+        bytes.limit(checksumOffset);
+        bytes.position(Integer.BYTES);
+
+        try {
+            generation = WireformatUtils.deserializeSignedVarlong(bytes);
+            directoryVersion = WireformatUtils.deserializeVarint(bytes);
+            nextNodeId = WireformatUtils.deserializeVarint(bytes);
+            int numServers = checkCount(bytes, WireformatUtils.deserializeVarint(bytes));
+            for (int i = 0; i < numServers; i++) {
+                int nodeId = WireformatUtils.deserializeVarint(bytes);
+                ServerState server = new ServerState(WireformatUtils.deserializeString(bytes));
+                servers.put(nodeId, server);
+                int numFiles = checkCount(bytes, WireformatUtils.deserializeVarint(bytes));
+                for (int f = 0; f < numFiles; f++) {
+                    String fileName = WireformatUtils.deserializeString(bytes);
+                    int numChunks = checkCount(bytes, WireformatUtils.deserializeVarint(bytes));
+                    Map<Integer, Integer> versions = new HashMap<>(numChunks * 2);
+                    int sequence = 0;
+                    for (int c = 0; c < numChunks; c++) {
+                        sequence += WireformatUtils.deserializeVarint(bytes);
+                        versions.put(sequence, (int) WireformatUtils.deserializeSignedVarlong(bytes));
+                    }
+                    server.chunks.put(fileName, versions);
+                }
+                int numShardFiles = checkCount(bytes, WireformatUtils.deserializeVarint(bytes));
+                for (int f = 0; f < numShardFiles; f++) {
+                    String fileName = WireformatUtils.deserializeString(bytes);
+                    int numShards = checkCount(bytes, WireformatUtils.deserializeVarint(bytes));
+                    Set<Long> keys = new HashSet<>(numShards * 2);
+                    for (int s = 0; s < numShards; s++)
+                        keys.add((long) WireformatUtils.deserializeVarint(bytes) << 32 | WireformatUtils.deserializeVarint(bytes));
+                    server.shards.put(fileName, keys);
+                }
+            }
+            int numFiles = checkCount(bytes, WireformatUtils.deserializeVarint(bytes));
+            for (int f = 0; f < numFiles; f++) {
+                String fileName = WireformatUtils.deserializeString(bytes);
+                FileLayout layout = new FileLayout();
+                layout.erasure = WireformatUtils.deserializeBoolean(bytes);
+                int numChunks = checkCount(bytes, WireformatUtils.deserializeVarint(bytes));
+                for (int c = 0; c < numChunks; c++)
+                    layout.sizes.add((int) WireformatUtils.deserializeSignedVarlong(bytes));
+                files.put(fileName, layout);
+            }
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException(snapshot + " is truncated");
+        }
+    }
+
+    // every counted entry takes at least a byte, which bounds what a corrupt count can ask for
+    private static int checkCount(ByteBuffer buffer, int count) {
+        if (count < 0 || count > buffer.remaining())
+            throw new BufferUnderflowException();
+        return count;
+    }
+
+    private Path walPath(long walGeneration) {
+        return walPath(directory, walGeneration);
+    }
+
+    private static Path walPath(Path directory, long walGeneration) {
+        return directory.resolve("wal." + walGeneration);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MetadataJournal{" +
+            "directory=" + directory +
+            ", generation=" + generation +
+            ", servers=" + servers.size() +
+            ", files=" + files.size() +
+            ", recordsSinceSnapshot=" + numRecords +
+            '}';
+    }
+
+    private static class ServerState {
+        private final String address;
+        private final Map<String, Map<Integer, Integer>> chunks = new HashMap<>(); // file -> sequence -> version
+        private final Map<String, Set<Long>> shards = new HashMap<>(); // file -> sequence << 32 | fragment
+
+        private ServerState(String address) {
+            this.address = address;
+        }
+
+        private ServerState copy() {
+            ServerState copy = new ServerState(address);
+            chunks.forEach((fileName, versions) -> copy.chunks.put(fileName, new HashMap<>(versions)));
+            shards.forEach((fileName, keys) -> copy.shards.put(fileName, new HashSet<>(keys)));
+            return copy;
+        }
+    }
+
+    // the state as it was when a snapshot started, written out without holding the journal's lock
+    private static class StateCopy {
+        private final int directoryVersion;
+        private final int nextNodeId;
+        private final long numRecords;
+        private final Map<Integer, ServerState> servers = new TreeMap<>();
+        private final Map<String, FileLayout> files = new HashMap<>();
+
+        private StateCopy(int directoryVersion, int nextNodeId, long numRecords) {
+            this.directoryVersion = directoryVersion;
+            this.nextNodeId = nextNodeId;
+            this.numRecords = numRecords;
+        }
+    }
+
+    // the chunk sizes of a file by sequence, -1 for a chunk that was never allocated
+    private static class FileLayout {
+        private final List<Integer> sizes = new ArrayList<>();
+        private boolean erasure;
+
+        private boolean setSize(int sequence, int size) {
+            while (sizes.size() <= sequence)
+                sizes.add(-1);
+            return sizes.set(sequence, size) != size;
+        }
+
+        private FileLayout copy() {
+            FileLayout copy = new FileLayout();
+            copy.sizes.addAll(sizes);
+            copy.erasure = erasure;
+            return copy;
+        }
+    }
+
+    // writes through a buffer and checksums everything written, finish appends the checksum
+    private static class SnapshotWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+
+        private SnapshotWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void ensure(int size) throws IOException {
+            if (buffer.remaining() < size)
+                drain();
+            if (buffer.remaining() < size)
+                throw new IOException("snapshot entry of " + size + " bytes does not fit the buffer");
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        private void finish() throws IOException {
+            drain();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+}
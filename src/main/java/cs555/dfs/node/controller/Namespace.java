@@ -0,0 +1,296 @@
+package cs555.dfs.node.controller;
+
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.Shard;
+import cs555.dfs.wireformats.FileMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// the controller's directory tree. names are split on '/' with empty parts dropped, so "/a/b" and "a/b" are the same
+// file. every directory keeps its children in one sorted map, subdirectories under their name followed by '/', so a
+// page of a listing is a walk from the key the previous page ended on and costs the page rather than the directory.
+// a file is known from its allocations, or from the chunks and shards servers report for files stored before a
+// restart without the journal. listings share a read lock, so they run side by side and only wait for changes to the
+// tree
+public class Namespace {
+    // a page filtered by mode looks at no more than this many children per entry asked for, the rest is left to the
+    // next page so a directory of nothing but the other mode cannot make one request walk all of it
+    private static final int SCAN_FACTOR = 4;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Directory root = new Directory("/");
+    private final Map<String, FileEntry> files = new HashMap<>(); // key = file name as given, for the heartbeat path
+    private int numberOfFiles;
+    private int numberOfDirectories;
+
+    public void fileAllocated(String fileName, boolean erasure, int firstSequence, int[] sizes) {
+        lock.writeLock().lock();
+        try {
+            FileEntry file = getOrCreateFile(fileName);
+            if (file == null)
+                return;
+            Layout layout = file.getLayout(erasure);
+            for (int i = 0; i < sizes.length; i++)
+                if (sizes[i] >= 0)
+                    layout.setSize(firstSequence + i, sizes[i]);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void chunksReported(Map<String, List<Chunk>> chunksByFile) {
+        Map<String, Integer> lastSequences = new HashMap<>();
+        for (Map.Entry<String, List<Chunk>> entry : chunksByFile.entrySet())
+            for (Chunk chunk : entry.getValue())
+                lastSequences.merge(entry.getKey(), chunk.getSequence(), Math::max);
+        ensureReported(lastSequences, false);
+    }
+
+    public void shardsReported(List<Shard> shards) {
+        Map<String, Integer> lastSequences = new HashMap<>();
+        for (Shard shard : shards)
+            lastSequences.merge(shard.getFileName(), shard.getSequence(), Math::max);
+        ensureReported(lastSequences, true);
+    }
+
+    // a major heartbeat repeats every chunk of the server, so the reported files are looked up under the read lock
+    // first and only those with chunks not known yet take the write lock
+    private void ensureReported(Map<String, Integer> lastSequences, boolean erasure) {
+        lock.readLock().lock();
+        try {
+            lastSequences.entrySet().removeIf(entry -> isKnown(entry.getKey(), erasure, entry.getValue()));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        if (lastSequences.isEmpty())
+            return;
+        lock.writeLock().lock();
+        try {
+            lastSequences.forEach((fileName, sequence) -> {
+                FileEntry file = getOrCreateFile(fileName);
+                if (file != null)
+                    file.getLayout(erasure).ensure(sequence);
+            });
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // one page of the children of directory whose name starts with prefix, from the first one sorting after
+    // startAfter. a page ends after pageSize entries, a file stored both ways counts once but is listed twice
+    public Page list(String directoryName, String prefix, String startAfter, int pageSize, FileMetadata.Mode mode) {
+        lock.readLock().lock();
+        try {
+            return listPage(directoryName, prefix, startAfter, pageSize, mode);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Page listPage(String directoryName, String prefix, String startAfter, int pageSize, FileMetadata.Mode mode) {
+        List<FileMetadata> entries = new ArrayList<>();
+        Directory directory = findDirectory(directoryName);
+        if (directory == null || pageSize <= 0)
+            return new Page(entries, "");
+
+        NavigableMap<String, Entry> children = startAfter.compareTo(prefix) < 0
+            ? directory.children.tailMap(prefix, true)
+            : directory.children.tailMap(startAfter, false);
+        int numScanned = 0;
+        int numListed = 0;
+        String lastKey = null;
+        for (Map.Entry<String, Entry> child : children.entrySet()) {
+            if (!child.getKey().startsWith(prefix))
+                break;
+            if (numListed == pageSize || numScanned == pageSize * SCAN_FACTOR)
+                return new Page(entries, lastKey);
+            numScanned++;
+            lastKey = child.getKey();
+            int numEntries = entries.size();
+            child.getValue().list(entries, mode);
+            if (entries.size() > numEntries)
+                numListed++;
+        }
+        return new Page(entries, "");
+    }
+
+    public int getNumberOfFiles() {
+        lock.readLock().lock();
+        try {
+            return numberOfFiles;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getNumberOfDirectories() {
+        lock.readLock().lock();
+        try {
+            return numberOfDirectories;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isKnown(String fileName, boolean erasure, int sequence) {
+        FileEntry file = files.get(fileName);
+        Layout layout = file == null ? null : erasure ? file.erasure : file.replicated;
+        return layout != null && sequence < layout.numberOfChunks;
+    }
+
+    private FileEntry getOrCreateFile(String fileName) {
+        FileEntry file = files.get(fileName);
+        if (file != null)
+            return file;
+        List<String> parts = split(fileName);
+        if (parts.isEmpty())
+            return null;
+        Directory directory = root;
+        for (int i = 0; i < parts.size() - 1; i++) {
+            String key = parts.get(i) + "/";
+            Directory child = (Directory) directory.children.get(key);
+            if (child == null) {
+                child = new Directory(directory.path + key);
+                directory.children.put(key, child);
+                numberOfDirectories++;
+            }
+            directory = child;
+        }
+        String key = parts.get(parts.size() - 1);
+        file = (FileEntry) directory.children.get(key);
+        if (file == null) {
+            file = new FileEntry(fileName);
+            directory.children.put(key, file);
+            numberOfFiles++;
+        }
+        files.put(fileName, file);
+        return file;
+    }
+
+    private Directory findDirectory(String directoryName) {
+        Directory directory = root;
+        for (String part : split(directoryName)) {
+            Entry child = directory.children.get(part + "/");
+            if (child == null)
+                return null;
+            directory = (Directory) child;
+        }
+        return directory;
+    }
+
+    private static List<String> split(String name) {
+        List<String> parts = new ArrayList<>();
+        for (String part : name.split("/"))
+            if (!part.isEmpty())
+                parts.add(part);
+        return parts;
+    }
+
+    public static class Page {
+        private final List<FileMetadata> entries;
+        private final String continuationToken;
+
+        private Page(List<FileMetadata> entries, String continuationToken) {
+            this.entries = entries;
+            this.continuationToken = continuationToken;
+        }
+
+        public List<FileMetadata> getEntries() {
+            return entries;
+        }
+
+        // empty on the last page
+        public String getContinuationToken() {
+            return continuationToken;
+        }
+    }
+
+    private abstract static class Entry {
+        abstract void list(List<FileMetadata> entries, FileMetadata.Mode mode);
+    }
+
+    private static class Directory extends Entry {
+        private final String path; // ends in '/'
+        private final TreeMap<String, Entry> children = new TreeMap<>();
+
+        private Directory(String path) {
+            this.path = path;
+        }
+
+        @Override
+        void list(List<FileMetadata> entries, FileMetadata.Mode mode) {
+            entries.add(new FileMetadata(path, FileMetadata.Mode.DIRECTORY, 0, 0));
+        }
+    }
+
+    // the first name a file was seen under is the one it is listed as
+    private static class FileEntry extends Entry {
+        private final String fileName;
+        private Layout replicated;
+        private Layout erasure;
+
+        private FileEntry(String fileName) {
+            this.fileName = fileName;
+        }
+
+        private Layout getLayout(boolean erasure) {
+            if (erasure)
+                return this.erasure == null ? this.erasure = new Layout() : this.erasure;
+            return replicated == null ? replicated = new Layout() : replicated;
+        }
+
+        @Override
+        void list(List<FileMetadata> entries, FileMetadata.Mode mode) {
+            if (replicated != null && mode != FileMetadata.Mode.ERASURE)
+                entries.add(replicated.toMetadata(fileName, FileMetadata.Mode.REPLICATED));
+            if (erasure != null && mode != FileMetadata.Mode.REPLICATED)
+                entries.add(erasure.toMetadata(fileName, FileMetadata.Mode.ERASURE));
+        }
+    }
+
+    // sequences are dense from 0, the size of every chunk is kept so a chunk allocated again is not counted twice
+    private static class Layout {
+        private int[] sizes = new int[1];
+        private int numberOfChunks;
+        private int numUnknown;
+        private long size;
+
+        // chunks up to sequence exist, those not seen before with a size not known yet
+        private void ensure(int sequence) {
+            if (sequence < numberOfChunks)
+                return;
+            if (sequence >= sizes.length)
+                sizes = Arrays.copyOf(sizes, Math.max(sequence + 1, sizes.length * 2));
+            Arrays.fill(sizes, numberOfChunks, sequence + 1, -1);
+            numUnknown += sequence + 1 - numberOfChunks;
+            numberOfChunks = sequence + 1;
+        }
+
+        private void setSize(int sequence, int chunkSize) {
+            ensure(sequence);
+            int previous = sizes[sequence];
+            if (previous < 0)
+                numUnknown--;
+            else
+                size -= previous;
+            sizes[sequence] = chunkSize;
+            size += chunkSize;
+        }
+
+        private FileMetadata toMetadata(String fileName, FileMetadata.Mode mode) {
+            return new FileMetadata(fileName, mode, numUnknown > 0 ? -1 : size, numberOfChunks);
+        }
+    }
+}
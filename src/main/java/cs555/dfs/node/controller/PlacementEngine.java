@@ -0,0 +1,263 @@
+package cs555.dfs.node.controller;
+
+import cs555.dfs.util.Utils;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+// decides where new chunks and shards go. every live server is a candidate ordered by its free space less the bytes
+// reserved for allocations it has been handed but not yet reported in a heartbeat, then by those pending writes, so
+// a burst of allocations spreads out before the next heartbeat. a reservation is released when the server reports the
+// chunk or shard, or after RESERVATION_TIMEOUT. servers never get two replicas of a chunk or two fragments of a stripe
+public class PlacementEngine {
+    private static final long RESERVATION_TIMEOUT = 60 * 1000; // 60 seconds
+    private final PlacementPolicy policy;
+    private final Candidates candidates = new Candidates();
+    private final Map<Allocation, List<Reservation>> pendingAllocations = new HashMap<>();
+    private final Deque<Reservation> reservationsByDeadline = new ArrayDeque<>();
+
+    public PlacementEngine() {
+        this(PlacementPolicy.forName(System.getProperty("cs555.dfs.placement.policy", "leastUsed")));
+    }
+
+    public PlacementEngine(PlacementPolicy policy) {
+        this.policy = policy;
+    }
+
+    public synchronized void addServer(LiveChunkServer server) {
+        if (candidates.byNodeId.containsKey(server.getNodeId()))
+            return;
+        candidates.add(new Candidate(server));
+    }
+
+    // the server's reservations go with it
+    public synchronized void removeServer(LiveChunkServer server) {
+        Candidate candidate = candidates.byNodeId.get(server.getNodeId());
+        if (candidate == null)
+            return;
+        for (Reservation reservation : new ArrayList<>(candidate.reservations))
+            release(reservation);
+        candidates.remove(candidate);
+    }
+
+    // takes the free space from the server's latest heartbeat
+    public synchronized void updateServer(LiveChunkServer server) {
+        Candidate candidate = candidates.byNodeId.get(server.getNodeId());
+        if (candidate != null)
+            candidates.update(candidate, () -> candidate.usableSpace = server.getUsableSpace());
+    }
+
+    // up to count servers for the replicas of a chunk, each reserved size bytes
+    public synchronized List<LiveChunkServer> placeChunk(String fileName, int sequence, long size, int count, Predicate<LiveChunkServer> eligible) {
+        return place(new Allocation(fileName, sequence, false), size, count, eligible, true);
+    }
+
+    // a server for one fragment of a stripe, null when there is none. a stripe wider than the cluster doubles up on
+    // the servers that pass the fallback filter once every server holds or is about to hold a fragment
+    public synchronized LiveChunkServer placeShard(String fileName, int sequence, long size, Predicate<LiveChunkServer> eligible, Predicate<LiveChunkServer> fallback) {
+        Allocation allocation = new Allocation(fileName, sequence, true);
+        List<LiveChunkServer> servers = place(allocation, size, 1, eligible, true);
+        if (servers.isEmpty())
+            servers = place(allocation, size, 1, fallback, false);
+        return servers.isEmpty() ? null : servers.get(0);
+    }
+
+    public synchronized void releaseChunk(LiveChunkServer server, String fileName, int sequence) {
+        release(server, new Allocation(fileName, sequence, false));
+    }
+
+    public synchronized void releaseShard(LiveChunkServer server, String fileName, int sequence) {
+        release(server, new Allocation(fileName, sequence, true));
+    }
+
+    public synchronized int getNumberOfReservations() {
+        int numReservations = 0;
+        for (List<Reservation> reservations : pendingAllocations.values())
+            numReservations += reservations.size();
+        return numReservations;
+    }
+
+    // excludePending leaves out the servers already holding a reservation for the allocation
+    private List<LiveChunkServer> place(Allocation allocation, long size, int count, Predicate<LiveChunkServer> eligible, boolean excludePending) {
+        expireReservations(System.currentTimeMillis());
+        List<Reservation> pending = pendingAllocations.computeIfAbsent(allocation, a -> new ArrayList<>());
+        List<Candidate> chosen = policy.choose(candidates, count,
+            c -> eligible.test(c.server) && !(excludePending && pending.stream().anyMatch(r -> r.candidate == c)));
+
+        List<LiveChunkServer> servers = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + RESERVATION_TIMEOUT;
+        for (Candidate candidate : chosen) {
+            Reservation reservation = new Reservation(allocation, candidate, size, deadline);
+            pending.add(reservation);
+            reservationsByDeadline.add(reservation);
+            candidates.update(candidate, () -> {
+                candidate.reservedBytes += size;
+                candidate.reservations.add(reservation);
+            });
+            servers.add(candidate.server);
+        }
+        if (pending.isEmpty())
+            pendingAllocations.remove(allocation);
+        return servers;
+    }
+
+    private void release(LiveChunkServer server, Allocation allocation) {
+        List<Reservation> pending = pendingAllocations.get(allocation);
+        if (pending == null)
+            return;
+        for (Reservation reservation : pending) {
+            if (reservation.candidate.server.getNodeId() == server.getNodeId()) {
+                release(reservation);
+                return;
+            }
+        }
+    }
+
+    private void release(Reservation reservation) {
+        if (reservation.released)
+            return;
+        reservation.released = true;
+        Candidate candidate = reservation.candidate;
+        candidates.update(candidate, () -> {
+            candidate.reservedBytes -= reservation.size;
+            candidate.reservations.remove(reservation);
+        });
+        List<Reservation> pending = pendingAllocations.get(reservation.allocation);
+        pending.remove(reservation);
+        if (pending.isEmpty())
+            pendingAllocations.remove(reservation.allocation);
+    }
+
+    // reservations are made with the same timeout, so the oldest are always at the head
+    private void expireReservations(long now) {
+        while (!reservationsByDeadline.isEmpty() && reservationsByDeadline.peekFirst().deadline <= now) {
+            Reservation reservation = reservationsByDeadline.pollFirst();
+            if (!reservation.released) {
+                Utils.debug("reservation of " + reservation.allocation + " on " + reservation.candidate.server.getServerAddress() + " expired");
+                release(reservation);
+            }
+        }
+    }
+
+    // the candidates in the orders the policies walk them. a candidate's load only changes through update, which
+    // takes it out of the load ordering and puts it back
+    public static class Candidates {
+        private final NavigableSet<Candidate> byLoad = new TreeSet<>(Candidate.BY_LOAD);
+        private final NavigableMap<Integer, Candidate> byNodeId = new TreeMap<>();
+        private final List<Candidate> list = new ArrayList<>();
+
+        public NavigableSet<Candidate> byLoad() {
+            return Collections.unmodifiableNavigableSet(byLoad);
+        }
+
+        public NavigableMap<Integer, Candidate> byNodeId() {
+            return Collections.unmodifiableNavigableMap(byNodeId);
+        }
+
+        public List<Candidate> list() {
+            return Collections.unmodifiableList(list);
+        }
+
+        private void add(Candidate candidate) {
+            byLoad.add(candidate);
+            byNodeId.put(candidate.getNodeId(), candidate);
+            list.add(candidate);
+        }
+
+        private void remove(Candidate candidate) {
+            byLoad.remove(candidate);
+            byNodeId.remove(candidate.getNodeId());
+            list.remove(candidate);
+        }
+
+        private void update(Candidate candidate, Runnable change) {
+            boolean present = byLoad.remove(candidate);
+            change.run();
+            if (present)
+                byLoad.add(candidate);
+        }
+    }
+
+    public static class Candidate {
+        // most unreserved space first, then fewest pending writes, then node id so no two candidates compare equal
+        static final Comparator<Candidate> BY_LOAD = (a, b) -> {
+            int order = Long.compare(b.getFreeSpace(), a.getFreeSpace());
+            if (order == 0)
+                order = Integer.compare(a.reservations.size(), b.reservations.size());
+            return order != 0 ? order : Integer.compare(a.nodeId, b.nodeId);
+        };
+        private final LiveChunkServer server;
+        private final int nodeId;
+        // a set, a batched allocation can leave thousands pending on one server until its next heartbeat
+        private final Set<Reservation> reservations = new LinkedHashSet<>();
+        private long usableSpace;
+        private long reservedBytes;
+
+        private Candidate(LiveChunkServer server) {
+            this.server = server;
+            this.nodeId = server.getNodeId();
+            this.usableSpace = server.getUsableSpace();
+        }
+
+        public LiveChunkServer getServer() {
+            return server;
+        }
+
+        public int getNodeId() {
+            return nodeId;
+        }
+
+        public long getFreeSpace() {
+            return usableSpace - reservedBytes;
+        }
+
+        public int getNumberOfPendingWrites() {
+            return reservations.size();
+        }
+    }
+
+    private static class Allocation {
+        private final String fileName;
+        private final int sequence;
+        private final boolean shard; // the fragments of a stripe share one allocation
+
+        private Allocation(String fileName, int sequence, boolean shard) {
+            this.fileName = fileName;
+            this.sequence = sequence;
+            this.shard = shard;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileName, sequence, shard);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Allocation that = (Allocation) o;
+            return sequence == that.sequence && shard == that.shard && fileName.equals(that.fileName);
+        }
+
+        @Override
+        public String toString() {
+            return fileName + (shard ? " stripe " : " chunk ") + sequence;
+        }
+    }
+
+    private static class Reservation {
+        private final Allocation allocation;
+        private final Candidate candidate;
+        private final long size;
+        private final long deadline;
+        private boolean released;
+
+        private Reservation(Allocation allocation, Candidate candidate, long size, long deadline) {
+            this.allocation = allocation;
+            this.candidate = candidate;
+            this.size = size;
+            this.deadline = deadline;
+        }
+    }
+}
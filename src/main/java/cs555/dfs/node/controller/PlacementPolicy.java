@@ -0,0 +1,93 @@
+package cs555.dfs.node.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+// picks the servers for a new chunk or shard among the placement engine's candidates. selected with
+// -Dcs555.dfs.placement.policy=leastUsed|roundRobin|powerOfTwo, least used by default
+public interface PlacementPolicy {
+    // returns up to count distinct candidates that pass the filter
+    List<PlacementEngine.Candidate> choose(PlacementEngine.Candidates candidates, int count, Predicate<PlacementEngine.Candidate> eligible);
+
+    static PlacementPolicy forName(String name) {
+        switch (name) {
+            case "leastUsed":
+                return new LeastUsed();
+            case "roundRobin":
+                return new RoundRobin();
+            case "powerOfTwo":
+                return new PowerOfTwoChoices();
+            default:
+                throw new IllegalArgumentException("unknown placement policy: " + name);
+        }
+    }
+
+    // the servers with the most unreserved space, fewest pending writes first on a tie
+    class LeastUsed implements PlacementPolicy {
+        @Override
+        public List<PlacementEngine.Candidate> choose(PlacementEngine.Candidates candidates, int count, Predicate<PlacementEngine.Candidate> eligible) {
+            return take(candidates.byLoad(), count, eligible, new ArrayList<>());
+        }
+    }
+
+    // the next servers by node id after the last one chosen, regardless of load
+    class RoundRobin implements PlacementPolicy {
+        private int lastNodeId;
+
+        @Override
+        public List<PlacementEngine.Candidate> choose(PlacementEngine.Candidates candidates, int count, Predicate<PlacementEngine.Candidate> eligible) {
+            NavigableMap<Integer, PlacementEngine.Candidate> byNodeId = candidates.byNodeId();
+            List<PlacementEngine.Candidate> chosen = take(byNodeId.tailMap(lastNodeId, false).values(), count, eligible, new ArrayList<>());
+            take(byNodeId.headMap(lastNodeId, true).values(), count, eligible, chosen);
+            if (!chosen.isEmpty())
+                lastNodeId = chosen.get(chosen.size() - 1).getNodeId();
+            return chosen;
+        }
+    }
+
+    // the less loaded of two random servers for every replica, which spreads writes without herding onto the one
+    // emptiest server. falls back to least used when random picks keep hitting ineligible servers
+    class PowerOfTwoChoices implements PlacementPolicy {
+        private static final int MAX_ATTEMPTS = 8;
+
+        @Override
+        public List<PlacementEngine.Candidate> choose(PlacementEngine.Candidates candidates, int count, Predicate<PlacementEngine.Candidate> eligible) {
+            List<PlacementEngine.Candidate> all = candidates.list();
+            List<PlacementEngine.Candidate> chosen = new ArrayList<>();
+            if (all.isEmpty())
+                return chosen;
+            Predicate<PlacementEngine.Candidate> unchosen = eligible.and(c -> !chosen.contains(c));
+            while (chosen.size() < count) {
+                PlacementEngine.Candidate first = pick(all, unchosen, null);
+                PlacementEngine.Candidate second = first == null ? null : pick(all, unchosen, first);
+                if (second == null)
+                    return take(candidates.byLoad(), count, eligible, chosen);
+                chosen.add(PlacementEngine.Candidate.BY_LOAD.compare(first, second) <= 0 ? first : second);
+            }
+            return chosen;
+        }
+
+        private static PlacementEngine.Candidate pick(List<PlacementEngine.Candidate> all, Predicate<PlacementEngine.Candidate> eligible, PlacementEngine.Candidate other) {
+            for (int i = 0; i < MAX_ATTEMPTS; i++) {
+                PlacementEngine.Candidate candidate = all.get(ThreadLocalRandom.current().nextInt(all.size()));
+                if (candidate != other && eligible.test(candidate))
+                    return candidate;
+            }
+            return null;
+        }
+    }
+
+    // adds eligible candidates in iteration order until count are chosen
+    static List<PlacementEngine.Candidate> take(Iterable<PlacementEngine.Candidate> ordered, int count, Predicate<PlacementEngine.Candidate> eligible, List<PlacementEngine.Candidate> chosen) {
+        for (PlacementEngine.Candidate candidate : ordered) {
+            if (chosen.size() >= count)
+                break;
+            if (eligible.test(candidate) && !chosen.contains(candidate))
+                chosen.add(candidate);
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,388 @@
+package cs555.dfs.node.controller;
+
+import cs555.dfs.node.Chunk;
+import cs555.dfs.util.Utils;
+
+import java.util.*;
+
+// re-replicates the chunks a dead server held. chunks wait in a queue ordered by how many replicas they have left, so
+// the ones closest to being lost go first. every tick hands out copies while the source and target each have fewer
+// than maxPerServer repairs running and the cluster wide bandwidth budget has bytes left. the source is the least busy
+// server with a replica, the target comes from the placement engine. a repair ends when the target reports the chunk,
+// or is queued again when its source or target dies, the send fails or REPAIR_TIMEOUT passes
+public class RepairScheduler {
+    private static final long TICK_INTERVAL = 100;
+    private static final long PROGRESS_INTERVAL = 5 * 1000; // 5 seconds
+    private static final long REPAIR_TIMEOUT = 60 * 1000; // 60 seconds
+    private static final int MAX_SKIPS_PER_TICK = 64;
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024; // heartbeats do not carry chunk sizes
+    private final int replicationLevel;
+    private final ChunkIndex chunkIndex;
+    private final PlacementEngine placementEngine;
+    private final Sender sender;
+    private final int maxPerServer;
+    private final long bandwidth; // bytes per second
+    private final PriorityQueue<QueuedChunk> queue = new PriorityQueue<>();
+    private final Map<ChunkId, QueuedChunk> queuedChunks = new HashMap<>();
+    private final Map<ChunkId, List<Repair>> inFlight = new HashMap<>();
+    private final Map<LiveChunkServer, Integer> activeRepairs = new HashMap<>(); // as source or target
+    private final Timer timer = new Timer(true);
+    private long tokens;
+    private long lastRefill = System.currentTimeMillis();
+    private long order;
+    private long repairStart = -1;
+    private long completedAtStart;
+    private long lostAtStart;
+    private long lastProgressReport;
+    private long numCompleted;
+    private long numFailed;
+    private long numLost;
+    private long repairedBytes;
+    private long lastTimeToFullRedundancy = -1;
+
+    public RepairScheduler(int replicationLevel, ChunkIndex chunkIndex, PlacementEngine placementEngine, Sender sender) {
+        this(replicationLevel, chunkIndex, placementEngine, sender,
+            Integer.getInteger("cs555.dfs.repair.maxPerServer", 4),
+            Long.getLong("cs555.dfs.repair.bandwidth", 64 * 1024 * 1024));
+    }
+
+    public RepairScheduler(int replicationLevel, ChunkIndex chunkIndex, PlacementEngine placementEngine, Sender sender, int maxPerServer, long bandwidth) {
+        this.replicationLevel = replicationLevel;
+        this.chunkIndex = chunkIndex;
+        this.placementEngine = placementEngine;
+        this.sender = sender;
+        this.maxPerServer = maxPerServer;
+        this.bandwidth = bandwidth;
+        this.tokens = bandwidth;
+    }
+
+    public void start() {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                Utils.runLogged("repair tick", RepairScheduler.this::tick);
+            }
+        }, TICK_INTERVAL, TICK_INTERVAL);
+    }
+
+    public void close() {
+        timer.cancel();
+    }
+
+    // the chunks of a server that just died, whatever is still fully replicated is dropped on its turn
+    public synchronized void enqueue(List<Chunk> chunks) {
+        for (Chunk chunk : chunks)
+            requeue(new ChunkId(chunk.getFileName(), chunk.getSequence()), chunk.getSize() > 0 ? chunk.getSize() : DEFAULT_CHUNK_SIZE);
+    }
+
+    // repairs from or to the server start over, and every queued chunk is ranked again by the replicas it has left
+    public synchronized void serverRemoved(LiveChunkServer server) {
+        for (List<Repair> repairs : new ArrayList<>(inFlight.values()))
+            for (Repair repair : new ArrayList<>(repairs))
+                if (repair.source.equals(server) || repair.target.equals(server))
+                    fail(repair, "its source or target died");
+        activeRepairs.remove(server);
+
+        List<QueuedChunk> requeued = new ArrayList<>(queue);
+        queue.clear();
+        for (QueuedChunk queuedChunk : requeued) {
+            queuedChunk.numReplicas = chunkIndex.getNumberOfReplicas(queuedChunk.id.fileName, queuedChunk.id.sequence);
+            queue.add(queuedChunk);
+        }
+    }
+
+    // a heartbeat: a target reporting the chunk it was sent completes the repair
+    public synchronized void chunksReported(LiveChunkServer server, Map<String, List<Chunk>> chunksByFile) {
+        if (inFlight.isEmpty())
+            return;
+        for (Map.Entry<String, List<Chunk>> entry : chunksByFile.entrySet()) {
+            for (Chunk chunk : entry.getValue()) {
+                List<Repair> repairs = inFlight.get(new ChunkId(entry.getKey(), chunk.getSequence()));
+                if (repairs == null)
+                    continue;
+                for (Repair repair : repairs) {
+                    if (repair.target.equals(server)) {
+                        finish(repair);
+                        numCompleted++;
+                        repairedBytes += repair.size;
+                        break;
+                    }
+                }
+            }
+        }
+        checkDone(System.currentTimeMillis());
+    }
+
+    // sends happen outside the lock, so a slow source never holds up heartbeats or other repairs
+    private void tick() {
+        List<Repair> dispatched;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            expire(now);
+            refill(now);
+            dispatched = schedule(now);
+            reportProgress(now);
+            checkDone(now);
+        }
+        for (Repair repair : dispatched) {
+            boolean sent = sender.replicate(repair.source, repair.target,
+                new cs555.dfs.wireformats.Chunk(repair.id.fileName, repair.id.sequence, repair.version, repair.size));
+            if (!sent) {
+                synchronized (this) {
+                    fail(repair, "it could not be sent to " + repair.source.getServerAddress());
+                }
+            }
+        }
+    }
+
+    public synchronized int getNumberOfQueuedChunks() {
+        return queue.size();
+    }
+
+    public synchronized int getNumberOfRepairsInFlight() {
+        int numRepairs = 0;
+        for (List<Repair> repairs : inFlight.values())
+            numRepairs += repairs.size();
+        return numRepairs;
+    }
+
+    public synchronized long getNumberOfCompletedRepairs() {
+        return numCompleted;
+    }
+
+    public synchronized long getNumberOfFailedRepairs() {
+        return numFailed;
+    }
+
+    public synchronized long getNumberOfLostChunks() {
+        return numLost;
+    }
+
+    public synchronized long getRepairedBytes() {
+        return repairedBytes;
+    }
+
+    // milliseconds from the first chunk queued to the last repair finishing, -1 until a repair has finished
+    public synchronized long getLastTimeToFullRedundancy() {
+        return lastTimeToFullRedundancy;
+    }
+
+    public synchronized boolean isRepairing() {
+        return repairStart >= 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RepairScheduler{" +
+            "queued=" + queue.size() +
+            ", inFlight=" + getNumberOfRepairsInFlight() +
+            ", completed=" + numCompleted +
+            ", failed=" + numFailed +
+            ", lost=" + numLost +
+            ", repairedBytes=" + repairedBytes +
+            ", lastTimeToFullRedundancy=" + lastTimeToFullRedundancy +
+            '}';
+    }
+
+    private List<Repair> schedule(long now) {
+        List<Repair> dispatched = new ArrayList<>();
+        List<QueuedChunk> deferred = new ArrayList<>();
+        int numSkipped = 0;
+        while (!queue.isEmpty() && tokens > 0 && numSkipped < MAX_SKIPS_PER_TICK) {
+            QueuedChunk queuedChunk = queue.poll();
+            ChunkId id = queuedChunk.id;
+            List<Repair> running = inFlight.getOrDefault(id, Collections.emptyList());
+            int numReplicas = chunkIndex.getNumberOfReplicas(id.fileName, id.sequence);
+            int missing = replicationLevel - numReplicas - running.size();
+            if (numReplicas == 0 && running.isEmpty()) {
+                Utils.error("no replica of " + id + " is left to repair from");
+                queuedChunks.remove(id);
+                numLost++;
+                continue;
+            }
+            while (missing > 0 && tokens > 0) {
+                Repair repair = dispatch(id, queuedChunk.size, now);
+                if (repair == null)
+                    break;
+                dispatched.add(repair);
+                missing--;
+            }
+            if (missing > 0) {
+                deferred.add(queuedChunk);
+                numSkipped++;
+            }
+            else {
+                queuedChunks.remove(id);
+                numSkipped = 0;
+            }
+        }
+        queue.addAll(deferred);
+        return dispatched;
+    }
+
+    // one copy of the chunk from the least busy replica to a server the placement engine picks, null when either side
+    // has no capacity left
+    private Repair dispatch(ChunkId id, int size, long now) {
+        LiveChunkServer source = null;
+        for (LiveChunkServer lcs : chunkIndex.getReplicas(id.fileName, id.sequence))
+            if (getActiveRepairs(lcs) < maxPerServer && (source == null || getActiveRepairs(lcs) < getActiveRepairs(source)))
+                source = lcs;
+        if (source == null)
+            return null;
+        Chunk chunk = source.getChunk(id.fileName, id.sequence);
+        if (chunk == null)
+            return null;
+
+        List<LiveChunkServer> targets = placementEngine.placeChunk(id.fileName, id.sequence, size, 1,
+            lcs -> getActiveRepairs(lcs) < maxPerServer && !lcs.containsChunk(id.fileName, id.sequence));
+        if (targets.isEmpty())
+            return null;
+
+        Repair repair = new Repair(id, source, targets.get(0), chunk.getVersion(), size, now + REPAIR_TIMEOUT);
+        inFlight.computeIfAbsent(id, i -> new ArrayList<>()).add(repair);
+        activeRepairs.merge(repair.source, 1, Integer::sum);
+        activeRepairs.merge(repair.target, 1, Integer::sum);
+        tokens -= size;
+        return repair;
+    }
+
+    private void fail(Repair repair, String reason) {
+        if (!finish(repair))
+            return;
+        Utils.debug("repair of " + repair.id + " to " + repair.target.getServerAddress() + " failed, " + reason);
+        placementEngine.releaseChunk(repair.target, repair.id.fileName, repair.id.sequence);
+        numFailed++;
+        requeue(repair.id, repair.size);
+    }
+
+    // returns false when the repair had already finished
+    private boolean finish(Repair repair) {
+        List<Repair> repairs = inFlight.get(repair.id);
+        if (repairs == null || !repairs.remove(repair))
+            return false;
+        if (repairs.isEmpty())
+            inFlight.remove(repair.id);
+        activeRepairs.computeIfPresent(repair.source, (lcs, n) -> n > 1 ? n - 1 : null);
+        activeRepairs.computeIfPresent(repair.target, (lcs, n) -> n > 1 ? n - 1 : null);
+        return true;
+    }
+
+    private void requeue(ChunkId id, int size) {
+        if (queuedChunks.containsKey(id))
+            return;
+        if (repairStart < 0) {
+            repairStart = System.currentTimeMillis();
+            lastProgressReport = repairStart;
+            completedAtStart = numCompleted;
+            lostAtStart = numLost;
+        }
+        QueuedChunk queuedChunk = new QueuedChunk(id, size, chunkIndex.getNumberOfReplicas(id.fileName, id.sequence), order++);
+        queuedChunks.put(id, queuedChunk);
+        queue.add(queuedChunk);
+    }
+
+    private void expire(long now) {
+        for (List<Repair> repairs : new ArrayList<>(inFlight.values()))
+            for (Repair repair : new ArrayList<>(repairs))
+                if (repair.deadline <= now)
+                    fail(repair, "it timed out");
+    }
+
+    // the budget refills continuously and holds at most one second's worth, a chunk may overdraw it once
+    private void refill(long now) {
+        tokens = Math.min(bandwidth, tokens + bandwidth * (now - lastRefill) / 1000);
+        lastRefill = now;
+    }
+
+    private void reportProgress(long now) {
+        if (repairStart < 0 || now - lastProgressReport < PROGRESS_INTERVAL)
+            return;
+        lastProgressReport = now;
+        Utils.info("repairing: " + this);
+    }
+
+    private void checkDone(long now) {
+        if (repairStart < 0 || !queue.isEmpty() || !inFlight.isEmpty())
+            return;
+        lastTimeToFullRedundancy = now - repairStart;
+        repairStart = -1;
+        Utils.info(String.format("repair finished in %d ms, %d chunks copied, %d lost",
+            lastTimeToFullRedundancy, numCompleted - completedAtStart, numLost - lostAtStart));
+    }
+
+    private int getActiveRepairs(LiveChunkServer server) {
+        return activeRepairs.getOrDefault(server, 0);
+    }
+
+    public interface Sender {
+        // asks source to copy the chunk to target, returns false when the request could not be sent
+        boolean replicate(LiveChunkServer source, LiveChunkServer target, cs555.dfs.wireformats.Chunk chunk);
+    }
+
+    private static class ChunkId {
+        private final String fileName;
+        private final int sequence;
+
+        private ChunkId(String fileName, int sequence) {
+            this.fileName = fileName;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fileName.hashCode() + sequence;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ChunkId that = (ChunkId) o;
+            return sequence == that.sequence && fileName.equals(that.fileName);
+        }
+
+        @Override
+        public String toString() {
+            return fileName + " chunk " + sequence;
+        }
+    }
+
+    // fewest replicas left first, then in the order the chunks were queued
+    private static class QueuedChunk implements Comparable<QueuedChunk> {
+        private final ChunkId id;
+        private final int size;
+        private final long order;
+        private int numReplicas;
+
+        private QueuedChunk(ChunkId id, int size, int numReplicas, long order) {
+            this.id = id;
+            this.size = size;
+            this.numReplicas = numReplicas;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(QueuedChunk o) {
+            int byReplicas = Integer.compare(numReplicas, o.numReplicas);
+            return byReplicas != 0 ? byReplicas : Long.compare(order, o.order);
+        }
+    }
+
+    private static class Repair {
+        private final ChunkId id;
+        private final LiveChunkServer source;
+        private final LiveChunkServer target;
+        private final int version;
+        private final int size;
+        private final long deadline;
+
+        private Repair(ChunkId id, LiveChunkServer source, LiveChunkServer target, int version, int size, long deadline) {
+            this.id = id;
+            this.source = source;
+            this.target = target;
+            this.version = version;
+            this.size = size;
+            this.deadline = deadline;
+        }
+    }
+}
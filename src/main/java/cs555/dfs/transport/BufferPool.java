@@ -0,0 +1,44 @@
+package cs555.dfs.transport;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class BufferPool {
+    private static final int MIN_SIZE_CLASS = 8; // 256 bytes
+    private static final int MAX_SIZE_CLASS = 20; // 1 MiB, larger frames are allocated and dropped
+    private static final BufferPool instance = new BufferPool(TransportConfig.getBuffersPerSizeClass());
+    private final ArrayBlockingQueue<byte[]>[] freeBuffers;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int buffersPerSizeClass) {
+        freeBuffers = new ArrayBlockingQueue[MAX_SIZE_CLASS + 1];
+        for (int sizeClass = MIN_SIZE_CLASS; sizeClass <= MAX_SIZE_CLASS; sizeClass++)
+            freeBuffers[sizeClass] = new ArrayBlockingQueue<>(buffersPerSizeClass);
+    }
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    // returns a buffer of at least size bytes, callers must track the length they actually use
+    public byte[] acquire(int size) {
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass > MAX_SIZE_CLASS)
+            return new byte[size];
+
+        byte[] buffer = freeBuffers[sizeClass].poll();
+        return buffer != null ? buffer : new byte[1 << sizeClass];
+    }
+
+    public void release(byte[] buffer) {
+        int sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass > MAX_SIZE_CLASS || buffer.length != 1 << sizeClass)
+            return;
+        freeBuffers[sizeClass].offer(buffer);
+    }
+
+    private static int sizeClassOf(int size) {
+        if (size <= 1 << MIN_SIZE_CLASS)
+            return MIN_SIZE_CLASS;
+        return Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -0,0 +1,72 @@
+package cs555.dfs.transport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CompressionStats {
+    private static final CompressionStats instance = new CompressionStats();
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+    private final AtomicLong framesCompressed = new AtomicLong();
+    private final AtomicLong framesSkipped = new AtomicLong();
+    private final AtomicLong framesDecompressed = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    public static CompressionStats getInstance() {
+        return instance;
+    }
+
+    // thread cpu time when the jvm supports it, otherwise wall time
+    long cpuTime() {
+        return cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    void recordCompressed(int uncompressedLength, int compressedLength, long nanos) {
+        framesCompressed.incrementAndGet();
+        uncompressedBytes.addAndGet(uncompressedLength);
+        compressedBytes.addAndGet(compressedLength);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordSkipped(int length, long nanos) {
+        framesSkipped.incrementAndGet();
+        skippedBytes.addAndGet(length);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordDecompressed(long nanos) {
+        framesDecompressed.incrementAndGet();
+        decompressNanos.addAndGet(nanos);
+    }
+
+    // uncompressed over compressed size of the frames that were sent compressed
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 1.0 : (double) uncompressedBytes.get() / compressed;
+    }
+
+    public long getBytesSaved() {
+        return uncompressedBytes.get() - compressedBytes.get();
+    }
+
+    public double getCompressMillis() {
+        return compressNanos.get() / 1e6;
+    }
+
+    public double getDecompressMillis() {
+        return decompressNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompressionStats{compressed=%d, skipped=%d (%d bytes), decompressed=%d, ratio=%.2f, " +
+                "saved=%d bytes, compressCpu=%.1f ms, decompressCpu=%.1f ms}",
+            framesCompressed.get(), framesSkipped.get(), skippedBytes.get(), framesDecompressed.get(),
+            getCompressionRatio(), getBytesSaved(), getCompressMillis(), getDecompressMillis());
+    }
+}
@@ -0,0 +1,330 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.node.Node;
+import cs555.dfs.util.Futures;
+import cs555.dfs.util.Utils;
+import cs555.dfs.wireformats.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class ConnectionPool {
+    private static final long EVICTION_INTERVAL = 10 * 1000; // 10 seconds
+    private final Node node;
+    private final int maxConnectionsPerPeer;
+    private final long idleTimeout;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>(); // key = server address
+    private final Timer evictionTimer = new Timer(true);
+
+    public ConnectionPool(Node node) {
+        this(node, TransportConfig.getMaxConnectionsPerPeer(), TransportConfig.getIdleTimeout());
+    }
+
+    public ConnectionPool(Node node, int maxConnectionsPerPeer, long idleTimeout) {
+        this.node = node;
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+        this.idleTimeout = idleTimeout;
+        evictionTimer.schedule(new EvictionTimerTask(), EVICTION_INTERVAL, EVICTION_INTERVAL);
+    }
+
+    public TcpConnection get(String serverAddress) {
+        return peers.computeIfAbsent(serverAddress, Peer::new).acquire();
+    }
+
+    public boolean send(String serverAddress, TcpConnection tcpConnection, byte[] data) {
+        return send(serverAddress, tcpConnection, c -> c.sendNoCatch(data));
+    }
+
+    public boolean send(String serverAddress, TcpConnection tcpConnection, ByteBuffer... parts) {
+        return send(serverAddress, tcpConnection, c -> c.sendNoCatch(parts));
+    }
+
+    public boolean sendFile(String serverAddress, TcpConnection tcpConnection, byte[] prefix, FileChannel fileChannel, long count) {
+        return send(serverAddress, tcpConnection, c -> c.sendFileNoCatch(prefix, fileChannel, count));
+    }
+
+    public boolean sendStream(String serverAddress, TcpConnection tcpConnection, byte[] header, FileChannel fileChannel, long count) {
+        return send(serverAddress, tcpConnection, c -> c.sendStreamNoCatch(header, fileChannel, count));
+    }
+
+    public boolean sendStream(String serverAddress, TcpConnection tcpConnection, byte[] header, ByteBuffer payload) {
+        // a retry starts the payload over
+        return send(serverAddress, tcpConnection, c -> c.sendStreamNoCatch(header, payload.duplicate()));
+    }
+
+    // does not wait for a saturated peer, a failed frame invalidates the connection but is not retried
+    public CompletableFuture<Void> sendAsync(String serverAddress, TcpConnection tcpConnection, byte[] data) {
+        return track(serverAddress, tcpConnection, () -> tcpConnection.sendAsync(data));
+    }
+
+    // the connection counts as busy until the response arrives, so concurrent requests spread over the pool
+    public CompletableFuture<Message> request(String serverAddress, TcpConnection tcpConnection, Message request) {
+        return request(serverAddress, tcpConnection, request, TransportConfig.getRequestTimeout());
+    }
+
+    public CompletableFuture<Message> request(String serverAddress, TcpConnection tcpConnection, Message request, long timeoutMillis) {
+        return track(serverAddress, tcpConnection, () -> tcpConnection.request(request, timeoutMillis));
+    }
+
+    // picks a pooled connection for every attempt, so a retry after a broken connection reconnects.
+    // cancelling the returned future cancels the attempt in flight and stops further retries
+    public CompletableFuture<Message> request(String serverAddress, Message request, RetryPolicy retryPolicy) {
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        attempt(serverAddress, request, retryPolicy, 1, result);
+        return result;
+    }
+
+    private void attempt(String serverAddress, Message request, RetryPolicy retryPolicy, int attempt, CompletableFuture<Message> result) {
+        if (result.isDone())
+            return;
+
+        TcpConnection tcpConnection = get(serverAddress);
+        CompletableFuture<Message> future = tcpConnection == null
+            ? Futures.failed(new IOException("failed to connect to " + serverAddress))
+            : request(serverAddress, tcpConnection, request, retryPolicy.getTimeoutMillis());
+        result.whenComplete((response, throwable) -> {
+            if (result.isCancelled())
+                future.cancel(false);
+        });
+
+        future.whenComplete((response, throwable) -> {
+            if (throwable == null) {
+                result.complete(response);
+                return;
+            }
+            Throwable cause = Futures.unwrap(throwable);
+            if (result.isDone() || !retryPolicy.shouldRetry(attempt, cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            long backoff = retryPolicy.getBackoffMillis(attempt);
+            Utils.debug("request to " + serverAddress + " failed (" + cause.getMessage() + "), attempt " + (attempt + 1) + " of "
+                + retryPolicy.getMaxAttempts() + " in " + backoff + " ms");
+            // connecting blocks, and without a backoff the delay completes in this thread, which may be a reader's,
+            // so the next attempt always runs as an async stage
+            RequestTimer.getInstance().delay(backoff)
+                .thenRunAsync(() -> attempt(serverAddress, request, retryPolicy, attempt + 1, result));
+        });
+    }
+
+    private <T> CompletableFuture<T> track(String serverAddress, TcpConnection tcpConnection, Supplier<CompletableFuture<T>> action) {
+        Peer peer = peers.computeIfAbsent(serverAddress, Peer::new);
+        PooledConnection pooledConnection = peer.find(tcpConnection);
+        if (pooledConnection != null)
+            pooledConnection.inFlight.incrementAndGet();
+
+        CompletableFuture<T> future = action.get();
+        future.whenComplete((result, throwable) -> {
+            if (pooledConnection != null) {
+                pooledConnection.inFlight.decrementAndGet();
+                pooledConnection.lastUsed = System.currentTimeMillis();
+            }
+            // a timed out or cancelled request says nothing about the connection, it stays in the pool
+            Throwable cause = Futures.unwrap(throwable);
+            if (cause instanceof IOException) {
+                Utils.error("failed to send to " + serverAddress + ": " + cause.getMessage());
+                invalidate(serverAddress, tcpConnection);
+            }
+        });
+        return future;
+    }
+
+    private boolean send(String serverAddress, TcpConnection tcpConnection, SendAction sendAction) {
+        try {
+            sendNoCatch(serverAddress, tcpConnection, sendAction);
+            return true;
+        }
+        catch (IOException e) {
+            Utils.debug("send to " + serverAddress + " failed, reconnecting: " + e.getMessage());
+        }
+
+        invalidate(serverAddress, tcpConnection);
+        TcpConnection retryConnection = get(serverAddress);
+        if (retryConnection == null)
+            return false;
+        try {
+            sendNoCatch(serverAddress, retryConnection, sendAction);
+            return true;
+        }
+        catch (IOException e) {
+            invalidate(serverAddress, retryConnection);
+            Utils.error("failed to send to " + serverAddress + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void sendNoCatch(String serverAddress, TcpConnection tcpConnection, SendAction sendAction) throws IOException {
+        Peer peer = peers.computeIfAbsent(serverAddress, Peer::new);
+        PooledConnection pooledConnection = peer.find(tcpConnection);
+        if (pooledConnection == null) {
+            sendAction.send(tcpConnection);
+            return;
+        }
+
+        pooledConnection.inFlight.incrementAndGet();
+        try {
+            sendAction.send(tcpConnection);
+        }
+        finally {
+            pooledConnection.inFlight.decrementAndGet();
+            pooledConnection.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    public void invalidate(String serverAddress, TcpConnection tcpConnection) {
+        Peer peer = peers.get(serverAddress);
+        if (peer != null)
+            peer.remove(tcpConnection);
+        tcpConnection.close();
+    }
+
+    public int getNumberOfConnections() {
+        int numConnections = 0;
+        for (Peer peer : peers.values())
+            numConnections += peer.size();
+        return numConnections;
+    }
+
+    public void close() {
+        evictionTimer.cancel();
+        for (Peer peer : peers.values())
+            peer.closeAll();
+        peers.clear();
+    }
+
+    private interface SendAction {
+        void send(TcpConnection tcpConnection) throws IOException;
+    }
+
+    private static class PooledConnection {
+        private final TcpConnection tcpConnection;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private PooledConnection(TcpConnection tcpConnection) {
+            this.tcpConnection = tcpConnection;
+        }
+
+        private boolean isIdle(long now, long idleTimeout) {
+            return inFlight.get() == 0 && now - lastUsed > idleTimeout;
+        }
+    }
+
+    private class Peer {
+        private final String serverAddress;
+        private final List<PooledConnection> connections = new ArrayList<>();
+        private int next;
+
+        private Peer(String serverAddress) {
+            this.serverAddress = serverAddress;
+        }
+
+        private synchronized TcpConnection acquire() {
+            removeUnhealthy();
+
+            PooledConnection candidate = null;
+            if (!connections.isEmpty())
+                candidate = connections.get(next++ % connections.size());
+
+            // steer away from a saturated connection when another one can take the frame
+            if (candidate != null && !candidate.tcpConnection.isWritable()) {
+                for (PooledConnection pooledConnection : connections) {
+                    if (pooledConnection.tcpConnection.isWritable()) {
+                        candidate = pooledConnection;
+                        break;
+                    }
+                }
+            }
+
+            boolean candidateBusy = candidate == null || candidate.inFlight.get() > 0 || !candidate.tcpConnection.isWritable();
+            if (candidateBusy && connections.size() < maxConnectionsPerPeer) {
+                TcpConnection tcpConnection = connect();
+                if (tcpConnection != null) {
+                    candidate = new PooledConnection(tcpConnection);
+                    connections.add(candidate);
+                }
+            }
+
+            if (candidate == null)
+                return null;
+            candidate.lastUsed = System.currentTimeMillis();
+            return candidate.tcpConnection;
+        }
+
+        private TcpConnection connect() {
+            String[] splitServerAddress = Utils.splitServerAddress(serverAddress);
+            try {
+                return TcpConnection.connect(splitServerAddress[0], Integer.valueOf(splitServerAddress[1]), node);
+            }
+            catch (IOException | RuntimeException e) {
+                Utils.error("failed to connect to " + serverAddress + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        private synchronized PooledConnection find(TcpConnection tcpConnection) {
+            for (PooledConnection pooledConnection : connections)
+                if (pooledConnection.tcpConnection == tcpConnection)
+                    return pooledConnection;
+            return null;
+        }
+
+        private synchronized void remove(TcpConnection tcpConnection) {
+            connections.removeIf(pc -> pc.tcpConnection == tcpConnection);
+        }
+
+        private synchronized void removeUnhealthy() {
+            Iterator<PooledConnection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                PooledConnection pooledConnection = iterator.next();
+                if (!pooledConnection.tcpConnection.isOpen()) {
+                    pooledConnection.tcpConnection.close();
+                    iterator.remove();
+                }
+            }
+        }
+
+        private synchronized void evictIdle(long now) {
+            removeUnhealthy();
+            Iterator<PooledConnection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                PooledConnection pooledConnection = iterator.next();
+                if (pooledConnection.isIdle(now, idleTimeout)) {
+                    Utils.debug("evicting idle connection to " + serverAddress);
+                    pooledConnection.tcpConnection.close();
+                    iterator.remove();
+                }
+            }
+        }
+
+        private synchronized int size() {
+            return connections.size();
+        }
+
+        private synchronized void closeAll() {
+            for (PooledConnection pooledConnection : connections)
+                pooledConnection.tcpConnection.close();
+            connections.clear();
+        }
+    }
+
+    private class EvictionTimerTask extends TimerTask {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            for (Peer peer : peers.values())
+                peer.evictIdle(now);
+        }
+    }
+}
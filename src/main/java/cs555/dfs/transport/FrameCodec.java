@@ -0,0 +1,185 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.MessageFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Frames on the wire:
+//   [int length >= 0][payload]                           plain frame
+//   [int -length][int uncompressed length][deflate data] compressed frame, length covers both fields
+//   [int HELLO][int flags]                               sent once by each side when a connection opens
+//   [int STREAM][int header length][long payload length][header][payload]
+//                                                        streamed frame, a message followed by a raw payload
+class FrameCodec {
+    static final int HELLO = Integer.MIN_VALUE;
+    static final int STREAM = Integer.MIN_VALUE + 1;
+    static final int STREAM_PREFIX_LENGTH = Integer.BYTES + Long.BYTES;
+    static final int FLAG_COMPRESSION = 1;
+    private static final double MAX_COMPRESSED_RATIO = 0.9; // send raw unless deflate saves at least 10%
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(TransportConfig.getCompressionLevel()));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> DEFLATE_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    static int getLocalFlags() {
+        return TransportConfig.isCompressionEnabled() ? FLAG_COMPRESSION : 0;
+    }
+
+    // compression is used only when both sides advertised it
+    static boolean shouldCompress(int peerFlags) {
+        return (getLocalFlags() & peerFlags & FLAG_COMPRESSION) != 0;
+    }
+
+    static ByteBuffer helloFrame() {
+        ByteBuffer hello = ByteBuffer.allocate(2 * Integer.BYTES);
+        hello.putInt(HELLO).putInt(getLocalFlags());
+        hello.flip();
+        return hello;
+    }
+
+    // the buffers that go out ahead of a streamed payload, the header message is never compressed
+    static ByteBuffer[] streamHeader(byte[] header, long payloadLength) {
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES + STREAM_PREFIX_LENGTH);
+        prefix.putInt(STREAM).putInt(header.length).putLong(payloadLength);
+        prefix.flip();
+        return new ByteBuffer[]{prefix, ByteBuffer.wrap(header)};
+    }
+
+    // returns the header and payload buffers for one frame
+    static ByteBuffer[] encode(byte[] data, boolean compress) throws IOException {
+        return encode(new ByteBuffer[]{ByteBuffer.wrap(data)}, compress);
+    }
+
+    // a frame whose payload is the concatenation of parts, the parts are written as they are unless compressed
+    static ByteBuffer[] encode(ByteBuffer[] parts, boolean compress) throws IOException {
+        long length = 0;
+        for (ByteBuffer part : parts)
+            length += part.remaining();
+        ByteBuffer lengthBuffer = TcpSender.lengthOf(length);
+
+        if (compress && length >= TransportConfig.getCompressionThreshold()) {
+            byte[] data = toArray(parts);
+            byte[] compressed = deflate(data);
+            if (compressed != null) {
+                ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+                header.putInt(-(Integer.BYTES + compressed.length)).putInt(data.length);
+                header.flip();
+                return new ByteBuffer[]{header, ByteBuffer.wrap(compressed)};
+            }
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[parts.length + 1];
+        buffers[0] = lengthBuffer;
+        System.arraycopy(parts, 0, buffers, 1, parts.length);
+        return buffers;
+    }
+
+    // the parts as one array, a single part that wraps a whole array is returned without copying
+    static byte[] toArray(ByteBuffer[] parts) {
+        if (parts.length == 1 && parts[0].hasArray() && parts[0].arrayOffset() + parts[0].position() == 0
+            && parts[0].remaining() == parts[0].array().length)
+            return parts[0].array();
+
+        int length = 0;
+        for (ByteBuffer part : parts)
+            length += part.remaining();
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (ByteBuffer part : parts)
+            buffer.put(part.duplicate());
+        return data;
+    }
+
+    // the number of bytes that follow a length field
+    static int frameLength(int lengthField) {
+        if (lengthField == HELLO)
+            return Integer.BYTES;
+        if (lengthField == STREAM)
+            return STREAM_PREFIX_LENGTH;
+        return lengthField < 0 ? -lengthField : lengthField;
+    }
+
+    // decodes a complete frame, returns null for a hello frame after handing its flags to the connection and for a
+    // message of an unknown protocol
+    static Message decode(TcpConnection tcpConnection, int lengthField, byte[] frame, int length) throws IOException {
+        if (lengthField == HELLO) {
+            tcpConnection.onHello(ByteBuffer.wrap(frame, 0, length).getInt());
+            return null;
+        }
+        if (lengthField >= 0)
+            return MessageFactory.getMessageFromData(frame, length);
+
+        int uncompressedLength = ByteBuffer.wrap(frame, 0, length).getInt();
+        if (uncompressedLength < 0)
+            throw new IOException("bad uncompressed length: " + uncompressedLength);
+
+        BufferPool bufferPool = BufferPool.getInstance();
+        byte[] data = bufferPool.acquire(uncompressedLength);
+        try {
+            inflate(frame, Integer.BYTES, length - Integer.BYTES, data, uncompressedLength);
+            return MessageFactory.getMessageFromData(data, uncompressedLength);
+        }
+        finally {
+            bufferPool.release(data);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        CompressionStats compressionStats = CompressionStats.getInstance();
+        long startTime = compressionStats.cpuTime();
+
+        int maxLength = (int) (data.length * MAX_COMPRESSED_RATIO);
+        byte[] buffer = DEFLATE_BUFFER.get();
+        if (buffer.length < maxLength + 1) {
+            buffer = new byte[maxLength + 1];
+            DEFLATE_BUFFER.set(buffer);
+        }
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength <= maxLength)
+            compressedLength += deflater.deflate(buffer, compressedLength, maxLength + 1 - compressedLength);
+
+        if (!deflater.finished() || compressedLength > maxLength) {
+            compressionStats.recordSkipped(data.length, compressionStats.cpuTime() - startTime);
+            return null;
+        }
+        byte[] compressed = Arrays.copyOf(buffer, compressedLength);
+        compressionStats.recordCompressed(data.length, compressedLength, compressionStats.cpuTime() - startTime);
+        return compressed;
+    }
+
+    private static void inflate(byte[] input, int offset, int length, byte[] output, int outputLength) throws IOException {
+        CompressionStats compressionStats = CompressionStats.getInstance();
+        long startTime = compressionStats.cpuTime();
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+        int numInflated = 0;
+        try {
+            while (numInflated < outputLength && !inflater.finished()) {
+                int n = inflater.inflate(output, numInflated, outputLength - numInflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                numInflated += n;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("corrupt compressed frame", e);
+        }
+        if (numInflated != outputLength || !inflater.finished())
+            throw new IOException("compressed frame inflated to " + numInflated + " of " + outputLength + " bytes");
+
+        compressionStats.recordDecompressed(compressionStats.cpuTime() - startTime);
+    }
+}
@@ -0,0 +1,84 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.node.Node;
+import cs555.dfs.util.Utils;
+import cs555.dfs.wireformats.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// the payload of a streamed frame on its way into the sink the node opened for it. the message is dispatched once all
+// of the payload is written. without a message or a sink, or after the sink failed, the rest of the payload is read
+// and discarded so the connection stays usable
+class InboundStream {
+    private final TcpConnection tcpConnection;
+    private final Node node;
+    private final Message message;
+    private PayloadSink sink;
+    private long remaining;
+
+    InboundStream(TcpConnection tcpConnection, Node node, Message message, long length) throws IOException {
+        if (length < 0)
+            throw new IOException("bad payload length: " + length);
+        this.tcpConnection = tcpConnection;
+        this.node = node;
+        this.message = message;
+        this.remaining = length;
+        if (message == null)
+            return;
+        try {
+            sink = node.openPayloadSink(message, length);
+        }
+        catch (IOException e) {
+            Utils.error("failed to open a sink for " + message + ": " + e.getMessage());
+        }
+        if (sink == null)
+            Utils.error(String.format("%s dropped a streamed message with protocol %d", node.getNodeTypeAsString(), message.getProtocol()));
+    }
+
+    long getRemaining() {
+        return remaining;
+    }
+
+    boolean isComplete() {
+        return remaining == 0;
+    }
+
+    // takes as much of the buffer as belongs to the payload and advances its position past it
+    void write(ByteBuffer buffer) {
+        int numBytes = (int) Math.min(buffer.remaining(), remaining);
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + numBytes);
+        try {
+            if (sink != null)
+                sink.write(buffer);
+        }
+        catch (IOException e) {
+            Utils.error("failed to write the payload of " + message + ": " + e.getMessage());
+            abort();
+        }
+        buffer.position(buffer.limit());
+        buffer.limit(limit);
+        remaining -= numBytes;
+    }
+
+    void finish() {
+        if (sink == null)
+            return;
+        try {
+            sink.complete();
+        }
+        catch (IOException e) {
+            Utils.error("failed to complete the payload of " + message + ": " + e.getMessage());
+            abort();
+            return;
+        }
+        MessageDispatcher.getInstance().dispatch(tcpConnection, node, message);
+    }
+
+    void abort() {
+        if (sink != null)
+            sink.abort();
+        sink = null;
+    }
+}
@@ -0,0 +1,324 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.node.Node;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.MessageFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// one end of an in-memory link. frames are handed to the peer's receiver thread, which holds each
+// one back until the link's bandwidth and latency say it has arrived
+class MemoryConnection extends TcpConnection {
+    private static final Delivery END_OF_STREAM = new Delivery(null, -1, 0, 0, null, null);
+    private final MemoryTransport transport;
+    private final Node node;
+    private final String localAddress;
+    private final String remoteAddress;
+    private final int localPort;
+    private final BlockingQueue<Delivery> inbound = new LinkedBlockingQueue<>();
+    private final OutboundBudget outboundBudget = new OutboundBudget(this);
+    private final Thread receiverThread;
+    private MemoryConnection peer;
+    private long linkFreeAt; // guarded by this, when the last frame has been pushed onto the link
+    private long lastArrival;
+    private InboundStream inboundStream; // only touched by the receiver thread
+    private volatile boolean closed;
+
+    MemoryConnection(MemoryTransport transport, Node node, int localPort, int remotePort) {
+        super((Socket) null);
+        this.transport = transport;
+        this.node = node;
+        this.localPort = localPort;
+        this.localAddress = MemoryTransport.HOST + ":" + localPort;
+        this.remoteAddress = MemoryTransport.HOST + ":" + remotePort;
+        receiverThread = new Thread(this::receive, "memory-receiver-" + localAddress + "-" + remoteAddress);
+        receiverThread.setDaemon(true);
+    }
+
+    static void link(MemoryConnection a, MemoryConnection b) {
+        a.peer = b;
+        b.peer = a;
+        a.receiverThread.start();
+        b.receiverThread.start();
+    }
+
+    @Override
+    public String getRemoteSocketAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getLocalSocketAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public int getPort() {
+        return localPort;
+    }
+
+    @Override
+    public void send(byte[] data) {
+        try {
+            sendNoCatch(data);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void sendNoCatch(byte[] data) throws IOException {
+        if (Thread.currentThread() != receiverThread)
+            outboundBudget.awaitWritable();
+        transmit(data, null);
+    }
+
+    // the link delivers whole arrays, so the parts are joined here
+    @Override
+    public void sendNoCatch(ByteBuffer... parts) throws IOException {
+        sendNoCatch(FrameCodec.toArray(parts));
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(byte[] data) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            transmit(data, future);
+        }
+        catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // the file is copied into the frame, the link has no zero-copy path
+    @Override
+    public void sendFileNoCatch(byte[] prefix, FileChannel fileChannel, long count) throws IOException {
+        if (prefix.length + count > Integer.MAX_VALUE)
+            throw new IOException("frame too large: " + (prefix.length + count));
+        byte[] data = new byte[(int) (prefix.length + count)];
+        System.arraycopy(prefix, 0, data, 0, prefix.length);
+        ByteBuffer buffer = ByteBuffer.wrap(data, prefix.length, (int) count);
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            int numRead = fileChannel.read(buffer, position);
+            if (numRead < 0)
+                throw new IOException("file ended after " + position + " of " + count + " bytes");
+            position += numRead;
+        }
+        sendNoCatch(data);
+    }
+
+    // the link carries the header message and then the payload in segments, nothing else is sent in between
+    @Override
+    public void sendStreamNoCatch(byte[] header, FileChannel fileChannel, long count) throws IOException {
+        stream(header, count, (segment, position) -> {
+            while (segment.hasRemaining()) {
+                int numRead = fileChannel.read(segment, position);
+                if (numRead < 0)
+                    throw new IOException("file ended after " + position + " of " + count + " bytes");
+                position += numRead;
+            }
+        });
+    }
+
+    @Override
+    public void sendStreamNoCatch(byte[] header, ByteBuffer payload) throws IOException {
+        stream(header, payload.remaining(), (segment, position) -> {
+            ByteBuffer source = payload.duplicate();
+            source.position(payload.position() + (int) position);
+            source.limit(source.position() + segment.remaining());
+            segment.put(source);
+        });
+    }
+
+    private void stream(byte[] header, long length, SegmentReader segmentReader) throws IOException {
+        int segmentSize = TransportConfig.getStreamSegmentSize();
+        boolean awaitWritable = Thread.currentThread() != receiverThread;
+        if (awaitWritable)
+            outboundBudget.awaitWritable();
+        synchronized (this) {
+            // a stream is dropped as a whole
+            if (transport.shouldDrop())
+                return;
+            deliver(header, length, null);
+            long position = 0;
+            while (position < length) {
+                byte[] segment = new byte[(int) Math.min(segmentSize, length - position)];
+                segmentReader.read(ByteBuffer.wrap(segment), position);
+                position += segment.length;
+                if (awaitWritable)
+                    outboundBudget.awaitWritable();
+                deliver(segment, -1, null);
+            }
+        }
+    }
+
+    private void transmit(byte[] data, CompletableFuture<Void> future) throws IOException {
+        if (closed)
+            throw new IOException("connection closed: " + remoteAddress);
+        if (transport.shouldDrop()) {
+            if (future != null)
+                future.complete(null);
+            return;
+        }
+        deliver(data, -1, future);
+    }
+
+    // streamLength is the length of the payload that follows a stream header, -1 for any other frame
+    private void deliver(byte[] data, long streamLength, CompletableFuture<Void> future) throws IOException {
+        if (closed)
+            throw new IOException("connection closed: " + remoteAddress);
+
+        int numBytes = data.length + Integer.BYTES;
+        synchronized (this) {
+            outboundBudget.tryAdd(numBytes);
+            long now = System.nanoTime();
+            linkFreeAt = Math.max(now, linkFreeAt) + transport.getTransmissionNanos(numBytes);
+            // frames never overtake each other, even when the latency is lowered in between
+            lastArrival = Math.max(linkFreeAt + transport.getLatencyNanos(), lastArrival);
+            synchronized (peer.inbound) {
+                if (!peer.closed) {
+                    peer.inbound.add(new Delivery(data, streamLength, numBytes, lastArrival, future, this));
+                    return;
+                }
+            }
+            outboundBudget.remove(numBytes);
+        }
+        throw new IOException("connection reset by " + remoteAddress);
+    }
+
+    private void receive() {
+        try {
+            while (true) {
+                awaitReadable();
+                Delivery delivery = inbound.take();
+                if (delivery == END_OF_STREAM)
+                    break;
+
+                long delay = delivery.arrival - System.nanoTime();
+                if (delay > 0)
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                delivery.sender.outboundBudget.remove(delivery.numBytes);
+                if (delivery.future != null)
+                    delivery.future.complete(null);
+                transport.recordDelivered(delivery.numBytes);
+
+                if (inboundStream != null) {
+                    inboundStream.write(ByteBuffer.wrap(delivery.data));
+                    if (inboundStream.isComplete())
+                        finishStream();
+                    continue;
+                }
+
+                Message message = MessageFactory.getMessageFromData(delivery.data);
+                if (delivery.streamLength >= 0) {
+                    inboundStream = new InboundStream(this, node, message, delivery.streamLength);
+                    if (inboundStream.isComplete())
+                        finishStream();
+                }
+                else if (message != null)
+                    MessageDispatcher.getInstance().dispatch(this, node, message);
+            }
+        }
+        catch (InterruptedException | IOException e) {
+            if (!closed)
+                e.printStackTrace();
+        }
+        if (inboundStream != null)
+            inboundStream.abort();
+        close();
+    }
+
+    private void finishStream() {
+        InboundStream finished = inboundStream;
+        inboundStream = null;
+        finished.finish();
+    }
+
+    @Override
+    void onHello(int peerFlags) {
+    }
+
+    @Override
+    public boolean isWritable() {
+        return outboundBudget.isWritable();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return outboundBudget.getQueuedBytes();
+    }
+
+    @Override
+    public void addWritabilityListener(WritabilityListener listener) {
+        outboundBudget.addListener(listener);
+    }
+
+    @Override
+    public void removeWritabilityListener(WritabilityListener listener) {
+        outboundBudget.removeListener(listener);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    // frames already on the link still reach the peer, which then sees the end of the stream
+    @Override
+    public void close() {
+        // once closed under the queue's lock the peer can no longer add frames, so the drain below sees all of them
+        synchronized (inbound) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        peer.inbound.add(END_OF_STREAM);
+        if (Thread.currentThread() != receiverThread)
+            receiverThread.interrupt();
+
+        IOException closedException = new IOException("connection closed: " + localAddress);
+        Delivery delivery;
+        while ((delivery = inbound.poll()) != null) {
+            if (delivery == END_OF_STREAM)
+                continue;
+            delivery.sender.outboundBudget.remove(delivery.numBytes);
+            if (delivery.future != null)
+                delivery.future.completeExceptionally(closedException);
+        }
+        outboundBudget.close();
+        failInFlightRequests();
+    }
+
+    private interface SegmentReader {
+        // fills the segment with the payload bytes starting at position
+        void read(ByteBuffer segment, long position) throws IOException;
+    }
+
+    private static class Delivery {
+        private final byte[] data;
+        private final long streamLength;
+        private final int numBytes;
+        private final long arrival;
+        private final CompletableFuture<Void> future;
+        private final MemoryConnection sender;
+
+        private Delivery(byte[] data, long streamLength, int numBytes, long arrival, CompletableFuture<Void> future, MemoryConnection sender) {
+            this.data = data;
+            this.streamLength = streamLength;
+            this.numBytes = numBytes;
+            this.arrival = arrival;
+            this.future = future;
+            this.sender = sender;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.node.Node;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// connections between nodes in the same jvm, with injectable latency, bandwidth and frame loss.
+// every endpoint listens on "memory:<port>", the host part of an address is ignored
+public class MemoryTransport implements Transport {
+    static final String HOST = "memory";
+    private static final int FIRST_EPHEMERAL_PORT = 40000;
+    private static final MemoryTransport instance = new MemoryTransport();
+    private final Map<Integer, MemoryEndpoint> endpoints = new ConcurrentHashMap<>(); // key = port
+    private final AtomicInteger nextPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+    private final AtomicLong framesDelivered = new AtomicLong();
+    private final AtomicLong bytesDelivered = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private volatile long latencyNanos = TimeUnit.MICROSECONDS.toNanos(TransportConfig.getMemoryLatencyMicros());
+    private volatile long bandwidth = TransportConfig.getMemoryBandwidth();
+    private volatile double dropRate = TransportConfig.getMemoryDropRate();
+
+    public static MemoryTransport getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Endpoint bind(int port, Node node) throws IOException {
+        if (port == 0)
+            port = nextPort();
+        MemoryEndpoint endpoint = new MemoryEndpoint(port, node);
+        if (endpoints.putIfAbsent(port, endpoint) != null)
+            throw new BindException("address already in use: " + HOST + ":" + port);
+        return endpoint;
+    }
+
+    @Override
+    public TcpConnection connect(String host, int port, Node node) throws IOException {
+        MemoryEndpoint endpoint = endpoints.get(port);
+        if (endpoint == null)
+            throw new ConnectException("connection refused: " + HOST + ":" + port);
+
+        int localPort = nextPort();
+        MemoryConnection connection = new MemoryConnection(this, node, localPort, port);
+        MemoryConnection accepted = new MemoryConnection(this, endpoint.node, port, localPort);
+        MemoryConnection.link(connection, accepted);
+        endpoint.node.registerNewTcpConnection(accepted);
+        return connection;
+    }
+
+    private int nextPort() {
+        int port;
+        do {
+            port = nextPort.getAndIncrement();
+        } while (endpoints.containsKey(port));
+        return port;
+    }
+
+    public void setLatencyMicros(long latencyMicros) {
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    // bytes per second on every link, 0 means unlimited
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    long getTransmissionNanos(int numBytes) {
+        long bytesPerSecond = bandwidth;
+        return bytesPerSecond <= 0 ? 0 : TimeUnit.SECONDS.toNanos(numBytes) / bytesPerSecond;
+    }
+
+    boolean shouldDrop() {
+        double rate = dropRate;
+        if (rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate)
+            return false;
+        framesDropped.incrementAndGet();
+        return true;
+    }
+
+    void recordDelivered(int numBytes) {
+        framesDelivered.incrementAndGet();
+        bytesDelivered.addAndGet(numBytes);
+    }
+
+    public long getFramesDelivered() {
+        return framesDelivered.get();
+    }
+
+    public long getBytesDelivered() {
+        return bytesDelivered.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryTransport{" +
+            "framesDelivered=" + framesDelivered.get() +
+            ", bytesDelivered=" + bytesDelivered.get() +
+            ", framesDropped=" + framesDropped.get() +
+            ", latencyMicros=" + TimeUnit.NANOSECONDS.toMicros(latencyNanos) +
+            ", bandwidth=" + bandwidth +
+            ", dropRate=" + dropRate +
+            '}';
+    }
+
+    private class MemoryEndpoint implements Endpoint {
+        private final int port;
+        private final Node node;
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        private MemoryEndpoint(int port, Node node) {
+            this.port = port;
+            this.node = node;
+        }
+
+        @Override
+        public String getHost() {
+            return HOST;
+        }
+
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        // connections are handed to the node by connect(), so there is nothing to do until the endpoint closes
+        @Override
+        public void acceptConnections() throws IOException {
+            try {
+                closed.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() {
+            endpoints.remove(port, this);
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.node.Node;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.MessageHeader;
+import cs555.dfs.wireformats.Protocol;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageDispatcher {
+    private static MessageDispatcher instance;
+    private final Lane controlLane;
+    private final Lane bulkLane;
+
+    public enum MessageClass {
+        CONTROL, BULK
+    }
+
+    private MessageDispatcher(int controlThreads, int bulkThreads, int bulkQueueCapacity) {
+        controlLane = new Lane(MessageClass.CONTROL, controlThreads, Integer.MAX_VALUE);
+        bulkLane = new Lane(MessageClass.BULK, bulkThreads, bulkQueueCapacity);
+    }
+
+    public static synchronized MessageDispatcher getInstance() {
+        if (instance == null)
+            instance = new MessageDispatcher(TransportConfig.getControlDispatchThreads(),
+                TransportConfig.getBulkDispatchThreads(),
+                TransportConfig.getBulkDispatchQueueCapacity());
+        return instance;
+    }
+
+    public static MessageClass getMessageClass(int protocol) {
+        switch (protocol) {
+            case Protocol.STORE_CHUNK:
+            case Protocol.STORE_SLICE:
+            case Protocol.STORE_SHARD:
+            case Protocol.RETRIEVE_CHUNK_REQUEST:
+            case Protocol.RETRIEVE_CHUNK_RESPONSE:
+            case Protocol.RETRIEVE_SHARD_REQUEST:
+            case Protocol.RETRIEVE_SHARD_RESPONSE:
+            case Protocol.REPLICATE_CHUNK:
+                return MessageClass.BULK;
+            default:
+                return MessageClass.CONTROL;
+        }
+    }
+
+    public void dispatch(TcpConnection tcpConnection, Node node, Message message) {
+        // headers name a registered sender by id and never carry the source address, both are filled in here
+        MessageHeader messageHeader = message.getMessageHeader();
+        messageHeader.setAddresses(node.getNodeDirectory().getAddress(messageHeader.getSenderId()),
+            tcpConnection.getRemoteSocketAddress());
+
+        Lane lane = getMessageClass(message.getProtocol()) == MessageClass.BULK ? bulkLane : controlLane;
+        // responses complete their request future on the lane, everything else goes to the node
+        lane.submit(tcpConnection, () -> {
+            if (!tcpConnection.completeRequest(message))
+                node.onMessage(message, tcpConnection);
+        });
+    }
+
+    public int getQueueDepth(MessageClass messageClass) {
+        return getLane(messageClass).getQueueDepth();
+    }
+
+    public double getAverageWaitMillis(MessageClass messageClass) {
+        return getLane(messageClass).getAverageWaitMillis();
+    }
+
+    public double getMaxWaitMillis(MessageClass messageClass) {
+        return getLane(messageClass).getMaxWaitMillis();
+    }
+
+    private Lane getLane(MessageClass messageClass) {
+        return messageClass == MessageClass.BULK ? bulkLane : controlLane;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageDispatcher{" +
+            "control=" + controlLane +
+            ", bulk=" + bulkLane +
+            '}';
+    }
+
+    private static class Lane {
+        private final MessageClass messageClass;
+        private final Stripe[] executors;
+        private final AtomicLong numDispatched = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private Lane(MessageClass messageClass, int numThreads, int queueCapacity) {
+            this.messageClass = messageClass;
+            executors = new Stripe[numThreads];
+            for (int i = 0; i < numThreads; i++)
+                executors[i] = new Stripe(messageClass.name().toLowerCase() + "-dispatch-" + i, queueCapacity);
+        }
+
+        private void submit(TcpConnection tcpConnection, Runnable handler) {
+            // every message of a connection lands on the same executor so per connection ordering is kept
+            int stripe = Math.floorMod(System.identityHashCode(tcpConnection), executors.length);
+            long enqueuedAt = System.nanoTime();
+            executors[stripe].submit(tcpConnection, () -> {
+                recordWait(System.nanoTime() - enqueuedAt);
+                try {
+                    handler.run();
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        private void recordWait(long waitNanos) {
+            numDispatched.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+
+        private int getQueueDepth() {
+            int queueDepth = 0;
+            for (Stripe executor : executors)
+                queueDepth += executor.getQueue().size();
+            return queueDepth;
+        }
+
+        private double getAverageWaitMillis() {
+            long dispatched = numDispatched.get();
+            return dispatched == 0 ? 0 : totalWaitNanos.get() / (double) dispatched / 1_000_000;
+        }
+
+        private double getMaxWaitMillis() {
+            return maxWaitNanos.get() / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{threads=%d, queueDepth=%d, dispatched=%d, avgWaitMs=%.3f, maxWaitMs=%.3f}",
+                executors.length, getQueueDepth(), numDispatched.get(), getAverageWaitMillis(), getMaxWaitMillis());
+        }
+    }
+
+    // one dispatch thread of a lane. its queue takes every message, since the thread dispatching is a connection's
+    // reader or an event loop serving many connections and must never block. once more than capacity messages wait,
+    // the connection that just added one stops being read, which pushes back on its sender through TCP flow control,
+    // and every connection stopped that way is read again when the queue has drained to half of capacity
+    private static class Stripe extends ThreadPoolExecutor {
+        private final int capacity;
+        private final Set<TcpConnection> paused = new HashSet<>(); // guarded by this
+        private volatile boolean hasPaused;
+
+        private Stripe(String threadName, int capacity) {
+            super(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.capacity = capacity;
+        }
+
+        private void submit(TcpConnection tcpConnection, Runnable task) {
+            execute(task);
+            if (getQueue().size() > capacity)
+                pause(tcpConnection);
+        }
+
+        // hasPaused is set before the queue is looked at, so a drain that finishes meanwhile either sees it and waits
+        // for the lock, or left the queue empty and nothing is paused
+        private synchronized void pause(TcpConnection tcpConnection) {
+            hasPaused = true;
+            if (getQueue().size() <= capacity / 2) {
+                hasPaused = !paused.isEmpty();
+                return;
+            }
+            if (paused.add(tcpConnection))
+                tcpConnection.pauseReading();
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            if (hasPaused && getQueue().size() <= capacity / 2)
+                resumeAll();
+        }
+
+        private synchronized void resumeAll() {
+            if (getQueue().size() > capacity / 2)
+                return;
+            for (TcpConnection tcpConnection : paused)
+                tcpConnection.resumeReading();
+            paused.clear();
+            hasPaused = false;
+        }
+    }
+}
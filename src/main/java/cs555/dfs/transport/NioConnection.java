@@ -0,0 +1,512 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.node.Node;
+import cs555.dfs.wireformats.Message;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+class NioConnection extends TcpConnection {
+    private final SocketChannel channel;
+    private final Node node;
+    private final NioEventLoop eventLoop;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+    private final Queue<Outbound> outbound = new ArrayDeque<>();
+    private final int maxBatchBytes = TransportConfig.getSenderMaxBatchBytes();
+    private final BufferPool bufferPool = BufferPool.getInstance();
+    private final OutboundBudget outboundBudget = new OutboundBudget(this);
+    private ByteBuffer frameBuffer;
+    private int lengthField;
+    private boolean readingStreamHeader;
+    private long streamLength;
+    private InboundStream inboundStream;
+    private SelectionKey selectionKey;
+    private volatile boolean closed;
+    private volatile boolean compress;
+    private volatile boolean readPaused;
+
+    NioConnection(SocketChannel channel, Node node) throws IOException {
+        super(channel.socket());
+        this.channel = channel;
+        this.node = node;
+
+        channel.configureBlocking(false);
+        eventLoop = NioEventLoopGroup.getInstance().next();
+        eventLoop.register(this);
+        enqueue(new BufferOutbound(null, FrameCodec.helloFrame()));
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    @Override
+    public void send(byte[] data) {
+        try {
+            sendNoCatch(data);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void sendNoCatch(byte[] data) throws IOException {
+        sendNoCatch(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void sendNoCatch(ByteBuffer... parts) throws IOException {
+        // the event loop drains the queue, so it must never wait on it
+        if (!eventLoop.inEventLoop())
+            outboundBudget.awaitWritable();
+        enqueue(new BufferOutbound(null, FrameCodec.encode(parts, compress)));
+    }
+
+    @Override
+    void onHello(int peerFlags) {
+        compress = FrameCodec.shouldCompress(peerFlags);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(byte[] data) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            enqueue(new BufferOutbound(future, FrameCodec.encode(data, compress)));
+        }
+        catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return outboundBudget.isWritable();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return outboundBudget.getQueuedBytes();
+    }
+
+    @Override
+    public void addWritabilityListener(WritabilityListener listener) {
+        outboundBudget.addListener(listener);
+    }
+
+    @Override
+    public void removeWritabilityListener(WritabilityListener listener) {
+        outboundBudget.removeListener(listener);
+    }
+
+    @Override
+    public void sendFileNoCatch(byte[] prefix, FileChannel fileChannel, long count) throws IOException {
+        sendUnqueued(new ByteBuffer[]{TcpSender.lengthOf(prefix.length + count), ByteBuffer.wrap(prefix)}, new FileOutbound(fileChannel, count));
+    }
+
+    @Override
+    public void sendStreamNoCatch(byte[] header, FileChannel fileChannel, long count) throws IOException {
+        sendUnqueued(FrameCodec.streamHeader(header, count), new FileOutbound(fileChannel, count));
+    }
+
+    @Override
+    public void sendStreamNoCatch(byte[] header, ByteBuffer payload) throws IOException {
+        sendUnqueued(FrameCodec.streamHeader(header, payload.remaining()), new PayloadOutbound(payload));
+    }
+
+    // the payload is not counted against the outbound budget and not copied, so it is written right behind its header
+    // and the caller waits until the event loop has drained it into the socket
+    private void sendUnqueued(ByteBuffer[] header, DirectOutbound payload) throws IOException {
+        if (!eventLoop.inEventLoop())
+            outboundBudget.awaitWritable();
+        synchronized (outbound) {
+            enqueue(new BufferOutbound(null, header));
+            enqueue(payload);
+        }
+
+        try {
+            payload.done.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void enqueue(Outbound item) throws IOException {
+        if (closed)
+            throw new IOException("connection closed: " + getRemoteSocketAddress());
+
+        synchronized (outbound) {
+            if (outbound.isEmpty()) {
+                try {
+                    if (item.writeTo(channel)) {
+                        item.complete();
+                        return;
+                    }
+                }
+                catch (IOException e) {
+                    close();
+                    throw e;
+                }
+            }
+            if (item instanceof BufferOutbound)
+                ((BufferOutbound) item).reserve(outboundBudget);
+            outbound.add(item);
+        }
+        eventLoop.execute(this::enableWriteInterest);
+    }
+
+    // read interest is only ever changed on the event loop, from the latest value of readPaused
+    @Override
+    void pauseReading() {
+        readPaused = true;
+        updateReadInterest();
+    }
+
+    @Override
+    void resumeReading() {
+        readPaused = false;
+        updateReadInterest();
+    }
+
+    private void updateReadInterest() {
+        if (eventLoop.inEventLoop())
+            applyReadInterest();
+        else
+            eventLoop.execute(this::applyReadInterest);
+    }
+
+    private void applyReadInterest() {
+        if (selectionKey == null || !selectionKey.isValid())
+            return;
+        int interestOps = selectionKey.interestOps();
+        selectionKey.interestOps(readPaused ? interestOps & ~SelectionKey.OP_READ : interestOps | SelectionKey.OP_READ);
+    }
+
+    private void enableWriteInterest() {
+        if (selectionKey != null && selectionKey.isValid())
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    void onWritable() {
+        synchronized (outbound) {
+            try {
+                while (!outbound.isEmpty()) {
+                    if (outbound.peek() instanceof BufferOutbound) {
+                        if (!writeBufferBatch())
+                            return;
+                        continue;
+                    }
+                    if (!outbound.peek().writeTo(channel))
+                        return;
+                    outbound.poll().complete();
+                }
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+            selectionKey.interestOps(readPaused ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    // gathers the queued frames at the head of the queue into a single write
+    private boolean writeBufferBatch() throws IOException {
+        List<ByteBuffer> batch = new ArrayList<>();
+        int numItems = 0;
+        long numBytes = 0;
+        for (Outbound item : outbound) {
+            if (!(item instanceof BufferOutbound) || (numItems > 0 && numBytes >= maxBatchBytes))
+                break;
+            for (ByteBuffer buffer : ((BufferOutbound) item).buffers) {
+                batch.add(buffer);
+                numBytes += buffer.remaining();
+            }
+            numItems++;
+        }
+
+        channel.write(batch.toArray(new ByteBuffer[0]));
+        for (int i = 0; i < numItems; i++) {
+            if (!((BufferOutbound) outbound.peek()).isWritten())
+                return false;
+            outbound.poll().complete();
+        }
+        return true;
+    }
+
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            // a paused connection still decodes what was read already, the loop's read buffer cannot be kept
+            int numRead = 0;
+            while (!readPaused && (numRead = channel.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                decodeFrames(readBuffer);
+                readBuffer.clear();
+            }
+            if (numRead < 0)
+                close();
+        }
+        catch (IOException e) {
+            close();
+        }
+    }
+
+    private void decodeFrames(ByteBuffer readBuffer) throws IOException {
+        while (readBuffer.hasRemaining()) {
+            // a streamed payload goes to its sink straight from the read buffer
+            if (inboundStream != null) {
+                inboundStream.write(readBuffer);
+                if (!inboundStream.isComplete())
+                    return;
+                finishStream();
+                continue;
+            }
+
+            if (frameBuffer == null) {
+                transfer(readBuffer, lengthBuffer);
+                if (lengthBuffer.hasRemaining())
+                    return;
+                lengthBuffer.flip();
+                lengthField = lengthBuffer.getInt();
+                int frameLength = FrameCodec.frameLength(lengthField);
+                frameBuffer = ByteBuffer.wrap(bufferPool.acquire(frameLength), 0, frameLength);
+                lengthBuffer.clear();
+            }
+
+            transfer(readBuffer, frameBuffer);
+            if (frameBuffer.hasRemaining())
+                return;
+
+            byte[] data = frameBuffer.array();
+            int frameLength = frameBuffer.position();
+            frameBuffer = null;
+            if (lengthField == FrameCodec.STREAM && !readingStreamHeader) {
+                readStreamPrefix(data, frameLength);
+                continue;
+            }
+            Message message;
+            try {
+                message = FrameCodec.decode(this, lengthField, data, frameLength);
+            }
+            finally {
+                bufferPool.release(data);
+            }
+            if (readingStreamHeader) {
+                readingStreamHeader = false;
+                inboundStream = new InboundStream(this, node, message, streamLength);
+                if (inboundStream.isComplete())
+                    finishStream();
+            }
+            else if (message != null)
+                MessageDispatcher.getInstance().dispatch(this, node, message);
+        }
+    }
+
+    // the header message of a streamed frame is read next like the payload of a plain frame
+    private void readStreamPrefix(byte[] data, int length) throws IOException {
+        ByteBuffer prefix = ByteBuffer.wrap(data, 0, length);
+        int headerLength = prefix.getInt();
+        streamLength = prefix.getLong();
+        bufferPool.release(data);
+        if (headerLength < 0)
+            throw new IOException("bad stream header length: " + headerLength);
+
+        readingStreamHeader = true;
+        lengthField = headerLength;
+        frameBuffer = ByteBuffer.wrap(bufferPool.acquire(headerLength), 0, headerLength);
+    }
+
+    private void finishStream() {
+        InboundStream finished = inboundStream;
+        inboundStream = null;
+        finished.finish();
+    }
+
+    private static void transfer(ByteBuffer source, ByteBuffer destination) {
+        int numBytes = Math.min(source.remaining(), destination.remaining());
+        int limit = source.limit();
+        source.limit(source.position() + numBytes);
+        destination.put(source);
+        source.limit(limit);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (selectionKey != null)
+            selectionKey.cancel();
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (outbound) {
+            IOException closedException = new IOException("connection closed: " + getRemoteSocketAddress());
+            for (Outbound item : outbound)
+                item.fail(closedException);
+            outbound.clear();
+        }
+        outboundBudget.close();
+        failInFlightRequests();
+        InboundStream unfinished = inboundStream;
+        if (unfinished != null)
+            unfinished.abort();
+    }
+
+    private interface Outbound {
+        // returns true once the item has been completely written
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        default void complete() {
+        }
+
+        default void fail(IOException e) {
+        }
+    }
+
+    private static class BufferOutbound implements Outbound {
+        private final CompletableFuture<Void> future;
+        private final ByteBuffer[] buffers;
+        private OutboundBudget outboundBudget;
+        private long reservedBytes;
+
+        private BufferOutbound(CompletableFuture<Void> future, ByteBuffer... buffers) {
+            this.future = future;
+            this.buffers = buffers;
+        }
+
+        // counts the unwritten bytes against the connection's budget until the item completes or fails
+        private void reserve(OutboundBudget outboundBudget) throws IOException {
+            long numBytes = 0;
+            for (ByteBuffer buffer : buffers)
+                numBytes += buffer.remaining();
+            outboundBudget.tryAdd(numBytes);
+            this.outboundBudget = outboundBudget;
+            this.reservedBytes = numBytes;
+        }
+
+        @Override
+        public void complete() {
+            release();
+            if (future != null)
+                future.complete(null);
+        }
+
+        @Override
+        public void fail(IOException e) {
+            release();
+            if (future != null)
+                future.completeExceptionally(e);
+        }
+
+        private void release() {
+            if (outboundBudget != null)
+                outboundBudget.remove(reservedBytes);
+            outboundBudget = null;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffers);
+            return isWritten();
+        }
+
+        private boolean isWritten() {
+            for (ByteBuffer buffer : buffers)
+                if (buffer.hasRemaining())
+                    return false;
+            return true;
+        }
+    }
+
+    // a payload the sender waits on instead of queueing a copy
+    private abstract static class DirectOutbound implements Outbound {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        // returns true once all of the payload has been written
+        abstract boolean transferTo(SocketChannel channel) throws IOException;
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            try {
+                if (!transferTo(channel))
+                    return false;
+            }
+            catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+            done.complete(null);
+            return true;
+        }
+
+        @Override
+        public void fail(IOException e) {
+            done.completeExceptionally(e);
+        }
+    }
+
+    private static class FileOutbound extends DirectOutbound {
+        private final FileChannel fileChannel;
+        private final long count;
+        private long position;
+
+        private FileOutbound(FileChannel fileChannel, long count) {
+            this.fileChannel = fileChannel;
+            this.count = count;
+        }
+
+        @Override
+        boolean transferTo(SocketChannel channel) throws IOException {
+            while (position < count) {
+                long numTransferred = fileChannel.transferTo(position, count - position, channel);
+                if (numTransferred == 0) {
+                    if (position >= fileChannel.size())
+                        throw new IOException("file ended after " + position + " of " + count + " bytes");
+                    return false;
+                }
+                position += numTransferred;
+            }
+            return true;
+        }
+    }
+
+    private static class PayloadOutbound extends DirectOutbound {
+        private final ByteBuffer payload;
+
+        private PayloadOutbound(ByteBuffer payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        boolean transferTo(SocketChannel channel) throws IOException {
+            channel.write(payload);
+            return !payload.hasRemaining();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.util.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024; // 64 KB
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile Thread thread;
+
+    NioEventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey selectionKey = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.setSelectionKey(selectionKey);
+            }
+            catch (ClosedChannelException e) {
+                connection.close();
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (!Thread.interrupted()) {
+            try {
+                selector.select();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    Utils.error("event loop task failed: " + e);
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey selectionKey = iterator.next();
+                iterator.remove();
+                NioConnection connection = (NioConnection) selectionKey.attachment();
+                // a connection that fails in a way its handlers did not expect is closed, the loop serves the others
+                try {
+                    if (selectionKey.isValid() && selectionKey.isReadable()) {
+                        readBuffer.clear();
+                        connection.onReadable(readBuffer);
+                    }
+                    if (selectionKey.isValid() && selectionKey.isWritable())
+                        connection.onWritable();
+                }
+                catch (RuntimeException e) {
+                    Utils.error("closing " + connection.getRemoteSocketAddress() + " after an unexpected failure: " + e);
+                    e.printStackTrace();
+                    connection.close();
+                }
+            }
+        }
+    }
+}
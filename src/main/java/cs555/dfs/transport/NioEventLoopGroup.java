@@ -0,0 +1,37 @@
+package cs555.dfs.transport;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class NioEventLoopGroup {
+    private static NioEventLoopGroup instance;
+    private final NioEventLoop[] eventLoops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private NioEventLoopGroup(int numThreads) throws IOException {
+        eventLoops = new NioEventLoop[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            eventLoops[i] = new NioEventLoop();
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    static synchronized NioEventLoopGroup getInstance() {
+        if (instance == null) {
+            try {
+                instance = new NioEventLoopGroup(TransportConfig.getNioThreads());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return instance;
+    }
+
+    NioEventLoop next() {
+        return eventLoops[Math.floorMod(next.getAndIncrement(), eventLoops.length)];
+    }
+}
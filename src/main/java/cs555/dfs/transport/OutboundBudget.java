@@ -0,0 +1,94 @@
+package cs555.dfs.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// byte accounting for a connection's outbound queue, with high/low watermarks and a hard limit
+class OutboundBudget {
+    private final TcpConnection tcpConnection;
+    private final long lowWatermark;
+    private final long highWatermark;
+    private final long maxQueuedBytes;
+    private final List<WritabilityListener> listeners = new CopyOnWriteArrayList<>();
+    private long queuedBytes;
+    private boolean writable = true;
+    private boolean closed;
+
+    OutboundBudget(TcpConnection tcpConnection) {
+        this(tcpConnection, TransportConfig.getOutboundLowWatermark(), TransportConfig.getOutboundHighWatermark(),
+            TransportConfig.getOutboundMaxQueuedBytes());
+    }
+
+    OutboundBudget(TcpConnection tcpConnection, long lowWatermark, long highWatermark, long maxQueuedBytes) {
+        this.tcpConnection = tcpConnection;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    // blocks the caller while the queue is above the high watermark and has not yet drained to the low watermark
+    synchronized void awaitWritable() throws IOException {
+        try {
+            while (!writable && !closed)
+                wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (closed)
+            throw new IOException("connection closed");
+    }
+
+    // reserves room without blocking, fails once the hard limit would be exceeded
+    synchronized void tryAdd(long numBytes) throws IOException {
+        if (closed)
+            throw new IOException("connection closed");
+        if (queuedBytes > 0 && queuedBytes + numBytes > maxQueuedBytes)
+            throw new IOException("outbound queue full: " + queuedBytes + " bytes queued");
+        queuedBytes += numBytes;
+        if (writable && queuedBytes > highWatermark) {
+            writable = false;
+            fireWritabilityChanged(false);
+        }
+    }
+
+    synchronized void remove(long numBytes) {
+        queuedBytes -= numBytes;
+        if (!writable && queuedBytes <= lowWatermark) {
+            writable = true;
+            notifyAll();
+            fireWritabilityChanged(true);
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    synchronized boolean isWritable() {
+        return writable && !closed;
+    }
+
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    void addListener(WritabilityListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(WritabilityListener listener) {
+        listeners.remove(listener);
+    }
+
+    // listeners run under the budget's lock so they observe changes in order, they must not block
+    private void fireWritabilityChanged(boolean writable) {
+        for (WritabilityListener listener : listeners)
+            listener.onWritabilityChanged(tcpConnection, writable);
+    }
+}
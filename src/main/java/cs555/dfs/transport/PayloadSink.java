@@ -0,0 +1,16 @@
+package cs555.dfs.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// where a node writes the payload of a streamed frame while it is still arriving
+public interface PayloadSink {
+    // consumes all of the segment, the buffer is reused once this returns
+    void write(ByteBuffer segment) throws IOException;
+
+    // the whole payload has been written, the message is handled next
+    void complete() throws IOException;
+
+    // the payload will not be completed, e.g. because the connection closed
+    void abort();
+}
@@ -0,0 +1,54 @@
+package cs555.dfs.transport;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// one daemon thread that expires request futures and delays retries. it never completes a future itself: whatever
+// depends on a future runs in the thread that completes it, and a failover that connects to the next server would hold
+// up every other timeout in the jvm, so completions are handed to a pool of daemon threads
+class RequestTimer {
+    private static final RequestTimer instance = new RequestTimer();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "request-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger numCompleters = new AtomicInteger();
+    private final ExecutorService completer = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "request-timer-completer-" + numCompleters.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static RequestTimer getInstance() {
+        return instance;
+    }
+
+    // fails the future with a TimeoutException unless it completes within timeoutMillis, 0 means no timeout
+    <T> CompletableFuture<T> timeout(CompletableFuture<T> future, long timeoutMillis, String description) {
+        if (timeoutMillis <= 0 || future.isDone())
+            return future;
+        ScheduledFuture<?> expiry = scheduler.schedule(() -> completer.execute(
+            () -> future.completeExceptionally(new TimeoutException(description + " timed out after " + timeoutMillis + " ms"))),
+            timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, throwable) -> expiry.cancel(false));
+        return future;
+    }
+
+    // completes after delayMillis, on one of the completer threads
+    CompletableFuture<Void> delay(long delayMillis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (delayMillis <= 0) {
+            future.complete(null);
+            return future;
+        }
+        scheduler.schedule(() -> completer.execute(() -> future.complete(null)), delayMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+}
@@ -0,0 +1,61 @@
+package cs555.dfs.transport;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+// how often and how patiently a pooled request is retried, only transport failures and timeouts are retried
+public class RetryPolicy {
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+    private final int maxAttempts;
+    private final long timeoutMillis;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    public RetryPolicy(int maxAttempts, long timeoutMillis, long initialBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+        this.maxAttempts = maxAttempts;
+        this.timeoutMillis = timeoutMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+    }
+
+    public static RetryPolicy getDefault() {
+        long backoff = TransportConfig.getRequestRetryBackoff();
+        return new RetryPolicy(TransportConfig.getRequestMaxAttempts(), TransportConfig.getRequestTimeout(), backoff, backoff * 16);
+    }
+
+    public RetryPolicy withTimeout(long timeoutMillis) {
+        return new RetryPolicy(maxAttempts, timeoutMillis, initialBackoffMillis, maxBackoffMillis);
+    }
+
+    public boolean shouldRetry(int attempt, Throwable throwable) {
+        return attempt < maxAttempts && (throwable instanceof IOException || throwable instanceof TimeoutException);
+    }
+
+    // doubles with every attempt up to the maximum
+    public long getBackoffMillis(int attempt) {
+        long backoff = initialBackoffMillis;
+        for (int i = 1; i < attempt && backoff < maxBackoffMillis; i++)
+            backoff *= 2;
+        return Math.min(backoff, maxBackoffMillis);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+            "maxAttempts=" + maxAttempts +
+            ", timeoutMillis=" + timeoutMillis +
+            ", initialBackoffMillis=" + initialBackoffMillis +
+            ", maxBackoffMillis=" + maxBackoffMillis +
+            '}';
+    }
+}
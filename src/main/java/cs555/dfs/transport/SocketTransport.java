@@ -0,0 +1,91 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.node.Node;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// real tcp sockets, served by a thread per connection or by the nio event loops
+class SocketTransport implements Transport {
+    private static final SocketTransport instance = new SocketTransport();
+
+    static SocketTransport getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Endpoint bind(int port, Node node) throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
+        return new SocketEndpoint(serverSocketChannel.socket(), node);
+    }
+
+    @Override
+    public TcpConnection connect(String host, int port, Node node) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        return newConnection(channel.socket(), node);
+    }
+
+    private static TcpConnection newConnection(Socket socket, Node node) throws IOException {
+        if (TransportConfig.isNio())
+            return new NioConnection(socket.getChannel(), node);
+        return new TcpConnection(socket, node);
+    }
+
+    private static class SocketEndpoint implements Endpoint {
+        private final ServerSocket serverSocket;
+        private final Node node;
+        private final String host;
+
+        private SocketEndpoint(ServerSocket serverSocket, Node node) {
+            this.serverSocket = serverSocket;
+            this.node = node;
+            host = lookupHost();
+        }
+
+        // the canonical name can take a dns round trip, so it is looked up once when the socket is bound
+        private static String lookupHost() {
+            try {
+                return InetAddress.getLocalHost().getCanonicalHostName();
+            }
+            catch (UnknownHostException e) {
+                e.printStackTrace();
+                return "";
+            }
+        }
+
+        @Override
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void acceptConnections() throws IOException {
+            while (!Thread.interrupted()) {
+                Socket socket = serverSocket.accept();
+                node.registerNewTcpConnection(newConnection(socket, node));
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                serverSocket.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
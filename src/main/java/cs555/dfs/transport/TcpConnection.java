@@ -1,25 +1,50 @@
 package cs555.dfs.transport;
 
 import cs555.dfs.node.Node;
+import cs555.dfs.util.Utils;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.MessageHeader;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TcpConnection {
     private final Socket socket;
-    private final Node node;
     private TcpReceiver tcpReceiver;
     private TcpSender tcpSender;
+    private Thread receiverThread;
+    private final Map<Integer, CompletableFuture<Message>> inFlightRequests = new ConcurrentHashMap<>(); // key = request id
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Object readPause = new Object();
+    private boolean readPaused; // guarded by readPause
 
     public TcpConnection(Socket socket, Node node) {
         this.socket = socket;
-        this.node = node;
+        tcpSender = new TcpSender(socket, this);
+        try {
+            tcpSender.sendHello();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
 
-        tcpReceiver = new TcpReceiver(socket, node);
-        Thread thread = new Thread(tcpReceiver);
-        thread.start();
+        tcpReceiver = new TcpReceiver(this, node);
+        receiverThread = new Thread(tcpReceiver);
+        receiverThread.start();
+    }
+
+    protected TcpConnection(Socket socket) {
+        this.socket = socket;
+    }
 
-        tcpSender = new TcpSender(socket);
+    public static TcpConnection connect(String host, int port, Node node) throws IOException {
+        return Transport.getInstance().connect(host, port, node);
     }
 
     public String getRemoteSocketAddress() {
@@ -42,10 +67,145 @@ public class TcpConnection {
         tcpSender.sendNoCatch(data);
     }
 
+    // sends the parts as one frame without copying them into a single array first
+    public void sendNoCatch(ByteBuffer... parts) throws IOException {
+        tcpSender.sendNoCatch(parts);
+    }
+
+    public void sendFileNoCatch(byte[] prefix, FileChannel fileChannel, long count) throws IOException {
+        tcpSender.sendFileNoCatch(prefix, fileChannel, count);
+    }
+
+    // sends the header message followed by count bytes of the file as a streamed frame, which the receiver hands to
+    // its node in segments instead of reading into one array
+    public void sendStreamNoCatch(byte[] header, FileChannel fileChannel, long count) throws IOException {
+        tcpSender.sendStreamNoCatch(header, fileChannel, count);
+    }
+
+    public void sendStreamNoCatch(byte[] header, ByteBuffer payload) throws IOException {
+        tcpSender.sendStreamNoCatch(header, payload);
+    }
+
+    public CompletableFuture<Message> request(Message request) {
+        return request(request, TransportConfig.getRequestTimeout());
+    }
+
+    // sends a request tagged with a fresh id, the future completes with the response that comes back on this connection.
+    // timing out or cancelling the future forgets the request, a late response is then dropped
+    public CompletableFuture<Message> request(Message request, long timeoutMillis) {
+        int requestId;
+        do {
+            requestId = nextRequestId.incrementAndGet();
+        } while (requestId == 0);
+        request.getMessageHeader().setRequestId(requestId);
+
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        inFlightRequests.put(requestId, future);
+        int finalRequestId = requestId;
+        future.whenComplete((response, throwable) -> inFlightRequests.remove(finalRequestId, future));
+        RequestTimer.getInstance().timeout(future, timeoutMillis, "request " + requestId + " to " + getRemoteSocketAddress());
+        sendAsync(request.getBytes()).whenComplete((result, throwable) -> {
+            if (throwable != null)
+                future.completeExceptionally(throwable);
+        });
+        return future;
+    }
+
+    // returns true when the message answered one of this connection's requests, including ones that timed out
+    boolean completeRequest(Message message) {
+        MessageHeader messageHeader = message.getMessageHeader();
+        if (!messageHeader.isResponse() || messageHeader.getRequestId() == 0)
+            return false;
+        CompletableFuture<Message> future = inFlightRequests.remove(messageHeader.getRequestId());
+        if (future == null)
+            Utils.debug("dropping late response to request " + messageHeader.getRequestId() + " from " + getRemoteSocketAddress());
+        else
+            future.complete(message);
+        return true;
+    }
+
+    public int getNumberOfInFlightRequests() {
+        return inFlightRequests.size();
+    }
+
+    protected void failInFlightRequests() {
+        IOException closedException = new IOException("connection closed");
+        for (Integer requestId : inFlightRequests.keySet()) {
+            CompletableFuture<Message> future = inFlightRequests.remove(requestId);
+            if (future != null)
+                future.completeExceptionally(closedException);
+        }
+    }
+
+    void onHello(int peerFlags) {
+        tcpSender.onHello(peerFlags);
+    }
+
+    // the dispatcher stops reading a connection while the lane it feeds is full. a connection with a reader thread of
+    // its own parks that thread before the next frame, the nio transport overrides these to drop read interest
+    void pauseReading() {
+        synchronized (readPause) {
+            readPaused = true;
+        }
+    }
+
+    void resumeReading() {
+        synchronized (readPause) {
+            readPaused = false;
+            readPause.notifyAll();
+        }
+    }
+
+    // called by the reader thread before each frame, returns once reading is resumed or the connection closed
+    void awaitReadable() throws InterruptedException {
+        synchronized (readPause) {
+            while (readPaused && isOpen())
+                readPause.wait(100);
+        }
+    }
+
+    public CompletableFuture<Void> sendAsync(byte[] data) {
+        return tcpSender.sendAsync(data);
+    }
+
+    // false while the outbound queue is above the high watermark
+    public boolean isWritable() {
+        return tcpSender.isWritable();
+    }
+
+    public long getQueuedBytes() {
+        return tcpSender.getQueuedBytes();
+    }
+
+    public void addWritabilityListener(WritabilityListener listener) {
+        tcpSender.addWritabilityListener(listener);
+    }
+
+    public void removeWritabilityListener(WritabilityListener listener) {
+        tcpSender.removeWritabilityListener(listener);
+    }
+
     public int getPort() {
         return socket.getLocalPort();
     }
 
+    public boolean isOpen() {
+        return socket.isConnected() && !socket.isClosed() && receiverThread.isAlive();
+    }
+
+    public void close() {
+        resumeReading();
+        if (tcpSender != null)
+            tcpSender.close();
+        failInFlightRequests();
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public TcpSender getTcpSender() {
         return tcpSender;
     }
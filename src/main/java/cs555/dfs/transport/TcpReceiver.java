@@ -1,23 +1,33 @@
 package cs555.dfs.transport;
 
 import cs555.dfs.node.Node;
+import cs555.dfs.util.Utils;
 import cs555.dfs.wireformats.Message;
-import cs555.dfs.wireformats.MessageFactory;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 public class TcpReceiver implements Runnable {
+    private TcpConnection tcpConnection;
     private Socket socket;
-    private DataInputStream dataInputStream;
+    private ReadableByteChannel channel;
     private Node node;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+    private final ByteBuffer streamPrefix = ByteBuffer.allocate(FrameCodec.STREAM_PREFIX_LENGTH);
+    private final int segmentSize = TransportConfig.getStreamSegmentSize();
+    private final BufferPool bufferPool = BufferPool.getInstance();
 
-    public TcpReceiver(Socket socket, Node node) {
-        this.socket = socket;
+    public TcpReceiver(TcpConnection tcpConnection, Node node) {
+        this.tcpConnection = tcpConnection;
+        this.socket = tcpConnection.getSocket();
         this.node = node;
         try {
-            dataInputStream = new DataInputStream(socket.getInputStream());
+            // read from the socket channel directly, the stream adaptor of a channel socket blocks writers while reading
+            channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -32,15 +42,83 @@ public class TcpReceiver implements Runnable {
     public void run() {
         while (socket != null) {
             try {
-                int dataLength = dataInputStream.readInt();
-                byte[] data = new byte[dataLength];
-                dataInputStream.readFully(data, 0, dataLength);
-                Message message = MessageFactory.getMessageFromData(data);
-                node.onMessage(message);
+                tcpConnection.awaitReadable();
+                lengthBuffer.clear();
+                readFully(lengthBuffer);
+                lengthBuffer.flip();
+                int lengthField = lengthBuffer.getInt();
+                if (lengthField == FrameCodec.STREAM) {
+                    readStream();
+                    continue;
+                }
+                Message message = readMessage(lengthField);
+                if (message != null)
+                    MessageDispatcher.getInstance().dispatch(tcpConnection, node, message);
             }
             catch (IOException e) {
                 break;
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (RuntimeException e) {
+                Utils.error("closing " + tcpConnection.getRemoteSocketAddress() + " after an unexpected failure: " + e);
+                e.printStackTrace();
+                break;
+            }
         }
+
+        tcpConnection.close();
+    }
+
+    // decoded messages copy what they keep, so the frame buffer goes straight back to the pool
+    private Message readMessage(int lengthField) throws IOException {
+        int frameLength = FrameCodec.frameLength(lengthField);
+        byte[] data = bufferPool.acquire(frameLength);
+        try {
+            readFully(ByteBuffer.wrap(data, 0, frameLength));
+            return FrameCodec.decode(tcpConnection, lengthField, data, frameLength);
+        }
+        finally {
+            bufferPool.release(data);
+        }
+    }
+
+    // the header message is decoded first, then the payload is read in fixed size segments into the node's sink,
+    // so it never has to fit into one array
+    private void readStream() throws IOException {
+        streamPrefix.clear();
+        readFully(streamPrefix);
+        streamPrefix.flip();
+        int headerLength = streamPrefix.getInt();
+        long payloadLength = streamPrefix.getLong();
+        if (headerLength < 0)
+            throw new IOException("bad stream header length: " + headerLength);
+
+        InboundStream inboundStream = new InboundStream(tcpConnection, node, readMessage(headerLength), payloadLength);
+        byte[] segment = bufferPool.acquire(segmentSize);
+        try {
+            while (!inboundStream.isComplete()) {
+                ByteBuffer buffer = ByteBuffer.wrap(segment, 0, (int) Math.min(segmentSize, inboundStream.getRemaining()));
+                readFully(buffer);
+                buffer.flip();
+                inboundStream.write(buffer);
+            }
+        }
+        catch (IOException e) {
+            inboundStream.abort();
+            throw e;
+        }
+        finally {
+            bufferPool.release(segment);
+        }
+        inboundStream.finish();
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new EOFException();
     }
 }
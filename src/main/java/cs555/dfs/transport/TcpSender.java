@@ -1,50 +1,321 @@
 package cs555.dfs.transport;
 
-import cs555.dfs.util.Utils;
-
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class TcpSender {
     private Socket socket;
-    private DataOutputStream dataOutputStream;
+    private WritableByteChannel channel;
+    private final OutboundBudget outboundBudget;
+    private volatile boolean compress; // set once the peer's hello shows it accepts compressed frames
+
+    // batched mode: frames are queued and a writer thread drains them with gathering writes
+    private final boolean batching;
+    private final int maxBatchBytes;
+    private final long maxLingerNanos;
+    private final Object writeLock = new Object();
+    private final Queue<Frame> queue = new ArrayDeque<>();
+    private int queuedBytes;
+    private IOException failure;
+    private boolean closed;
 
     public TcpSender(Socket socket) {
+        this(socket, null);
+    }
+
+    TcpSender(Socket socket, TcpConnection tcpConnection) {
         this.socket = socket;
         try {
-            dataOutputStream = new DataOutputStream(socket.getOutputStream());
+            // write to the socket channel directly so file transfers can use sendfile
+            channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
         }
         catch (IOException e) {
             e.printStackTrace();
         }
+        outboundBudget = new OutboundBudget(tcpConnection);
+
+        batching = TransportConfig.isSenderBatching();
+        maxBatchBytes = TransportConfig.getSenderMaxBatchBytes();
+        maxLingerNanos = TimeUnit.MICROSECONDS.toNanos(TransportConfig.getSenderMaxLingerMicros());
+        if (batching) {
+            Thread writerThread = new Thread(this::writeBatches, "tcp-sender-" + socket.getRemoteSocketAddress());
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
     }
 
-    public static TcpSender of(String remoteServerAddress) {
-        String[] splitServerAddress = Utils.splitServerAddress(remoteServerAddress);
+    public void send(byte[] data) {
         try {
-            Socket socket = new Socket(splitServerAddress[0], Integer.valueOf(splitServerAddress[1]));
-            return new TcpSender(socket);
+            sendNoCatch(data);
         }
         catch (IOException e) {
-            return null;
+            e.printStackTrace();
+        }
+    }
+
+    public void sendNoCatch(byte[] data) throws IOException {
+        sendNoCatch(ByteBuffer.wrap(data));
+    }
+
+    // blocks while the peer is saturated, then queues the frame. the parts form one frame and are written with a
+    // gathering write, so a large payload never has to be copied into a frame array
+    public void sendNoCatch(ByteBuffer... parts) throws IOException {
+        ByteBuffer[] buffers = FrameCodec.encode(parts, compress);
+        if (!batching) {
+            synchronized (writeLock) {
+                writeFully(buffers);
+            }
+            return;
         }
+
+        outboundBudget.awaitWritable();
+        enqueue(new Frame(buffers, null));
     }
 
-    public synchronized void send(byte[] data) {
+    // never blocks on a saturated peer, the future completes once the frame is written to the socket
+    public CompletableFuture<Void> sendAsync(byte[] data) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
         try {
-            sendNoCatch(data);
+            ByteBuffer[] buffers = FrameCodec.encode(data, compress);
+            if (batching) {
+                enqueue(new Frame(buffers, future));
+                return future;
+            }
+            synchronized (writeLock) {
+                writeFully(buffers);
+            }
+            future.complete(null);
         }
         catch (IOException e) {
-            e.printStackTrace();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public void sendFileNoCatch(byte[] prefix, FileChannel fileChannel, long count) throws IOException {
+        writeUnqueued(new ByteBuffer[]{lengthOf(prefix.length + count), ByteBuffer.wrap(prefix)}, fileChannel, count);
+    }
+
+    public void sendStreamNoCatch(byte[] header, FileChannel fileChannel, long count) throws IOException {
+        writeUnqueued(FrameCodec.streamHeader(header, count), fileChannel, count);
+    }
+
+    public void sendStreamNoCatch(byte[] header, ByteBuffer payload) throws IOException {
+        ByteBuffer[] streamHeader = FrameCodec.streamHeader(header, payload.remaining());
+        writeUnqueued(new ByteBuffer[]{streamHeader[0], streamHeader[1], payload}, null, 0);
+    }
+
+    // writes the buffers followed by count bytes of the file straight to the socket, bypassing the batch queue
+    private void writeUnqueued(ByteBuffer[] buffers, FileChannel fileChannel, long count) throws IOException {
+        if (batching)
+            outboundBudget.awaitWritable();
+
+        synchronized (writeLock) {
+            // frames queued ahead of the file must reach the socket first
+            if (batching) {
+                List<Frame> pending = drain(Integer.MAX_VALUE);
+                if (!pending.isEmpty())
+                    writeBatch(pending);
+            }
+            writeFully(buffers);
+
+            long position = 0;
+            while (position < count) {
+                long numTransferred = fileChannel.transferTo(position, count - position, channel);
+                if (numTransferred <= 0)
+                    throw new IOException("file ended after " + position + " of " + count + " bytes");
+                position += numTransferred;
+            }
+        }
+    }
+
+    void sendHello() throws IOException {
+        synchronized (writeLock) {
+            writeFully(FrameCodec.helloFrame());
         }
     }
 
-    public synchronized void sendNoCatch(byte[] data) throws IOException {
-        int dataLength = data.length;
-        dataOutputStream.writeInt(dataLength);
-        dataOutputStream.write(data, 0, dataLength);
-        dataOutputStream.flush();
+    void onHello(int peerFlags) {
+        compress = FrameCodec.shouldCompress(peerFlags);
+    }
+
+    public boolean isWritable() {
+        return outboundBudget.isWritable();
+    }
+
+    public long getQueuedBytes() {
+        return outboundBudget.getQueuedBytes();
+    }
+
+    public void addWritabilityListener(WritabilityListener listener) {
+        outboundBudget.addListener(listener);
+    }
+
+    public void removeWritabilityListener(WritabilityListener listener) {
+        outboundBudget.removeListener(listener);
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            failQueued(new IOException("sender closed"));
+            notifyAll();
+        }
+        outboundBudget.close();
+    }
+
+    private void enqueue(Frame frame) throws IOException {
+        outboundBudget.tryAdd(frame.size);
+        synchronized (this) {
+            if (failure != null || closed) {
+                outboundBudget.remove(frame.size);
+                checkWritable();
+            }
+            queue.add(frame);
+            queuedBytes += frame.size;
+            notifyAll();
+        }
+    }
+
+    private void writeBatches() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty() && !closed)
+                        await(0);
+
+                    // linger briefly so small frames sent close together share one write
+                    long deadline = System.nanoTime() + maxLingerNanos;
+                    long remaining;
+                    while (queuedBytes < maxBatchBytes && !closed && (remaining = deadline - System.nanoTime()) > 0)
+                        await(remaining);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                if (closed)
+                    return;
+            }
+
+            synchronized (writeLock) {
+                List<Frame> batch = drain(maxBatchBytes);
+                if (batch.isEmpty())
+                    continue;
+                try {
+                    writeBatch(batch);
+                }
+                catch (IOException e) {
+                    synchronized (this) {
+                        failure = e;
+                        failQueued(e);
+                        notifyAll();
+                    }
+                    outboundBudget.close();
+                    try {
+                        socket.close();
+                    }
+                    catch (IOException ignored) {
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    // takes whole frames off the queue, always at least one, until maxBytes is reached
+    private synchronized List<Frame> drain(int maxBytes) {
+        List<Frame> batch = new ArrayList<>();
+        int numBytes = 0;
+        while (!queue.isEmpty() && (batch.isEmpty() || numBytes < maxBytes)) {
+            Frame frame = queue.poll();
+            batch.add(frame);
+            numBytes += frame.size;
+        }
+        queuedBytes -= numBytes;
+        return batch;
+    }
+
+    private void writeBatch(List<Frame> batch) throws IOException {
+        List<ByteBuffer> bufferList = new ArrayList<>();
+        int numBytes = 0;
+        for (Frame frame : batch) {
+            Collections.addAll(bufferList, frame.buffers);
+            numBytes += frame.size;
+        }
+        ByteBuffer[] buffers = bufferList.toArray(new ByteBuffer[0]);
+
+        try {
+            if (channel instanceof GatheringByteChannel) {
+                GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+                int offset = 0;
+                while (offset < buffers.length) {
+                    gatheringChannel.write(buffers, offset, buffers.length - offset);
+                    while (offset < buffers.length && !buffers[offset].hasRemaining())
+                        offset++;
+                }
+            }
+            else {
+                writeFully(buffers);
+            }
+        }
+        catch (IOException e) {
+            for (Frame frame : batch)
+                frame.fail(e);
+            throw e;
+        }
+
+        outboundBudget.remove(numBytes);
+        for (Frame frame : batch)
+            frame.complete();
+    }
+
+    private void failQueued(IOException e) {
+        for (Frame frame : queue)
+            frame.fail(e);
+        queue.clear();
+        queuedBytes = 0;
+    }
+
+    private void checkWritable() throws IOException {
+        if (failure != null)
+            throw new IOException("sender failed: " + failure.getMessage(), failure);
+        if (closed)
+            throw new IOException("sender closed");
+    }
+
+    private void await(long nanos) throws InterruptedException {
+        if (nanos > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+        else
+            wait();
+    }
+
+    static ByteBuffer lengthOf(long dataLength) throws IOException {
+        if (dataLength > Integer.MAX_VALUE)
+            throw new IOException("frame too large: " + dataLength);
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        lengthBuffer.putInt((int) dataLength);
+        lengthBuffer.flip();
+        return lengthBuffer;
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        for (ByteBuffer buffer : buffers)
+            while (buffer.hasRemaining())
+                channel.write(buffer);
     }
 
     public Socket getSocket() {
@@ -54,4 +325,29 @@ public class TcpSender {
     public String getLocalSocketAddress() {
         return socket.getLocalSocketAddress().toString();
     }
+
+    private static class Frame {
+        private final ByteBuffer[] buffers;
+        private final int size;
+        private final CompletableFuture<Void> future;
+
+        private Frame(ByteBuffer[] buffers, CompletableFuture<Void> future) {
+            this.buffers = buffers;
+            int size = 0;
+            for (ByteBuffer buffer : buffers)
+                size += buffer.remaining();
+            this.size = size;
+            this.future = future;
+        }
+
+        private void complete() {
+            if (future != null)
+                future.complete(null);
+        }
+
+        private void fail(IOException e) {
+            if (future != null)
+                future.completeExceptionally(e);
+        }
+    }
 }
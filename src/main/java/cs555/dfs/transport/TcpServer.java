@@ -4,19 +4,18 @@ import cs555.dfs.node.Node;
 import cs555.dfs.util.Utils;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
 
 public class TcpServer implements Runnable {
-    private ServerSocket serverSocket;
-    private Node node;
+    private Transport.Endpoint endpoint;
+    private String serverAddress = "";
+    private volatile boolean closed;
 
     public TcpServer(int port, Node node) {
-        this.node = node;
         try {
-            serverSocket = new ServerSocket(port);
-            Utils.info(String.format("%s TCP server started on %s:%d", node.getNodeTypeAsString(), getIp(), getPort()));
+            endpoint = Transport.getInstance().bind(port, node);
+            serverAddress = String.format("%s:%d", getIp(), getPort());
+            Utils.info(String.format("%s TCP server started on %s:%d (%s transport)", node.getNodeTypeAsString(), getIp(), getPort(),
+                TransportConfig.getMode().name().toLowerCase()));
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -24,29 +23,31 @@ public class TcpServer implements Runnable {
     }
 
     public String getIp() {
-        try {
-            return serverSocket.getInetAddress().getLocalHost().getCanonicalHostName();
-        }
-        catch (UnknownHostException e) {
-            e.printStackTrace();
-            return "";
-        }
+        return endpoint.getHost();
     }
 
     public int getPort() {
-        return serverSocket.getLocalPort();
+        return endpoint.getPort();
+    }
+
+    // every outgoing message names its sender with this, so it is built once rather than per message
+    public String getServerAddress() {
+        return serverAddress;
     }
 
     @Override
     public void run() {
         try {
-            while (!Thread.interrupted()) {
-                Socket socket = serverSocket.accept();
-                node.registerNewTcpConnection(new TcpConnection(socket, node));
-            }
+            endpoint.acceptConnections();
         }
         catch (IOException e) {
-            e.printStackTrace();
+            if (!closed)
+                e.printStackTrace();
         }
     }
+
+    public void close() {
+        closed = true;
+        endpoint.close();
+    }
 }
@@ -0,0 +1,28 @@
+package cs555.dfs.transport;
+
+import cs555.dfs.node.Node;
+
+import java.io.IOException;
+
+// how nodes listen for and open connections, picked by the cs555.dfs.transport property
+public interface Transport {
+    static Transport getInstance() {
+        return TransportConfig.getMode() == TransportConfig.Mode.MEMORY ? MemoryTransport.getInstance() : SocketTransport.getInstance();
+    }
+
+    // port 0 picks a free port
+    Endpoint bind(int port, Node node) throws IOException;
+
+    TcpConnection connect(String host, int port, Node node) throws IOException;
+
+    interface Endpoint {
+        String getHost();
+
+        int getPort();
+
+        // registers every accepted connection with the node until the endpoint is closed
+        void acceptConnections() throws IOException;
+
+        void close();
+    }
+}
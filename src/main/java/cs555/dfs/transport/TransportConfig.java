@@ -0,0 +1,161 @@
+package cs555.dfs.transport;
+
+import java.util.zip.Deflater;
+
+public class TransportConfig {
+    private static final String MODE_PROPERTY = "cs555.dfs.transport";
+    private static final String NIO_THREADS_PROPERTY = "cs555.dfs.nio.threads";
+    private static final String CONTROL_DISPATCH_THREADS_PROPERTY = "cs555.dfs.dispatch.controlThreads";
+    private static final String BULK_DISPATCH_THREADS_PROPERTY = "cs555.dfs.dispatch.bulkThreads";
+    private static final String BULK_DISPATCH_QUEUE_CAPACITY_PROPERTY = "cs555.dfs.dispatch.bulkQueueCapacity";
+    private static final String POOL_MAX_PER_PEER_PROPERTY = "cs555.dfs.pool.maxPerPeer";
+    private static final String POOL_IDLE_TIMEOUT_PROPERTY = "cs555.dfs.pool.idleTimeout";
+    private static final String SENDER_BATCHING_PROPERTY = "cs555.dfs.sender.batching";
+    private static final String SENDER_MAX_BATCH_BYTES_PROPERTY = "cs555.dfs.sender.maxBatchBytes";
+    private static final String SENDER_MAX_LINGER_MICROS_PROPERTY = "cs555.dfs.sender.maxLingerMicros";
+    private static final String BUFFERS_PER_SIZE_CLASS_PROPERTY = "cs555.dfs.bufferPool.buffersPerSizeClass";
+    private static final String OUTBOUND_LOW_WATERMARK_PROPERTY = "cs555.dfs.outbound.lowWatermark";
+    private static final String OUTBOUND_HIGH_WATERMARK_PROPERTY = "cs555.dfs.outbound.highWatermark";
+    private static final String OUTBOUND_MAX_QUEUED_BYTES_PROPERTY = "cs555.dfs.outbound.maxQueuedBytes";
+    private static final String COMPRESSION_PROPERTY = "cs555.dfs.compression";
+    private static final String COMPRESSION_THRESHOLD_PROPERTY = "cs555.dfs.compression.threshold";
+    private static final String COMPRESSION_LEVEL_PROPERTY = "cs555.dfs.compression.level";
+    private static final String MEMORY_LATENCY_MICROS_PROPERTY = "cs555.dfs.memory.latencyMicros";
+    private static final String MEMORY_BANDWIDTH_PROPERTY = "cs555.dfs.memory.bandwidth";
+    private static final String MEMORY_DROP_RATE_PROPERTY = "cs555.dfs.memory.dropRate";
+    private static final String STREAM_THRESHOLD_PROPERTY = "cs555.dfs.stream.threshold";
+    private static final String STREAM_SEGMENT_SIZE_PROPERTY = "cs555.dfs.stream.segmentSize";
+    private static final String REQUEST_TIMEOUT_PROPERTY = "cs555.dfs.request.timeout";
+    private static final String REQUEST_MAX_ATTEMPTS_PROPERTY = "cs555.dfs.request.maxAttempts";
+    private static final String REQUEST_RETRY_BACKOFF_PROPERTY = "cs555.dfs.request.retryBackoff";
+    private static final int DEFAULT_CONTROL_DISPATCH_THREADS = 2;
+    private static final int DEFAULT_BULK_DISPATCH_QUEUE_CAPACITY = 64;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_PEER = 2;
+    private static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000; // 60 seconds
+    private static final int DEFAULT_SENDER_MAX_BATCH_BYTES = 64 * 1024;
+    private static final long DEFAULT_SENDER_MAX_LINGER_MICROS = 0; // only coalesce frames that are already queued
+    private static final int DEFAULT_BUFFERS_PER_SIZE_CLASS = 32;
+    private static final long DEFAULT_OUTBOUND_LOW_WATERMARK = 256 * 1024;
+    private static final long DEFAULT_OUTBOUND_HIGH_WATERMARK = 1024 * 1024;
+    private static final long DEFAULT_OUTBOUND_MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    private static final long DEFAULT_STREAM_THRESHOLD = 4 * 1024 * 1024;
+    private static final int DEFAULT_STREAM_SEGMENT_SIZE = 64 * 1024;
+    private static final long DEFAULT_REQUEST_TIMEOUT = 30 * 1000; // 30 seconds
+    private static final int DEFAULT_REQUEST_MAX_ATTEMPTS = 3;
+    private static final long DEFAULT_REQUEST_RETRY_BACKOFF = 200; // milliseconds
+
+    public enum Mode {
+        BLOCKING, NIO, MEMORY
+    }
+
+    public static Mode getMode() {
+        String mode = System.getProperty(MODE_PROPERTY, Mode.BLOCKING.name());
+        return Mode.valueOf(mode.toUpperCase());
+    }
+
+    public static boolean isNio() {
+        return getMode() == Mode.NIO;
+    }
+
+    public static int getNioThreads() {
+        int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return Integer.getInteger(NIO_THREADS_PROPERTY, defaultThreads);
+    }
+
+    public static int getControlDispatchThreads() {
+        return Integer.getInteger(CONTROL_DISPATCH_THREADS_PROPERTY, DEFAULT_CONTROL_DISPATCH_THREADS);
+    }
+
+    public static int getBulkDispatchThreads() {
+        return Integer.getInteger(BULK_DISPATCH_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static int getBulkDispatchQueueCapacity() {
+        return Integer.getInteger(BULK_DISPATCH_QUEUE_CAPACITY_PROPERTY, DEFAULT_BULK_DISPATCH_QUEUE_CAPACITY);
+    }
+
+    public static int getMaxConnectionsPerPeer() {
+        return Integer.getInteger(POOL_MAX_PER_PEER_PROPERTY, DEFAULT_MAX_CONNECTIONS_PER_PEER);
+    }
+
+    public static long getIdleTimeout() {
+        return Long.getLong(POOL_IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public static boolean isSenderBatching() {
+        return Boolean.getBoolean(SENDER_BATCHING_PROPERTY);
+    }
+
+    public static int getSenderMaxBatchBytes() {
+        return Integer.getInteger(SENDER_MAX_BATCH_BYTES_PROPERTY, DEFAULT_SENDER_MAX_BATCH_BYTES);
+    }
+
+    public static long getSenderMaxLingerMicros() {
+        return Long.getLong(SENDER_MAX_LINGER_MICROS_PROPERTY, DEFAULT_SENDER_MAX_LINGER_MICROS);
+    }
+
+    public static int getBuffersPerSizeClass() {
+        return Integer.getInteger(BUFFERS_PER_SIZE_CLASS_PROPERTY, DEFAULT_BUFFERS_PER_SIZE_CLASS);
+    }
+
+    public static long getOutboundLowWatermark() {
+        return Long.getLong(OUTBOUND_LOW_WATERMARK_PROPERTY, DEFAULT_OUTBOUND_LOW_WATERMARK);
+    }
+
+    public static long getOutboundHighWatermark() {
+        return Long.getLong(OUTBOUND_HIGH_WATERMARK_PROPERTY, DEFAULT_OUTBOUND_HIGH_WATERMARK);
+    }
+
+    public static long getOutboundMaxQueuedBytes() {
+        return Long.getLong(OUTBOUND_MAX_QUEUED_BYTES_PROPERTY, DEFAULT_OUTBOUND_MAX_QUEUED_BYTES);
+    }
+
+    public static boolean isCompressionEnabled() {
+        return Boolean.getBoolean(COMPRESSION_PROPERTY);
+    }
+
+    public static int getCompressionThreshold() {
+        return Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    public static int getCompressionLevel() {
+        return Integer.getInteger(COMPRESSION_LEVEL_PROPERTY, DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    public static long getMemoryLatencyMicros() {
+        return Long.getLong(MEMORY_LATENCY_MICROS_PROPERTY, 0);
+    }
+
+    // bytes per second on every in-memory link, 0 means unlimited
+    public static long getMemoryBandwidth() {
+        return Long.getLong(MEMORY_BANDWIDTH_PROPERTY, 0);
+    }
+
+    // fraction of in-memory frames that are silently lost
+    public static double getMemoryDropRate() {
+        return Double.parseDouble(System.getProperty(MEMORY_DROP_RATE_PROPERTY, "0"));
+    }
+
+    // payloads of at least this many bytes are sent as streamed frames
+    public static long getStreamThreshold() {
+        return Long.getLong(STREAM_THRESHOLD_PROPERTY, DEFAULT_STREAM_THRESHOLD);
+    }
+
+    public static int getStreamSegmentSize() {
+        return Integer.getInteger(STREAM_SEGMENT_SIZE_PROPERTY, DEFAULT_STREAM_SEGMENT_SIZE);
+    }
+
+    public static long getRequestTimeout() {
+        return Long.getLong(REQUEST_TIMEOUT_PROPERTY, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    public static int getRequestMaxAttempts() {
+        return Integer.getInteger(REQUEST_MAX_ATTEMPTS_PROPERTY, DEFAULT_REQUEST_MAX_ATTEMPTS);
+    }
+
+    public static long getRequestRetryBackoff() {
+        return Long.getLong(REQUEST_RETRY_BACKOFF_PROPERTY, DEFAULT_REQUEST_RETRY_BACKOFF);
+    }
+}
@@ -0,0 +1,6 @@
+package cs555.dfs.transport;
+
+public interface WritabilityListener {
+    // called when the outbound queue crosses the high watermark (false) or drains below the low watermark (true)
+    void onWritabilityChanged(TcpConnection tcpConnection, boolean writable);
+}
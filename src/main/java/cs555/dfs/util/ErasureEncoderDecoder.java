@@ -1,6 +1,5 @@
 package cs555.dfs.util;
 
-import cs555.dfs.wireformats.WireformatUtils;
 import erasure.ReedSolomon;
 
 import java.io.*;
@@ -124,7 +123,7 @@ public class ErasureEncoderDecoder {
             ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
             DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
 
-            int dataLength = WireformatUtils.deserializeInt(dataInputStream);
+            int dataLength = dataInputStream.readInt();
             byte[] data = new byte[dataLength];
             dataInputStream.readFully(data);
 
@@ -3,9 +3,12 @@ package cs555.dfs.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -13,6 +16,7 @@ import java.util.Random;
 public class FileChunkifier {
     private static final int CHUNK_SIZE = 64 * 1024; // 64 KB
     private static final int SLICE_SIZE = 8 * 1024; // 8 KB
+    private static final ThreadLocal<ByteBuffer> SLICE_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(SLICE_SIZE));
 
     public static List<ChunkData> chunkifyFileToDataChunks(Path path) {
         List<ChunkData> dataChunks = new ArrayList<>();
@@ -126,6 +130,56 @@ public class FileChunkifier {
         return checksums;
     }
 
+    public static List<String> createSliceChecksums(Path path) {
+        List<String> checksums = new ArrayList<>();
+        ByteBuffer slice = SLICE_BUFFER.get();
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                slice.clear();
+                while (slice.hasRemaining() && !endOfFile)
+                    endOfFile = fileChannel.read(slice) < 0;
+                slice.flip();
+                if (slice.hasRemaining())
+                    checksums.add(Utils.createSha1FromBuffer(slice));
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return checksums;
+    }
+
+    // the slice checksums of data that arrives in pieces of any size, the same as createSliceChecksums of the whole
+    public static class SliceChecksummer {
+        private final ByteBuffer slice = ByteBuffer.allocate(SLICE_SIZE);
+        private final List<String> checksums = new ArrayList<>();
+
+        public void update(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                int numBytes = Math.min(data.remaining(), slice.remaining());
+                ByteBuffer piece = data.duplicate();
+                piece.limit(piece.position() + numBytes);
+                slice.put(piece);
+                data.position(data.position() + numBytes);
+                if (!slice.hasRemaining())
+                    checksumSlice();
+            }
+        }
+
+        public List<String> finish() {
+            if (slice.position() > 0)
+                checksumSlice();
+            return checksums;
+        }
+
+        private void checksumSlice() {
+            slice.flip();
+            checksums.add(Utils.createSha1FromBuffer(slice));
+            slice.clear();
+        }
+    }
+
     public static List<byte[]> sliceData(byte[] data) {
         List<byte[]> slices = new ArrayList<>();
 
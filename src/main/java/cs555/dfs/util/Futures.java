@@ -0,0 +1,42 @@
+package cs555.dfs.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class Futures {
+    // runs action for every item with at most window of them outstanding, item i starts once item i - window is done.
+    // the results keep the order of the items, the first failure fails the rest instead of starting them
+    public static <T, R> CompletableFuture<List<R>> windowed(List<T> items, int window, Function<T, CompletableFuture<R>> action) {
+        List<CompletableFuture<R>> futures = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            T item = items.get(i);
+            if (i < window)
+                futures.add(action.apply(item));
+            else
+                futures.add(futures.get(i - window).thenCompose(previous -> action.apply(item)));
+        }
+        return allOf(futures);
+    }
+
+    public static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+            .thenApply(v -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    public static <T> CompletableFuture<T> failed(Throwable throwable) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    public static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null)
+            throwable = throwable.getCause();
+        return throwable;
+    }
+}
@@ -4,6 +4,7 @@ import cs555.dfs.transport.TcpServer;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -47,6 +48,17 @@ public class Utils {
         return new Random().nextInt(10) + 1;
     }
 
+    // for the body of a timer task: an exception escaping a TimerTask cancels its Timer and every task on it for good
+    public static void runLogged(String taskName, Runnable task) {
+        try {
+            task.run();
+        }
+        catch (RuntimeException e) {
+            error(taskName + " failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
     public static void sleep(long millis) {
         try {
             Thread.sleep(millis);
@@ -69,7 +81,7 @@ public class Utils {
     public static String getServerAddress(TcpServer tcpServer) {
         if (tcpServer == null)
             return "";
-        return String.format("%s:%d", tcpServer.getIp(), tcpServer.getPort());
+        return tcpServer.getServerAddress();
     }
 
     public static String[] splitServerAddress(String serverAddress) {
@@ -92,6 +104,20 @@ public class Utils {
         return hashInt.toString(16);
     }
 
+    public static String createSha1FromBuffer(ByteBuffer data) {
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance("SHA1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return "";
+        }
+        digest.update(data);
+        BigInteger hashInt = new BigInteger(1, digest.digest());
+        return hashInt.toString(16);
+    }
+
     public static String padHashCodeWithZeros(String hashCode) {
         return padStringWithZeros(hashCode, HASH_CODE_BYTE_SIZE);
     }
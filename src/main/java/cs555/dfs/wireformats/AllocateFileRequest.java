@@ -0,0 +1,102 @@
+package cs555.dfs.wireformats;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// asks the controller to place a window of consecutive chunks of a file, or the shards of each of them, in one round
+// trip: [name][boolean erasure][varint first sequence][varint chunks] and a varint size per chunk
+public class AllocateFileRequest implements Message {
+    private MessageHeader messageHeader;
+    private String fileName;
+    private boolean erasure;
+    private int firstSequence;
+    private int[] sizes;
+
+    public AllocateFileRequest(String serverAddress, String sourceAddress, String fileName, boolean erasure, int firstSequence, int[] sizes) {
+        this.messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAddress);
+        this.fileName = fileName;
+        this.erasure = erasure;
+        this.firstSequence = firstSequence;
+        this.sizes = sizes;
+    }
+
+    @Override
+    public int getProtocol() {
+        return Protocol.ALLOCATE_FILE_REQUEST;
+    }
+
+    @Override
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
+
+    @Override
+    public int getSerializedSize() {
+        int size = messageHeader.getSerializedSize() + WireformatUtils.sizeOfString(fileName) + 1
+            + WireformatUtils.sizeOfVarint(firstSequence) + WireformatUtils.sizeOfVarint(sizes.length);
+        for (int chunkSize : sizes)
+            size += WireformatUtils.sizeOfVarint(chunkSize);
+        return size;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        WireformatUtils.serializeString(buffer, fileName);
+        WireformatUtils.serializeBoolean(buffer, erasure);
+        WireformatUtils.serializeVarint(buffer, firstSequence);
+        WireformatUtils.serializeVarint(buffer, sizes.length);
+        for (int chunkSize : sizes)
+            WireformatUtils.serializeVarint(buffer, chunkSize);
+    }
+
+    public AllocateFileRequest(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        fileName = WireformatUtils.deserializeString(buffer);
+        erasure = WireformatUtils.deserializeBoolean(buffer);
+        firstSequence = WireformatUtils.deserializeVarint(buffer);
+        int numChunks = WireformatUtils.deserializeVarint(buffer);
+        // a size takes at least a byte, which bounds the array a corrupt count can ask for
+        if (numChunks > buffer.remaining())
+            throw new BufferUnderflowException();
+        sizes = new int[numChunks];
+        for (int i = 0; i < numChunks; i++)
+            sizes[i] = WireformatUtils.deserializeVarint(buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "AllocateFileRequest{" +
+            "messageHeader=" + messageHeader +
+            ", fileName='" + fileName + '\'' +
+            ", erasure=" + erasure +
+            ", firstSequence=" + firstSequence +
+            ", sizes=" + (sizes.length > 8 ? sizes.length + " chunks" : Arrays.toString(sizes)) +
+            '}';
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isErasure() {
+        return erasure;
+    }
+
+    public int getFirstSequence() {
+        return firstSequence;
+    }
+
+    public int getNumberOfChunks() {
+        return sizes.length;
+    }
+
+    public int getSize(int index) {
+        return sizes[index];
+    }
+
+    public String getSourceAddress() {
+        return messageHeader.getSourceAddress();
+    }
+}
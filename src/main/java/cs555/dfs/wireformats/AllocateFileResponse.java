@@ -0,0 +1,116 @@
+package cs555.dfs.wireformats;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// the placement table for an AllocateFileRequest: [name][boolean erasure][varint first sequence][varint width]
+// [varint chunks] then a row of width varint node ids per chunk. a row holds the replica pipeline of a chunk, head
+// first, or the server of each fragment of its stripe. a chunk the controller could not place has a row of zeros
+public class AllocateFileResponse implements Message {
+    private MessageHeader messageHeader;
+    private String fileName;
+    private boolean erasure;
+    private int firstSequence;
+    private int width;
+    private int[] serverIds;
+
+    public AllocateFileResponse(String serverAddress, String sourceAddress, String fileName, boolean erasure, int firstSequence, int width, int[] serverIds) {
+        this.messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAddress);
+        this.fileName = fileName;
+        this.erasure = erasure;
+        this.firstSequence = firstSequence;
+        this.width = width;
+        this.serverIds = serverIds;
+    }
+
+    @Override
+    public int getProtocol() {
+        return Protocol.ALLOCATE_FILE_RESPONSE;
+    }
+
+    @Override
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
+
+    @Override
+    public int getSerializedSize() {
+        int size = messageHeader.getSerializedSize() + WireformatUtils.sizeOfString(fileName) + 1
+            + WireformatUtils.sizeOfVarint(firstSequence) + WireformatUtils.sizeOfVarint(width)
+            + WireformatUtils.sizeOfVarint(getNumberOfChunks());
+        for (int serverId : serverIds)
+            size += WireformatUtils.sizeOfVarint(serverId);
+        return size;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        WireformatUtils.serializeString(buffer, fileName);
+        WireformatUtils.serializeBoolean(buffer, erasure);
+        WireformatUtils.serializeVarint(buffer, firstSequence);
+        WireformatUtils.serializeVarint(buffer, width);
+        WireformatUtils.serializeVarint(buffer, getNumberOfChunks());
+        for (int serverId : serverIds)
+            WireformatUtils.serializeVarint(buffer, serverId);
+    }
+
+    public AllocateFileResponse(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        fileName = WireformatUtils.deserializeString(buffer);
+        erasure = WireformatUtils.deserializeBoolean(buffer);
+        firstSequence = WireformatUtils.deserializeVarint(buffer);
+        width = WireformatUtils.deserializeVarint(buffer);
+        long numIds = (long) width * WireformatUtils.deserializeVarint(buffer);
+        // an id takes at least a byte, which bounds the table a corrupt count can ask for
+        if (numIds > buffer.remaining())
+            throw new BufferUnderflowException();
+        serverIds = new int[(int) numIds];
+        for (int i = 0; i < serverIds.length; i++)
+            serverIds[i] = WireformatUtils.deserializeVarint(buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "AllocateFileResponse{" +
+            "messageHeader=" + messageHeader +
+            ", fileName='" + fileName + '\'' +
+            ", erasure=" + erasure +
+            ", firstSequence=" + firstSequence +
+            ", width=" + width +
+            ", chunks=" + getNumberOfChunks() +
+            '}';
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isErasure() {
+        return erasure;
+    }
+
+    public int getFirstSequence() {
+        return firstSequence;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getNumberOfChunks() {
+        return width == 0 ? 0 : serverIds.length / width;
+    }
+
+    // the id in the controller's node directory at slot of the row for chunk index, counted from the first sequence
+    public int getServerId(int index, int slot) {
+        return serverIds[index * width + slot];
+    }
+
+    public boolean isPlaced(int index) {
+        for (int slot = 0; slot < width; slot++)
+            if (getServerId(index, slot) == 0)
+                return false;
+        return true;
+    }
+}
@@ -1,6 +1,6 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 public class Chunk {
@@ -16,57 +16,14 @@ public class Chunk {
         this.size = size;
     }
 
-    public Chunk(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
-
-            fileName = WireformatUtils.deserializeString(dataInputStream);
-            sequence = WireformatUtils.deserializeInt(dataInputStream);
-            version = WireformatUtils.deserializeInt(dataInputStream);
-            size = WireformatUtils.deserializeInt(dataInputStream);
-
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public static Chunk deserialize(DataInputStream dataInputStream) {
-        String fileName = WireformatUtils.deserializeString(dataInputStream);
-        int sequence = WireformatUtils.deserializeInt(dataInputStream);
-        int version = WireformatUtils.deserializeInt(dataInputStream);
-        int size = WireformatUtils.deserializeInt(dataInputStream);
+    public static Chunk deserialize(ByteBuffer buffer) {
+        String fileName = WireformatUtils.deserializeString(buffer);
+        int sequence = buffer.getInt();
+        int version = buffer.getInt();
+        int size = buffer.getInt();
         return new Chunk(fileName, sequence, version, size);
     }
 
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            WireformatUtils.serializeString(dataOutputStream, fileName);
-            WireformatUtils.serializeInt(dataOutputStream, sequence);
-            WireformatUtils.serializeInt(dataOutputStream, version);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
-    }
-
-
     @Override
     public String toString() {
         return "Chunk{" +
@@ -103,11 +60,15 @@ public class Chunk {
         return version;
     }
 
-    public void serialize(DataOutputStream dataOutputStream) {
-        WireformatUtils.serializeString(dataOutputStream, fileName);
-        WireformatUtils.serializeInt(dataOutputStream, sequence);
-        WireformatUtils.serializeInt(dataOutputStream, version);
-        WireformatUtils.serializeInt(dataOutputStream, size);
+    public int getSerializedSize() {
+        return WireformatUtils.sizeOfString(fileName) + 3 * Integer.BYTES;
+    }
+
+    public void serialize(ByteBuffer buffer) {
+        WireformatUtils.serializeString(buffer, fileName);
+        buffer.putInt(sequence);
+        buffer.putInt(version);
+        buffer.putInt(size);
     }
 
     public int getSize() {
@@ -1,34 +1,47 @@
 package cs555.dfs.wireformats;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Objects;
 
+// every replica of a chunk: [chunk][int replicas][int server id...], the client picks which one to read from
 public class ChunkLocation {
     private final Chunk chunk;
-    private final String serverAddress;
+    private final int[] serverIds;
 
-    public ChunkLocation(Chunk chunk, String serverAddress) {
+    public ChunkLocation(Chunk chunk, int[] serverIds) {
         this.chunk = chunk;
-        this.serverAddress = serverAddress;
+        this.serverIds = serverIds;
     }
 
-    public static ChunkLocation deserialize(DataInputStream dataInputStream) {
-        Chunk chunk = Chunk.deserialize(dataInputStream);
-        String server = WireformatUtils.deserializeString(dataInputStream);
-        return new ChunkLocation(chunk, server);
+    public static ChunkLocation deserialize(ByteBuffer buffer) {
+        Chunk chunk = Chunk.deserialize(buffer);
+        int numReplicas = buffer.getInt();
+        if (numReplicas < 0 || numReplicas > buffer.remaining() / Integer.BYTES)
+            throw new BufferUnderflowException();
+        int[] serverIds = new int[numReplicas];
+        for (int i = 0; i < numReplicas; i++)
+            serverIds[i] = buffer.getInt();
+        return new ChunkLocation(chunk, serverIds);
     }
 
-    public void serialize(DataOutputStream dataOutputStream) {
-        chunk.serialize(dataOutputStream);
-        WireformatUtils.serializeString(dataOutputStream, serverAddress);
+    public int getSerializedSize() {
+        return chunk.getSerializedSize() + Integer.BYTES * (1 + serverIds.length);
+    }
+
+    public void serialize(ByteBuffer buffer) {
+        chunk.serialize(buffer);
+        buffer.putInt(serverIds.length);
+        for (int serverId : serverIds)
+            buffer.putInt(serverId);
     }
 
     @Override
     public String toString() {
         return "ChunkLocation{" +
             "chunk=" + chunk +
-            ", serverAddress='" + serverAddress + '\'' +
+            ", serverIds=" + Arrays.toString(serverIds) +
             '}';
     }
 
@@ -53,7 +66,8 @@ public class ChunkLocation {
         return chunk.getSequence();
     }
 
-    public String getServerAddress() {
-        return serverAddress;
+    // the ids in the controller's node directory of the chunk servers holding a replica
+    public int[] getServerIds() {
+        return serverIds;
     }
 }
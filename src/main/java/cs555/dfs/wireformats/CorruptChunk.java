@@ -1,6 +1,6 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,49 +21,30 @@ public class CorruptChunk implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            chunk.serialize(dataOutputStream);
-            WireformatUtils.serializeInt(dataOutputStream, corruptSlices.size());
-            for (Integer corruptSlice : corruptSlices)
-                WireformatUtils.serializeInt(dataOutputStream, corruptSlice);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public CorruptChunk(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + chunk.getSerializedSize() + Integer.BYTES * (1 + corruptSlices.size());
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            chunk = Chunk.deserialize(dataInputStream);
-            int numCorruptSlices = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numCorruptSlices; i++)
-                corruptSlices.add(WireformatUtils.deserializeInt(dataInputStream));
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        chunk.serialize(buffer);
+        buffer.putInt(corruptSlices.size());
+        for (Integer corruptSlice : corruptSlices)
+            buffer.putInt(corruptSlice);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public CorruptChunk(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        chunk = Chunk.deserialize(buffer);
+        int numCorruptSlices = buffer.getInt();
+        for (int i = 0; i < numCorruptSlices; i++)
+            corruptSlices.add(buffer.getInt());
     }
 
     @Override
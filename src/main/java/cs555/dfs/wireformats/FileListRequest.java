@@ -1,12 +1,27 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
+// asks for one page of a directory: [header][directory][prefix][start after][varint page size][byte mode]. only
+// children whose name starts with prefix are listed, from the first one sorting after start after, the continuation
+// token of the previous page. mode -1 lists every file, otherwise only files stored that way, directories always
 public class FileListRequest implements Message {
     private MessageHeader messageHeader;
-
-    public FileListRequest(String serverAddress, String sourceAdress) {
+    private final String directory;
+    private final String prefix;
+    private final String startAfter;
+    private final int pageSize;
+    private final FileMetadata.Mode mode;
+
+    public FileListRequest(String serverAddress, String sourceAdress, String directory, String prefix, String startAfter,
+                           int pageSize, FileMetadata.Mode mode) {
         messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAdress);
+        this.directory = directory;
+        this.prefix = prefix;
+        this.startAfter = startAfter;
+        this.pageSize = pageSize;
+        this.mode = mode;
     }
 
     @Override
@@ -15,47 +30,47 @@ public class FileListRequest implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public FileListRequest(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + WireformatUtils.sizeOfString(directory) + WireformatUtils.sizeOfString(prefix)
+            + WireformatUtils.sizeOfString(startAfter) + WireformatUtils.sizeOfVarint(pageSize) + 1;
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        WireformatUtils.serializeString(buffer, directory);
+        WireformatUtils.serializeString(buffer, prefix);
+        WireformatUtils.serializeString(buffer, startAfter);
+        WireformatUtils.serializeVarint(buffer, pageSize);
+        buffer.put((byte) (mode == null ? -1 : mode.ordinal()));
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public FileListRequest(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        directory = WireformatUtils.deserializeString(buffer);
+        prefix = WireformatUtils.deserializeString(buffer);
+        startAfter = WireformatUtils.deserializeString(buffer);
+        pageSize = WireformatUtils.deserializeVarint(buffer);
+        int m = buffer.get();
+        if (m < -1 || m >= FileMetadata.Mode.values().length)
+            throw new BufferUnderflowException();
+        mode = m == -1 ? null : FileMetadata.Mode.values()[m];
     }
 
     @Override
     public String toString() {
         return "FileListRequest{" +
             "messageHeader=" + messageHeader +
+            ", directory='" + directory + '\'' +
+            ", prefix='" + prefix + '\'' +
+            ", startAfter='" + startAfter + '\'' +
+            ", pageSize=" + pageSize +
+            ", mode=" + mode +
             '}';
     }
 
@@ -66,4 +81,25 @@ public class FileListRequest implements Message {
     public String getSourceAddress() {
         return messageHeader.getSourceAddress();
     }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getStartAfter() {
+        return startAfter;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    // null for every mode
+    public FileMetadata.Mode getMode() {
+        return mode;
+    }
 }
@@ -1,16 +1,21 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+// one page of a listing: [header][varint entries][entry...][continuation token]. the token is empty on the last page,
+// otherwise the next page is asked for with it as start after
 public class FileListResponse implements Message {
     private MessageHeader messageHeader;
-    private List<String> fileNames = new ArrayList<>();
+    private final List<FileMetadata> entries;
+    private final String continuationToken;
 
-    public FileListResponse(String serverAddress, String sourceAdress, List<String> fileNames) {
+    public FileListResponse(String serverAddress, String sourceAdress, List<FileMetadata> entries, String continuationToken) {
         messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAdress);
-        this.fileNames = fileNames;
+        this.entries = entries;
+        this.continuationToken = continuationToken;
     }
 
     @Override
@@ -19,54 +24,45 @@ public class FileListResponse implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            WireformatUtils.serializeInt(dataOutputStream, fileNames.size());
-            for (String fileName : fileNames)
-                WireformatUtils.serializeString(dataOutputStream, fileName);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public FileListResponse(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        int size = messageHeader.getSerializedSize() + WireformatUtils.sizeOfVarint(entries.size())
+            + WireformatUtils.sizeOfString(continuationToken);
+        for (FileMetadata entry : entries)
+            size += entry.getSerializedSize();
+        return size;
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            int numFiles = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numFiles; i++)
-                fileNames.add(WireformatUtils.deserializeString(dataInputStream));
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        WireformatUtils.serializeVarint(buffer, entries.size());
+        for (FileMetadata entry : entries)
+            entry.serialize(buffer);
+        WireformatUtils.serializeString(buffer, continuationToken);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public FileListResponse(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        int numEntries = WireformatUtils.deserializeVarint(buffer);
+        if (numEntries < 0 || numEntries > buffer.remaining())
+            throw new BufferUnderflowException();
+        entries = new ArrayList<>(numEntries);
+        for (int i = 0; i < numEntries; i++)
+            entries.add(FileMetadata.deserialize(buffer));
+        continuationToken = WireformatUtils.deserializeString(buffer);
     }
 
     @Override
     public String toString() {
         return "FileListResponse{" +
             "messageHeader=" + messageHeader +
-            ", fileNames=" + fileNames +
+            ", entries=" + entries +
+            ", continuationToken='" + continuationToken + '\'' +
             '}';
     }
 
@@ -78,7 +74,15 @@ public class FileListResponse implements Message {
         return messageHeader.getSourceAddress();
     }
 
-    public List<String> getFileNames() {
-        return fileNames;
+    public List<FileMetadata> getEntries() {
+        return entries;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean isLastPage() {
+        return continuationToken.isEmpty();
     }
 }
@@ -0,0 +1,72 @@
+package cs555.dfs.wireformats;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// one row of a listing: [name][byte mode][signed varlong size][varint chunks]. a directory's name ends in '/' and has
+// no size or chunks, a file's size is -1 while the size of one of its chunks is not known
+public class FileMetadata {
+    private final String name;
+    private final Mode mode;
+    private final long size;
+    private final int numberOfChunks;
+
+    public enum Mode {
+        DIRECTORY, REPLICATED, ERASURE
+    }
+
+    public FileMetadata(String name, Mode mode, long size, int numberOfChunks) {
+        this.name = name;
+        this.mode = mode;
+        this.size = size;
+        this.numberOfChunks = numberOfChunks;
+    }
+
+    public static FileMetadata deserialize(ByteBuffer buffer) {
+        String name = WireformatUtils.deserializeString(buffer);
+        int mode = buffer.get();
+        if (mode < 0 || mode >= Mode.values().length)
+            throw new BufferUnderflowException();
+        long size = WireformatUtils.deserializeSignedVarlong(buffer);
+        int numberOfChunks = WireformatUtils.deserializeVarint(buffer);
+        return new FileMetadata(name, Mode.values()[mode], size, numberOfChunks);
+    }
+
+    public int getSerializedSize() {
+        return WireformatUtils.sizeOfString(name) + 1 + WireformatUtils.sizeOfSignedVarlong(size)
+            + WireformatUtils.sizeOfVarint(numberOfChunks);
+    }
+
+    public void serialize(ByteBuffer buffer) {
+        WireformatUtils.serializeString(buffer, name);
+        buffer.put((byte) mode.ordinal());
+        WireformatUtils.serializeSignedVarlong(buffer, size);
+        WireformatUtils.serializeVarint(buffer, numberOfChunks);
+    }
+
+    @Override
+    public String toString() {
+        return "FileMetadata{" +
+            "name='" + name + '\'' +
+            ", mode=" + mode +
+            ", size=" + size +
+            ", numberOfChunks=" + numberOfChunks +
+            '}';
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getNumberOfChunks() {
+        return numberOfChunks;
+    }
+}
@@ -2,22 +2,39 @@ package cs555.dfs.wireformats;
 
 import cs555.dfs.node.Chunk;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+// [long usable space][int chunks][varint reads in flight or queued], then the new or all chunks.
+// the chunks are grouped by file so each file name is written once, followed by its chunks in sequence order:
+// [varint files] then per file [name][varint chunks] and per chunk [varint sequence - previous sequence]
+// [signed varint version][signed varint timestamp - previous timestamp]. a chunk is about three bytes on the wire
 public class Heartbeat implements Message {
     private MessageHeader messageHeader;
     private long usableSpace;
     private int totalNumberOfChunks;
-    private List<Chunk> chunks = new ArrayList<>();
+    private int readLoad;
+    private Map<String, List<Chunk>> chunksByFile = new LinkedHashMap<>();
 
     public Heartbeat(int protocol, String serverAddress, String sourceAddress, long usableSpace, int totalNumberOfChunks, List<Chunk> chunks) {
+        this(protocol, serverAddress, sourceAddress, usableSpace, totalNumberOfChunks, 0, chunks);
+    }
+
+    public Heartbeat(int protocol, String serverAddress, String sourceAddress, long usableSpace, int totalNumberOfChunks, int readLoad,
+                     List<Chunk> chunks) {
         this.messageHeader = new MessageHeader(protocol, serverAddress, sourceAddress);
         this.usableSpace = usableSpace;
         this.totalNumberOfChunks = totalNumberOfChunks;
-        this.chunks = chunks;
+        this.readLoad = readLoad;
+        for (Chunk chunk : chunks)
+            chunksByFile.computeIfAbsent(chunk.getFileName(), f -> new ArrayList<>()).add(chunk);
+        for (List<Chunk> fileChunks : chunksByFile.values())
+            fileChunks.sort(Comparator.comparingInt(Chunk::getSequence));
     }
 
     @Override
@@ -26,61 +43,80 @@ public class Heartbeat implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            WireformatUtils.serializeLong(dataOutputStream, usableSpace);
-            WireformatUtils.serializeInt(dataOutputStream, totalNumberOfChunks);
-            WireformatUtils.serializeInt(dataOutputStream, chunks.size());
-            for (Chunk chunk : chunks) {
-                WireformatUtils.serializeString(dataOutputStream, chunk.getFileName());
-                WireformatUtils.serializeInt(dataOutputStream, chunk.getVersion());
-                WireformatUtils.serializeInt(dataOutputStream, chunk.getSequence());
-                WireformatUtils.serializeLong(dataOutputStream, chunk.getTimeStamp().getEpochSecond());
-            }
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
 
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
+    @Override
+    public int getSerializedSize() {
+        int size = messageHeader.getSerializedSize() + Long.BYTES + Integer.BYTES + WireformatUtils.sizeOfVarint(readLoad)
+            + WireformatUtils.sizeOfVarint(chunksByFile.size());
+        for (Map.Entry<String, List<Chunk>> entry : chunksByFile.entrySet()) {
+            List<Chunk> fileChunks = entry.getValue();
+            size += WireformatUtils.sizeOfString(entry.getKey()) + WireformatUtils.sizeOfVarint(fileChunks.size());
+            int previousSequence = 0;
+            long previousTimeStamp = 0;
+            for (Chunk chunk : fileChunks) {
+                long timeStamp = chunk.getTimeStamp().getEpochSecond();
+                size += WireformatUtils.sizeOfVarint(chunk.getSequence() - previousSequence)
+                    + WireformatUtils.sizeOfSignedVarlong(chunk.getVersion())
+                    + WireformatUtils.sizeOfSignedVarlong(timeStamp - previousTimeStamp);
+                previousSequence = chunk.getSequence();
+                previousTimeStamp = timeStamp;
+            }
         }
+        return size;
     }
 
-    public Heartbeat(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
-
-            this.messageHeader = MessageHeader.deserialize(dataInputStream);
-
-            usableSpace = WireformatUtils.deserializeLong(dataInputStream);
-            totalNumberOfChunks = WireformatUtils.deserializeInt(dataInputStream);
-
-            int numChunks = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numChunks; i++) {
-                String fileName = WireformatUtils.deserializeString(dataInputStream);
-                int version = WireformatUtils.deserializeInt(dataInputStream);
-                int sequence = WireformatUtils.deserializeInt(dataInputStream);
-                long timeStampEpochSecond = WireformatUtils.deserializeLong(dataInputStream);
-                chunks.add(new Chunk(fileName, version, sequence, Instant.ofEpochSecond(timeStampEpochSecond)));
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        buffer.putLong(usableSpace);
+        buffer.putInt(totalNumberOfChunks);
+        WireformatUtils.serializeVarint(buffer, readLoad);
+        WireformatUtils.serializeVarint(buffer, chunksByFile.size());
+        for (Map.Entry<String, List<Chunk>> entry : chunksByFile.entrySet()) {
+            List<Chunk> fileChunks = entry.getValue();
+            WireformatUtils.serializeString(buffer, entry.getKey());
+            WireformatUtils.serializeVarint(buffer, fileChunks.size());
+            int previousSequence = 0;
+            long previousTimeStamp = 0;
+            for (Chunk chunk : fileChunks) {
+                long timeStamp = chunk.getTimeStamp().getEpochSecond();
+                WireformatUtils.serializeVarint(buffer, chunk.getSequence() - previousSequence);
+                WireformatUtils.serializeSignedVarlong(buffer, chunk.getVersion());
+                WireformatUtils.serializeSignedVarlong(buffer, timeStamp - previousTimeStamp);
+                previousSequence = chunk.getSequence();
+                previousTimeStamp = timeStamp;
             }
-
-            byteArrayInputStream.close();
-            dataInputStream.close();
         }
-        catch (IOException e) {
-            e.printStackTrace();
+    }
+
+    // every chunk of a file shares the one decoded name, and the per file lists are handed to the controller as they are
+    public Heartbeat(ByteBuffer buffer) {
+        this.messageHeader = MessageHeader.deserialize(buffer);
+
+        usableSpace = buffer.getLong();
+        totalNumberOfChunks = buffer.getInt();
+        readLoad = WireformatUtils.deserializeVarint(buffer);
+
+        int numFiles = WireformatUtils.deserializeVarint(buffer);
+        for (int i = 0; i < numFiles; i++) {
+            String fileName = WireformatUtils.deserializeString(buffer);
+            int numChunks = WireformatUtils.deserializeVarint(buffer);
+            // a chunk takes at least three bytes, which bounds the list size a corrupt count can ask for
+            List<Chunk> fileChunks = new ArrayList<>(Math.min(numChunks, buffer.remaining() / 3));
+            int sequence = 0;
+            Instant timeStamp = Instant.EPOCH;
+            for (int j = 0; j < numChunks; j++) {
+                sequence += WireformatUtils.deserializeVarint(buffer);
+                int version = (int) WireformatUtils.deserializeSignedVarlong(buffer);
+                long timeStampDelta = WireformatUtils.deserializeSignedVarlong(buffer);
+                if (timeStampDelta != 0) // chunks written in the same second share one instant
+                    timeStamp = timeStamp.plusSeconds(timeStampDelta);
+                fileChunks.add(new Chunk(fileName, version, sequence, timeStamp));
+            }
+            chunksByFile.put(fileName, fileChunks);
         }
     }
 
@@ -90,7 +126,8 @@ public class Heartbeat implements Message {
             "messageHeader=" + messageHeader +
             ", usableSpace=" + usableSpace +
             ", totalNumberOfChunks=" + totalNumberOfChunks +
-            ", chunks=" + chunks +
+            ", readLoad=" + readLoad +
+            ", chunksByFile=" + chunksByFile +
             '}';
     }
 
@@ -106,7 +143,20 @@ public class Heartbeat implements Message {
         return totalNumberOfChunks;
     }
 
+    // chunk and shard reads the server was serving or had queued when it sent the heartbeat
+    public int getReadLoad() {
+        return readLoad;
+    }
+
     public List<Chunk> getChunks() {
+        List<Chunk> chunks = new ArrayList<>();
+        for (List<Chunk> fileChunks : chunksByFile.values())
+            chunks.addAll(fileChunks);
         return chunks;
     }
+
+    // the chunks of each file in sequence order
+    public Map<String, List<Chunk>> getChunksByFile() {
+        return chunksByFile;
+    }
 }
@@ -1,7 +1,22 @@
 package cs555.dfs.wireformats;
 
+import java.nio.ByteBuffer;
+
 public interface Message {
     int getProtocol();
 
-    byte[] getBytes();
+    MessageHeader getMessageHeader();
+
+    // the exact number of bytes serialize writes
+    int getSerializedSize();
+
+    void serialize(ByteBuffer buffer);
+
+    default byte[] getBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(getSerializedSize());
+        serialize(buffer);
+        if (buffer.hasRemaining())
+            throw new IllegalStateException(getClass().getSimpleName() + " wrote " + buffer.position() + " of " + buffer.capacity() + " bytes");
+        return buffer.array();
+    }
 }
@@ -1,75 +1,96 @@
 package cs555.dfs.wireformats;
 
+import cs555.dfs.util.Utils;
 import cs555.dfs.wireformats.erasure.*;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
+// every message type registers its decoder under its protocol id once, decoding a frame is an array lookup
 public class MessageFactory {
+    private static final Decoder[] decoders = new Decoder[Protocol.MAX_PROTOCOLS];
+    private static final AtomicLong numUnknownMessages = new AtomicLong();
+
+    static {
+        register(Protocol.REGISTER_REQUEST, RegisterRequest::new);
+        register(Protocol.STORE_CHUNK_REQUEST, StoreChunkRequest::new);
+        register(Protocol.STORE_CHUNK_RESPONSE, StoreChunkResponse::new);
+        register(Protocol.STORE_CHUNK, StoreChunk::new);
+        register(Protocol.STORE_SLICE, StoreSlice::new);
+        register(Protocol.MINOR_HEARTBEAT, Heartbeat::new);
+        register(Protocol.MAJOR_HEARTBEAT, Heartbeat::new);
+        register(Protocol.RETRIEVE_FILE_REQUEST, RetrieveFileRequest::new);
+        register(Protocol.RETRIEVE_FILE_RESPONSE, RetrieveFileResponse::new);
+        register(Protocol.RETRIEVE_CHUNK_REQUEST, RetrieveChunkRequest::new);
+        register(Protocol.RETRIEVE_CHUNK_RESPONSE, RetrieveChunkResponse::new);
+        register(Protocol.CORRUPT_CHUNK, CorruptChunk::new);
+        register(Protocol.REPLICATE_CHUNK, ReplicateChunk::new);
+        register(Protocol.ALIVE_HEARTBEAT, AliveHeartbeat::new);
+        register(Protocol.FILE_LIST_REQUEST, FileListRequest::new);
+        register(Protocol.FILE_LIST_RESPONSE, FileListResponse::new);
+        register(Protocol.STORE_SHARD_REQUEST, StoreShardRequest::new);
+        register(Protocol.STORE_SHARD_RESPONSE, StoreShardResponse::new);
+        register(Protocol.STORE_SHARD, StoreShard::new);
+        register(Protocol.SHARD_HEARTBEAT, ShardHeartbeat::new);
+        register(Protocol.RETRIEVE_FILE_REQUEST_ERASURE, RetrieveFileRequestErasure::new);
+        register(Protocol.RETRIEVE_FILE_RESPONSE_ERASURE, RetrieveFileResponseErasure::new);
+        register(Protocol.RETRIEVE_SHARD_REQUEST, RetrieveShardRequest::new);
+        register(Protocol.RETRIEVE_SHARD_RESPONSE, RetrieveShardResponse::new);
+        register(Protocol.REGISTER_RESPONSE, RegisterResponse::new);
+        register(Protocol.NODE_DIRECTORY, NodeDirectoryUpdate::new);
+        register(Protocol.ALLOCATE_FILE_REQUEST, AllocateFileRequest::new);
+        register(Protocol.ALLOCATE_FILE_RESPONSE, AllocateFileResponse::new);
+    }
+
+    private static void register(int protocol, Decoder decoder) {
+        int index = Protocol.index(protocol);
+        if (index < 0 || decoders[index] != null)
+            throw new IllegalStateException("protocol " + protocol + " is out of range or registered twice");
+        decoders[index] = decoder;
+    }
+
     public static Message getMessageFromData(byte[] data) throws IOException {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(data);
-        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+        return getMessageFromData(data, data.length);
+    }
 
-        int protocol = dataInputStream.readInt();
-        switch (protocol) {
-            case Protocol.REGISTER_REQUEST:
-                return new RegisterRequest(data);
-            case Protocol.STORE_CHUNK_REQUEST:
-                return new StoreChunkRequest(data);
-            case Protocol.STORE_CHUNK_RESPONSE:
-                return new StoreChunkResponse(data);
-            case Protocol.STORE_CHUNK:
-                return new StoreChunk(data);
-            case Protocol.STORE_SLICE:
-                return new StoreSlice(data);
-            case Protocol.MINOR_HEARTBEAT:
-                return new Heartbeat(data);
-            case Protocol.MAJOR_HEARTBEAT:
-                return new Heartbeat(data);
-            case Protocol.RETRIEVE_FILE_REQUEST:
-                return new RetrieveFileRequest(data);
-            case Protocol.RETRIEVE_FILE_RESPONSE:
-                return new RetrieveFileResponse(data);
-            case Protocol.RETRIEVE_CHUNK_REQUEST:
-                return new RetrieveChunkRequest(data);
-            case Protocol.RETRIEVE_CHUNK_RESPONSE:
-                return new RetrieveChunkResponse(data);
-            case Protocol.CORRUPT_CHUNK:
-                return new CorruptChunk(data);
-            case Protocol.REPLICATE_CHUNK:
-                return new ReplicateChunk(data);
-            case Protocol.ALIVE_HEARTBEAT:
-                return new AliveHeartbeat(data);
-            case Protocol.FILE_LIST_REQUEST:
-                return new FileListRequest(data);
-            case Protocol.FILE_LIST_RESPONSE:
-                return new FileListResponse(data);
+    // decodes the first length bytes of data, the array may be a larger pooled buffer
+    public static Message getMessageFromData(byte[] data, int length) throws IOException {
+        return getMessageFromData(ByteBuffer.wrap(data, 0, length));
+    }
 
+    // decodes the message between the buffer's position and limit, heap and direct buffers both work.
+    // returns null for a protocol no decoder is registered for
+    public static Message getMessageFromData(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES)
+            throw new IOException("frame too short: " + buffer.remaining());
 
-            case Protocol.STORE_SHARD_REQUEST:
-                return new StoreShardRequest(data);
-            case Protocol.STORE_SHARD_RESPONSE:
-                return new StoreShardResponse(data);
-            case Protocol.STORE_SHARD:
-                return new StoreShard(data);
-            case Protocol.FILE_LIST_REQUEST_ERASURE:
-                return new FileListRequestErasure(data);
-            case Protocol.FILE_LIST_RESPONSE_ERASURE:
-                return new FileListResponseErasure(data);
-            case Protocol.SHARD_HEARTBEAT:
-                return new ShardHeartbeat(data);
-            case Protocol.RETRIEVE_FILE_REQUEST_ERASURE:
-                return new RetrieveFileRequestErasure(data);
-            case Protocol.RETRIEVE_FILE_RESPONSE_ERASURE:
-                return new RetrieveFileResponseErasure(data);
-            case Protocol.RETRIEVE_SHARD_REQUEST:
-                return new RetrieveShardRequest(data);
-            case Protocol.RETRIEVE_SHARD_RESPONSE:
-                return new RetrieveShardResponse(data);
-            default:
-                throw new RuntimeException(String.format("received an unknown message with protocol %d", protocol));
+        try {
+            return getMessage(buffer.getInt(buffer.position()), buffer);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("truncated frame", e);
         }
     }
+
+    // a frame from a newer or broken peer is dropped rather than failing the connection it arrived on
+    private static Message getMessage(int protocol, ByteBuffer buffer) {
+        int index = Protocol.index(protocol);
+        Decoder decoder = index < 0 ? null : decoders[index];
+        if (decoder == null) {
+            numUnknownMessages.incrementAndGet();
+            Utils.debug("dropped a message with unknown protocol " + protocol);
+            return null;
+        }
+        return decoder.decode(buffer);
+    }
+
+    public static long getNumberOfUnknownMessages() {
+        return numUnknownMessages.get();
+    }
+
+    private interface Decoder {
+        Message decode(ByteBuffer buffer);
+    }
 }
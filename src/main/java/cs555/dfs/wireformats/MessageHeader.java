@@ -1,25 +1,67 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import cs555.dfs.node.NodeDirectory;
 
+import java.nio.ByteBuffer;
+
+// [protocol][request id][response][sender id] followed by the sender's server address only when it has no id yet.
+// the source address never goes on the wire, the receiving side fills it in from the connection the message came on
 public class MessageHeader implements Message {
     private final int protocol;
-    private final String serverAddress;
-    private final String sourceAddress;
+    private final int senderId;
+    private String serverAddress;
+    private String sourceAddress;
+    private int requestId; // 0 when the sender is not waiting on a correlated response
+    private boolean response;
 
     public MessageHeader(int protocol, String serverAddress, String sourceAddress) {
+        this(protocol, NodeDirectory.getLocalId(serverAddress), serverAddress, sourceAddress);
+    }
+
+    private MessageHeader(int protocol, int senderId, String serverAddress, String sourceAddress) {
         this.protocol = protocol;
+        this.senderId = senderId;
         this.serverAddress = serverAddress;
         this.sourceAddress = sourceAddress;
     }
 
-    public static MessageHeader deserialize(DataInputStream dataInputStream) {
-        int protocol = WireformatUtils.deserializeInt(dataInputStream);
-        String serverAddress = WireformatUtils.deserializeString(dataInputStream);
-        String sourceAddress = WireformatUtils.deserializeString(dataInputStream);
-        return new MessageHeader(protocol, serverAddress, sourceAddress);
+    public static MessageHeader deserialize(ByteBuffer buffer) {
+        int protocol = buffer.getInt();
+        int requestId = buffer.getInt();
+        boolean response = WireformatUtils.deserializeBoolean(buffer);
+        int senderId = buffer.getInt();
+        String serverAddress = senderId == 0 ? WireformatUtils.deserializeString(buffer) : null;
+        MessageHeader messageHeader = new MessageHeader(protocol, senderId, serverAddress, null);
+        messageHeader.requestId = requestId;
+        messageHeader.response = response;
+        return messageHeader;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    public boolean isResponse() {
+        return response;
+    }
+
+    // marks this header as the reply to a correlated request, uncorrelated requests leave it untouched
+    public void setResponseTo(MessageHeader requestHeader) {
+        if (requestHeader.requestId == 0)
+            return;
+        requestId = requestHeader.requestId;
+        response = true;
+    }
+
+    public int getSenderId() {
+        return senderId;
     }
 
+    // null for a received header whose sender id is not in the receiver's directory
     public String getServerAddress() {
         return serverAddress;
     }
@@ -28,46 +70,48 @@ public class MessageHeader implements Message {
         return sourceAddress;
     }
 
-    public void serialize(DataOutputStream dataOutputStream) {
-        WireformatUtils.serializeInt(dataOutputStream, getProtocol());
-        WireformatUtils.serializeString(dataOutputStream, serverAddress);
-        WireformatUtils.serializeString(dataOutputStream, sourceAddress);
+    // called by the receiving side once it has looked the sender up
+    public void setAddresses(String serverAddress, String sourceAddress) {
+        if (this.serverAddress == null)
+            this.serverAddress = serverAddress;
+        this.sourceAddress = sourceAddress;
     }
 
     @Override
-    public int getProtocol() {
-        return protocol;
+    public int getSerializedSize() {
+        int size = 3 * Integer.BYTES + 1;
+        if (senderId == 0)
+            size += WireformatUtils.sizeOfString(serverAddress);
+        return size;
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            dataOutputStream.writeInt(getProtocol());
-            WireformatUtils.serializeString(dataOutputStream, serverAddress);
-            WireformatUtils.serializeString(dataOutputStream, sourceAddress);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
+    public void serialize(ByteBuffer buffer) {
+        buffer.putInt(getProtocol());
+        buffer.putInt(requestId);
+        WireformatUtils.serializeBoolean(buffer, response);
+        buffer.putInt(senderId);
+        if (senderId == 0)
+            WireformatUtils.serializeString(buffer, serverAddress);
+    }
 
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
+    @Override
+    public int getProtocol() {
+        return protocol;
+    }
 
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    @Override
+    public MessageHeader getMessageHeader() {
+        return this;
     }
 
     @Override
     public String toString() {
         return "MessageHeader{" +
             "protocol=" + protocol +
+            ", requestId=" + requestId +
+            ", response=" + response +
+            ", senderId=" + senderId +
             ", serverAddress='" + serverAddress + '\'' +
             ", sourceAddress='" + sourceAddress + '\'' +
             '}';
@@ -0,0 +1,74 @@
+package cs555.dfs.wireformats;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+// the controller's whole id to server address directory, sent whenever it changes and to every new connection
+public class NodeDirectoryUpdate implements Message {
+    private MessageHeader messageHeader;
+    private int version;
+    private Map<Integer, String> addresses = new TreeMap<>();
+
+    public NodeDirectoryUpdate(String serverAddress, String sourceAddress, int version, Map<Integer, String> addresses) {
+        messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAddress);
+        this.version = version;
+        this.addresses = addresses;
+    }
+
+    @Override
+    public int getProtocol() {
+        return Protocol.NODE_DIRECTORY;
+    }
+
+    @Override
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
+
+    @Override
+    public int getSerializedSize() {
+        int size = messageHeader.getSerializedSize() + 2 * Integer.BYTES;
+        for (String address : addresses.values())
+            size += Integer.BYTES + WireformatUtils.sizeOfString(address);
+        return size;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        buffer.putInt(version);
+        buffer.putInt(addresses.size());
+        for (Map.Entry<Integer, String> entry : addresses.entrySet()) {
+            buffer.putInt(entry.getKey());
+            WireformatUtils.serializeString(buffer, entry.getValue());
+        }
+    }
+
+    public NodeDirectoryUpdate(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        version = buffer.getInt();
+        int numAddresses = buffer.getInt();
+        for (int i = 0; i < numAddresses; i++) {
+            int id = buffer.getInt();
+            addresses.put(id, WireformatUtils.deserializeString(buffer));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NodeDirectoryUpdate{" +
+            "messageHeader=" + messageHeader +
+            ", version=" + version +
+            ", addresses=" + addresses +
+            '}';
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public Map<Integer, String> getAddresses() {
+        return addresses;
+    }
+}
@@ -1,6 +1,10 @@
 package cs555.dfs.wireformats;
 
+// protocol ids are dense from FIRST, so decoders and handlers live in arrays indexed by index(protocol)
 public class Protocol {
+    public static final int FIRST = 300;
+    public static final int MAX_PROTOCOLS = 64;
+
     public static final int REGISTER_REQUEST = 300;
     public static final int STORE_CHUNK_REQUEST = 301;
     public static final int STORE_CHUNK_RESPONSE = 302;
@@ -23,8 +27,16 @@ public class Protocol {
     public static final int RETRIEVE_FILE_RESPONSE_ERASURE = 319;
     public static final int RETRIEVE_SHARD_REQUEST = 320;
     public static final int RETRIEVE_SHARD_RESPONSE = 321;
-    public static final int FILE_LIST_REQUEST_ERASURE = 322;
-    public static final int FILE_LIST_RESPONSE_ERASURE = 323;
     public static final int SHARD_HEARTBEAT = 324;
     public static final int STORE_SLICE = 325;
+    public static final int REGISTER_RESPONSE = 326;
+    public static final int NODE_DIRECTORY = 327;
+    public static final int ALLOCATE_FILE_REQUEST = 328;
+    public static final int ALLOCATE_FILE_RESPONSE = 329;
+
+    // the array slot for protocol, -1 for an id outside the range any node knows
+    public static int index(int protocol) {
+        int index = protocol - FIRST;
+        return index >= 0 && index < MAX_PROTOCOLS ? index : -1;
+    }
 }
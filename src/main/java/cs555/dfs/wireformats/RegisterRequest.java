@@ -1,6 +1,6 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 
 public class RegisterRequest implements Message {
     private MessageHeader messageHeader;
@@ -15,41 +15,22 @@ public class RegisterRequest implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public RegisterRequest(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize();
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public RegisterRequest(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
     }
 
     @Override
@@ -0,0 +1,51 @@
+package cs555.dfs.wireformats;
+
+import java.nio.ByteBuffer;
+
+public class RegisterResponse implements Message {
+    private MessageHeader messageHeader;
+    private int nodeId;
+
+    public RegisterResponse(String serverAddress, String sourceAddress, int nodeId) {
+        messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAddress);
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public int getProtocol() {
+        return Protocol.REGISTER_RESPONSE;
+    }
+
+    @Override
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
+
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + Integer.BYTES;
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        buffer.putInt(nodeId);
+    }
+
+    public RegisterResponse(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        nodeId = buffer.getInt();
+    }
+
+    @Override
+    public String toString() {
+        return "RegisterResponse{" +
+            "messageHeader=" + messageHeader +
+            ", nodeId=" + nodeId +
+            '}';
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+}
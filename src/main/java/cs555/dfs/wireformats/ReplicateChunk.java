@@ -1,6 +1,6 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,51 +23,33 @@ public class ReplicateChunk implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            chunk.serialize(dataOutputStream);
-            WireformatUtils.serializeString(dataOutputStream, destinationAddress);
-            WireformatUtils.serializeInt(dataOutputStream, corruptSlices.size());
-            for (Integer corruptSlice : corruptSlices)
-                WireformatUtils.serializeInt(dataOutputStream, corruptSlice);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public ReplicateChunk(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + chunk.getSerializedSize() + WireformatUtils.sizeOfString(destinationAddress)
+            + Integer.BYTES * (1 + corruptSlices.size());
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            chunk = Chunk.deserialize(dataInputStream);
-            destinationAddress = WireformatUtils.deserializeString(dataInputStream);
-            int numCorruptSlices = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numCorruptSlices; i++)
-                corruptSlices.add(WireformatUtils.deserializeInt(dataInputStream));
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        chunk.serialize(buffer);
+        WireformatUtils.serializeString(buffer, destinationAddress);
+        buffer.putInt(corruptSlices.size());
+        for (Integer corruptSlice : corruptSlices)
+            buffer.putInt(corruptSlice);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public ReplicateChunk(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        chunk = Chunk.deserialize(buffer);
+        destinationAddress = WireformatUtils.deserializeString(buffer);
+        int numCorruptSlices = buffer.getInt();
+        for (int i = 0; i < numCorruptSlices; i++)
+            corruptSlices.add(buffer.getInt());
     }
 
     @Override
@@ -1,6 +1,6 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 
 public class RetrieveChunkResponse implements Message {
     private MessageHeader messageHeader;
@@ -19,45 +19,35 @@ public class RetrieveChunkResponse implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            chunk.serialize(dataOutputStream);
-            WireformatUtils.serializeBytes(dataOutputStream, fileData);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
 
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + chunk.getSerializedSize() + WireformatUtils.sizeOfBytes(fileData);
     }
 
-    public RetrieveChunkResponse(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        chunk.serialize(buffer);
+        WireformatUtils.serializeBytes(buffer, fileData);
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            chunk = Chunk.deserialize(dataInputStream);
-            fileData = WireformatUtils.deserializeBytes(dataInputStream);
+    // everything up to and including the file data length, the file data itself is streamed after it
+    public byte[] getBytesWithoutFileData(int fileDataLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(messageHeader.getSerializedSize() + chunk.getSerializedSize() + Integer.BYTES);
+        messageHeader.serialize(buffer);
+        chunk.serialize(buffer);
+        buffer.putInt(fileDataLength);
+        return buffer.array();
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public RetrieveChunkResponse(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        chunk = Chunk.deserialize(buffer);
+        fileData = WireformatUtils.deserializeBytes(buffer);
     }
 
     @Override
@@ -1,18 +1,25 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+// the chunk locations are followed by a load hint for every server they name: [int servers][int id][int load]...
 public class RetrieveFileResponse implements Message {
     private MessageHeader messageHeader;
     private String fileName;
     private List<ChunkLocation> chunkLocations = new ArrayList<>();
+    private Map<Integer, Integer> serverLoads = new LinkedHashMap<>();
 
-    public RetrieveFileResponse(String serverAddress, String sourceAddress, String fileName, List<ChunkLocation> chunkLocations) {
+    public RetrieveFileResponse(String serverAddress, String sourceAddress, String fileName, List<ChunkLocation> chunkLocations,
+                                Map<Integer, Integer> serverLoads) {
         this.messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAddress);
         this.fileName = fileName;
         this.chunkLocations = chunkLocations;
+        this.serverLoads = serverLoads;
     }
 
     @Override
@@ -21,51 +28,45 @@ public class RetrieveFileResponse implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            WireformatUtils.serializeString(dataOutputStream, fileName);
-            WireformatUtils.serializeInt(dataOutputStream, chunkLocations.size());
-            for (ChunkLocation chunkLocation : chunkLocations)
-                chunkLocation.serialize(dataOutputStream);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
 
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
+    @Override
+    public int getSerializedSize() {
+        int size = messageHeader.getSerializedSize() + WireformatUtils.sizeOfString(fileName) + Integer.BYTES;
+        for (ChunkLocation chunkLocation : chunkLocations)
+            size += chunkLocation.getSerializedSize();
+        return size + Integer.BYTES * (1 + 2 * serverLoads.size());
+    }
 
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        WireformatUtils.serializeString(buffer, fileName);
+        buffer.putInt(chunkLocations.size());
+        for (ChunkLocation chunkLocation : chunkLocations)
+            chunkLocation.serialize(buffer);
+        buffer.putInt(serverLoads.size());
+        for (Map.Entry<Integer, Integer> entry : serverLoads.entrySet()) {
+            buffer.putInt(entry.getKey());
+            buffer.putInt(entry.getValue());
         }
     }
 
-    public RetrieveFileResponse(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
-
-            this.messageHeader = MessageHeader.deserialize(dataInputStream);
-            fileName = WireformatUtils.deserializeString(dataInputStream);
-            int numWireChunks = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numWireChunks; i++) {
-                ChunkLocation chunkLocation = ChunkLocation.deserialize(dataInputStream);
-                chunkLocations.add(chunkLocation);
-            }
-
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
+    public RetrieveFileResponse(ByteBuffer buffer) {
+        this.messageHeader = MessageHeader.deserialize(buffer);
+        fileName = WireformatUtils.deserializeString(buffer);
+        int numWireChunks = buffer.getInt();
+        for (int i = 0; i < numWireChunks; i++) {
+            ChunkLocation chunkLocation = ChunkLocation.deserialize(buffer);
+            chunkLocations.add(chunkLocation);
         }
+        int numServers = buffer.getInt();
+        if (numServers < 0 || numServers > buffer.remaining() / (2 * Integer.BYTES))
+            throw new BufferUnderflowException();
+        for (int i = 0; i < numServers; i++)
+            serverLoads.put(buffer.getInt(), buffer.getInt());
     }
 
     @Override
@@ -74,6 +75,7 @@ public class RetrieveFileResponse implements Message {
             "messageHeader=" + messageHeader +
             ", fileName='" + fileName + '\'' +
             ", chunkLocations=" + chunkLocations +
+            ", serverLoads=" + serverLoads +
             '}';
     }
 
@@ -84,4 +86,9 @@ public class RetrieveFileResponse implements Message {
     public List<ChunkLocation> getChunkLocations() {
         return chunkLocations;
     }
+
+    // server id -> reads the server had in flight or queued when it last reported
+    public Map<Integer, Integer> getServerLoads() {
+        return serverLoads;
+    }
 }
@@ -1,6 +1,6 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,54 +23,63 @@ public class StoreChunk implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            chunk.serialize(dataOutputStream);
-            WireformatUtils.serializeBytes(dataOutputStream, fileData);
-            WireformatUtils.serializeInt(dataOutputStream, nextServers.size());
-            for (String server : nextServers)
-                WireformatUtils.serializeString(dataOutputStream, server);
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
 
-            dataOutputStream.flush();
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + chunk.getSerializedSize() + WireformatUtils.sizeOfBytes(fileData)
+            + WireformatUtils.sizeOfStrings(nextServers);
+    }
 
-            byte[] data = byteArrayOutputStream.toByteArray();
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        chunk.serialize(buffer);
+        WireformatUtils.serializeBytes(buffer, fileData);
+        buffer.putInt(nextServers.size());
+        for (String server : nextServers)
+            WireformatUtils.serializeString(buffer, server);
+    }
 
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
+    public StoreChunk(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        chunk = Chunk.deserialize(buffer);
 
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
+        fileData = WireformatUtils.deserializeBytes(buffer);
+        int numServers = buffer.getInt();
+        for (int i = 0; i < numServers; i++) {
+            String server = WireformatUtils.deserializeString(buffer);
+            nextServers.add(server);
         }
     }
 
-    public StoreChunk(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
-
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            chunk = Chunk.deserialize(dataInputStream);
-
-            fileData = WireformatUtils.deserializeBytes(dataInputStream);
-            int numServers = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numServers; i++) {
-                String server = WireformatUtils.deserializeString(dataInputStream);
-                nextServers.add(server);
-            }
+    // the frame that hands this chunk to the next server in the pipeline. only the header, chunk and remaining servers
+    // are encoded, the payload is sent straight from the array it was received into
+    public ByteBuffer[] getForwardingFrame(String serverAddress, String sourceAddress, int version) {
+        MessageHeader forwardHeader = new MessageHeader(getProtocol(), serverAddress, sourceAddress);
+        Chunk forwardChunk = new Chunk(chunk.getFileName(), chunk.getSequence(), version, chunk.getSize());
+        ByteBuffer prefix = ByteBuffer.allocate(forwardHeader.getSerializedSize() + forwardChunk.getSerializedSize() + Integer.BYTES);
+        forwardHeader.serialize(prefix);
+        forwardChunk.serialize(prefix);
+        prefix.putInt(fileData.length);
+        prefix.flip();
+
+        List<String> nextNextServers = nextServers.subList(1, nextServers.size());
+        ByteBuffer suffix = ByteBuffer.allocate(WireformatUtils.sizeOfStrings(nextNextServers));
+        suffix.putInt(nextNextServers.size());
+        for (String server : nextNextServers)
+            WireformatUtils.serializeString(suffix, server);
+        suffix.flip();
+
+        return new ByteBuffer[]{prefix, ByteBuffer.wrap(fileData), suffix};
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    // the header of a streamed frame that hands this chunk to the next server, the payload follows it unencoded
+    public byte[] getStreamForwardingHeader(String serverAddress, String sourceAddress, int version) {
+        Chunk forwardChunk = new Chunk(chunk.getFileName(), chunk.getSequence(), version, chunk.getSize());
+        return new StoreChunk(serverAddress, sourceAddress, forwardChunk, new byte[0], nextServers.subList(1, nextServers.size())).getBytes();
     }
 
     @Override
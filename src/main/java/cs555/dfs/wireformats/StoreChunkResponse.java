@@ -1,18 +1,18 @@
 package cs555.dfs.wireformats;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 public class StoreChunkResponse implements Message {
     private MessageHeader messageHeader;
     private Chunk chunk;
-    private List<String> chunkServerAddresses = new ArrayList<>();
+    private List<Integer> chunkServerIds = new ArrayList<>();
 
-    public StoreChunkResponse(String serverAddress, String sourceAddress, Chunk chunk, List<String> chunkServerAddresses) {
+    public StoreChunkResponse(String serverAddress, String sourceAddress, Chunk chunk, List<Integer> chunkServerIds) {
         this.messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAddress);
         this.chunk = chunk;
-        this.chunkServerAddresses = chunkServerAddresses;
+        this.chunkServerIds = chunkServerIds;
     }
 
     @Override
@@ -21,50 +21,30 @@ public class StoreChunkResponse implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            chunk.serialize(dataOutputStream);
-            int numAddresses = chunkServerAddresses.size();
-            WireformatUtils.serializeInt(dataOutputStream, numAddresses);
-            for (String chunkServerAddress : chunkServerAddresses)
-                WireformatUtils.serializeString(dataOutputStream, chunkServerAddress);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public StoreChunkResponse(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + chunk.getSerializedSize() + Integer.BYTES * (1 + chunkServerIds.size());
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            chunk = Chunk.deserialize(dataInputStream);
-            int numAddresses = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numAddresses; i++)
-                chunkServerAddresses.add(WireformatUtils.deserializeString(dataInputStream));
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        chunk.serialize(buffer);
+        buffer.putInt(chunkServerIds.size());
+        for (int chunkServerId : chunkServerIds)
+            buffer.putInt(chunkServerId);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public StoreChunkResponse(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        chunk = Chunk.deserialize(buffer);
+        int numServers = buffer.getInt();
+        for (int i = 0; i < numServers; i++)
+            chunkServerIds.add(buffer.getInt());
     }
 
     @Override
@@ -72,7 +52,7 @@ public class StoreChunkResponse implements Message {
         return "StoreChunkResponse{" +
             "messageHeader=" + messageHeader +
             ", chunk=" + chunk +
-            ", chunkServerAddresses=" + chunkServerAddresses +
+            ", chunkServerIds=" + chunkServerIds +
             '}';
     }
 
@@ -88,8 +68,9 @@ public class StoreChunkResponse implements Message {
         return messageHeader.getSourceAddress();
     }
 
-    public List<String> getChunkServerAddresses() {
-        return chunkServerAddresses;
+    // ids in the controller's node directory, the first server is the head of the pipeline
+    public List<Integer> getChunkServerIds() {
+        return chunkServerIds;
     }
 
     public int getVersion() {
@@ -1,92 +1,163 @@
 package cs555.dfs.wireformats;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
+// strings and byte arrays are written as [int length][bytes], strings always as UTF-8. varints are little endian base
+// 128, seven bits per byte with the high bit set on every byte but the last, signed ones zigzag encoded first
 public class WireformatUtils {
-    public static String deserializeString(DataInputStream dataInputStream) {
-        try {
-            int stringLength = dataInputStream.readInt();
-            byte[] stringBytes = new byte[stringLength];
-            dataInputStream.readFully(stringBytes);
-            return new String(stringBytes);
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return "";
-        }
+    public static int sizeOfString(String string) {
+        return Integer.BYTES + utf8Length(string);
     }
 
-    public static int deserializeInt(DataInputStream dataInputStream) {
-        try {
-            int i = dataInputStream.readInt();
-            return i;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return -1;
-        }
+    public static int sizeOfStrings(List<String> strings) {
+        int size = Integer.BYTES;
+        for (String string : strings)
+            size += sizeOfString(string);
+        return size;
     }
 
-    public static long deserializeLong(DataInputStream dataInputStream) {
-        try {
-            long l = dataInputStream.readLong();
-            return l;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return -1L;
-        }
+    public static int sizeOfBytes(byte[] bytes) {
+        return Integer.BYTES + bytes.length;
     }
 
-    public static byte[] deserializeBytes(DataInputStream dataInputStream) {
-        try {
-            int bytesLength = dataInputStream.readInt();
-            byte[] bytes = new byte[bytesLength];
-            dataInputStream.readFully(bytes, 0, bytesLength);
-            return bytes;
-        }
-        catch (IOException e) {
-            return new byte[0];
-        }
+    // value is treated as unsigned, so a negative int takes five bytes
+    public static int sizeOfVarint(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
     }
 
-    public static void serializeString(DataOutputStream dataOutputStream, String string) {
-        try {
-            dataOutputStream.writeInt(string.getBytes().length);
-            dataOutputStream.write(string.getBytes());
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public static int sizeOfSignedVarlong(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while ((zigzag & ~0x7fL) != 0) {
+            zigzag >>>= 7;
+            size++;
+        }
+        return size;
     }
 
-    public static void serializeInt(DataOutputStream dataOutputStream, int i) {
-        try {
-            dataOutputStream.writeInt(i);
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public static String deserializeString(ByteBuffer buffer) {
+        int stringLength = readLength(buffer);
+        if (buffer.hasArray()) {
+            String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), stringLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + stringLength);
+            return string;
+        }
+        byte[] stringBytes = new byte[stringLength];
+        buffer.get(stringBytes);
+        return new String(stringBytes, StandardCharsets.UTF_8);
     }
 
-    public static void serializeLong(DataOutputStream dataOutputStream, long l) {
-        try {
-            dataOutputStream.writeLong(l);
-        }
-        catch (IOException e) {
-            e.printStackTrace();
+    public static boolean deserializeBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    public static byte[] deserializeBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[readLength(buffer)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public static int deserializeVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new BufferUnderflowException(); // more than five bytes, the frame is corrupt
+    }
+
+    public static long deserializeSignedVarlong(ByteBuffer buffer) {
+        long zigzag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new BufferUnderflowException();
+    }
+
+    // encodes straight into the buffer, the length comes from utf8Length so the string is never copied
+    public static void serializeString(ByteBuffer buffer, String string) {
+        buffer.putInt(utf8Length(string));
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80)
+                buffer.put((byte) c);
+            else if (c < 0x800)
+                buffer.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+            else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.put((byte) (0xf0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3f))
+                    .put((byte) (0x80 | codePoint >> 6 & 0x3f)).put((byte) (0x80 | codePoint & 0x3f));
+            }
+            else if (Character.isSurrogate(c))
+                buffer.put((byte) '?'); // what String.getBytes writes for an unpaired surrogate
+            else
+                buffer.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f)).put((byte) (0x80 | c & 0x3f));
         }
     }
 
-    public static void serializeBytes(DataOutputStream dataOutputStream, byte[] bytes) {
-        try {
-            dataOutputStream.writeInt(bytes.length);
-            dataOutputStream.write(bytes);
+    public static void serializeBoolean(ByteBuffer buffer, boolean b) {
+        buffer.put((byte) (b ? 1 : 0));
+    }
+
+    public static void serializeBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static void serializeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
         }
-        catch (IOException e) {
-            e.printStackTrace();
+        buffer.put((byte) value);
+    }
+
+    public static void serializeSignedVarlong(ByteBuffer buffer, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            buffer.put((byte) (zigzag & 0x7f | 0x80));
+            zigzag >>>= 7;
         }
+        buffer.put((byte) zigzag);
+    }
+
+    // the number of bytes string encodes to in UTF-8, without encoding it
+    static int utf8Length(String string) {
+        int length = string.length();
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800)
+                length += 1;
+            else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 2; // four bytes for the pair of chars
+                i++;
+            }
+            else if (!Character.isSurrogate(c))
+                length += 2;
+        }
+        return length;
+    }
+
+    // a length that does not fit in what is left of the frame means the frame is truncated or corrupt
+    private static int readLength(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new BufferUnderflowException();
+        return length;
     }
 }
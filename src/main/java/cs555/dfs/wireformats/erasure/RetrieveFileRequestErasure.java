@@ -5,7 +5,7 @@ import cs555.dfs.wireformats.MessageHeader;
 import cs555.dfs.wireformats.Protocol;
 import cs555.dfs.wireformats.WireformatUtils;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 
 public class RetrieveFileRequestErasure implements Message {
     private MessageHeader messageHeader;
@@ -22,45 +22,24 @@ public class RetrieveFileRequestErasure implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            dataOutputStream.write(messageHeader.getBytes());
-
-            dataOutputStream.writeInt(fileName.length());
-            dataOutputStream.write(fileName.getBytes());
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public RetrieveFileRequestErasure(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + WireformatUtils.sizeOfString(fileName);
+    }
 
-            this.messageHeader = MessageHeader.deserialize(dataInputStream);
-            fileName = WireformatUtils.deserializeString(dataInputStream);
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        WireformatUtils.serializeString(buffer, fileName);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public RetrieveFileRequestErasure(ByteBuffer buffer) {
+        this.messageHeader = MessageHeader.deserialize(buffer);
+        fileName = WireformatUtils.deserializeString(buffer);
     }
 
     @Override
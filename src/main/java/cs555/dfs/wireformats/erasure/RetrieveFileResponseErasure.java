@@ -5,7 +5,7 @@ import cs555.dfs.wireformats.MessageHeader;
 import cs555.dfs.wireformats.Protocol;
 import cs555.dfs.wireformats.WireformatUtils;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,50 +26,34 @@ public class RetrieveFileResponseErasure implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            WireformatUtils.serializeString(dataOutputStream, fileName);
-            WireformatUtils.serializeInt(dataOutputStream, shardLocations.size());
-            for (ShardLocation shardLocation : shardLocations)
-                shardLocation.serialize(dataOutputStream);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public RetrieveFileResponseErasure(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        int size = messageHeader.getSerializedSize() + WireformatUtils.sizeOfString(fileName) + Integer.BYTES;
+        for (ShardLocation shardLocation : shardLocations)
+            size += shardLocation.getSerializedSize();
+        return size;
+    }
 
-            this.messageHeader = MessageHeader.deserialize(dataInputStream);
-            fileName = WireformatUtils.deserializeString(dataInputStream);
-            int numShards = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numShards; i++) {
-                ShardLocation shardLocation = ShardLocation.deserialize(dataInputStream);
-                shardLocations.add(shardLocation);
-            }
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        WireformatUtils.serializeString(buffer, fileName);
+        buffer.putInt(shardLocations.size());
+        for (ShardLocation shardLocation : shardLocations)
+            shardLocation.serialize(buffer);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
+    public RetrieveFileResponseErasure(ByteBuffer buffer) {
+        this.messageHeader = MessageHeader.deserialize(buffer);
+        fileName = WireformatUtils.deserializeString(buffer);
+        int numShards = buffer.getInt();
+        for (int i = 0; i < numShards; i++) {
+            ShardLocation shardLocation = ShardLocation.deserialize(buffer);
+            shardLocations.add(shardLocation);
         }
     }
 
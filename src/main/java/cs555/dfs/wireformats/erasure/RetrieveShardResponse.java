@@ -5,7 +5,7 @@ import cs555.dfs.wireformats.MessageHeader;
 import cs555.dfs.wireformats.Protocol;
 import cs555.dfs.wireformats.WireformatUtils;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 
 public class RetrieveShardResponse implements Message {
     private MessageHeader messageHeader;
@@ -24,45 +24,26 @@ public class RetrieveShardResponse implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            shard.serialize(dataOutputStream);
-            WireformatUtils.serializeBytes(dataOutputStream, fileData);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public RetrieveShardResponse(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + shard.getSerializedSize() + WireformatUtils.sizeOfBytes(fileData);
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            shard = shard.deserialize(dataInputStream);
-            fileData = WireformatUtils.deserializeBytes(dataInputStream);
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        shard.serialize(buffer);
+        WireformatUtils.serializeBytes(buffer, fileData);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public RetrieveShardResponse(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        shard = Shard.deserialize(buffer);
+        fileData = WireformatUtils.deserializeBytes(buffer);
     }
 
     @Override
@@ -2,7 +2,7 @@ package cs555.dfs.wireformats.erasure;
 
 import cs555.dfs.wireformats.WireformatUtils;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 public class Shard {
@@ -16,54 +16,13 @@ public class Shard {
         this.fragment = fragment;
     }
 
-    public Shard(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
-
-            fileName = WireformatUtils.deserializeString(dataInputStream);
-            sequence = WireformatUtils.deserializeInt(dataInputStream);
-            fragment = WireformatUtils.deserializeInt(dataInputStream);
-
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public static Shard deserialize(DataInputStream dataInputStream) {
-        String fileName = WireformatUtils.deserializeString(dataInputStream);
-        int sequence = WireformatUtils.deserializeInt(dataInputStream);
-        int fragment = WireformatUtils.deserializeInt(dataInputStream);
+    public static Shard deserialize(ByteBuffer buffer) {
+        String fileName = WireformatUtils.deserializeString(buffer);
+        int sequence = buffer.getInt();
+        int fragment = buffer.getInt();
         return new Shard(fileName, sequence, fragment);
     }
 
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            WireformatUtils.serializeString(dataOutputStream, fileName);
-            WireformatUtils.serializeInt(dataOutputStream, sequence);
-            WireformatUtils.serializeInt(dataOutputStream, fragment);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
-    }
-
     @Override
     public String toString() {
         return "Shard{" +
@@ -100,9 +59,13 @@ public class Shard {
         return fragment;
     }
 
-    public void serialize(DataOutputStream dataOutputStream) {
-        WireformatUtils.serializeString(dataOutputStream, fileName);
-        WireformatUtils.serializeInt(dataOutputStream, sequence);
-        WireformatUtils.serializeInt(dataOutputStream, fragment);
+    public int getSerializedSize() {
+        return WireformatUtils.sizeOfString(fileName) + 2 * Integer.BYTES;
+    }
+
+    public void serialize(ByteBuffer buffer) {
+        WireformatUtils.serializeString(buffer, fileName);
+        buffer.putInt(sequence);
+        buffer.putInt(fragment);
     }
 }
@@ -5,7 +5,7 @@ import cs555.dfs.wireformats.MessageHeader;
 import cs555.dfs.wireformats.Protocol;
 import cs555.dfs.wireformats.WireformatUtils;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -24,54 +24,38 @@ public class ShardHeartbeat implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            WireformatUtils.serializeInt(dataOutputStream, shards.size());
-            for (cs555.dfs.node.Shard shard : shards) {
-                WireformatUtils.serializeString(dataOutputStream, shard.getFileName());
-                WireformatUtils.serializeInt(dataOutputStream, shard.getSequence());
-                WireformatUtils.serializeInt(dataOutputStream, shard.getFragment());
-            }
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
 
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
+    @Override
+    public int getSerializedSize() {
+        int size = messageHeader.getSerializedSize() + Integer.BYTES;
+        for (cs555.dfs.node.Shard shard : shards)
+            size += WireformatUtils.sizeOfString(shard.getFileName()) + 2 * Integer.BYTES;
+        return size;
+    }
 
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        buffer.putInt(shards.size());
+        for (cs555.dfs.node.Shard shard : shards) {
+            WireformatUtils.serializeString(buffer, shard.getFileName());
+            buffer.putInt(shard.getSequence());
+            buffer.putInt(shard.getFragment());
         }
     }
 
-    public ShardHeartbeat(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
-
-            this.messageHeader = MessageHeader.deserialize(dataInputStream);
+    public ShardHeartbeat(ByteBuffer buffer) {
+        this.messageHeader = MessageHeader.deserialize(buffer);
 
-            int numShards = WireformatUtils.deserializeInt(dataInputStream);
-            for (int i = 0; i < numShards; i++) {
-                String fileName = WireformatUtils.deserializeString(dataInputStream);
-                int sequence = WireformatUtils.deserializeInt(dataInputStream);
-                int fragment = WireformatUtils.deserializeInt(dataInputStream);
-                shards.add(new cs555.dfs.node.Shard(fileName, sequence, fragment));
-            }
-
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
+        int numShards = buffer.getInt();
+        for (int i = 0; i < numShards; i++) {
+            String fileName = WireformatUtils.deserializeString(buffer);
+            int sequence = buffer.getInt();
+            int fragment = buffer.getInt();
+            shards.add(new cs555.dfs.node.Shard(fileName, sequence, fragment));
         }
     }
 
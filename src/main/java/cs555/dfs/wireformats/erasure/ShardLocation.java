@@ -1,36 +1,37 @@
 package cs555.dfs.wireformats.erasure;
 
-import cs555.dfs.wireformats.WireformatUtils;
-
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 public class ShardLocation {
     private final Shard shard;
-    private final String serverAddress;
+    private final int serverId;
 
-    public ShardLocation(Shard shard, String serverAddress) {
+    public ShardLocation(Shard shard, int serverId) {
         this.shard = shard;
-        this.serverAddress = serverAddress;
+        this.serverId = serverId;
+    }
+
+    public static ShardLocation deserialize(ByteBuffer buffer) {
+        Shard shard = Shard.deserialize(buffer);
+        int serverId = buffer.getInt();
+        return new ShardLocation(shard, serverId);
     }
 
-    public static ShardLocation deserialize(DataInputStream dataInputStream) {
-        Shard shard = Shard.deserialize(dataInputStream);
-        String server = WireformatUtils.deserializeString(dataInputStream);
-        return new ShardLocation(shard, server);
+    public int getSerializedSize() {
+        return shard.getSerializedSize() + Integer.BYTES;
     }
 
-    public void serialize(DataOutputStream dataOutputStream) {
-        shard.serialize(dataOutputStream);
-        WireformatUtils.serializeString(dataOutputStream, serverAddress);
+    public void serialize(ByteBuffer buffer) {
+        shard.serialize(buffer);
+        buffer.putInt(serverId);
     }
 
     @Override
     public String toString() {
         return "ShardLocation{" +
             "shard=" + shard +
-            ", serverAddress='" + serverAddress + '\'' +
+            ", serverId=" + serverId +
             '}';
     }
 
@@ -55,8 +56,9 @@ public class ShardLocation {
         return shard.getSequence();
     }
 
-    public String getServerAddress() {
-        return serverAddress;
+    // the chunk server's id in the controller's node directory
+    public int getServerId() {
+        return serverId;
     }
 
     public int getFragment() {
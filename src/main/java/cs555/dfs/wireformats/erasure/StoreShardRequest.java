@@ -4,7 +4,7 @@ import cs555.dfs.wireformats.Message;
 import cs555.dfs.wireformats.MessageHeader;
 import cs555.dfs.wireformats.Protocol;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 
 public class StoreShardRequest implements Message {
     private MessageHeader messageHeader;
@@ -21,43 +21,24 @@ public class StoreShardRequest implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            shard.serialize(dataOutputStream);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
-
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
     }
 
-    public StoreShardRequest(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + shard.getSerializedSize();
+    }
 
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            shard = Shard.deserialize(dataInputStream);
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        shard.serialize(buffer);
+    }
 
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public StoreShardRequest(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        shard = Shard.deserialize(buffer);
     }
 
     @Override
@@ -3,19 +3,18 @@ package cs555.dfs.wireformats.erasure;
 import cs555.dfs.wireformats.Message;
 import cs555.dfs.wireformats.MessageHeader;
 import cs555.dfs.wireformats.Protocol;
-import cs555.dfs.wireformats.WireformatUtils;
 
-import java.io.*;
+import java.nio.ByteBuffer;
 
 public class StoreShardResponse implements Message {
     private MessageHeader messageHeader;
     private Shard shard;
-    private String shardServerAddress;
+    private int shardServerId;
 
-    public StoreShardResponse(String serverAddress, String sourceAddress, Shard shard, String shardServerAddress) {
+    public StoreShardResponse(String serverAddress, String sourceAddress, Shard shard, int shardServerId) {
         this.messageHeader = new MessageHeader(getProtocol(), serverAddress, sourceAddress);
         this.shard = shard;
-        this.shardServerAddress = shardServerAddress;
+        this.shardServerId = shardServerId;
     }
 
     @Override
@@ -24,28 +23,20 @@ public class StoreShardResponse implements Message {
     }
 
     @Override
-    public byte[] getBytes() {
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-            messageHeader.serialize(dataOutputStream);
-            shard.serialize(dataOutputStream);
-            WireformatUtils.serializeString(dataOutputStream, shardServerAddress);
-
-            dataOutputStream.flush();
-
-            byte[] data = byteArrayOutputStream.toByteArray();
+    public MessageHeader getMessageHeader() {
+        return messageHeader;
+    }
 
-            byteArrayOutputStream.close();
-            dataOutputStream.close();
+    @Override
+    public int getSerializedSize() {
+        return messageHeader.getSerializedSize() + shard.getSerializedSize() + Integer.BYTES;
+    }
 
-            return data;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0];
-        }
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        messageHeader.serialize(buffer);
+        shard.serialize(buffer);
+        buffer.putInt(shardServerId);
     }
 
     @Override
@@ -53,25 +44,14 @@ public class StoreShardResponse implements Message {
         return "StoreShardResponse{" +
             "messageHeader=" + messageHeader +
             ", shard=" + shard +
-            ", shardServerAddress='" + shardServerAddress + '\'' +
+            ", shardServerId=" + shardServerId +
             '}';
     }
 
-    public StoreShardResponse(byte[] bytes) {
-        try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(byteArrayInputStream));
-
-            messageHeader = MessageHeader.deserialize(dataInputStream);
-            shard = Shard.deserialize(dataInputStream);
-            shardServerAddress = WireformatUtils.deserializeString(dataInputStream);
-
-            byteArrayInputStream.close();
-            dataInputStream.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+    public StoreShardResponse(ByteBuffer buffer) {
+        messageHeader = MessageHeader.deserialize(buffer);
+        shard = Shard.deserialize(buffer);
+        shardServerId = buffer.getInt();
     }
 
     public String getFileName() {
@@ -90,7 +70,7 @@ public class StoreShardResponse implements Message {
         return messageHeader.getSourceAddress();
     }
 
-    public String getShardServerAddress() {
-        return shardServerAddress;
+    public int getShardServerId() {
+        return shardServerId;
     }
 }
@@ -0,0 +1,120 @@
+import cs555.dfs.node.Node;
+import cs555.dfs.node.NodeDirectory;
+import cs555.dfs.transport.MessageDispatcher;
+import cs555.dfs.transport.TcpConnection;
+import cs555.dfs.transport.TcpServer;
+import cs555.dfs.wireformats.AliveHeartbeat;
+import cs555.dfs.wireformats.Chunk;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.Protocol;
+import cs555.dfs.wireformats.RetrieveChunkRequest;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Floods the bulk lane of a node on the nio transport with one event loop and one bulk dispatch thread: a connection
+// sends 2000 bulk frames whose handler takes 5 ms each, ten seconds of work against a queue of 16. While the lane is
+// full a second connection on the same event loop sends heartbeats, which have to reach their handler within 500 ms
+// instead of waiting for the bulk queue to drain. Afterwards every bulk frame has to have been handled, so the flooding
+// connection was read again once the queue drained.
+// Run with: java -cp build/classes/java/main:build/classes/java/test BackpressureBenchmark
+public class BackpressureBenchmark {
+    private static final int NUM_BULK_FRAMES = 2000;
+    private static final int BULK_HANDLER_MILLIS = 5;
+    private static final int NUM_HEARTBEATS = 10;
+    private static final long MAX_HEARTBEAT_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("cs555.dfs.transport", "nio");
+        System.setProperty("cs555.dfs.nio.threads", "1");
+        System.setProperty("cs555.dfs.dispatch.bulkThreads", "1");
+        System.setProperty("cs555.dfs.dispatch.bulkQueueCapacity", "16");
+
+        TestNode node = new TestNode();
+        TcpServer tcpServer = new TcpServer(0, node);
+        new Thread(tcpServer).start();
+        Thread.sleep(500);
+        TcpConnection bulkConnection = TcpConnection.connect("127.0.0.1", tcpServer.getPort(), node);
+        TcpConnection controlConnection = TcpConnection.connect("127.0.0.1", tcpServer.getPort(), node);
+
+        long startTime = System.nanoTime();
+        Thread flooder = new Thread(() -> {
+            for (int i = 0; i < NUM_BULK_FRAMES; i++) {
+                RetrieveChunkRequest request = new RetrieveChunkRequest("127.0.0.1:1", "127.0.0.1:2", new Chunk("/bulk", i, -1, -1));
+                try {
+                    bulkConnection.sendNoCatch(request.getBytes());
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        flooder.start();
+        Thread.sleep(500);
+
+        long maxNanos = 0;
+        for (int i = 0; i < NUM_HEARTBEATS; i++) {
+            node.heartbeatReceived = new CountDownLatch(1);
+            long sentAt = System.nanoTime();
+            controlConnection.send(new AliveHeartbeat("127.0.0.1:1", "127.0.0.1:2").getBytes());
+            if (!node.heartbeatReceived.await(MAX_HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS))
+                throw new IllegalStateException("heartbeat " + i + " did not get through within " + MAX_HEARTBEAT_MILLIS
+                    + " ms with " + node.numBulkHandled.get() + " bulk frames handled, " + MessageDispatcher.getInstance());
+            maxNanos = Math.max(maxNanos, System.nanoTime() - sentAt);
+            Thread.sleep(100);
+        }
+        System.out.printf("%d heartbeats during the flood, slowest took %.2f ms, bulk queue depth %d%n", NUM_HEARTBEATS,
+            maxNanos / 1e6, MessageDispatcher.getInstance().getQueueDepth(MessageDispatcher.MessageClass.BULK));
+
+        flooder.join();
+        long deadline = System.currentTimeMillis() + 2L * NUM_BULK_FRAMES * BULK_HANDLER_MILLIS;
+        while (node.numBulkHandled.get() < NUM_BULK_FRAMES && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        if (node.numBulkHandled.get() != NUM_BULK_FRAMES)
+            throw new IllegalStateException("only " + node.numBulkHandled.get() + " of " + NUM_BULK_FRAMES + " bulk frames were handled");
+        System.out.printf("all %d bulk frames handled in %.0f ms%n", NUM_BULK_FRAMES, (System.nanoTime() - startTime) / 1e6);
+        System.exit(0);
+    }
+
+    private static class TestNode implements Node {
+        private final NodeDirectory nodeDirectory = new NodeDirectory();
+        private final AtomicInteger numBulkHandled = new AtomicInteger();
+        private volatile CountDownLatch heartbeatReceived = new CountDownLatch(1);
+
+        @Override
+        public void onMessage(Message message) {
+            if (message.getProtocol() == Protocol.ALIVE_HEARTBEAT) {
+                heartbeatReceived.countDown();
+                return;
+            }
+            try {
+                Thread.sleep(BULK_HANDLER_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            numBulkHandled.incrementAndGet();
+        }
+
+        @Override
+        public String getNodeTypeAsString() {
+            return "TestNode";
+        }
+
+        @Override
+        public void registerNewTcpConnection(TcpConnection tcpConnection) {
+        }
+
+        @Override
+        public String getServerAddress() {
+            return "127.0.0.1:1";
+        }
+
+        @Override
+        public NodeDirectory getNodeDirectory() {
+            return nodeDirectory;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.controller.ChunkIndex;
+import cs555.dfs.node.controller.LiveChunkServer;
+import cs555.dfs.wireformats.Heartbeat;
+import cs555.dfs.wireformats.Protocol;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compares the controller's location lookups for one file spread over 20 servers with three replicas per chunk: the
+// old scans over every server and its per file chunk list against the chunk index. Resolving the whole file is
+// measured for 1 GB (the old scan is quadratic, so it stops there) and for 10 GB with the index, counting the replicas
+// of one chunk for both sizes.
+// Run with: java -cp build/classes/java/main:build/classes/java/test ChunkIndexBenchmark
+public class ChunkIndexBenchmark {
+    private static final int NUM_SERVERS = 20;
+    private static final int REPLICATION_LEVEL = 3;
+    private static final int CHUNKS_PER_GB = 16 * 1024;
+    private static final String FILE_NAME = "/s/bach/a/class/cs555/datasets/2018/measurements/station-0.csv";
+    private static Object sink;
+
+    public static void main(String[] args) {
+        for (int gigabytes : new int[]{1, 10}) {
+            int numChunks = gigabytes * CHUNKS_PER_GB;
+            ChunkIndex chunkIndex = new ChunkIndex();
+            List<LiveChunkServer> servers = createServers(chunkIndex, numChunks);
+            String size = gigabytes + " GB";
+
+            if (gigabytes == 1)
+                run("old, resolve file, " + size, 3, () -> resolveFileScan(servers));
+            run("index, resolve file, " + size, 20, () -> {
+                List<Integer> serverIds = new ArrayList<>();
+                chunkIndex.forEachChunk(FILE_NAME, (sequence, replicas) -> serverIds.add(replicas.iterator().next().getNodeId()));
+                return serverIds;
+            });
+
+            int sequence = numChunks / 2;
+            run("old, count replicas, " + size, 200, () -> countReplicasScan(servers, sequence));
+            run("index, count replicas, " + size, 1000000, () -> chunkIndex.getNumberOfReplicas(FILE_NAME, sequence));
+        }
+    }
+
+    // the chunks go round robin, as the major heartbeats would report them
+    private static List<LiveChunkServer> createServers(ChunkIndex chunkIndex, int numChunks) {
+        List<List<Chunk>> chunksByServer = new ArrayList<>();
+        for (int i = 0; i < NUM_SERVERS; i++)
+            chunksByServer.add(new ArrayList<>());
+        Instant now = Instant.now();
+        for (int sequence = 0; sequence < numChunks; sequence++)
+            for (int r = 0; r < REPLICATION_LEVEL; r++)
+                chunksByServer.get((sequence + r) % NUM_SERVERS).add(new Chunk(FILE_NAME, 1, sequence, now));
+
+        List<LiveChunkServer> servers = new ArrayList<>();
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            LiveChunkServer server = new LiveChunkServer(null, i + 1, "127.0.0.1:" + (5000 + i), chunkIndex);
+            List<Chunk> chunks = chunksByServer.get(i);
+            server.majorHeartbeatUpdate(new Heartbeat(Protocol.MAJOR_HEARTBEAT, server.getServerAddress(), "", 1L << 40, chunks.size(), chunks));
+            servers.add(server);
+        }
+        return servers;
+    }
+
+    // the shape of the old handleRetrieveFileRequest, one location per chunk deduplicated with List.contains
+    private static List<Integer> resolveFileScan(List<LiveChunkServer> servers) {
+        List<Integer> sequences = new ArrayList<>();
+        List<Integer> serverIds = new ArrayList<>();
+        for (LiveChunkServer server : servers) {
+            List<Chunk> chunks = server.getChunks(FILE_NAME);
+            if (chunks == null)
+                continue;
+            for (Chunk chunk : chunks) {
+                if (!sequences.contains(chunk.getSequence())) {
+                    sequences.add(chunk.getSequence());
+                    serverIds.add(server.getNodeId());
+                }
+            }
+        }
+        return serverIds;
+    }
+
+    // the shape of the old getNumberOfReplications, a linear containsChunk on every server
+    private static int countReplicasScan(List<LiveChunkServer> servers, int sequence) {
+        int numReplicas = 0;
+        for (LiveChunkServer server : servers) {
+            List<Chunk> chunks = server.getChunks(FILE_NAME);
+            if (chunks == null)
+                continue;
+            for (Chunk chunk : chunks) {
+                if (chunk.getSequence() == sequence) {
+                    numReplicas++;
+                    break;
+                }
+            }
+        }
+        return numReplicas;
+    }
+
+    private static void run(String name, int iterations, Lookup lookup) {
+        for (int i = 0; i < Math.max(1, iterations / 10); i++)
+            sink = lookup.run();
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink = lookup.run();
+        long elapsed = System.nanoTime() - startTime;
+
+        System.out.printf("%-28s %14.1f us/lookup%n", name, elapsed / 1000.0 / iterations);
+    }
+
+    private interface Lookup {
+        Object run();
+    }
+}
@@ -0,0 +1,122 @@
+import cs555.dfs.node.MessageHandlers;
+import cs555.dfs.transport.TcpConnection;
+import cs555.dfs.wireformats.AliveHeartbeat;
+import cs555.dfs.wireformats.Chunk;
+import cs555.dfs.wireformats.CorruptChunk;
+import cs555.dfs.wireformats.FileListRequest;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.MessageFactory;
+import cs555.dfs.wireformats.Protocol;
+import cs555.dfs.wireformats.RegisterRequest;
+import cs555.dfs.wireformats.RetrieveChunkRequest;
+import cs555.dfs.wireformats.RetrieveFileRequest;
+import cs555.dfs.wireformats.StoreChunkRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares the cost per message of getting from a received control frame to its handler: the old switch over the
+// protocol in the decoder and again in the node, against the decoder table in MessageFactory and a MessageHandlers
+// table, with and without decoding. Frames of seven protocols arrive round robin, plus one unknown protocol for the
+// table path, which is counted and dropped.
+// Run with: java -cp build/classes/java/main:build/classes/java/test DispatchBenchmark
+public class DispatchBenchmark {
+    private static final int WARMUP_ITERATIONS = 2000000;
+    private static final int ITERATIONS = 10000000;
+    private static final String SERVER = "127.0.0.1:1331";
+    private static final String SOURCE = "127.0.0.1:4000";
+    private static long handled;
+
+    public static void main(String[] args) throws IOException {
+        List<Message> messages = Arrays.asList(
+            new RegisterRequest(SERVER, SOURCE),
+            new AliveHeartbeat(SERVER, SOURCE),
+            new FileListRequest(SERVER, SOURCE, "/", "", "", 1000, null),
+            new StoreChunkRequest(SERVER, SOURCE, new Chunk("/tmp/file", 1, -1, 64 * 1024)),
+            new RetrieveFileRequest(SERVER, SOURCE, "/tmp/file"),
+            new RetrieveChunkRequest(SERVER, SOURCE, new Chunk("/tmp/file", 1, -1, -1)),
+            new CorruptChunk(SERVER, SOURCE, new Chunk("/tmp/file", 1, 1, 64 * 1024), Arrays.asList(1, 2)));
+        byte[][] frames = new byte[messages.size()][];
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = messages.get(i).getBytes();
+        byte[] unknownFrame = Arrays.copyOf(frames[0], frames[0].length);
+        ByteBuffer.wrap(unknownFrame).putInt(Protocol.FIRST + Protocol.MAX_PROTOCOLS - 1);
+
+        MessageHandlers handlers = new MessageHandlers("benchmark");
+        for (Message message : messages)
+            handlers.register(message.getProtocol(), DispatchBenchmark::count);
+
+        run("switch, handle only", i -> handleSwitch(messages.get(i % messages.size()), null));
+        run("table, handle only", i -> handlers.handle(messages.get(i % messages.size()), null));
+        run("switch, decode and handle", i -> handleSwitch(decodeSwitch(ByteBuffer.wrap(frames[i % frames.length])), null));
+        run("table, decode and handle", i -> {
+            Message message = MessageFactory.getMessageFromData(frames[i % frames.length]);
+            if (message != null)
+                handlers.handle(message, null);
+        });
+        run("table, unknown protocol", i -> MessageFactory.getMessageFromData(unknownFrame));
+        System.out.println("unknown messages dropped: " + MessageFactory.getNumberOfUnknownMessages());
+    }
+
+    private static void run(String name, Step step) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            step.run(i);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            step.run(i);
+        long elapsed = System.nanoTime() - startTime;
+
+        System.out.printf("%-28s %8.1f ns/message%n", name, elapsed / (double) ITERATIONS);
+    }
+
+    private static void count(Message message) {
+        handled++;
+    }
+
+    // the shape of the old Node.onMessage
+    private static void handleSwitch(Message message, TcpConnection tcpConnection) {
+        switch (message.getProtocol()) {
+            case Protocol.REGISTER_REQUEST:
+            case Protocol.ALIVE_HEARTBEAT:
+            case Protocol.FILE_LIST_REQUEST:
+            case Protocol.STORE_CHUNK_REQUEST:
+            case Protocol.RETRIEVE_FILE_REQUEST:
+            case Protocol.RETRIEVE_CHUNK_REQUEST:
+            case Protocol.CORRUPT_CHUNK:
+                count(message);
+                break;
+            default:
+                throw new RuntimeException(String.format("received an unknown message with protocol %d", message.getProtocol()));
+        }
+    }
+
+    // the shape of the old MessageFactory.getMessage
+    private static Message decodeSwitch(ByteBuffer buffer) {
+        int protocol = buffer.getInt(buffer.position());
+        switch (protocol) {
+            case Protocol.REGISTER_REQUEST:
+                return new RegisterRequest(buffer);
+            case Protocol.ALIVE_HEARTBEAT:
+                return new AliveHeartbeat(buffer);
+            case Protocol.FILE_LIST_REQUEST:
+                return new FileListRequest(buffer);
+            case Protocol.STORE_CHUNK_REQUEST:
+                return new StoreChunkRequest(buffer);
+            case Protocol.RETRIEVE_FILE_REQUEST:
+                return new RetrieveFileRequest(buffer);
+            case Protocol.RETRIEVE_CHUNK_REQUEST:
+                return new RetrieveChunkRequest(buffer);
+            case Protocol.CORRUPT_CHUNK:
+                return new CorruptChunk(buffer);
+            default:
+                throw new RuntimeException(String.format("received an unknown message with protocol %d", protocol));
+        }
+    }
+
+    private interface Step {
+        void run(int i) throws IOException;
+    }
+}
@@ -0,0 +1,80 @@
+import cs555.dfs.transport.BufferPool;
+import cs555.dfs.wireformats.Chunk;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.MessageFactory;
+import cs555.dfs.wireformats.RegisterRequest;
+import cs555.dfs.wireformats.StoreChunk;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Compares allocation per received frame for the old receive path (a fresh frame array wrapped in
+// buffered streams twice) against pooled frame buffers decoded through the shared frame view.
+// Run with: java -cp build/classes/java/main:build/classes/java/test FrameDecodeBenchmark
+public class FrameDecodeBenchmark {
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+
+    private static final com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static Object sink;
+
+    public static void main(String[] args) throws IOException {
+        byte[] chunkFrame = new StoreChunk("127.0.0.1:1331", "127.0.0.1:4000", new Chunk("/tmp/file", 0, 1, 64 * 1024),
+            new byte[64 * 1024], Arrays.asList("127.0.0.1:1332", "127.0.0.1:1333")).getBytes();
+        byte[] controlFrame = new RegisterRequest("127.0.0.1:1331", "127.0.0.1:4000").getBytes();
+
+        run("store chunk, fresh frame", chunkFrame, FrameDecodeBenchmark::decodeFresh);
+        run("store chunk, pooled frame", chunkFrame, FrameDecodeBenchmark::decodePooled);
+        run("register, fresh frame", controlFrame, FrameDecodeBenchmark::decodeFresh);
+        run("register, pooled frame", controlFrame, FrameDecodeBenchmark::decodePooled);
+    }
+
+    private static void run(String name, byte[] frame, Decoder decoder) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            sink = decoder.decode(frame);
+
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sink = decoder.decode(frame);
+        long elapsed = System.nanoTime() - startTime;
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        System.out.printf("%-28s %10d bytes/op %10d ns/op%n", name, allocated / ITERATIONS, elapsed / ITERATIONS);
+    }
+
+    // what the receiver used to do: a new array per frame, buffered in streams by the factory before the message decodes it
+    private static Message decodeFresh(byte[] frame) throws IOException {
+        byte[] data = new byte[frame.length];
+        System.arraycopy(frame, 0, data, 0, frame.length);
+
+        DataInputStream factoryInputStream = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(data)));
+        if (factoryInputStream.readInt() < 0)
+            throw new IOException("bad protocol");
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        return frame.length > 1024 ? new StoreChunk(buffer) : new RegisterRequest(buffer);
+    }
+
+    private static Message decodePooled(byte[] frame) throws IOException {
+        BufferPool bufferPool = BufferPool.getInstance();
+        byte[] data = bufferPool.acquire(frame.length);
+        try {
+            System.arraycopy(frame, 0, data, 0, frame.length);
+            return MessageFactory.getMessageFromData(data, frame.length);
+        }
+        finally {
+            bufferPool.release(data);
+        }
+    }
+
+    private interface Decoder {
+        Message decode(byte[] frame) throws IOException;
+    }
+}
@@ -0,0 +1,128 @@
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.controller.ChunkIndex;
+import cs555.dfs.node.controller.LiveChunkServer;
+import cs555.dfs.wireformats.Heartbeat;
+import cs555.dfs.wireformats.MessageFactory;
+import cs555.dfs.wireformats.Protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compares a major heartbeat for 100k chunks of a few files in the old layout (file name, version, sequence and
+// timestamp written out for every chunk) with the grouped varint layout: frame size, and time and allocation for the
+// controller to decode it and rebuild the server's per file chunk lists, plus its chunk index for the grouped layout.
+// Run with: java -cp build/classes/java/main:build/classes/java/test HeartbeatBenchmark
+public class HeartbeatBenchmark {
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 50;
+    private static final int NUM_FILES = 5;
+    private static final int CHUNKS_PER_FILE = 20000;
+    private static final String SERVER = "127.0.0.1:1331";
+
+    private static final com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static Object sink;
+
+    public static void main(String[] args) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        long timeStamp = 1500000000L;
+        for (int f = 0; f < NUM_FILES; f++) {
+            String fileName = "/s/bach/a/class/cs555/datasets/2018/measurements/station-" + f + ".csv";
+            for (int i = 0; i < CHUNKS_PER_FILE; i++)
+                chunks.add(new Chunk(fileName, 1 + i % 3, i, Instant.ofEpochSecond(timeStamp += i % 7 == 0 ? 1 : 0)));
+        }
+        Heartbeat heartbeat = new Heartbeat(Protocol.MAJOR_HEARTBEAT, SERVER, "", 1L << 40, chunks.size(), chunks);
+
+        byte[] legacy = encodeLegacy(chunks);
+        byte[] compact = heartbeat.getBytes();
+        System.out.printf("%-10s %10d bytes%n%-10s %10d bytes%n", "old", legacy.length, "grouped", compact.length);
+
+        LiveChunkServer liveChunkServer = new LiveChunkServer(null, 1, SERVER, new ChunkIndex());
+        Heartbeat decoded = (Heartbeat) MessageFactory.getMessageFromData(compact);
+        liveChunkServer.majorHeartbeatUpdate(decoded);
+        for (Map.Entry<String, List<Chunk>> entry : decodeLegacy(legacy).entrySet())
+            if (!describe(entry.getValue()).equals(describe(liveChunkServer.getChunks(entry.getKey()))))
+                throw new IllegalStateException("the two layouts decode " + entry.getKey() + " differently");
+
+        run("old", () -> decodeLegacy(legacy));
+        run("grouped", () -> {
+            liveChunkServer.majorHeartbeatUpdate((Heartbeat) MessageFactory.getMessageFromData(compact));
+            return liveChunkServer;
+        });
+    }
+
+    private static void run(String name, Decoder decoder) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            sink = decoder.decode();
+
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sink = decoder.decode();
+        long elapsed = System.nanoTime() - startTime;
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        System.out.printf("%-10s %10d bytes/decode %10d us/decode%n", name, allocated / ITERATIONS, elapsed / ITERATIONS / 1000);
+    }
+
+    private static byte[] encodeLegacy(List<Chunk> chunks) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
+        dataOutputStream.writeLong(1L << 40);
+        dataOutputStream.writeInt(chunks.size());
+        dataOutputStream.writeInt(chunks.size());
+        for (Chunk chunk : chunks) {
+            byte[] fileName = chunk.getFileName().getBytes(StandardCharsets.UTF_8);
+            dataOutputStream.writeInt(fileName.length);
+            dataOutputStream.write(fileName);
+            dataOutputStream.writeInt(chunk.getVersion());
+            dataOutputStream.writeInt(chunk.getSequence());
+            dataOutputStream.writeLong(chunk.getTimeStamp().getEpochSecond());
+        }
+        dataOutputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    // what the controller did before: a string and a chunk per entry, then grouped by file name
+    private static Map<String, List<Chunk>> decodeLegacy(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.getLong();
+        buffer.getInt();
+        int numChunks = buffer.getInt();
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < numChunks; i++) {
+            int length = buffer.getInt();
+            String fileName = new String(data, buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            int version = buffer.getInt();
+            int sequence = buffer.getInt();
+            chunks.add(new Chunk(fileName, version, sequence, Instant.ofEpochSecond(buffer.getLong())));
+        }
+        Map<String, List<Chunk>> filesToChunks = new HashMap<>();
+        for (Chunk chunk : chunks)
+            filesToChunks.computeIfAbsent(chunk.getFileName(), c -> new ArrayList<>()).add(chunk);
+        return filesToChunks;
+    }
+
+    private static List<String> describe(List<Chunk> chunks) {
+        List<String> descriptions = new ArrayList<>();
+        for (Chunk chunk : chunks)
+            descriptions.add(chunk.getSequence() + " " + chunk.getVersion() + " " + chunk.getTimeStamp());
+        return descriptions;
+    }
+
+    private interface Decoder {
+        Object decode() throws IOException;
+    }
+}
@@ -0,0 +1,159 @@
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.controller.MetadataJournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+// Journals 20 chunk servers holding 3 replicas of 20 files of 16384 chunks each, reported one minor heartbeat per
+// server and file, then measures replaying the log, writing a snapshot and replaying the snapshot. A half written
+// record is then appended to the log to check that replay cuts it off. While the snapshot is written another thread
+// journals a heartbeat every millisecond: the slowest of them shows how long the snapshot held the journal's lock,
+// and every one of them has to be replayed afterwards. Without the journal a restarted controller only learns of a
+// file when the servers' next major heartbeats arrive, up to 10 heartbeat intervals later.
+// Run with: java -Dcs555.dfs.journal.snapshotRecords=1000000000 -cp build/classes/java/main:build/classes/java/test JournalBenchmark
+public class JournalBenchmark {
+    private static final int NUM_SERVERS = 20;
+    private static final int NUM_FILES = 20;
+    private static final int CHUNKS_PER_FILE = 16384;
+    private static final int REPLICATION_LEVEL = 3;
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            run(directory);
+        }
+        finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(Path directory) throws IOException {
+        MetadataJournal journal = new MetadataJournal(directory);
+        long startTime = System.nanoTime();
+        for (int nodeId = 1; nodeId <= NUM_SERVERS; nodeId++)
+            journal.serverRegistered(nodeId, "127.0.0.1:" + (5000 + nodeId));
+        int numRecords = 0;
+        for (int f = 0; f < NUM_FILES; f++) {
+            for (int nodeId = 1; nodeId <= NUM_SERVERS; nodeId++) {
+                List<Chunk> chunks = new ArrayList<>();
+                for (int sequence = 0; sequence < CHUNKS_PER_FILE; sequence++)
+                    if (holds(nodeId, f, sequence))
+                        chunks.add(new Chunk(fileName(f), 1, sequence, Instant.EPOCH));
+                journal.chunksAdded(nodeId, Collections.singletonMap(fileName(f), chunks));
+                numRecords += chunks.size();
+            }
+        }
+        // a second round of the same heartbeats changes nothing and logs nothing
+        List<Chunk> repeated = new ArrayList<>();
+        for (int sequence = 0; sequence < CHUNKS_PER_FILE; sequence++)
+            if (holds(1, 0, sequence))
+                repeated.add(new Chunk(fileName(0), 1, sequence, Instant.EPOCH));
+        journal.chunksAdded(1, Collections.singletonMap(fileName(0), repeated));
+        journal.close();
+        long appendNanos = System.nanoTime() - startTime;
+        long logSize = Files.size(directory.resolve("wal.0"));
+        System.out.printf("append     %8d records %10d bytes %8.1f ms %10.0f records/s%n", numRecords, logSize,
+            appendNanos / 1e6, numRecords / (appendNanos / 1e9));
+
+        startTime = System.nanoTime();
+        journal = new MetadataJournal(directory);
+        long replayNanos = System.nanoTime() - startTime;
+        check(journal);
+        System.out.printf("replay log %8d records %10d bytes %8.1f ms%n", numRecords, logSize, replayNanos / 1e6);
+
+        MetadataJournal snapshotted = journal;
+        AtomicBoolean snapshotDone = new AtomicBoolean();
+        AtomicInteger numConcurrent = new AtomicInteger();
+        AtomicLong maxConcurrentNanos = new AtomicLong();
+        Thread heartbeats = new Thread(() -> {
+            while (!snapshotDone.get()) {
+                int sequence = numConcurrent.getAndIncrement();
+                long sentAt = System.nanoTime();
+                snapshotted.chunksAdded(1, Collections.singletonMap("/concurrent",
+                    Collections.singletonList(new Chunk("/concurrent", 1, sequence, Instant.EPOCH))));
+                maxConcurrentNanos.accumulateAndGet(System.nanoTime() - sentAt, Math::max);
+                LockSupport.parkNanos(1_000_000);
+            }
+        });
+        heartbeats.start();
+        startTime = System.nanoTime();
+        journal.snapshot();
+        long snapshotNanos = System.nanoTime() - startTime;
+        snapshotDone.set(true);
+        try {
+            heartbeats.join();
+        }
+        catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        journal.close();
+        long snapshotSize = Files.size(directory.resolve("snapshot"));
+        System.out.printf("snapshot   %8d replicas %9d bytes %8.1f ms, %d heartbeats journaled meanwhile, slowest %.1f ms%n",
+            numRecords, snapshotSize, snapshotNanos / 1e6, numConcurrent.get(), maxConcurrentNanos.get() / 1e6);
+
+        startTime = System.nanoTime();
+        journal = new MetadataJournal(directory);
+        replayNanos = System.nanoTime() - startTime;
+        check(journal);
+        if (journal.getChunks(1).getOrDefault("/concurrent", Collections.emptyList()).size() != numConcurrent.get())
+            throw new IllegalStateException("heartbeats journaled during the snapshot were lost");
+        System.out.printf("replay snapshot %23d bytes %8.1f ms%n", snapshotSize, replayNanos / 1e6);
+
+        journal.chunksAdded(1, Collections.singletonMap("/torn", Collections.singletonList(new Chunk("/torn", 1, 0, Instant.EPOCH))));
+        journal.close();
+        Path log = directory.resolve("wal.1");
+        long intactSize = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.APPEND)) {
+            ByteBuffer torn = ByteBuffer.allocate(12).putInt(100).putInt(12345);
+            torn.flip();
+            channel.write(torn);
+        }
+        journal = new MetadataJournal(directory);
+        journal.close();
+        if (Files.size(log) != intactSize || !journal.getChunks(1).containsKey("/torn"))
+            throw new IllegalStateException("the torn record was not cut off cleanly");
+        System.out.println("torn record cut off, the records before it were kept");
+    }
+
+    private static void check(MetadataJournal journal) {
+        for (int nodeId = 1; nodeId <= NUM_SERVERS; nodeId++) {
+            Map<String, List<Chunk>> chunksByFile = journal.getChunks(nodeId);
+            for (int f = 0; f < NUM_FILES; f++) {
+                int expected = 0;
+                for (int sequence = 0; sequence < CHUNKS_PER_FILE; sequence++)
+                    if (holds(nodeId, f, sequence))
+                        expected++;
+                List<Chunk> chunks = chunksByFile.getOrDefault(fileName(f), Collections.emptyList());
+                if (chunks.size() != expected)
+                    throw new IllegalStateException("server " + nodeId + " has " + chunks.size() + " chunks of file " + f + ", expected " + expected);
+            }
+        }
+    }
+
+    // the replicas go round robin over the servers
+    private static boolean holds(int nodeId, int file, int sequence) {
+        int first = (file + sequence) % NUM_SERVERS;
+        return (nodeId - 1 - first + NUM_SERVERS) % NUM_SERVERS < REPLICATION_LEVEL;
+    }
+
+    private static String fileName(int file) {
+        return "/s/bach/a/class/cs555/datasets/2018/measurements/station-" + file + ".csv";
+    }
+}
@@ -0,0 +1,144 @@
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.controller.ChunkIndex;
+import cs555.dfs.node.controller.LiveChunkServer;
+import cs555.dfs.wireformats.Heartbeat;
+import cs555.dfs.wireformats.Protocol;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Measures how long the controller's file resolution waits behind heartbeat processing. 20 servers hold 3 replicas of
+// 20 files of 2048 chunks each, two threads apply their major heartbeats back to back while four threads resolve
+// random files. "one lock" takes a single lock around every heartbeat and every lookup, the way the controller's
+// state used to be guarded; "per file" relies on the chunk index's own per file locking.
+// Run with: java -cp build/classes/java/main:build/classes/java/test MetadataContentionBenchmark
+public class MetadataContentionBenchmark {
+    private static final int NUM_SERVERS = 20;
+    private static final int NUM_FILES = 20;
+    private static final int CHUNKS_PER_FILE = 2048;
+    private static final int REPLICATION_LEVEL = 3;
+    private static final int NUM_WRITERS = 2;
+    private static final int NUM_READERS = 4;
+    private static final long DURATION_MILLIS = 5000;
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        run("one lock", true);
+        run("per file", false);
+    }
+
+    private static void run(String name, boolean oneLock) throws InterruptedException {
+        Object lock = new Object();
+        ChunkIndex chunkIndex = new ChunkIndex();
+        List<LiveChunkServer> servers = new ArrayList<>();
+        List<Heartbeat> heartbeats = createHeartbeats();
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            LiveChunkServer server = new LiveChunkServer(null, i + 1, "127.0.0.1:" + (5000 + i), chunkIndex);
+            server.majorHeartbeatUpdate(heartbeats.get(i));
+            servers.add(server);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        long[] numHeartbeats = new long[NUM_WRITERS];
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < NUM_WRITERS; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                for (int i = writer; running.get(); i = (i + NUM_WRITERS) % NUM_SERVERS) {
+                    if (oneLock) {
+                        synchronized (lock) {
+                            servers.get(i).majorHeartbeatUpdate(heartbeats.get(i));
+                        }
+                    }
+                    else {
+                        servers.get(i).majorHeartbeatUpdate(heartbeats.get(i));
+                    }
+                    numHeartbeats[writer]++;
+                }
+            }));
+        }
+
+        long[][] latencies = new long[NUM_READERS][];
+        int[] numLookups = new int[NUM_READERS];
+        for (int r = 0; r < NUM_READERS; r++) {
+            int reader = r;
+            latencies[r] = new long[1 << 22];
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get() && numLookups[reader] < latencies[reader].length) {
+                    String fileName = fileName(random.nextInt(NUM_FILES));
+                    long startTime = System.nanoTime();
+                    if (oneLock) {
+                        synchronized (lock) {
+                            sink = resolve(chunkIndex, fileName);
+                        }
+                    }
+                    else {
+                        sink = resolve(chunkIndex, fileName);
+                    }
+                    latencies[reader][numLookups[reader]++] = System.nanoTime() - startTime;
+                }
+            }));
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        for (Thread thread : threads)
+            thread.join();
+
+        int total = 0;
+        for (int n : numLookups)
+            total += n;
+        long[] all = new long[total];
+        int offset = 0;
+        for (int r = 0; r < NUM_READERS; r++) {
+            System.arraycopy(latencies[r], 0, all, offset, numLookups[r]);
+            offset += numLookups[r];
+        }
+        Arrays.sort(all);
+        System.out.printf("%-10s %8d heartbeats/s %10d lookups/s   lookup p50 %7.1f us  p99 %8.1f us  max %9.1f us%n", name,
+            Arrays.stream(numHeartbeats).sum() * 1000 / DURATION_MILLIS, total * 1000L / DURATION_MILLIS,
+            all[total / 2] / 1000.0, all[(int) (total * 0.99)] / 1000.0, all[total - 1] / 1000.0);
+    }
+
+    private static List<int[]> resolve(ChunkIndex chunkIndex, String fileName) {
+        List<int[]> serverIds = new ArrayList<>(CHUNKS_PER_FILE);
+        chunkIndex.forEachChunk(fileName, (sequence, replicas) -> {
+            int[] ids = new int[replicas.size()];
+            int i = 0;
+            for (LiveChunkServer server : replicas)
+                ids[i++] = server.getNodeId();
+            serverIds.add(ids);
+        });
+        return serverIds;
+    }
+
+    // the chunks of every file go round robin over the servers
+    private static List<Heartbeat> createHeartbeats() {
+        List<List<Chunk>> chunksByServer = new ArrayList<>();
+        for (int i = 0; i < NUM_SERVERS; i++)
+            chunksByServer.add(new ArrayList<>());
+        Instant now = Instant.now();
+        for (int f = 0; f < NUM_FILES; f++)
+            for (int sequence = 0; sequence < CHUNKS_PER_FILE; sequence++)
+                for (int r = 0; r < REPLICATION_LEVEL; r++)
+                    chunksByServer.get((f + sequence + r) % NUM_SERVERS).add(new Chunk(fileName(f), 1, sequence, now));
+
+        List<Heartbeat> heartbeats = new ArrayList<>();
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            List<Chunk> chunks = chunksByServer.get(i);
+            heartbeats.add(new Heartbeat(Protocol.MAJOR_HEARTBEAT, "127.0.0.1:" + (5000 + i), "", 1L << 40, chunks.size(), chunks));
+        }
+        return heartbeats;
+    }
+
+    private static String fileName(int file) {
+        return "/s/bach/a/class/cs555/datasets/2018/measurements/station-" + file + ".csv";
+    }
+}
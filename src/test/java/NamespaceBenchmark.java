@@ -0,0 +1,141 @@
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.controller.Namespace;
+import cs555.dfs.wireformats.FileListResponse;
+import cs555.dfs.wireformats.FileMetadata;
+import cs555.dfs.wireformats.WireformatUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Allocates 1,000,000 files of 4 chunks spread over 1000 directories, plus 200,000 in one flat directory, every tenth
+// file erasure coded. Compares the old listing, every file name copied into one set and sent in one message, with
+// asking the namespace for the first page of 1000, walking the flat directory page by page with continuation tokens,
+// a prefix filtered page and a page of erasure files only. The walk is checked to list every file once, in order.
+// Then a major heartbeat repeating 4000 known chunks is reported, and first pages are listed from one thread and from
+// four at once, which share the read lock.
+// Run with: java -Xmx2g -cp build/classes/java/main:build/classes/java/test NamespaceBenchmark
+public class NamespaceBenchmark {
+    private static final int NUM_DIRECTORIES = 1000;
+    private static final int FILES_PER_DIRECTORY = 1000;
+    private static final int FLAT_FILES = 200000;
+    private static final int CHUNKS_PER_FILE = 4;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int PAGE_SIZE = 1000;
+    private static final int ROUNDS = 20;
+    private static final int LIST_THREADS = 4;
+    private static final int PAGES_PER_THREAD = 500;
+
+    public static void main(String[] args) throws InterruptedException {
+        Namespace namespace = new Namespace();
+        List<String> fileNames = new ArrayList<>();
+        int[] sizes = new int[CHUNKS_PER_FILE];
+        Arrays.fill(sizes, CHUNK_SIZE);
+        for (int d = 0; d < NUM_DIRECTORIES; d++)
+            for (int f = 0; f < FILES_PER_DIRECTORY; f++)
+                fileNames.add(String.format("/data/station-%04d/day-%04d.csv", d, f));
+        for (int f = 0; f < FLAT_FILES; f++)
+            fileNames.add(String.format("/flat/file-%07d", f));
+        long startTime = System.nanoTime();
+        for (int i = 0; i < fileNames.size(); i++)
+            namespace.fileAllocated(fileNames.get(i), i % 10 == 0, 0, sizes);
+        System.out.printf("allocated %d files in %d directories in %.0f ms%n", namespace.getNumberOfFiles(),
+            namespace.getNumberOfDirectories(), (System.nanoTime() - startTime) / 1e6);
+
+        // the old controller copied every name of every file, then sent them all at once
+        long bytes = 0;
+        startTime = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            Set<String> names = new HashSet<>(fileNames);
+            bytes = WireformatUtils.sizeOfStrings(new ArrayList<>(names));
+        }
+        report("all names, one message", startTime, bytes);
+
+        startTime = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            bytes = size(namespace.list("/data/station-0500", "", "", PAGE_SIZE, null));
+        report("first page of a directory", startTime, bytes);
+
+        startTime = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            bytes = size(namespace.list("/data", "station-05", "", PAGE_SIZE, null));
+        report("prefix page", startTime, bytes);
+
+        startTime = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            bytes = size(namespace.list("/flat", "", "file-0100000", PAGE_SIZE, FileMetadata.Mode.ERASURE));
+        report("erasure files only page", startTime, bytes);
+
+        startTime = System.nanoTime();
+        int numPages = 0;
+        int numFiles = 0;
+        String previous = "";
+        String token = "";
+        do {
+            Namespace.Page page = namespace.list("/flat", "", token, PAGE_SIZE, null);
+            for (FileMetadata entry : page.getEntries()) {
+                if (entry.getName().compareTo(previous) <= 0)
+                    throw new IllegalStateException(entry.getName() + " listed after " + previous);
+                if (entry.getSize() != (long) CHUNK_SIZE * CHUNKS_PER_FILE || entry.getNumberOfChunks() != CHUNKS_PER_FILE)
+                    throw new IllegalStateException("wrong metadata: " + entry);
+                previous = entry.getName();
+                numFiles++;
+            }
+            token = page.getContinuationToken();
+            numPages++;
+        } while (!token.isEmpty());
+        if (numFiles != FLAT_FILES)
+            throw new IllegalStateException("listed " + numFiles + " files, expected " + FLAT_FILES);
+        System.out.printf("%-28s %10.3f ms per page, %d pages, every file listed once in order%n", "walk of the flat directory",
+            (System.nanoTime() - startTime) / 1e6 / numPages, numPages);
+
+        // a major heartbeat of a server holding a chunk of 4000 files, all of them allocated already
+        Map<String, List<Chunk>> chunksByFile = new HashMap<>();
+        for (int i = 0; i < 4000; i++) {
+            String fileName = fileNames.get(i * 250);
+            chunksByFile.put(fileName, Arrays.asList(new Chunk(fileName, 1, i % CHUNKS_PER_FILE, Instant.EPOCH)));
+        }
+        int numberOfFiles = namespace.getNumberOfFiles();
+        startTime = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            namespace.chunksReported(chunksByFile);
+        System.out.printf("%-28s %10.3f ms%n", "major heartbeat, all known", (System.nanoTime() - startTime) / 1e6 / ROUNDS);
+        if (namespace.getNumberOfFiles() != numberOfFiles)
+            throw new IllegalStateException("a heartbeat of known chunks changed the namespace");
+
+        listConcurrently(namespace, 1);
+        listConcurrently(namespace, LIST_THREADS);
+    }
+
+    private static void listConcurrently(Namespace namespace, int numThreads) throws InterruptedException {
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < PAGES_PER_THREAD; i++)
+                    namespace.list(String.format("/data/station-%04d", (i + offset * 100) % NUM_DIRECTORIES), "", "", PAGE_SIZE, null);
+            });
+        }
+        long startTime = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("%-28s %10.0f pages/s%n", "first pages, " + numThreads + (numThreads == 1 ? " thread" : " threads"),
+            numThreads * PAGES_PER_THREAD / seconds);
+    }
+
+    private static long size(Namespace.Page page) {
+        return new FileListResponse("127.0.0.1:1", "127.0.0.1:2", page.getEntries(), page.getContinuationToken()).getSerializedSize();
+    }
+
+    private static void report(String name, long startTime, long bytes) {
+        System.out.printf("%-28s %10.3f ms %10d bytes%n", name, (System.nanoTime() - startTime) / 1e6 / ROUNDS, bytes);
+    }
+}
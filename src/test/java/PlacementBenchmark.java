@@ -0,0 +1,78 @@
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.controller.ChunkIndex;
+import cs555.dfs.node.controller.LiveChunkServer;
+import cs555.dfs.node.controller.PlacementEngine;
+import cs555.dfs.node.controller.PlacementPolicy;
+import cs555.dfs.wireformats.Heartbeat;
+import cs555.dfs.wireformats.Protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+// Places 64 KB chunks with three replicas on 1000 servers that report the same free space, as they do between
+// heartbeats: the old sort of every server by usable space against the placement engine with each policy. Prints the
+// time per allocation and how evenly the replicas landed (fewest and most per server).
+// Run with: java -cp build/classes/java/main:build/classes/java/test PlacementBenchmark
+public class PlacementBenchmark {
+    private static final int NUM_SERVERS = 1000;
+    private static final int REPLICATION_LEVEL = 3;
+    private static final int NUM_CHUNKS = 100000;
+    private static final long CHUNK_SIZE = 64 * 1024;
+    private static final String FILE_NAME = "/tmp/file";
+
+    public static void main(String[] args) {
+        List<LiveChunkServer> servers = createServers();
+        run("old sort", servers, sequence -> servers.stream()
+            .filter(lcs -> !lcs.containsChunk(FILE_NAME, sequence))
+            .sorted(Comparator.comparingLong(LiveChunkServer::getUsableSpace).reversed())
+            .limit(REPLICATION_LEVEL)
+            .collect(Collectors.toList()));
+
+        for (String policy : new String[]{"leastUsed", "roundRobin", "powerOfTwo"}) {
+            PlacementEngine placementEngine = new PlacementEngine(PlacementPolicy.forName(policy));
+            for (LiveChunkServer server : servers)
+                placementEngine.addServer(server);
+            run(policy, servers, sequence -> placementEngine.placeChunk(FILE_NAME, sequence, CHUNK_SIZE, REPLICATION_LEVEL,
+                lcs -> !lcs.containsChunk(FILE_NAME, sequence)));
+        }
+    }
+
+    private static List<LiveChunkServer> createServers() {
+        List<LiveChunkServer> servers = new ArrayList<>();
+        ChunkIndex chunkIndex = new ChunkIndex();
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            LiveChunkServer server = new LiveChunkServer(null, i + 1, "127.0.0.1:" + (5000 + i), chunkIndex);
+            server.majorHeartbeatUpdate(new Heartbeat(Protocol.MAJOR_HEARTBEAT, server.getServerAddress(), "", 1L << 40, 0, Collections.<Chunk>emptyList()));
+            servers.add(server);
+        }
+        Collections.shuffle(servers, new Random(42));
+        return servers;
+    }
+
+    private static void run(String name, List<LiveChunkServer> servers, Placement placement) {
+        Map<LiveChunkServer, Integer> replicasPerServer = new HashMap<>();
+        for (LiveChunkServer server : servers)
+            replicasPerServer.put(server, 0);
+
+        long startTime = System.nanoTime();
+        for (int sequence = 0; sequence < NUM_CHUNKS; sequence++)
+            for (LiveChunkServer server : placement.place(sequence))
+                replicasPerServer.merge(server, 1, Integer::sum);
+        long elapsed = System.nanoTime() - startTime;
+
+        int fewest = Collections.min(replicasPerServer.values());
+        int most = Collections.max(replicasPerServer.values());
+        System.out.printf("%-12s %10.2f us/allocation   replicas per server: %6d to %6d%n",
+            name, elapsed / 1000.0 / NUM_CHUNKS, fewest, most);
+    }
+
+    private interface Placement {
+        List<LiveChunkServer> place(int sequence);
+    }
+}
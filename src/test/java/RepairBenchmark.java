@@ -0,0 +1,119 @@
+import cs555.dfs.node.Chunk;
+import cs555.dfs.node.controller.ChunkIndex;
+import cs555.dfs.node.controller.LiveChunkServer;
+import cs555.dfs.node.controller.PlacementEngine;
+import cs555.dfs.node.controller.RepairScheduler;
+import cs555.dfs.wireformats.Heartbeat;
+import cs555.dfs.wireformats.Protocol;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Kills one of 20 servers holding 3 replicas of 20480 chunks and lets the repair scheduler restore them with simulated
+// chunk servers, each copy being reported 20 ms after it is requested. Prints the time to full redundancy and how the
+// copies spread over the sources for a few per server limits and bandwidth budgets, next to the spread of the old
+// repair, which copied every chunk from the first server holding it.
+// Run with: java -cp build/classes/java/main:build/classes/java/test RepairBenchmark
+public class RepairBenchmark {
+    private static final int NUM_SERVERS = 20;
+    private static final int NUM_CHUNKS = 20480;
+    private static final int REPLICATION_LEVEL = 3;
+    private static final int COPY_MILLIS = 20;
+    private static final String FILE_NAME = "/s/bach/a/class/cs555/datasets/2018/measurements/station-0.csv";
+
+    public static void main(String[] args) throws InterruptedException {
+        oldRepairSpread();
+        run(1, 1L << 40);
+        run(4, 1L << 40);
+        run(16, 1L << 40);
+        run(16, 32 * 1024 * 1024);
+    }
+
+    // the old repair took the first of the chunk's servers sorted by usable space, the same one for equal servers
+    private static void oldRepairSpread() {
+        ChunkIndex chunkIndex = new ChunkIndex();
+        List<LiveChunkServer> servers = createServers(chunkIndex);
+        LiveChunkServer deadServer = servers.get(0);
+        List<Chunk> lostChunks = deadServer.getChunks();
+        deadServer.removeFromIndex();
+
+        Map<LiveChunkServer, Integer> copiesBySource = new HashMap<>();
+        for (Chunk chunk : lostChunks)
+            copiesBySource.merge(chunkIndex.getReplicas(FILE_NAME, chunk.getSequence()).get(0), 1, Integer::sum);
+        System.out.printf("%-34s %8s   copies per source: %4d to %4d over %2d servers%n", "old, one chunk at a time", "",
+            Collections.min(copiesBySource.values()), Collections.max(copiesBySource.values()), copiesBySource.size());
+    }
+
+    private static void run(int maxPerServer, long bandwidth) throws InterruptedException {
+        ChunkIndex chunkIndex = new ChunkIndex();
+        List<LiveChunkServer> servers = createServers(chunkIndex);
+        PlacementEngine placementEngine = new PlacementEngine();
+        for (LiveChunkServer server : servers)
+            placementEngine.addServer(server);
+
+        ScheduledExecutorService chunkServers = Executors.newSingleThreadScheduledExecutor();
+        Map<LiveChunkServer, Integer> copiesBySource = new HashMap<>();
+        RepairScheduler[] repairScheduler = new RepairScheduler[1];
+        repairScheduler[0] = new RepairScheduler(REPLICATION_LEVEL, chunkIndex, placementEngine, (source, target, chunk) -> {
+            synchronized (copiesBySource) {
+                copiesBySource.merge(source, 1, Integer::sum);
+            }
+            chunkServers.schedule(() -> {
+                Chunk stored = new Chunk(chunk.getFileName(), chunk.getVersion(), chunk.getSequence(), Instant.now());
+                chunkIndex.add(target, stored);
+                repairScheduler[0].chunksReported(target, Collections.singletonMap(chunk.getFileName(), Collections.singletonList(stored)));
+            }, COPY_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        }, maxPerServer, bandwidth);
+
+        LiveChunkServer deadServer = servers.get(0);
+        placementEngine.removeServer(deadServer);
+        deadServer.removeFromIndex();
+        repairScheduler[0].start();
+        repairScheduler[0].serverRemoved(deadServer);
+        repairScheduler[0].enqueue(deadServer.getChunks());
+        while (repairScheduler[0].isRepairing())
+            Thread.sleep(10);
+        repairScheduler[0].close();
+        chunkServers.shutdown();
+
+        String name = "scheduler, " + maxPerServer + " per server" + (bandwidth < 1L << 40 ? ", " + (bandwidth >> 20) + " MB/s" : "");
+        System.out.printf("%-34s %6d ms   copies per source: %4d to %4d over %2d servers, %d completed%n", name,
+            repairScheduler[0].getLastTimeToFullRedundancy(), Collections.min(copiesBySource.values()),
+            Collections.max(copiesBySource.values()), copiesBySource.size(), repairScheduler[0].getNumberOfCompletedRepairs());
+    }
+
+    // every chunk goes to three random servers, the same ones every run, as major heartbeats would report them
+    private static List<LiveChunkServer> createServers(ChunkIndex chunkIndex) {
+        List<List<Chunk>> chunksByServer = new ArrayList<>();
+        List<Integer> serverIndices = new ArrayList<>();
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            chunksByServer.add(new ArrayList<>());
+            serverIndices.add(i);
+        }
+        Random random = new Random(555);
+        Instant now = Instant.now();
+        for (int sequence = 0; sequence < NUM_CHUNKS; sequence++) {
+            Collections.shuffle(serverIndices, random);
+            for (int r = 0; r < REPLICATION_LEVEL; r++)
+                chunksByServer.get(serverIndices.get(r)).add(new Chunk(FILE_NAME, 1, sequence, now));
+        }
+
+        List<LiveChunkServer> servers = new ArrayList<>();
+        for (int i = 0; i < NUM_SERVERS; i++) {
+            LiveChunkServer server = new LiveChunkServer(null, i + 1, "127.0.0.1:" + (5000 + i), chunkIndex);
+            List<Chunk> chunks = chunksByServer.get(i);
+            server.majorHeartbeatUpdate(new Heartbeat(Protocol.MAJOR_HEARTBEAT, server.getServerAddress(), "", 1L << 40, chunks.size(), chunks));
+            servers.add(server);
+        }
+        return servers;
+    }
+}
@@ -0,0 +1,106 @@
+import cs555.dfs.node.client.ReplicaSelector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Simulates 8 clients each reading a file of 2048 chunks with 16 reads outstanding, the way the client's reader
+// does, from 20 chunk servers that serve one read at a time. Every chunk has 3 replicas on random servers, 4 of the
+// servers are slow and take 8 ms per chunk instead of 2 ms. Each client keeps its own replica selector, as separate
+// client processes would. Prints the time until every file is read, read latencies and how the reads spread over the
+// servers for every replica policy; "first" always reads the first listed replica, as the reader used to.
+// Run with: java -cp build/classes/java/main:build/classes/java/test ReplicaSelectionBenchmark
+public class ReplicaSelectionBenchmark {
+    private static final int NUM_SERVERS = 20;
+    private static final int NUM_SLOW_SERVERS = 4;
+    private static final int NUM_CLIENTS = 8;
+    private static final int NUM_CHUNKS = 2048;
+    private static final int REPLICATION_LEVEL = 3;
+    private static final int MAX_OUTSTANDING_REQUESTS = 16;
+    private static final double FAST_MILLIS = 2;
+    private static final double SLOW_MILLIS = 8;
+
+    public static void main(String[] args) {
+        int[][] replicas = createReplicas();
+        for (ReplicaSelector.Policy policy : ReplicaSelector.Policy.values())
+            run(policy, replicas);
+    }
+
+    private static void run(ReplicaSelector.Policy policy, int[][] replicas) {
+        double[] busyUntil = new double[NUM_SERVERS + 1];
+        int[] readsByServer = new int[NUM_SERVERS + 1];
+        ReplicaSelector[] selectors = new ReplicaSelector[NUM_CLIENTS];
+        int[] nextChunk = new int[NUM_CLIENTS];
+        List<Double> latencies = new ArrayList<>();
+        PriorityQueue<Read> completions = new PriorityQueue<>((a, b) -> Double.compare(a.completion, b.completion));
+
+        for (int client = 0; client < NUM_CLIENTS; client++) {
+            selectors[client] = new ReplicaSelector(policy);
+            for (int i = 0; i < MAX_OUTSTANDING_REQUESTS; i++)
+                completions.add(startRead(client, 0, replicas, selectors, nextChunk, busyUntil, readsByServer));
+        }
+
+        double now = 0;
+        while (!completions.isEmpty()) {
+            Read read = completions.poll();
+            now = read.completion;
+            selectors[read.client].finished(read.serverId);
+            latencies.add(read.completion - read.start);
+            if (nextChunk[read.client] < NUM_CHUNKS)
+                completions.add(startRead(read.client, now, replicas, selectors, nextChunk, busyUntil, readsByServer));
+        }
+
+        Collections.sort(latencies);
+        double mean = latencies.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        int[] slow = Arrays.copyOfRange(readsByServer, 1, 1 + NUM_SLOW_SERVERS);
+        int[] fast = Arrays.copyOfRange(readsByServer, 1 + NUM_SLOW_SERVERS, NUM_SERVERS + 1);
+        System.out.printf("%-18s %8.0f ms   latency mean %6.1f ms  p99 %7.1f ms   reads per slow server %5d to %5d, fast server %5d to %5d%n",
+            policy, now, mean, latencies.get((int) (latencies.size() * 0.99)),
+            Arrays.stream(slow).min().getAsInt(), Arrays.stream(slow).max().getAsInt(),
+            Arrays.stream(fast).min().getAsInt(), Arrays.stream(fast).max().getAsInt());
+    }
+
+    // a server serves its reads in arrival order, one at a time
+    private static Read startRead(int client, double now, int[][] replicas, ReplicaSelector[] selectors, int[] nextChunk,
+                                  double[] busyUntil, int[] readsByServer) {
+        int sequence = nextChunk[client]++;
+        int serverId = selectors[client].acquire(replicas[sequence], new HashSet<>());
+        double serviceMillis = serverId <= NUM_SLOW_SERVERS ? SLOW_MILLIS : FAST_MILLIS;
+        busyUntil[serverId] = Math.max(now, busyUntil[serverId]) + serviceMillis;
+        readsByServer[serverId]++;
+        return new Read(client, serverId, now, busyUntil[serverId]);
+    }
+
+    // every chunk on three random servers, listed in the order they would have reported it
+    private static int[][] createReplicas() {
+        List<Integer> serverIds = new ArrayList<>();
+        for (int i = 1; i <= NUM_SERVERS; i++)
+            serverIds.add(i);
+        Random random = new Random(555);
+        int[][] replicas = new int[NUM_CHUNKS][REPLICATION_LEVEL];
+        for (int sequence = 0; sequence < NUM_CHUNKS; sequence++) {
+            Collections.shuffle(serverIds, random);
+            for (int r = 0; r < REPLICATION_LEVEL; r++)
+                replicas[sequence][r] = serverIds.get(r);
+        }
+        return replicas;
+    }
+
+    private static class Read {
+        private final int client;
+        private final int serverId;
+        private final double start;
+        private final double completion;
+
+        private Read(int client, int serverId, double start, double completion) {
+            this.client = client;
+            this.serverId = serverId;
+            this.start = start;
+            this.completion = completion;
+        }
+    }
+}
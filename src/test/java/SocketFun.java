@@ -1,4 +1,5 @@
 import cs555.dfs.node.Node;
+import cs555.dfs.node.NodeDirectory;
 import cs555.dfs.transport.TcpConnection;
 import cs555.dfs.transport.TcpSender;
 import cs555.dfs.transport.TcpServer;
@@ -35,6 +36,7 @@ public class SocketFun {
     }
 
     private static class TestNode implements Node {
+        private final NodeDirectory nodeDirectory = new NodeDirectory();
 
         @Override
         public void onMessage(Message message) {
@@ -55,5 +57,10 @@ public class SocketFun {
         public String getServerAddress() {
             return null;
         }
+
+        @Override
+        public NodeDirectory getNodeDirectory() {
+            return nodeDirectory;
+        }
     }
 }
@@ -0,0 +1,162 @@
+import cs555.dfs.transport.BufferPool;
+import cs555.dfs.wireformats.Chunk;
+import cs555.dfs.wireformats.ChunkLocation;
+import cs555.dfs.wireformats.Message;
+import cs555.dfs.wireformats.Protocol;
+import cs555.dfs.wireformats.RetrieveFileResponse;
+import cs555.dfs.wireformats.StoreChunk;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compares allocation and time per encoded message for the old stream encoding (ByteArrayOutputStream, a buffered
+// DataOutputStream and a copy in toByteArray, strings encoded twice in the platform charset) against the exact-size
+// ByteBuffer encoding into a fresh array, a pooled array and a reused direct buffer.
+// Run with: java -cp build/classes/java/main:build/classes/java/test WireformatEncodeBenchmark
+public class WireformatEncodeBenchmark {
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+    private static final String SERVER = "127.0.0.1:1331";
+    private static final String SOURCE = "127.0.0.1:4000";
+
+    private static final com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final ByteBuffer directBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+    private static Object sink;
+
+    public static void main(String[] args) throws IOException {
+        byte[] fileData = new byte[64 * 1024];
+        List<String> nextServers = Arrays.asList("127.0.0.1:1332", "127.0.0.1:1333");
+        StoreChunk storeChunk = new StoreChunk(SERVER, SOURCE, new Chunk("/tmp/file", 0, 1, fileData.length), fileData, nextServers);
+
+        List<ChunkLocation> chunkLocations = new ArrayList<>();
+        Map<Integer, Integer> serverLoads = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            int[] serverIds = {1 + i % 20, 1 + (i + 1) % 20, 1 + (i + 2) % 20};
+            chunkLocations.add(new ChunkLocation(new Chunk("/tmp/file", i, 1, 64 * 1024), serverIds));
+            for (int serverId : serverIds)
+                serverLoads.putIfAbsent(serverId, i % 4);
+        }
+        RetrieveFileResponse retrieveFileResponse = new RetrieveFileResponse(SERVER, SOURCE, "/tmp/file", chunkLocations, serverLoads);
+
+        check("store chunk", storeChunk, legacyStoreChunk(storeChunk, fileData, nextServers));
+        check("retrieve file response", retrieveFileResponse, legacyRetrieveFileResponse(retrieveFileResponse));
+
+        run("store chunk, streams", () -> legacyStoreChunk(storeChunk, fileData, nextServers));
+        run("store chunk, exact size", storeChunk::getBytes);
+        run("store chunk, pooled", () -> encodePooled(storeChunk));
+        run("store chunk, direct", () -> encodeDirect(storeChunk));
+        run("file response, streams", () -> legacyRetrieveFileResponse(retrieveFileResponse));
+        run("file response, exact size", retrieveFileResponse::getBytes);
+        run("file response, pooled", () -> encodePooled(retrieveFileResponse));
+        run("file response, direct", () -> encodeDirect(retrieveFileResponse));
+    }
+
+    // both encodings must produce the same frame, the new one is only allowed to be cheaper
+    private static void check(String name, Message message, byte[] legacy) {
+        if (!Arrays.equals(message.getBytes(), legacy))
+            throw new IllegalStateException(name + " encodes differently from the stream encoding");
+    }
+
+    private static void run(String name, Encoder encoder) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            sink = encoder.encode();
+
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sink = encoder.encode();
+        long elapsed = System.nanoTime() - startTime;
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        System.out.printf("%-28s %10d bytes/op %10d ns/op%n", name, allocated / ITERATIONS, elapsed / ITERATIONS);
+    }
+
+    private static Object encodePooled(Message message) {
+        BufferPool bufferPool = BufferPool.getInstance();
+        int size = message.getSerializedSize();
+        byte[] data = bufferPool.acquire(size);
+        try {
+            message.serialize(ByteBuffer.wrap(data, 0, size));
+            return data;
+        }
+        finally {
+            bufferPool.release(data);
+        }
+    }
+
+    private static Object encodeDirect(Message message) {
+        directBuffer.clear();
+        message.serialize(directBuffer);
+        return directBuffer;
+    }
+
+    private static byte[] legacyStoreChunk(StoreChunk storeChunk, byte[] fileData, List<String> nextServers) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
+        writeHeader(dataOutputStream, Protocol.STORE_CHUNK);
+        writeChunk(dataOutputStream, storeChunk.getFileName(), storeChunk.getSequence(), storeChunk.getVersion(), storeChunk.getSize());
+        dataOutputStream.writeInt(fileData.length);
+        dataOutputStream.write(fileData);
+        dataOutputStream.writeInt(nextServers.size());
+        for (String server : nextServers)
+            writeString(dataOutputStream, server);
+        dataOutputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static byte[] legacyRetrieveFileResponse(RetrieveFileResponse response) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
+        writeHeader(dataOutputStream, Protocol.RETRIEVE_FILE_RESPONSE);
+        writeString(dataOutputStream, response.getFileName());
+        dataOutputStream.writeInt(response.getChunkLocations().size());
+        for (ChunkLocation chunkLocation : response.getChunkLocations()) {
+            writeChunk(dataOutputStream, chunkLocation.getFileName(), chunkLocation.getSequence(), 1, 64 * 1024);
+            dataOutputStream.writeInt(chunkLocation.getServerIds().length);
+            for (int serverId : chunkLocation.getServerIds())
+                dataOutputStream.writeInt(serverId);
+        }
+        dataOutputStream.writeInt(response.getServerLoads().size());
+        for (Map.Entry<Integer, Integer> entry : response.getServerLoads().entrySet()) {
+            dataOutputStream.writeInt(entry.getKey());
+            dataOutputStream.writeInt(entry.getValue());
+        }
+        dataOutputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static void writeHeader(DataOutputStream dataOutputStream, int protocol) throws IOException {
+        dataOutputStream.writeInt(protocol);
+        dataOutputStream.writeInt(0);
+        dataOutputStream.writeBoolean(false);
+        dataOutputStream.writeInt(0); // no sender id, so the server address follows
+        writeString(dataOutputStream, SERVER);
+    }
+
+    private static void writeChunk(DataOutputStream dataOutputStream, String fileName, int sequence, int version, int size) throws IOException {
+        writeString(dataOutputStream, fileName);
+        dataOutputStream.writeInt(sequence);
+        dataOutputStream.writeInt(version);
+        dataOutputStream.writeInt(size);
+    }
+
+    private static void writeString(DataOutputStream dataOutputStream, String string) throws IOException {
+        dataOutputStream.writeInt(string.getBytes().length);
+        dataOutputStream.write(string.getBytes());
+    }
+
+    private interface Encoder {
+        Object encode() throws IOException;
+    }
+}